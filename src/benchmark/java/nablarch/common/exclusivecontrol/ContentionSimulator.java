@@ -0,0 +1,797 @@
+package nablarch.common.exclusivecontrol;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link ExclusiveControlManager}の実装に競合する負荷をかけ、スループットと競合の発生状況を計測するシミュレータ。
+ * <p/>
+ * 複数のスレッドが、指定された割合で以下の操作を繰り返す。
+ * 操作毎に対象の行データを指定された件数だけ選び、1つのトランザクションとして実行する。
+ * <ul>
+ *     <li>get: バージョン番号をまとめて取得する。</li>
+ *     <li>check: バージョン番号を取得し、{@link ExclusiveControlManager#checkVersions(List)}でチェックする。</li>
+ *     <li>update: バージョン番号を取得し、{@link ExclusiveControlManager#updateVersionsWithCheck(List)}で更新する。</li>
+ *     <li>lock: 行データのキーの順に{@link ExtendedExclusiveControlManager#tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)}で
+ *         悲観的ロックを取得する。待機時間の上限までに取得できない場合はトランザクションを異常終了する。
+ *         計測対象が待機時間を指定した悲観的ロックに対応していない場合は、取得するまで待機するため、タイムアウトは発生しない。
+ *         全てのスレッドが同じ順にロックを取得するため、計測対象によるデッドロックは発生しない。</li>
+ * </ul>
+ * 行データは一様分布又はZipf分布で選ぶ。Zipf分布では、少数の行データに操作が集中する。
+ * <p/>
+ * 結果として、操作毎の件数、スループット、所要時間のパーセンタイル、楽観的ロックエラーの割合、
+ * 悲観的ロックのタイムアウトとデッドロックの件数を出力する。
+ * デッドロックは、例外又はその原因のメッセージに"deadlock"を含む場合、
+ * 又はSQLステートが40001若しくは40P01の{@link SQLException}の場合とする。
+ * <p/>
+ * 計測対象のデフォルトは{@link InMemoryExclusiveControlManager}である。
+ * データベースを使用する実装を計測する場合は、本クラスを継承して{@link #setExclusiveControlManager(ExclusiveControlManager)}で
+ * 計測対象を設定し、{@link #transactionNormalEnd()}、{@link #transactionAbnormalEnd()}でコミット、ロールバックを行うこと。
+ * <p/>
+ * 以下のコマンドで実行する。パラメータは"名前=値"の形式で空白で区切って指定する(省略時はデフォルト値)。
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec@simulator -Dsimulator.args="threads=16 skew=zipf:1.1 mix=get:50,update:40,lock:10"
+ * </pre>
+ * <table>
+ *     <tr><th>名前</th><th>内容</th><th>デフォルト値</th></tr>
+ *     <tr><td>threads</td><td>スレッド数</td><td>4</td></tr>
+ *     <tr><td>keys</td><td>行データの件数</td><td>1000</td></tr>
+ *     <tr><td>skew</td><td>行データの分布(uniform又はzipf:指数)</td><td>uniform</td></tr>
+ *     <tr><td>mix</td><td>操作の比率(操作名:比率のカンマ区切り)</td><td>get:60,check:10,update:20,lock:10</td></tr>
+ *     <tr><td>listSize</td><td>操作毎の行データの件数(件数又は最小-最大)</td><td>1-10</td></tr>
+ *     <tr><td>lockTimeoutMillis</td><td>悲観的ロックの待機時間の上限(ミリ秒)</td><td>100</td></tr>
+ *     <tr><td>thinkTimeMicros</td><td>取得から更新までの間隔(マイクロ秒)</td><td>0</td></tr>
+ *     <tr><td>warmupSeconds</td><td>計測前に実行する時間(秒)</td><td>1</td></tr>
+ *     <tr><td>durationSeconds</td><td>計測する時間(秒)</td><td>5</td></tr>
+ *     <tr><td>seed</td><td>乱数の種</td><td>現在時刻</td></tr>
+ * </table>
+ */
+public class ContentionSimulator {
+
+    /** 操作 */
+    enum Operation {
+
+        /** バージョン番号の取得 */
+        GET,
+
+        /** バージョン番号の取得とチェック */
+        CHECK,
+
+        /** バージョン番号の取得と更新 */
+        UPDATE,
+
+        /** 悲観的ロックの取得 */
+        LOCK
+    }
+
+    /** 操作の結果 */
+    public enum Outcome {
+
+        /** 成功 */
+        SUCCESS,
+
+        /** 楽観的ロックエラー */
+        CONFLICT,
+
+        /** 悲観的ロックのタイムアウト */
+        TIMEOUT,
+
+        /** デッドロック */
+        DEADLOCK,
+
+        /** その他のエラー */
+        ERROR
+    }
+
+    /** 計測対象 */
+    private final ExclusiveControlManagerWrapper manager = new ExclusiveControlManagerWrapper();
+
+    /** 計測対象のクラス名 */
+    private String managerName;
+
+    /** スレッド数 */
+    private int threads = 4;
+
+    /** 行データの件数 */
+    private int keys = 1000;
+
+    /** Zipf分布の指数(0の場合は一様分布) */
+    private double zipfExponent;
+
+    /** 操作毎の比率 */
+    private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+
+    /** 操作毎の行データの件数の最小値 */
+    private int minListSize = 1;
+
+    /** 操作毎の行データの件数の最大値 */
+    private int maxListSize = 10;
+
+    /** 悲観的ロックの待機時間の上限(ミリ秒) */
+    private long lockTimeoutMillis = 100;
+
+    /** 取得から更新までの間隔(マイクロ秒) */
+    private long thinkTimeMicros;
+
+    /** 計測前に実行する時間(秒) */
+    private long warmupSeconds = 1;
+
+    /** 計測する時間(秒) */
+    private long durationSeconds = 5;
+
+    /** 乱数の種 */
+    private long seed = System.nanoTime();
+
+    /**
+     * コンストラクタ。
+     */
+    public ContentionSimulator() {
+        setExclusiveControlManager(new InMemoryExclusiveControlManager());
+        mix.put(Operation.GET, 60);
+        mix.put(Operation.CHECK, 10);
+        mix.put(Operation.UPDATE, 20);
+        mix.put(Operation.LOCK, 10);
+    }
+
+    /**
+     * パラメータを指定してシミュレーションを実行し、結果を標準出力に出力する。
+     * @param args "名前=値"形式のパラメータ
+     */
+    public static void main(String[] args) {
+        final ContentionSimulator simulator = new ContentionSimulator();
+        for (String arg : args) {
+            simulator.configure(arg);
+        }
+        System.out.println(simulator.run());
+    }
+
+    /**
+     * "名前=値"形式のパラメータを設定する。
+     * @param arg パラメータ
+     */
+    public void configure(String arg) {
+        final int separator = arg.indexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("parameter must be name=value. arg = [" + arg + ']');
+        }
+        final String name = arg.substring(0, separator).trim();
+        final String value = arg.substring(separator + 1).trim();
+        if (name.equals("threads")) {
+            setThreads(Integer.parseInt(value));
+        } else if (name.equals("keys")) {
+            setKeys(Integer.parseInt(value));
+        } else if (name.equals("skew")) {
+            setSkew(value);
+        } else if (name.equals("mix")) {
+            setMix(value);
+        } else if (name.equals("listSize")) {
+            final int range = value.indexOf('-');
+            if (range < 0) {
+                setListSize(Integer.parseInt(value), Integer.parseInt(value));
+            } else {
+                setListSize(Integer.parseInt(value.substring(0, range)), Integer.parseInt(value.substring(range + 1)));
+            }
+        } else if (name.equals("lockTimeoutMillis")) {
+            lockTimeoutMillis = Long.parseLong(value);
+        } else if (name.equals("thinkTimeMicros")) {
+            thinkTimeMicros = Long.parseLong(value);
+        } else if (name.equals("warmupSeconds")) {
+            warmupSeconds = Long.parseLong(value);
+        } else if (name.equals("durationSeconds")) {
+            durationSeconds = Long.parseLong(value);
+        } else if (name.equals("seed")) {
+            seed = Long.parseLong(value);
+        } else {
+            throw new IllegalArgumentException("unknown parameter. name = [" + name + ']');
+        }
+    }
+
+    /**
+     * 計測対象を設定する。
+     * @param exclusiveControlManager 計測対象
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        manager.setExclusiveControlManager(exclusiveControlManager);
+        managerName = exclusiveControlManager.getClass().getSimpleName();
+    }
+
+    /**
+     * スレッド数を設定する。
+     * @param threads スレッド数
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive. threads = [" + threads + ']');
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * 行データの件数を設定する。
+     * @param keys 行データの件数
+     */
+    public void setKeys(int keys) {
+        if (keys <= 0) {
+            throw new IllegalArgumentException("keys must be positive. keys = [" + keys + ']');
+        }
+        this.keys = keys;
+    }
+
+    /**
+     * 行データの分布を設定する。
+     * @param skew "uniform"又は"zipf:指数"
+     */
+    public void setSkew(String skew) {
+        if (skew.equals("uniform")) {
+            zipfExponent = 0;
+        } else if (skew.startsWith("zipf:")) {
+            zipfExponent = Double.parseDouble(skew.substring("zipf:".length()));
+            if (zipfExponent <= 0) {
+                throw new IllegalArgumentException("zipf exponent must be positive. skew = [" + skew + ']');
+            }
+        } else {
+            throw new IllegalArgumentException("skew must be uniform or zipf:<exponent>. skew = [" + skew + ']');
+        }
+    }
+
+    /**
+     * 操作の比率を設定する。指定しなかった操作は実行しない。
+     * @param spec "操作名:比率"のカンマ区切り(例: "get:60,update:40")
+     */
+    public void setMix(String spec) {
+        mix.clear();
+        for (String entry : spec.split(",")) {
+            final int separator = entry.indexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("mix entry must be operation:weight. entry = [" + entry + ']');
+            }
+            final Operation operation = Operation.valueOf(entry.substring(0, separator).trim().toUpperCase(Locale.ENGLISH));
+            final int weight = Integer.parseInt(entry.substring(separator + 1).trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight must not be negative. entry = [" + entry + ']');
+            }
+            mix.put(operation, weight);
+        }
+    }
+
+    /**
+     * 操作毎の行データの件数を設定する。
+     * @param min 最小値
+     * @param max 最大値
+     */
+    public void setListSize(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("listSize must be 0 < min <= max. min = [" + min + "], max = [" + max + ']');
+        }
+        minListSize = min;
+        maxListSize = max;
+    }
+
+    /**
+     * シミュレーションを実行する。
+     * @return 結果
+     */
+    public Report run() {
+        final int totalWeight = totalWeight();
+        prepareRows();
+        final KeySampler sampler = new KeySampler(keys, zipfExponent);
+        final Report report = new Report();
+        final Phase phase = new Phase();
+        final CountDownLatch finished = new CountDownLatch(threads);
+        final List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(seed + i);
+            final Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!phase.stopped) {
+                            final Operation operation = chooseOperation(random, totalWeight);
+                            final List<ExclusiveControlContext> contexts = chooseRows(random, sampler);
+                            final long start = System.nanoTime();
+                            final Outcome outcome = execute(operation, contexts);
+                            if (phase.measuring) {
+                                report.record(operation, outcome, System.nanoTime() - start);
+                            }
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "contention-simulator-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        final long start = System.nanoTime();
+        phase.measuring = true;
+        sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        phase.measuring = false;
+        report.elapsedNanos = System.nanoTime() - start;
+        phase.stopped = true;
+        try {
+            if (!finished.await(lockTimeoutMillis + TimeUnit.SECONDS.toMillis(10), TimeUnit.MILLISECONDS)) {
+                report.stuckThreads = (int) finished.getCount();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report.settings = describe();
+        return report;
+    }
+
+    /**
+     * トランザクションを正常終了する。
+     * <p/>
+     * データベースを使用する実装を計測する場合は、オーバーライドしてコミットを行うこと。
+     */
+    protected void transactionNormalEnd() {
+        manager.transactionNormalEnd();
+    }
+
+    /**
+     * トランザクションを異常終了する。
+     * <p/>
+     * データベースを使用する実装を計測する場合は、オーバーライドしてロールバックを行うこと。
+     */
+    protected void transactionAbnormalEnd() {
+        manager.transactionAbnormalEnd();
+    }
+
+    /**
+     * 行データのバージョン番号が存在しない場合は追加する。
+     */
+    private void prepareRows() {
+        final List<ExclusiveControlContext> missing = new ArrayList<ExclusiveControlContext>();
+        final List<ExclusiveControlContext> all = new ArrayList<ExclusiveControlContext>(keys);
+        for (int i = 0; i < keys; i++) {
+            all.add(new RowPk(i));
+        }
+        final List<Version> versions = manager.getVersions(all);
+        for (int i = 0; i < keys; i++) {
+            if (versions.get(i) == null) {
+                missing.add(all.get(i));
+            }
+        }
+        manager.addVersions(missing);
+        transactionNormalEnd();
+    }
+
+    /**
+     * 操作を実行する。
+     * @param operation 操作
+     * @param contexts 対象の行データ
+     * @return 結果
+     */
+    private Outcome execute(Operation operation, List<ExclusiveControlContext> contexts) {
+        try {
+            switch (operation) {
+                case GET:
+                    manager.getVersions(contexts);
+                    break;
+                case CHECK:
+                    try {
+                        final List<Version> versions = readVersions(contexts);
+                        think();
+                        manager.checkVersions(versions);
+                    } catch (OptimisticLockException e) {
+                        transactionAbnormalEnd();
+                        return Outcome.CONFLICT;
+                    }
+                    break;
+                case UPDATE:
+                    try {
+                        final List<Version> versions = readVersions(contexts);
+                        think();
+                        manager.updateVersionsWithCheck(versions);
+                    } catch (OptimisticLockException e) {
+                        transactionAbnormalEnd();
+                        return Outcome.CONFLICT;
+                    }
+                    break;
+                case LOCK:
+                    for (ExclusiveControlContext context : sortByKey(contexts)) {
+                        if (!manager.tryUpdateVersion(context, lockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            transactionAbnormalEnd();
+                            return Outcome.TIMEOUT;
+                        }
+                    }
+                    think();
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation. operation = [" + operation + ']');
+            }
+            transactionNormalEnd();
+            return Outcome.SUCCESS;
+        } catch (RuntimeException e) {
+            transactionAbnormalEnd();
+            return isDeadlock(e) ? Outcome.DEADLOCK : Outcome.ERROR;
+        }
+    }
+
+    /**
+     * 行データをキーの順に並べ替える。
+     * @param contexts 対象の行データ
+     * @return 並べ替えた行データ(新たに生成したリスト)
+     */
+    private static List<ExclusiveControlContext> sortByKey(List<ExclusiveControlContext> contexts) {
+        final List<ExclusiveControlContext> sorted = new ArrayList<ExclusiveControlContext>(contexts);
+        Collections.sort(sorted, new Comparator<ExclusiveControlContext>() {
+            public int compare(ExclusiveControlContext o1, ExclusiveControlContext o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * バージョン番号を取得する。存在しない行データは除く。
+     * @param contexts 対象の行データ
+     * @return バージョン番号
+     */
+    private List<Version> readVersions(List<ExclusiveControlContext> contexts) {
+        final List<Version> versions = new ArrayList<Version>(contexts.size());
+        for (Version version : manager.getVersions(contexts)) {
+            if (version != null) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * 取得から更新までの間隔だけ待機する。
+     */
+    private void think() {
+        if (thinkTimeMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(thinkTimeMicros));
+        }
+    }
+
+    /**
+     * 比率に従って操作を選ぶ。
+     * @param random 乱数
+     * @param totalWeight 比率の合計
+     * @return 操作
+     */
+    private Operation chooseOperation(Random random, int totalWeight) {
+        int remaining = random.nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            remaining -= entry.getValue();
+            if (remaining < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("mix is empty.");
+    }
+
+    /**
+     * 操作の対象とする行データを選ぶ。同じ行データは重複しない。
+     * @param random 乱数
+     * @param sampler 行データの分布
+     * @return 対象の行データ
+     */
+    private List<ExclusiveControlContext> chooseRows(Random random, KeySampler sampler) {
+        final int size = Math.min(minListSize + random.nextInt(maxListSize - minListSize + 1), keys);
+        final Set<Integer> chosen = new LinkedHashSet<Integer>();
+        for (int attempt = 0; chosen.size() < size && attempt < size * 10; attempt++) {
+            chosen.add(sampler.next(random));
+        }
+        final List<ExclusiveControlContext> contexts = new ArrayList<ExclusiveControlContext>(chosen.size());
+        for (Integer index : chosen) {
+            contexts.add(new RowPk(index));
+        }
+        return contexts;
+    }
+
+    /**
+     * 比率の合計を取得する。
+     * @return 比率の合計
+     */
+    private int totalWeight() {
+        int total = 0;
+        for (Integer weight : mix.values()) {
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalStateException("total weight of mix must be positive. mix = [" + mix + ']');
+        }
+        return total;
+    }
+
+    /**
+     * 設定値を文字列で表現する。
+     * @return 設定値
+     */
+    String describe() {
+        return String.format("manager = [%s], threads = [%d], keys = [%d], skew = [%s], mix = [%s], listSize = [%d-%d], "
+                        + "lockTimeoutMillis = [%d], thinkTimeMicros = [%d], durationSeconds = [%d]",
+                managerName, threads, keys,
+                zipfExponent == 0 ? "uniform" : "zipf:" + zipfExponent, mix, minListSize, maxListSize,
+                lockTimeoutMillis, thinkTimeMicros, durationSeconds);
+    }
+
+    /**
+     * デッドロックによる例外か否かを判定する。
+     * @param e 例外
+     * @return デッドロックによる例外の場合は{@code true}
+     */
+    private static boolean isDeadlock(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                final String state = ((SQLException) cause).getSQLState();
+                if ("40001".equals(state) || "40P01".equals(state)) {
+                    return true;
+                }
+            }
+            final String message = cause.getMessage();
+            if (message != null && message.toLowerCase(Locale.ENGLISH).contains("deadlock")) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 指定された時間だけ待機する。
+     * @param millis 待機時間(ミリ秒)
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * シミュレーションの行データの主キー。
+     */
+    static class RowPk extends ExclusiveControlContext {
+
+        /** 主キー */
+        enum PK {
+            ROW_ID
+        }
+
+        /**
+         * コンストラクタ。
+         * @param rowId 行データの番号
+         */
+        RowPk(int rowId) {
+            setTableName("SIMULATION_ROW");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ROW_ID, rowId);
+        }
+    }
+
+    /**
+     * 行データの番号を一様分布又はZipf分布で選ぶ。
+     */
+    static final class KeySampler {
+
+        /** 累積分布(一様分布の場合は{@code null}) */
+        private final double[] cumulative;
+
+        /** 行データの件数 */
+        private final int keys;
+
+        /**
+         * コンストラクタ。
+         * @param keys 行データの件数
+         * @param exponent Zipf分布の指数(0の場合は一様分布)
+         */
+        KeySampler(int keys, double exponent) {
+            this.keys = keys;
+            if (exponent == 0) {
+                cumulative = null;
+                return;
+            }
+            cumulative = new double[keys];
+            double sum = 0;
+            for (int i = 0; i < keys; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < keys; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        /**
+         * 行データの番号を選ぶ。Zipf分布では番号が小さいほど選ばれやすい。
+         * @param random 乱数
+         * @return 行データの番号
+         */
+        int next(Random random) {
+            if (cumulative == null) {
+                return random.nextInt(keys);
+            }
+            final double value = random.nextDouble();
+            int low = 0;
+            int high = keys - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulative[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * ワーカースレッドに共有する実行段階。
+     */
+    private static final class Phase {
+
+        /** 計測中の場合は{@code true} */
+        private volatile boolean measuring;
+
+        /** 停止する場合は{@code true} */
+        private volatile boolean stopped;
+    }
+
+    /**
+     * 操作毎の計測値。
+     */
+    static final class OperationStats {
+
+        /** 所要時間(ナノ秒) */
+        final Log2Histogram latency = new Log2Histogram();
+
+        /** 結果毎の件数 */
+        final AtomicLong[] outcomes = new AtomicLong[Outcome.values().length];
+
+        /**
+         * コンストラクタ。
+         */
+        OperationStats() {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new AtomicLong();
+            }
+        }
+
+        /**
+         * 結果の件数を取得する。
+         * @param outcome 結果
+         * @return 件数
+         */
+        long count(Outcome outcome) {
+            return outcomes[outcome.ordinal()].get();
+        }
+    }
+
+    /**
+     * シミュレーションの結果。
+     */
+    public static final class Report {
+
+        /** 操作毎の計測値 */
+        private final Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+
+        /** 計測した時間(ナノ秒) */
+        long elapsedNanos;
+
+        /** 停止しなかったスレッドの数 */
+        int stuckThreads;
+
+        /** 設定値 */
+        String settings;
+
+        /**
+         * コンストラクタ。
+         */
+        Report() {
+            for (Operation operation : Operation.values()) {
+                stats.put(operation, new OperationStats());
+            }
+        }
+
+        /**
+         * 操作の結果を記録する。
+         * @param operation 操作
+         * @param outcome 結果
+         * @param elapsedNanos 所要時間(ナノ秒)
+         */
+        void record(Operation operation, Outcome outcome, long elapsedNanos) {
+            final OperationStats target = stats.get(operation);
+            target.latency.record(elapsedNanos);
+            target.outcomes[outcome.ordinal()].incrementAndGet();
+        }
+
+        /**
+         * 全ての操作の件数を取得する。
+         * @return 件数
+         */
+        public long getTotalCount() {
+            long total = 0;
+            for (OperationStats target : stats.values()) {
+                total += target.latency.getCount();
+            }
+            return total;
+        }
+
+        /**
+         * 全ての操作のスループット(件/秒)を取得する。
+         * @return スループット
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getTotalCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * 指定された結果となった操作の件数を取得する。
+         * @param outcome 結果
+         * @return 件数
+         */
+        public long getCount(Outcome outcome) {
+            long total = 0;
+            for (OperationStats target : stats.values()) {
+                total += target.count(outcome);
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(settings).append('\n');
+            sb.append(String.format("%-8s %10s %12s %10s %10s %10s %10s %9s %8s %8s %8s%n",
+                    "op", "count", "ops/s", "p50(us)", "p90(us)", "p99(us)", "max(us)",
+                    "conflict", "timeout", "deadlock", "error"));
+            final List<Operation> operations = new ArrayList<Operation>(stats.keySet());
+            Collections.sort(operations);
+            for (Operation operation : operations) {
+                final OperationStats target = stats.get(operation);
+                final long count = target.latency.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                sb.append(String.format("%-8s %10d %12.1f %10d %10d %10d %10d %8.2f%% %8d %8d %8d%n",
+                        operation.name().toLowerCase(Locale.ENGLISH), count,
+                        count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos,
+                        toMicros(target.latency.getPercentile(50)), toMicros(target.latency.getPercentile(90)),
+                        toMicros(target.latency.getPercentile(99)), toMicros(target.latency.getMax()),
+                        target.count(Outcome.CONFLICT) * 100.0 / count, target.count(Outcome.TIMEOUT),
+                        target.count(Outcome.DEADLOCK), target.count(Outcome.ERROR)));
+            }
+            sb.append(String.format("%-8s %10d %12.1f%n", "total", getTotalCount(), getThroughput()));
+            if (stuckThreads > 0) {
+                sb.append(String.format("WARNING: %d thread(s) did not stop. a deadlock without timeout is suspected.%n",
+                        stuckThreads));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * ナノ秒をマイクロ秒に変換する。
+         * @param nanos ナノ秒
+         * @return マイクロ秒
+         */
+        private static long toMicros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
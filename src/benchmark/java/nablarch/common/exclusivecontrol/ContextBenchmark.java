@@ -0,0 +1,105 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link ExclusiveControlContext}と{@link Version}の生成、参照のベンチマーク。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ContextBenchmark {
+
+    /** 主キーのカラム名 */
+    enum PK {
+        ORDER_ID,
+        LINE_NO,
+        BRANCH_NO
+    }
+
+    /** スキーマ情報を個別に設定する排他制御コンテキスト。 */
+    static class LegacyOrderPk extends ExclusiveControlContext {
+
+        LegacyOrderPk(String orderId, Integer lineNo, Integer branchNo) {
+            setTableName("ORDER_DTL");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+            appendCondition(PK.BRANCH_NO, branchNo);
+        }
+    }
+
+    /** キャッシュされたスキーマ情報を設定する排他制御コンテキスト。 */
+    static class OrderPk extends ExclusiveControlContext {
+
+        private static final ExclusiveControlSchema SCHEMA = ExclusiveControlSchema.get("ORDER_DTL", "VERSION", PK.class);
+
+        OrderPk(String orderId, Integer lineNo, Integer branchNo) {
+            setSchema(SCHEMA);
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+            appendCondition(PK.BRANCH_NO, branchNo);
+        }
+    }
+
+    private String orderId;
+
+    private Integer lineNo;
+
+    private Integer branchNo;
+
+    private Version version;
+
+    @Setup
+    public void setUp() {
+        orderId = "ORDER-0001";
+        lineNo = 1;
+        branchNo = 2;
+        version = new Version(new OrderPk(orderId, lineNo, branchNo), 1L);
+    }
+
+    @Benchmark
+    public ExclusiveControlContext createLegacyContext() {
+        return new LegacyOrderPk(orderId, lineNo, branchNo);
+    }
+
+    @Benchmark
+    public ExclusiveControlContext createSchemaContext() {
+        return new OrderPk(orderId, lineNo, branchNo);
+    }
+
+    @Benchmark
+    public VersionKey createKey() {
+        return new OrderPk(orderId, lineNo, branchNo).getKey();
+    }
+
+    @Benchmark
+    public Version createVersion() {
+        return new Version(new OrderPk(orderId, lineNo, branchNo), 1L);
+    }
+
+    @Benchmark
+    public Version createVersionFromString() {
+        return new Version(new OrderPk(orderId, lineNo, branchNo), "1");
+    }
+
+    @Benchmark
+    public Map<String, Object> getPrimaryKeyCondition() {
+        return version.getPrimaryKeyCondition();
+    }
+
+    @Benchmark
+    public String getVersion() {
+        return version.getVersion();
+    }
+}
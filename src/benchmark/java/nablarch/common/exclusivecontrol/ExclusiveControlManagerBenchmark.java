@@ -0,0 +1,99 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * {@link InMemoryExclusiveControlManager}に対する楽観的ロックのベンチマーク。
+ * <p/>
+ * バージョン番号の件数とスレッド数を変えて計測する。
+ * 各スレッドは自スレッド専用の行データを操作するため、楽観的ロックエラーは発生しない。
+ * スレッド間の競合はストライプ単位のロックでのみ発生する。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExclusiveControlManagerBenchmark {
+
+    /** スレッド間で共有する{@link ExclusiveControlManager}。 */
+    @State(Scope.Benchmark)
+    public static class SharedManager {
+
+        final InMemoryExclusiveControlManager manager = new InMemoryExclusiveControlManager();
+
+        final AtomicInteger threadSequence = new AtomicInteger();
+    }
+
+    /** スレッド毎の行データ。 */
+    @State(Scope.Thread)
+    public static class ThreadRows {
+
+        @Param({"1", "10", "100"})
+        int listSize;
+
+        List<Version> versions;
+
+        @Setup
+        public void setUp(SharedManager shared) {
+            final String orderId = "ORDER-" + shared.threadSequence.incrementAndGet();
+            versions = new ArrayList<Version>(listSize);
+            for (int i = 0; i < listSize; i++) {
+                final ExclusiveControlContext context = new ContextBenchmark.OrderPk(orderId, i, 0);
+                shared.manager.addVersion(context);
+                shared.manager.transactionNormalEnd();
+                versions.add(shared.manager.getVersion(context));
+            }
+        }
+
+        void advance() {
+            for (int i = 0; i < versions.size(); i++) {
+                versions.set(i, versions.get(i).nextVersion());
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public VersionCheckResult checkVersions1Thread(SharedManager shared, ThreadRows rows) {
+        return shared.manager.tryCheckVersions(rows.versions);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public VersionCheckResult checkVersions4Threads(SharedManager shared, ThreadRows rows) {
+        return shared.manager.tryCheckVersions(rows.versions);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public VersionCheckResult updateVersionsWithCheck1Thread(SharedManager shared, ThreadRows rows) {
+        return updateVersionsWithCheck(shared, rows);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public VersionCheckResult updateVersionsWithCheck4Threads(SharedManager shared, ThreadRows rows) {
+        return updateVersionsWithCheck(shared, rows);
+    }
+
+    private static VersionCheckResult updateVersionsWithCheck(SharedManager shared, ThreadRows rows) {
+        final VersionCheckResult result = shared.manager.tryUpdateVersionsWithCheck(rows.versions);
+        shared.manager.transactionNormalEnd();
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("unexpected optimistic lock error. " + result);
+        }
+        rows.advance();
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.repository.ObjectLoader;
+import nablarch.core.repository.SystemRepository;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@link ExclusiveControlUtil}から{@link SystemRepository}を介した{@link ExclusiveControlManager}呼び出しのベンチマーク。
+ * <p/>
+ * 同じ処理を{@link ExclusiveControlManager}に直接行った場合と比較する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ExclusiveControlUtilBenchmark {
+
+    private InMemoryExclusiveControlManager manager;
+
+    private ExclusiveControlContext context;
+
+    @Setup
+    public void setUp() {
+        manager = new InMemoryExclusiveControlManager();
+        context = new ContextBenchmark.OrderPk("ORDER-0001", 1, 2);
+        manager.addVersion(context);
+        manager.transactionNormalEnd();
+        SystemRepository.load(new ObjectLoader() {
+            public Map<String, Object> load() {
+                final Map<String, Object> objects = new HashMap<String, Object>();
+                objects.put("exclusiveControlManager", manager);
+                return objects;
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        SystemRepository.clear();
+    }
+
+    @Benchmark
+    public Version getVersionThroughUtil() {
+        return ExclusiveControlUtil.getVersion(context);
+    }
+
+    @Benchmark
+    public Version getVersionDirect() {
+        return manager.getVersion(context);
+    }
+}
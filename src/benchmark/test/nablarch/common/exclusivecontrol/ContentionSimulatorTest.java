@@ -0,0 +1,196 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * {@link ContentionSimulator}のテスト。
+ */
+public class ContentionSimulatorTest {
+
+    @Test
+    public void testConfigure() {
+        final ContentionSimulator sut = new ContentionSimulator();
+        sut.configure("threads=8");
+        sut.configure(" keys = 50 ");
+        sut.configure("skew=zipf:1.1");
+        sut.configure("listSize=2-5");
+        sut.configure("lockTimeoutMillis=20");
+        sut.configure("thinkTimeMicros=3");
+        sut.configure("durationSeconds=2");
+        assertThat(sut.describe(), is("manager = [InMemoryExclusiveControlManager], threads = [8], keys = [50], "
+                + "skew = [zipf:1.1], mix = [{GET=60, CHECK=10, UPDATE=20, LOCK=10}], listSize = [2-5], "
+                + "lockTimeoutMillis = [20], thinkTimeMicros = [3], durationSeconds = [2]"));
+
+        sut.configure("listSize=3");
+        sut.configure("skew=uniform");
+        assertThat(sut.describe(), containsString("skew = [uniform]"));
+        assertThat(sut.describe(), containsString("listSize = [3-3]"));
+
+        assertIllegal(sut, "threads");
+        assertIllegal(sut, "=1");
+        assertIllegal(sut, "unknown=1");
+        assertIllegal(sut, "threads=0");
+        assertIllegal(sut, "keys=-1");
+        assertIllegal(sut, "listSize=5-2");
+        assertIllegal(sut, "skew=zipf:0");
+        assertIllegal(sut, "skew=normal");
+        assertIllegal(sut, "threads=many");
+    }
+
+    @Test
+    public void testMix() {
+        final ContentionSimulator sut = new ContentionSimulator();
+        sut.configure("mix=update:3, Lock:1");
+        assertThat(sut.describe(), containsString("mix = [{UPDATE=3, LOCK=1}]"));
+
+        assertIllegal(sut, "mix=update");
+        assertIllegal(sut, "mix=:1");
+        assertIllegal(sut, "mix=delete:1");
+        assertIllegal(sut, "mix=get:-1");
+        assertIllegal(sut, "mix=get:x");
+    }
+
+    @Test
+    public void testUniformSampler() {
+        final ContentionSimulator.KeySampler sut = new ContentionSimulator.KeySampler(10, 0);
+        final int[] counts = sample(sut, 10, 100000);
+        for (int count : counts) {
+            assertTrue("count = " + count, Math.abs(count - 10000) < 500);
+        }
+    }
+
+    @Test
+    public void testZipfSampler() {
+        final ContentionSimulator.KeySampler sut = new ContentionSimulator.KeySampler(10, 1);
+        final int[] counts = sample(sut, 10, 100000);
+        double harmonic = 0;
+        for (int i = 1; i <= 10; i++) {
+            harmonic += 1.0 / i;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            final double expected = 100000 / ((i + 1) * harmonic);
+            assertTrue("index = " + i + ", count = " + counts[i], Math.abs(counts[i] - expected) < expected * 0.05);
+        }
+        for (int i = 1; i < counts.length; i++) {
+            assertTrue(counts[i - 1] > counts[i]);
+        }
+    }
+
+    @Test
+    public void testReport() {
+        final ContentionSimulator.Report sut = new ContentionSimulator.Report();
+        for (int i = 0; i < 90; i++) {
+            sut.record(ContentionSimulator.Operation.UPDATE, ContentionSimulator.Outcome.SUCCESS, 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            sut.record(ContentionSimulator.Operation.UPDATE, ContentionSimulator.Outcome.CONFLICT, 1000000);
+        }
+        sut.record(ContentionSimulator.Operation.LOCK, ContentionSimulator.Outcome.TIMEOUT, 500);
+        sut.elapsedNanos = TimeUnit.SECONDS.toNanos(2);
+        sut.settings = "settings";
+
+        assertThat(sut.getTotalCount(), is(101L));
+        assertThat(sut.getThroughput(), is(50.5));
+        assertThat(sut.getCount(ContentionSimulator.Outcome.CONFLICT), is(10L));
+        assertThat(sut.getCount(ContentionSimulator.Outcome.TIMEOUT), is(1L));
+
+        final String[] lines = sut.toString().split("\n");
+        assertThat(lines[0], is("settings"));
+        assertThat(lines.length, is(5));
+        // p50とp90は1000ナノ秒の区間の上限(1023ナノ秒)、p99は最大値で打ち切る。
+        assertThat(lines[2].trim().split(" +"),
+                is(new String[] {"update", "100", "50.0", "1", "1", "1000", "1000", "10.00%", "0", "0", "0"}));
+        assertThat(lines[3].trim().split(" +"),
+                is(new String[] {"lock", "1", "0.5", "0", "0", "0", "0", "0.00%", "1", "0", "0"}));
+        assertThat(lines[4].trim().split(" +"), is(new String[] {"total", "101", "50.5"}));
+
+        sut.stuckThreads = 2;
+        assertThat(sut.toString(), containsString("WARNING: 2 thread(s) did not stop."));
+    }
+
+    @Test
+    public void testLockWithoutTryLockDoesNotDeadlock() {
+        final ContentionSimulator sut = new ContentionSimulator();
+        sut.setExclusiveControlManager(new BlockingOnlyManager());
+        sut.configure("threads=4");
+        sut.configure("keys=5");
+        sut.configure("listSize=2-5");
+        sut.configure("mix=lock:1");
+        sut.configure("warmupSeconds=0");
+        sut.configure("durationSeconds=1");
+        sut.configure("seed=1");
+
+        final ContentionSimulator.Report report = sut.run();
+        assertTrue(report.getCount(ContentionSimulator.Outcome.SUCCESS) > 0);
+        assertThat(report.getCount(ContentionSimulator.Outcome.SUCCESS), is(report.getTotalCount()));
+        assertThat(report.stuckThreads, is(0));
+    }
+
+    /**
+     * 待機時間を指定した悲観的ロックに対応しない{@link ExclusiveControlManager}。
+     */
+    private static class BlockingOnlyManager implements ExclusiveControlManager, ExclusiveControlTransactionListener {
+
+        private final InMemoryExclusiveControlManager delegate = new InMemoryExclusiveControlManager();
+
+        public Version getVersion(ExclusiveControlContext context) {
+            return delegate.getVersion(context);
+        }
+
+        public void checkVersions(List<Version> versions) {
+            delegate.checkVersions(versions);
+        }
+
+        public void updateVersionsWithCheck(List<Version> versions) {
+            delegate.updateVersionsWithCheck(versions);
+        }
+
+        public void updateVersion(ExclusiveControlContext context) {
+            delegate.updateVersion(context);
+        }
+
+        public void addVersion(ExclusiveControlContext context) {
+            delegate.addVersion(context);
+        }
+
+        public void removeVersion(ExclusiveControlContext context) {
+            delegate.removeVersion(context);
+        }
+
+        public void transactionNormalEnd() {
+            delegate.transactionNormalEnd();
+        }
+
+        public void transactionAbnormalEnd() {
+            delegate.transactionAbnormalEnd();
+        }
+    }
+
+    private static int[] sample(ContentionSimulator.KeySampler sampler, int keys, int times) {
+        final Random random = new Random(1);
+        final int[] counts = new int[keys];
+        for (int i = 0; i < times; i++) {
+            counts[sampler.next(random)]++;
+        }
+        return counts;
+    }
+
+    private static void assertIllegal(ContentionSimulator sut, String arg) {
+        try {
+            sut.configure(arg);
+            fail(arg);
+        } catch (IllegalArgumentException e) {
+            // 不正なパラメータ
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 排他制御を非同期に実行するインタフェース。
+ * <p/>
+ * 各メソッドは{@link ExclusiveControlManager}の同名のメソッドに対応し、
+ * 呼び出し元のスレッドを待機させずに、結果を表す{@link Future}を返す。
+ * 結果は、{@link Future}又は引数に指定した{@link ExclusiveControlCallback}により受け取る。
+ * {@link Future#get()}で例外を受け取る場合、楽観的ロックエラーは
+ * {@link java.util.concurrent.ExecutionException#getCause()}に格納された{@link OptimisticLockException}となる。
+ * <p/>
+ * 非同期に実行する排他制御は、呼び出し元のスレッドのトランザクションとは独立して実行される。
+ * このため、呼び出し元のトランザクションの終了まで維持する必要がある悲観的ロックには使用せず、
+ * {@link ExclusiveControlManager}を使用すること。
+ *
+ * @see ExecutorAsyncExclusiveControlManager
+ */
+@Published(tag = "architect")
+public interface AsyncExclusiveControlManager {
+
+    /**
+     * バージョン番号を非同期に取得する。(楽観的ロック)
+     * @param context 排他制御コンテキスト
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return バージョン番号。バージョン番号が存在しない場合の結果は{@code null}
+     */
+    Future<Version> getVersion(ExclusiveControlContext context, ExclusiveControlCallback<? super Version> callback);
+
+    /**
+     * バージョン番号が更新されていないかを非同期にチェックする。(楽観的ロック)
+     * @param versions バージョン番号
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return チェックの完了を表す{@link Future}
+     */
+    Future<Void> checkVersions(List<Version> versions, ExclusiveControlCallback<? super Void> callback);
+
+    /**
+     * バージョン番号の更新チェックとバージョン番号の更新を非同期に行う。(楽観的ロック)
+     * @param versions バージョン番号
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return 更新の完了を表す{@link Future}
+     */
+    Future<Void> updateVersionsWithCheck(List<Version> versions, ExclusiveControlCallback<? super Void> callback);
+
+    /**
+     * バージョン番号を非同期に更新する。
+     * <p/>
+     * 更新はトランザクションの終了を待たずに確定するため、呼び出し元のトランザクションに対する悲観的ロックにはならない。
+     *
+     * @param context 排他制御コンテキスト
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return 更新の完了を表す{@link Future}
+     */
+    Future<Void> updateVersion(ExclusiveControlContext context, ExclusiveControlCallback<? super Void> callback);
+
+    /**
+     * バージョン番号を非同期に追加する。
+     * @param context 排他制御コンテキスト
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return 追加の完了を表す{@link Future}
+     */
+    Future<Void> addVersion(ExclusiveControlContext context, ExclusiveControlCallback<? super Void> callback);
+
+    /**
+     * バージョン番号を非同期に削除する。
+     * @param context 排他制御コンテキスト
+     * @param callback 結果を受け取るコールバック。不要な場合は{@code null}
+     * @return 削除の完了を表す{@link Future}
+     */
+    Future<Void> removeVersion(ExclusiveControlContext context, ExclusiveControlCallback<? super Void> callback);
+}
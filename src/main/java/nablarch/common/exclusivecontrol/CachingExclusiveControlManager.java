@@ -0,0 +1,635 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.util.map.LRUMap;
+
+/**
+ * 委譲先から取得したバージョン番号をキャッシュする{@link ExclusiveControlManager}。
+ * <p/>
+ * {@link #getVersion(ExclusiveControlContext)}で取得したバージョン番号を、
+ * 行データのキー({@link VersionKey})毎に件数の上限と有効期間を設けてキャッシュする。
+ * 件数の上限を超えた場合は、最も長く参照されていないバージョン番号から破棄する。
+ * 画面表示の度にバージョン番号を取得する、参照が中心のマスタデータに対する使用を想定している。
+ * <p/>
+ * 本クラスを経由したバージョン番号の更新、追加、削除では、対象の行データのキャッシュを破棄し、
+ * トランザクションの終了({@link #transactionNormalEnd()}、{@link #transactionAbnormalEnd()})の通知時にも破棄する。
+ * 更新がコミットされる前に他のスレッドが更新前のバージョン番号をキャッシュすることがあるため、
+ * コミット後の通知({@link ExclusiveControlCommitListener#transactionCommitted()})を受けた時点で、
+ * トランザクション内で更新した行データのキャッシュを再度破棄する。
+ * このため、{@link ExclusiveControlCommitHandler}をトランザクション制御を行うハンドラの直前に配置すること。
+ * 配置しない場合、コミット前に他のスレッドがキャッシュした更新前のバージョン番号は有効期間が経過するまで残る。
+ * <p/>
+ * 本クラスを経由しない更新(他のプロセスからの更新など)は、有効期間が経過するまでキャッシュに反映されない。
+ * キャッシュしたバージョン番号が古い場合も、{@link #checkVersions(List)}、{@link #updateVersionsWithCheck(List)}は
+ * 委譲先で最新のバージョン番号と比較するため、楽観的ロックの正しさは損なわれない。
+ * 楽観的ロックエラーとなったバージョン番号のキャッシュは破棄する。
+ */
+public class CachingExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** セグメント数 */
+    private static final int SEGMENT_COUNT = 16;
+
+    /** キャッシュするバージョン番号の件数の上限のデフォルト値 */
+    private static final int DEFAULT_MAX_SIZE = 1024;
+
+    /** 有効期間(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_TIME_TO_LIVE_MILLIS = 60000L;
+
+    /** キャッシュ(ロックの競合を減らすため、行データのキーのハッシュ値で分割する) */
+    private Segment[] segments = createSegments(DEFAULT_MAX_SIZE);
+
+    /** 有効期間(ナノ秒) */
+    private long timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_TO_LIVE_MILLIS);
+
+    /** 現在のスレッドがトランザクション内で更新した行データのキー */
+    private final ThreadLocal<Set<VersionKey>> updatedKeys = new ThreadLocal<Set<VersionKey>>() {
+        @Override
+        protected Set<VersionKey> initialValue() {
+            return new HashSet<VersionKey>();
+        }
+    };
+
+    /**
+     * 現在のスレッドが正常終了したトランザクションで更新した行データのキー(コミット後に破棄する)。
+     * コミット後の通知がない場合も、次のトランザクションの正常終了時に置き換えるため、保持するのは直前のトランザクションの分のみである。
+     */
+    private final ThreadLocal<Set<VersionKey>> committingKeys = new ThreadLocal<Set<VersionKey>>();
+
+    /** キャッシュから取得できた回数 */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** キャッシュから取得できなかった回数 */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * キャッシュするバージョン番号の件数の上限を設定する。
+     * <p/>
+     * デフォルトは1024。
+     *
+     * @param maxSize キャッシュするバージョン番号の件数の上限
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0. maxSize = [" + maxSize + ']');
+        }
+        segments = createSegments(maxSize);
+    }
+
+    /**
+     * キャッシュの有効期間(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは60000(1分)。
+     *
+     * @param timeToLiveMillis 有効期間(ミリ秒)
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        if (timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "timeToLiveMillis must be greater than 0. timeToLiveMillis = [" + timeToLiveMillis + ']');
+        }
+        timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 有効期間内のバージョン番号がキャッシュに存在する場合は、委譲先を呼び出さずにキャッシュから返す。
+     * 委譲先から取得したバージョン番号は、取得中に対象の行データのキャッシュが破棄されていない場合にキャッシュする。
+     * 行データが存在しない場合と、バージョン番号のグループを指定した場合はキャッシュしない。
+     */
+    @Override
+    public Version getVersion(ExclusiveControlContext context) {
+        if (context.getVersionGroup() != null) {
+            return super.getVersion(context);
+        }
+        final VersionKey key = context.getKey();
+        final Segment segment = segmentFor(key);
+        final long now = System.nanoTime();
+        final Version cached = segment.get(key, now);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+        missCount.incrementAndGet();
+        final long generation = segment.generation();
+        final Version version = super.getVersion(context);
+        if (version != null) {
+            segment.putIfNotInvalidated(key, version, now + timeToLiveNanos, generation);
+        }
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * キャッシュに存在しないバージョン番号のみをまとめて委譲先から取得する。
+     * キャッシュの扱いは{@link #getVersion(ExclusiveControlContext)}と同じ。
+     */
+    @Override
+    public List<Version> getVersions(List<? extends ExclusiveControlContext> contexts) {
+        final long now = System.nanoTime();
+        final List<Version> result = new ArrayList<Version>(contexts.size());
+        final List<Integer> missIndexes = new ArrayList<Integer>();
+        final List<ExclusiveControlContext> misses = new ArrayList<ExclusiveControlContext>();
+        for (int i = 0, size = contexts.size(); i < size; i++) {
+            final ExclusiveControlContext context = contexts.get(i);
+            Version cached = null;
+            if (context.getVersionGroup() == null) {
+                cached = segmentFor(context.getKey()).get(context.getKey(), now);
+            }
+            if (cached != null) {
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                missIndexes.add(i);
+                misses.add(context);
+            }
+            result.add(cached);
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        final long[] generations = new long[misses.size()];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = segmentFor(misses.get(i).getKey()).generation();
+        }
+        final List<Version> versions = super.getVersions(misses);
+        for (int i = 0; i < generations.length; i++) {
+            final ExclusiveControlContext context = misses.get(i);
+            final Version version = versions.get(i);
+            if (version != null && context.getVersionGroup() == null) {
+                final VersionKey key = context.getKey();
+                segmentFor(key).putIfNotInvalidated(key, version, now + timeToLiveNanos, generations[i]);
+            }
+            result.set(missIndexes.get(i), version);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 楽観的ロックエラーとなったバージョン番号のキャッシュを破棄する。
+     */
+    @Override
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        try {
+            super.checkVersions(versions);
+        } catch (OptimisticLockException e) {
+            invalidateVersions(e.getErrorVersions());
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 指定された全てのバージョン番号のキャッシュを破棄する。
+     */
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        try {
+            super.updateVersionsWithCheck(versions);
+        } finally {
+            invalidateVersions(versions);
+            recordUpdatedVersions(versions);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 楽観的ロックエラーとなったバージョン番号のキャッシュを破棄する。
+     */
+    @Override
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        final VersionCheckResult result = super.tryCheckVersions(versions);
+        if (!result.isSuccess()) {
+            invalidateVersions(result.getErrorVersions());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 指定された全てのバージョン番号のキャッシュを破棄する。
+     */
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        try {
+            return super.tryUpdateVersionsWithCheck(versions);
+        } finally {
+            invalidateVersions(versions);
+            recordUpdatedVersions(versions);
+        }
+    }
+
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        try {
+            super.updateVersion(context);
+        } finally {
+            invalidateUpdated(context.getKey());
+        }
+    }
+
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        try {
+            super.updateVersions(contexts);
+        } finally {
+            for (ExclusiveControlContext context : contexts) {
+                invalidateUpdated(context.getKey());
+            }
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        try {
+            return super.tryUpdateVersion(context);
+        } finally {
+            invalidateUpdated(context.getKey());
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        try {
+            return super.tryUpdateVersion(context, timeout, unit);
+        } finally {
+            invalidateUpdated(context.getKey());
+        }
+    }
+
+    @Override
+    public void addVersion(ExclusiveControlContext context) {
+        try {
+            super.addVersion(context);
+        } finally {
+            invalidateUpdated(context.getKey());
+        }
+    }
+
+    @Override
+    public void removeVersion(ExclusiveControlContext context) {
+        try {
+            super.removeVersion(context);
+        } finally {
+            invalidateUpdated(context.getKey());
+        }
+    }
+
+    @Override
+    public void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        final List<VersionKey> keys = new ArrayList<VersionKey>();
+        try {
+            super.addVersions(collectKeys(contexts, keys));
+        } finally {
+            invalidateAll(keys);
+        }
+    }
+
+    @Override
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        final List<VersionKey> keys = new ArrayList<VersionKey>();
+        try {
+            super.removeVersions(collectKeys(contexts, keys));
+        } finally {
+            invalidateAll(keys);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキャッシュを破棄し、コミット後に再度破棄するキーとして引き継ぐ。
+     * {@link ExclusiveControlCommitHandler}を配置しない場合も、更新した行データのキーはスレッドに蓄積されない。
+     */
+    @Override
+    public void transactionNormalEnd() {
+        try {
+            super.transactionNormalEnd();
+        } finally {
+            final Set<VersionKey> keys = updatedKeys.get();
+            updatedKeys.remove();
+            invalidateAll(keys);
+            if (keys.isEmpty()) {
+                committingKeys.remove();
+            } else {
+                committingKeys.set(keys);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキャッシュを破棄する。
+     * 委譲先によっては異常終了時もバージョン番号の更新を取り消さないため、コミットされない場合も破棄する。
+     */
+    @Override
+    public void transactionAbnormalEnd() {
+        try {
+            super.transactionAbnormalEnd();
+        } finally {
+            invalidateUpdatedKeys();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキャッシュを破棄する。
+     * コミット前に他のスレッドがキャッシュした更新前のバージョン番号も、本通知により破棄される。
+     */
+    @Override
+    public void transactionCommitted() {
+        try {
+            super.transactionCommitted();
+        } finally {
+            invalidateUpdatedKeys();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキャッシュを破棄する。
+     */
+    @Override
+    public void transactionRolledBack() {
+        try {
+            super.transactionRolledBack();
+        } finally {
+            invalidateUpdatedKeys();
+        }
+    }
+
+    /**
+     * 行データのキャッシュを破棄する。
+     * @param key 行データのキー
+     */
+    public void invalidate(VersionKey key) {
+        segmentFor(key).invalidate(key);
+    }
+
+    /**
+     * 全てのキャッシュを破棄する。
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * キャッシュしているバージョン番号の件数を取得する。
+     * <p/>
+     * 有効期間が経過したバージョン番号を含む。
+     *
+     * @return キャッシュしているバージョン番号の件数
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * キャッシュからバージョン番号を取得できた回数を取得する。
+     * @return キャッシュから取得できた回数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * キャッシュからバージョン番号を取得できなかった回数を取得する。
+     * @return キャッシュから取得できなかった回数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * バージョン番号のキャッシュを破棄する。
+     * @param versions バージョン番号
+     */
+    private void invalidateVersions(List<Version> versions) {
+        for (Version version : versions) {
+            invalidate(version.getKey());
+        }
+    }
+
+    /**
+     * 更新したバージョン番号を、コミット後に破棄するキーとして記録する。
+     * @param versions バージョン番号
+     */
+    private void recordUpdatedVersions(List<Version> versions) {
+        final Set<VersionKey> keys = updatedKeys.get();
+        for (Version version : versions) {
+            keys.add(version.getKey());
+        }
+    }
+
+    /**
+     * 更新した行データのキャッシュを破棄し、コミット後に破棄するキーとして記録する。
+     * @param key 行データのキー
+     */
+    private void invalidateUpdated(VersionKey key) {
+        invalidate(key);
+        updatedKeys.get().add(key);
+    }
+
+    /**
+     * 委譲先が走査した排他制御コンテキストのキャッシュを破棄し、キーを収集する{@link Iterable}を生成する。
+     * <p/>
+     * 委譲先が走査した時点と処理の完了後の両方でキャッシュを破棄することで、
+     * 走査から更新までの間に読み込まれた古いバージョン番号を残さない。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @param keys 走査した行データのキーの格納先
+     * @return 委譲先に引き渡す{@link Iterable}
+     */
+    private Iterable<ExclusiveControlContext> collectKeys(Iterable<? extends ExclusiveControlContext> contexts,
+                                                          final List<VersionKey> keys) {
+        return new ContextVisitingIterable(contexts) {
+            @Override
+            void visit(ExclusiveControlContext context) {
+                final VersionKey key = context.getKey();
+                invalidateUpdated(key);
+                keys.add(key);
+            }
+        };
+    }
+
+    /**
+     * 行データのキャッシュを破棄する。
+     * @param keys 行データのキー
+     */
+    private void invalidateAll(Collection<VersionKey> keys) {
+        for (VersionKey key : keys) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * トランザクション内で更新した行データと、コミット後に破棄するキーとして引き継いだ行データのキャッシュを破棄する。
+     */
+    private void invalidateUpdatedKeys() {
+        invalidateAll(updatedKeys.get());
+        updatedKeys.remove();
+        final Set<VersionKey> keys = committingKeys.get();
+        if (keys != null) {
+            committingKeys.remove();
+            invalidateAll(keys);
+        }
+    }
+
+    /**
+     * 行データのキーが割り当てられるセグメントを取得する。
+     * @param key 行データのキー
+     * @return セグメント
+     */
+    private Segment segmentFor(VersionKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * セグメントを生成する。
+     * @param maxSize キャッシュするバージョン番号の件数の上限
+     * @return セグメント
+     */
+    private static Segment[] createSegments(int maxSize) {
+        final int count = maxSize < SEGMENT_COUNT ? 1 : SEGMENT_COUNT;
+        final Segment[] created = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Segment((maxSize + count - 1) / count);
+        }
+        return created;
+    }
+
+    /**
+     * キャッシュしたバージョン番号。
+     */
+    private static final class Entry {
+
+        /** バージョン番号 */
+        private final Version version;
+
+        /** 有効期限({@link System#nanoTime()}の値) */
+        private final long expiresAt;
+
+        /**
+         * コンストラクタ。
+         * @param version バージョン番号
+         * @param expiresAt 有効期限
+         */
+        Entry(Version version, long expiresAt) {
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * キャッシュを分割したセグメント。
+     * <p/>
+     * 最も長く参照されていないバージョン番号から破棄する{@link LRUMap}を排他して使用する。
+     * キャッシュを破棄する度に世代番号を進めることで、委譲先からの取得中に破棄されたバージョン番号をキャッシュしないようにする。
+     */
+    private static final class Segment {
+
+        /** キャッシュ */
+        private final Map<VersionKey, Entry> entries;
+
+        /** 世代番号 */
+        private long generation;
+
+        /**
+         * コンストラクタ。
+         * @param maxSize キャッシュするバージョン番号の件数の上限
+         */
+        Segment(int maxSize) {
+            entries = new LRUMap<VersionKey, Entry>(maxSize);
+        }
+
+        /**
+         * 有効期間内のバージョン番号を取得する。
+         * @param key 行データのキー
+         * @param now 現在時刻({@link System#nanoTime()}の値)
+         * @return バージョン番号。存在しない場合又は有効期間が経過した場合は{@code null}
+         */
+        synchronized Version get(VersionKey key, long now) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt - now <= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.version;
+        }
+
+        /**
+         * 世代番号を取得する。
+         * @return 世代番号
+         */
+        synchronized long generation() {
+            return generation;
+        }
+
+        /**
+         * 世代番号が変わっていない場合にバージョン番号をキャッシュする。
+         * @param key 行データのキー
+         * @param version バージョン番号
+         * @param expiresAt 有効期限
+         * @param expectedGeneration 委譲先からの取得前の世代番号
+         */
+        synchronized void putIfNotInvalidated(VersionKey key, Version version, long expiresAt, long expectedGeneration) {
+            if (generation == expectedGeneration) {
+                entries.put(key, new Entry(version, expiresAt));
+            }
+        }
+
+        /**
+         * バージョン番号のキャッシュを破棄する。
+         * @param key 行データのキー
+         */
+        synchronized void invalidate(VersionKey key) {
+            generation++;
+            entries.remove(key);
+        }
+
+        /**
+         * 全てのキャッシュを破棄する。
+         */
+        synchronized void clear() {
+            generation++;
+            entries.clear();
+        }
+
+        /**
+         * キャッシュしているバージョン番号の件数を取得する。
+         * @return 件数
+         */
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
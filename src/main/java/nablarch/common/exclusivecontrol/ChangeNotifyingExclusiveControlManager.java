@@ -0,0 +1,703 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * 委譲先の{@link ExclusiveControlManager}で変更したバージョン番号を{@link VersionChangeListener}に通知する{@link ExclusiveControlManager}。
+ * <p/>
+ * バージョン番号の追加、更新、削除をトランザクション毎に保持し、
+ * コミット後の通知({@link ExclusiveControlCommitListener#transactionCommitted()})を受けた時点でキューに登録する。
+ * トランザクションが異常終了した場合と、コミットされなかった場合は破棄する。
+ * 変更後のバージョン番号は、コミット前の正常終了の通知を受けた時点で、トランザクション内の変更をまとめて委譲先から取得する。
+ * <p/>
+ * コミット後の通知は{@link ExclusiveControlCommitHandler}が行うため、
+ * トランザクション制御を行うハンドラの直前に{@link ExclusiveControlCommitHandler}を配置すること。
+ * 配置しない場合、変更イベントは通知されない。
+ * <p/>
+ * キューに登録した変更イベントは、通知スレッドが{@link #setBatchSize(int)}件ずつ通知先に引き渡す。
+ * 通知前の同じ行データの変更イベントはまとめ、最後の変更のみを通知する(追加後の更新は、追加として通知する)。
+ * キューの件数が上限に達した場合、変更イベントは破棄し、{@link VersionChangeListener#onOverflow()}で通知先に知らせる。
+ * {@link #setLingerMillis(long)}で待機時間を設定した場合、待機時間の間に発生した同じ行データの変更はまとめられるため、
+ * 通知の件数を削減できる。
+ * <p/>
+ * 通知スレッドが割り込み等により終了した場合は、次の変更イベントの登録時に再開する。
+ * <p/>
+ * 本クラスが不要となった時点で{@link #shutdown()}を呼び出すこと。
+ * 停止後にコミットされた変更イベントは、キューに登録せずに破棄する。
+ */
+public class ChangeNotifyingExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(ChangeNotifyingExclusiveControlManager.class);
+
+    /** 通知先 */
+    private List<VersionChangeListener> listeners = Collections.emptyList();
+
+    /** キューに保持する変更イベントの件数の上限 */
+    private int queueCapacity = 10000;
+
+    /** 1回の通知で引き渡す変更イベントの件数の上限 */
+    private int batchSize = 100;
+
+    /** キューに登録してから通知するまでの待機時間(ナノ秒) */
+    private long lingerNanos;
+
+    /** 現在のスレッドのトランザクション内の変更 */
+    private final ThreadLocal<Map<VersionKey, Change>> changes = new ThreadLocal<Map<VersionKey, Change>>();
+
+    /** 現在のスレッドのコミットを待っている変更イベント */
+    private final ThreadLocal<Committing> committing = new ThreadLocal<Committing>();
+
+    /** キューが溢れて破棄した変更イベントの件数 */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** キュー */
+    private final Map<VersionKey, Queued> queue = new LinkedHashMap<VersionKey, Queued>();
+
+    /** キューのロック */
+    private final ReentrantLock queueLock = new ReentrantLock();
+
+    /** キューの状態の変化を待ち合わせる条件 */
+    private final Condition queueChanged = queueLock.newCondition();
+
+    /** キューが溢れた場合は{@code true} */
+    private boolean overflowed;
+
+    /** 停止した場合は{@code true} */
+    private boolean stopped;
+
+    /** 通知スレッド */
+    private Thread dispatcher;
+
+    /**
+     * 通知先を設定する。
+     * @param listeners 通知先
+     */
+    public void setListeners(List<? extends VersionChangeListener> listeners) {
+        this.listeners = new ArrayList<VersionChangeListener>(listeners);
+    }
+
+    /**
+     * キューに保持する変更イベントの件数の上限を設定する。
+     * <p/>
+     * 同じ行データの変更イベントは1件として数える。デフォルトは10000。
+     *
+     * @param queueCapacity 件数の上限
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive. queueCapacity = [" + queueCapacity + ']');
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * 1回の通知で引き渡す変更イベントの件数の上限を設定する。
+     * <p/>
+     * デフォルトは100。
+     *
+     * @param batchSize 件数の上限
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive. batchSize = [" + batchSize + ']');
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * キューに登録してから通知するまでの待機時間(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは0であり、登録後直ちに通知する。
+     *
+     * @param lingerMillis 待機時間(ミリ秒)
+     */
+    public void setLingerMillis(long lingerMillis) {
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative. lingerMillis = [" + lingerMillis + ']');
+        }
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * キューが溢れて破棄した変更イベントの件数を取得する。
+     * @return 破棄した件数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        super.updateVersionsWithCheck(versions);
+        recordVersions(versions);
+    }
+
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final VersionCheckResult result = super.tryUpdateVersionsWithCheck(versions);
+        if (result.isSuccess()) {
+            recordVersions(versions);
+        }
+        return result;
+    }
+
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        super.updateVersion(context);
+        record(VersionChangeEvent.Type.UPDATED, context);
+    }
+
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        super.updateVersions(contexts);
+        for (ExclusiveControlContext context : contexts) {
+            record(VersionChangeEvent.Type.UPDATED, context);
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final boolean acquired = super.tryUpdateVersion(context);
+        if (acquired) {
+            record(VersionChangeEvent.Type.UPDATED, context);
+        }
+        return acquired;
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final boolean acquired = super.tryUpdateVersion(context, timeout, unit);
+        if (acquired) {
+            record(VersionChangeEvent.Type.UPDATED, context);
+        }
+        return acquired;
+    }
+
+    @Override
+    public void addVersion(ExclusiveControlContext context) {
+        super.addVersion(context);
+        record(VersionChangeEvent.Type.ADDED, context);
+    }
+
+    @Override
+    public void removeVersion(ExclusiveControlContext context) {
+        super.removeVersion(context);
+        record(VersionChangeEvent.Type.REMOVED, context);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 排他制御コンテキストをチャンクの件数毎に委譲先に引き渡し、委譲先の処理が完了したチャンクの変更を記録する。
+     * 委譲先の処理が例外を送出した場合は、そのチャンクの変更を記録しない。
+     */
+    @Override
+    public void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        processInChunks(contexts, VersionChangeEvent.Type.ADDED);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 排他制御コンテキストをチャンクの件数毎に委譲先に引き渡し、委譲先の処理が完了したチャンクの変更を記録する。
+     * 委譲先の処理が例外を送出した場合は、そのチャンクの変更を記録しない。
+     */
+    @Override
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        processInChunks(contexts, VersionChangeEvent.Type.REMOVED);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内の変更後のバージョン番号を取得し、コミットを待つ変更イベントとして保持する。
+     * バージョン番号の取得はトランザクション内で行うため、取得した値はコミットされる値と一致する。
+     */
+    @Override
+    public void transactionNormalEnd() {
+        final Map<VersionKey, Change> current = changes.get();
+        changes.remove();
+        committing.remove();
+        if (current != null) {
+            try {
+                committing.set(new Committing(resolve(current.values()), 0));
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("failed to get changed versions. change events were discarded. count = [" + current.size() + ']', e);
+                committing.set(new Committing(Collections.<VersionChangeEvent>emptyList(), current.size()));
+            }
+        }
+        super.transactionNormalEnd();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内の変更を破棄する。
+     */
+    @Override
+    public void transactionAbnormalEnd() {
+        changes.remove();
+        committing.remove();
+        super.transactionAbnormalEnd();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * コミットを待っている変更イベントをキューに登録する。
+     * 変更後のバージョン番号を取得できなかった場合は、変更イベントを破棄し{@link VersionChangeListener#onOverflow()}で知らせる。
+     */
+    @Override
+    public void transactionCommitted() {
+        final Committing current = committing.get();
+        committing.remove();
+        try {
+            super.transactionCommitted();
+        } finally {
+            if (current != null) {
+                if (current.lost > 0) {
+                    enqueueOverflow(current.lost);
+                } else if (!current.events.isEmpty()) {
+                    enqueue(current.events);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * コミットを待っている変更イベントを破棄する。
+     */
+    @Override
+    public void transactionRolledBack() {
+        changes.remove();
+        committing.remove();
+        super.transactionRolledBack();
+    }
+
+    /**
+     * 通知スレッドを停止する。
+     * <p/>
+     * キューに残っている変更イベントは、待機時間に関わらず通知してから停止する。
+     * 停止後にコミットされた変更イベントは破棄し、警告ログを出力する。
+     */
+    public void shutdown() {
+        queueLock.lock();
+        try {
+            stopped = true;
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * 更新したバージョン番号の行データの変更を記録する。
+     * @param versions バージョン番号
+     */
+    private void recordVersions(List<Version> versions) {
+        for (Version version : versions) {
+            record(VersionChangeEvent.Type.UPDATED, version.getKey(), ExclusiveControlContext.of(version));
+        }
+    }
+
+    /**
+     * 行データの変更を記録する。
+     * @param type 変更の種類
+     * @param context 排他制御コンテキスト
+     */
+    private void record(VersionChangeEvent.Type type, ExclusiveControlContext context) {
+        record(type, context.getKey(), context);
+    }
+
+    /**
+     * 行データの変更を記録する。
+     * @param type 変更の種類
+     * @param key 行データのキー
+     * @param context 変更後のバージョン番号を取得する排他制御コンテキスト。取得できない場合は{@code null}
+     */
+    private void record(VersionChangeEvent.Type type, VersionKey key, ExclusiveControlContext context) {
+        Map<VersionKey, Change> current = changes.get();
+        if (current == null) {
+            current = new LinkedHashMap<VersionKey, Change>();
+            changes.set(current);
+        }
+        final Change previous = current.get(key);
+        current.put(key, new Change(merge(previous == null ? null : previous.type, type), key, context));
+    }
+
+    /**
+     * 排他制御コンテキストをチャンクの件数毎に委譲先で追加又は削除し、チャンク毎に変更を記録する。
+     * <p/>
+     * 排他制御コンテキストは順に1度だけ走査し、チャンクの件数を超えて保持しない。
+     * チャンクの件数は、委譲先の{@link ExclusiveControlManagerSupport#getBulkChunkSize()}とする。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @param type 変更の種類(追加又は削除)
+     */
+    private void processInChunks(Iterable<? extends ExclusiveControlContext> contexts, VersionChangeEvent.Type type) {
+        final ExtendedExclusiveControlManager delegate = getDelegate();
+        final int chunkSize = delegate instanceof ExclusiveControlManagerSupport
+                ? ((ExclusiveControlManagerSupport) delegate).getBulkChunkSize()
+                : ExclusiveControlManagerSupport.DEFAULT_BULK_CHUNK_SIZE;
+        final List<ExclusiveControlContext> chunk = new ArrayList<ExclusiveControlContext>(Math.min(chunkSize, 1024));
+        for (ExclusiveControlContext context : contexts) {
+            chunk.add(context);
+            if (chunk.size() >= chunkSize) {
+                processChunk(chunk, type);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            processChunk(chunk, type);
+        }
+    }
+
+    /**
+     * チャンクを委譲先で追加又は削除し、変更を記録した上でチャンクを空にする。
+     * @param chunk チャンク
+     * @param type 変更の種類(追加又は削除)
+     */
+    private void processChunk(List<ExclusiveControlContext> chunk, VersionChangeEvent.Type type) {
+        if (type == VersionChangeEvent.Type.ADDED) {
+            super.addVersions(chunk);
+        } else {
+            super.removeVersions(chunk);
+        }
+        for (ExclusiveControlContext context : chunk) {
+            record(type, context);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * トランザクション内の変更から、変更後のバージョン番号を持つ変更イベントを生成する。
+     * @param changes トランザクション内の変更
+     * @return 変更イベント
+     */
+    private List<VersionChangeEvent> resolve(Iterable<Change> changes) {
+        final List<ExclusiveControlContext> contexts = new ArrayList<ExclusiveControlContext>();
+        for (Change change : changes) {
+            if (change.type != VersionChangeEvent.Type.REMOVED && change.context != null) {
+                contexts.add(change.context);
+            }
+        }
+        final Iterator<Version> versions = contexts.isEmpty()
+                ? Collections.<Version>emptyList().iterator()
+                : super.getVersions(contexts).iterator();
+        final List<VersionChangeEvent> events = new ArrayList<VersionChangeEvent>();
+        for (Change change : changes) {
+            Version version = null;
+            if (change.type != VersionChangeEvent.Type.REMOVED && change.context != null) {
+                version = versions.next();
+            }
+            events.add(new VersionChangeEvent(change.type, change.key, version));
+        }
+        return events;
+    }
+
+    /**
+     * 同じ行データの変更の種類をまとめる。
+     * @param previous 前の変更の種類。存在しない場合は{@code null}
+     * @param next 後の変更の種類
+     * @return まとめた変更の種類
+     */
+    private static VersionChangeEvent.Type merge(VersionChangeEvent.Type previous, VersionChangeEvent.Type next) {
+        if (previous == VersionChangeEvent.Type.ADDED && next == VersionChangeEvent.Type.UPDATED) {
+            return VersionChangeEvent.Type.ADDED;
+        }
+        return next;
+    }
+
+    /**
+     * 変更イベントをキューに登録する。
+     * <p/>
+     * キューに同じ行データの変更イベントが存在する場合は、変更イベントをまとめる。
+     *
+     * @param events 変更イベント
+     */
+    private void enqueue(List<VersionChangeEvent> events) {
+        final long now = System.nanoTime();
+        long dropped = 0;
+        queueLock.lock();
+        try {
+            if (stopped) {
+                discardAfterShutdown(events.size());
+                return;
+            }
+            for (VersionChangeEvent event : events) {
+                final Queued queued = queue.get(event.getKey());
+                if (queued != null) {
+                    queue.put(event.getKey(), queued.merge(event));
+                } else if (queue.size() < queueCapacity) {
+                    queue.put(event.getKey(), new Queued(event, now));
+                } else {
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                overflowed = true;
+            }
+            startDispatcherIfNecessary();
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        if (dropped > 0) {
+            droppedCount.addAndGet(dropped);
+            LOGGER.logWarn("change event queue is full. change events were discarded. count = [" + dropped + ']');
+        }
+    }
+
+    /**
+     * 変更イベントを破棄したことを通知先に知らせる。
+     * @param dropped 破棄した件数
+     */
+    private void enqueueOverflow(int dropped) {
+        queueLock.lock();
+        try {
+            if (stopped) {
+                discardAfterShutdown(dropped);
+                return;
+            }
+            droppedCount.addAndGet(dropped);
+            overflowed = true;
+            startDispatcherIfNecessary();
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * 停止後にコミットされた変更イベントを破棄する。
+     * @param count 破棄する件数
+     */
+    private void discardAfterShutdown(int count) {
+        droppedCount.addAndGet(count);
+        LOGGER.logWarn("change notification has been shut down. change events were discarded. count = [" + count + ']');
+    }
+
+    /**
+     * 通知スレッドが開始されていない場合に開始する。キューのロックを取得した状態で呼び出すこと。
+     */
+    private void startDispatcherIfNecessary() {
+        if (dispatcher != null || stopped) {
+            return;
+        }
+        dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "exclusive-control-change-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * 停止するまで、キューの変更イベントを通知先に引き渡す。
+     * <p/>
+     * 停止以外の理由(割り込み等)で終了する場合は、通知スレッドを解除し、通知する変更イベントが残っていれば再開する。
+     */
+    private void dispatch() {
+        try {
+            dispatchUntilStopped();
+        } finally {
+            queueLock.lock();
+            try {
+                if (dispatcher == Thread.currentThread()) {
+                    dispatcher = null;
+                }
+                if (!queue.isEmpty() || overflowed) {
+                    startDispatcherIfNecessary();
+                }
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 停止するまで、又は待機中に割り込まれるまで、キューの変更イベントを通知先に引き渡す。
+     */
+    private void dispatchUntilStopped() {
+        final List<VersionChangeEvent> batch = new ArrayList<VersionChangeEvent>(batchSize);
+        while (true) {
+            final boolean overflow;
+            queueLock.lock();
+            try {
+                if (!awaitBatch()) {
+                    return;
+                }
+                final Iterator<Queued> iterator = queue.values().iterator();
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    batch.add(iterator.next().event);
+                    iterator.remove();
+                }
+                overflow = overflowed;
+                overflowed = false;
+            } finally {
+                queueLock.unlock();
+            }
+            if (overflow) {
+                notifyOverflow();
+            }
+            if (!batch.isEmpty()) {
+                notifyChanges(Collections.unmodifiableList(new ArrayList<VersionChangeEvent>(batch)));
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 通知する変更イベントが揃うまで待機する。キューのロックを取得した状態で呼び出すこと。
+     * @return 通知する変更イベントがある場合は{@code true}。停止した場合は{@code false}
+     */
+    private boolean awaitBatch() {
+        try {
+            while (true) {
+                if (overflowed) {
+                    return true;
+                }
+                if (queue.isEmpty()) {
+                    if (stopped) {
+                        return false;
+                    }
+                    queueChanged.await();
+                    continue;
+                }
+                final long remaining = lingerNanos - (System.nanoTime() - queue.values().iterator().next().enqueuedAtNanos);
+                if (remaining <= 0 || stopped || queue.size() >= batchSize) {
+                    return true;
+                }
+                queueChanged.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 変更イベントを通知先に引き渡す。
+     * @param events 変更イベント
+     */
+    private void notifyChanges(List<VersionChangeEvent> events) {
+        for (VersionChangeListener listener : listeners) {
+            try {
+                listener.onChanges(events);
+            } catch (RuntimeException e) {
+                // 他の通知先への通知を継続するため、例外は記録して握りつぶす。
+                LOGGER.logWarn("failed to notify change events. listener = [" + listener + ']', e);
+            }
+        }
+    }
+
+    /**
+     * 変更イベントを破棄したことを通知先に知らせる。
+     */
+    private void notifyOverflow() {
+        for (VersionChangeListener listener : listeners) {
+            try {
+                listener.onOverflow();
+            } catch (RuntimeException e) {
+                // 他の通知先への通知を継続するため、例外は記録して握りつぶす。
+                LOGGER.logWarn("failed to notify overflow. listener = [" + listener + ']', e);
+            }
+        }
+    }
+
+    /**
+     * トランザクション内の行データの変更。
+     */
+    private static final class Change {
+
+        /** 変更の種類 */
+        private final VersionChangeEvent.Type type;
+
+        /** 行データのキー */
+        private final VersionKey key;
+
+        /** 変更後のバージョン番号を取得する排他制御コンテキスト */
+        private final ExclusiveControlContext context;
+
+        /**
+         * コンストラクタ。
+         * @param type 変更の種類
+         * @param key 行データのキー
+         * @param context 変更後のバージョン番号を取得する排他制御コンテキスト
+         */
+        Change(VersionChangeEvent.Type type, VersionKey key, ExclusiveControlContext context) {
+            this.type = type;
+            this.key = key;
+            this.context = context;
+        }
+    }
+
+    /**
+     * コミットを待っている変更イベント。
+     */
+    private static final class Committing {
+
+        /** 変更イベント */
+        private final List<VersionChangeEvent> events;
+
+        /** 変更後のバージョン番号を取得できずに破棄した変更の件数 */
+        private final int lost;
+
+        /**
+         * コンストラクタ。
+         * @param events 変更イベント
+         * @param lost 破棄した変更の件数
+         */
+        Committing(List<VersionChangeEvent> events, int lost) {
+            this.events = events;
+            this.lost = lost;
+        }
+    }
+
+    /**
+     * キューに登録した変更イベント。
+     */
+    private static final class Queued {
+
+        /** 変更イベント */
+        private final VersionChangeEvent event;
+
+        /** 最初にキューに登録した時刻({@link System#nanoTime()}の値) */
+        private final long enqueuedAtNanos;
+
+        /**
+         * コンストラクタ。
+         * @param event 変更イベント
+         * @param enqueuedAtNanos 最初にキューに登録した時刻
+         */
+        Queued(VersionChangeEvent event, long enqueuedAtNanos) {
+            this.event = event;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+
+        /**
+         * 後の変更イベントをまとめる。
+         * @param next 後の変更イベント
+         * @return まとめた変更イベント
+         */
+        Queued merge(VersionChangeEvent next) {
+            return new Queued(new VersionChangeEvent(ChangeNotifyingExclusiveControlManager.merge(event.getType(), next.getType()),
+                    next.getKey(), next.getVersion()), enqueuedAtNanos);
+        }
+    }
+}
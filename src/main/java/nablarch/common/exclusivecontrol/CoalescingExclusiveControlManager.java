@@ -0,0 +1,274 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * トランザクション内のバージョン番号の更新をまとめる{@link ExclusiveControlManager}。
+ * <p/>
+ * 1つのトランザクション内で同じ行データのバージョン番号を複数のコンポーネントから更新する場合に、
+ * 行データ毎の2回目以降の更新を省略することで、排他制御用テーブルへのアクセスを削減する。
+ * 更新した行データのキー({@link VersionKey})をスレッドに紐付けて保持し、以下のように扱う。
+ * <ul>
+ *     <li>{@link #updateVersionsWithCheck(List)}は、最初の呼び出しで委譲先のチェックと更新を行う。
+ *     同じトランザクション内で、既に更新した行データに対して同じバージョン番号を指定した2回目以降の呼び出しは何もしない。
+ *     異なるバージョン番号を指定した場合は、委譲先でチェックと更新を行う。</li>
+ *     <li>{@link #updateVersion(ExclusiveControlContext)}(悲観的ロック)は、
+ *     同じトランザクション内で既に更新した行データに対する2回目以降の呼び出しは何もしない。</li>
+ *     <li>バージョン番号のグループ({@link VersionGroup})を指定した更新はまとめずに、委譲先を呼び出す。</li>
+ * </ul>
+ * 更新は最初の呼び出しで委譲先に反映するため、楽観的ロックエラーは委譲先と同じく最初の呼び出しで発生する。
+ * <p/>
+ * 本クラスを使用する場合は、トランザクションの終了時に保持している行データのキーを破棄するために、
+ * {@link ExclusiveControlTransactionHandler}をトランザクション制御を行うハンドラの直後に配置すること。
+ */
+public class CoalescingExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** 現在のスレッドのトランザクション内の更新 */
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で同じバージョン番号により既に更新した行データを除いて委譲する。
+     */
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        final Buffer buffer = buffers.get();
+        final List<Version> targets = buffer.excludeUpdated(versions);
+        if (targets.isEmpty()) {
+            return;
+        }
+        super.updateVersionsWithCheck(targets);
+        buffer.recordUpdated(targets);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で同じバージョン番号により既に更新した行データを除いて委譲する。
+     */
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final Buffer buffer = buffers.get();
+        final List<Version> targets = buffer.excludeUpdated(versions);
+        if (targets.isEmpty()) {
+            return VersionCheckResult.success();
+        }
+        final VersionCheckResult result = super.tryUpdateVersionsWithCheck(targets);
+        if (result.isSuccess()) {
+            buffer.recordUpdated(targets);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で既に更新した行データの場合は何もしない。
+     */
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        final Buffer buffer = buffers.get();
+        final VersionKey key = context.getKey();
+        if (context.getVersionGroup() != null) {
+            super.updateVersion(context);
+            return;
+        }
+        if (buffer.updated.contains(key)) {
+            return;
+        }
+        super.updateVersion(context);
+        buffer.updated.add(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で既に更新した行データを除いて委譲する。
+     */
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        final Buffer buffer = buffers.get();
+        final List<ExclusiveControlContext> targets = new ArrayList<ExclusiveControlContext>(contexts.size());
+        final Set<VersionKey> updated = new HashSet<VersionKey>();
+        for (ExclusiveControlContext context : contexts) {
+            if (context.getVersionGroup() != null) {
+                targets.add(context);
+            } else if (!buffer.updated.contains(context.getKey())) {
+                targets.add(context);
+                updated.add(context.getKey());
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        super.updateVersions(targets);
+        buffer.updated.addAll(updated);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で既に更新した行データの場合は、何もせずに{@code true}を返す。
+     */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final Buffer buffer = buffers.get();
+        final VersionKey key = context.getKey();
+        if (context.getVersionGroup() != null) {
+            return super.tryUpdateVersion(context);
+        }
+        if (buffer.updated.contains(key)) {
+            return true;
+        }
+        final boolean acquired = super.tryUpdateVersion(context);
+        if (acquired) {
+            buffer.updated.add(key);
+        }
+        return acquired;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 同じトランザクション内で既に更新した行データの場合は、何もせずに{@code true}を返す。
+     */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final Buffer buffer = buffers.get();
+        final VersionKey key = context.getKey();
+        if (context.getVersionGroup() != null) {
+            return super.tryUpdateVersion(context, timeout, unit);
+        }
+        if (buffer.updated.contains(key)) {
+            return true;
+        }
+        final boolean acquired = super.tryUpdateVersion(context, timeout, unit);
+        if (acquired) {
+            buffer.updated.add(key);
+        }
+        return acquired;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 削除した行データは、同じトランザクション内で更新していないものとして扱う。
+     */
+    @Override
+    public void removeVersion(ExclusiveControlContext context) {
+        super.removeVersion(context);
+        buffers.get().forget(context.getKey());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 削除した行データは、同じトランザクション内で更新していないものとして扱う。
+     */
+    @Override
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        final Buffer buffer = buffers.get();
+        super.removeVersions(new ContextVisitingIterable(contexts) {
+            @Override
+            void visit(ExclusiveControlContext context) {
+                buffer.forget(context.getKey());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキーを破棄した上で、委譲先に正常終了を通知する。
+     */
+    @Override
+    public void transactionNormalEnd() {
+        buffers.remove();
+        super.transactionNormalEnd();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * トランザクション内で更新した行データのキーを破棄した上で、委譲先に異常終了を通知する。
+     */
+    @Override
+    public void transactionAbnormalEnd() {
+        buffers.remove();
+        super.transactionAbnormalEnd();
+    }
+
+    /**
+     * トランザクション内の更新。
+     */
+    private static final class Buffer {
+
+        /** 楽観的ロックで更新した行データと、更新時に指定されたバージョン番号 */
+        private final Map<VersionKey, String> checkedVersions = new HashMap<VersionKey, String>();
+
+        /** 委譲先で更新した行データのキー */
+        private final Set<VersionKey> updated = new HashSet<VersionKey>();
+
+        /**
+         * 同じバージョン番号により既に更新した行データを除いたバージョン番号を取得する。
+         * <p/>
+         * バージョン番号のグループを指定したバージョン番号は除かない。
+         *
+         * @param versions バージョン番号
+         * @return 委譲先で更新するバージョン番号
+         */
+        List<Version> excludeUpdated(List<Version> versions) {
+            if (checkedVersions.isEmpty()) {
+                return versions;
+            }
+            final List<Version> targets = new ArrayList<Version>(versions.size());
+            for (Version version : versions) {
+                if (version.getVersionGroup() != null
+                        || !version.getVersion().equals(checkedVersions.get(version.getKey()))) {
+                    targets.add(version);
+                }
+            }
+            return targets;
+        }
+
+        /**
+         * 楽観的ロックで更新した行データを記録する。
+         * <p/>
+         * 同じ行データを既に更新していた場合は、最初に指定されたバージョン番号を保持する。
+         *
+         * @param versions 更新したバージョン番号
+         */
+        void recordUpdated(List<Version> versions) {
+            for (Version version : versions) {
+                if (version.getVersionGroup() == null) {
+                    final VersionKey key = version.getKey();
+                    if (!checkedVersions.containsKey(key)) {
+                        checkedVersions.put(key, version.getVersion());
+                    }
+                    updated.add(key);
+                }
+            }
+        }
+
+        /**
+         * 削除した行データの記録を破棄する。
+         * @param key 行データのキー
+         */
+        void forget(VersionKey key) {
+            checkedVersions.remove(key);
+            updated.remove(key);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 委譲先の{@link ExclusiveControlManager}の呼び出しから競合の多い行データを検出する{@link ExclusiveControlManager}。
+ * <p/>
+ * 以下の競合を{@link ContentionDetector}に記録する。
+ * <ul>
+ *     <li>楽観的ロックエラー({@link OptimisticLockException#getErrorVersions()}の行データ毎)</li>
+ *     <li>悲観的ロックの待ち合わせ(所要時間が閾値以上の場合、又はロックを取得できなかった場合)</li>
+ * </ul>
+ * 複数の行データの悲観的ロックは、全体の所要時間を各行データの待ち時間として記録する。
+ * <p/>
+ * 検出結果は{@link #getDetector()}から取得した{@link ContentionDetector#getTopKeys(int)}で参照する。
+ */
+public class ContentionDetectingExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** 待ち合わせとみなす所要時間(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_WAIT_THRESHOLD_MILLIS = 1L;
+
+    /** 競合の記録先 */
+    private ContentionDetector detector = new ContentionDetector();
+
+    /** 待ち合わせとみなす所要時間(ナノ秒) */
+    private long waitThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WAIT_THRESHOLD_MILLIS);
+
+    /**
+     * 競合の記録先を設定する。
+     * @param detector 競合の記録先
+     */
+    public void setDetector(ContentionDetector detector) {
+        this.detector = detector;
+    }
+
+    /**
+     * 競合の記録先を取得する。
+     * @return 競合の記録先
+     */
+    public ContentionDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * 悲観的ロックの待ち合わせとみなす所要時間(ミリ秒)を設定する。デフォルトは1。
+     * @param waitThresholdMillis 待ち合わせとみなす所要時間(ミリ秒)
+     */
+    public void setWaitThresholdMillis(long waitThresholdMillis) {
+        if (waitThresholdMillis < 0) {
+            throw new IllegalArgumentException(
+                    "waitThresholdMillis must not be negative. waitThresholdMillis = [" + waitThresholdMillis + ']');
+        }
+        waitThresholdNanos = TimeUnit.MILLISECONDS.toNanos(waitThresholdMillis);
+    }
+
+    @Override
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        try {
+            super.checkVersions(versions);
+        } catch (OptimisticLockException e) {
+            recordFailures(e.getErrorVersions());
+            throw e;
+        }
+    }
+
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        try {
+            super.updateVersionsWithCheck(versions);
+        } catch (OptimisticLockException e) {
+            recordFailures(e.getErrorVersions());
+            throw e;
+        }
+    }
+
+    @Override
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        final VersionCheckResult result = super.tryCheckVersions(versions);
+        if (!result.isSuccess()) {
+            recordFailures(result.getErrorVersions());
+        }
+        return result;
+    }
+
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final VersionCheckResult result = super.tryUpdateVersionsWithCheck(versions);
+        if (!result.isSuccess()) {
+            recordFailures(result.getErrorVersions());
+        }
+        return result;
+    }
+
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        super.updateVersion(context);
+        recordWait(context.getKey(), System.nanoTime() - start, true);
+    }
+
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        final long start = System.nanoTime();
+        super.updateVersions(contexts);
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed >= waitThresholdNanos) {
+            for (ExclusiveControlContext context : contexts) {
+                detector.recordPessimisticWait(context.getKey(), elapsed);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        final boolean acquired = super.tryUpdateVersion(context);
+        recordWait(context.getKey(), System.nanoTime() - start, acquired);
+        return acquired;
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final long start = System.nanoTime();
+        final boolean acquired = super.tryUpdateVersion(context, timeout, unit);
+        recordWait(context.getKey(), System.nanoTime() - start, acquired);
+        return acquired;
+    }
+
+    /**
+     * 楽観的ロックエラーを記録する。
+     * @param errorVersions 楽観的ロックエラーとなったバージョン番号
+     */
+    private void recordFailures(List<Version> errorVersions) {
+        for (Version version : errorVersions) {
+            detector.recordOptimisticFailure(version.getKey());
+        }
+    }
+
+    /**
+     * 悲観的ロックの待ち合わせを記録する。
+     * @param key 行データのキー
+     * @param elapsedNanos 所要時間(ナノ秒)
+     * @param acquired ロックを取得できた場合は{@code true}
+     */
+    private void recordWait(VersionKey key, long elapsedNanos, boolean acquired) {
+        if (!acquired || elapsedNanos >= waitThresholdNanos) {
+            detector.recordPessimisticWait(key, elapsedNanos);
+        }
+    }
+}
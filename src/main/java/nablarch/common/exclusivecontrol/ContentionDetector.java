@@ -0,0 +1,352 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 競合の多い行データを検出するクラス。
+ * <p/>
+ * 行データ毎の競合(楽観的ロックエラー、悲観的ロックの待ち合わせ)の回数を、
+ * 一定のメモリで頻度を推定するCount-Min Sketchにより集計する。
+ * 推定値の大きい行データは、件数の上限を設けた候補として個別に回数を集計し、{@link #getTopKeys(int)}で参照できる。
+ * <p/>
+ * 直近の競合を重視するため、集計値は一定間隔({@link #setDecayIntervalMillis(long)})毎に半減させる({@link #decay()})。
+ * 過去に競合の多かった行データの集計値も減少するため、新たに競合が多くなった行データが候補に加わる。
+ * <p/>
+ * 競合の記録はロックを使用せずに行うため、業務処理の性能にほとんど影響しない。
+ * 候補の件数が上限の2倍を超えた場合は、記録したスレッドが推定値の小さい候補を上限まで削除する。
+ */
+@Published(tag = "architect")
+public class ContentionDetector {
+
+    /** Count-Min Sketchの行数 */
+    private static final int DEPTH = 4;
+
+    /** Count-Min Sketchの列数のデフォルト値 */
+    private static final int DEFAULT_WIDTH = 4096;
+
+    /** 候補の件数の上限のデフォルト値 */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** 集計値を半減させる間隔(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_DECAY_INTERVAL_MILLIS = 60000L;
+
+    /** 行毎のハッシュ値の種 */
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    /** 推定値の降順に並べる{@link Comparator} */
+    private static final Comparator<HotKey> BY_ESTIMATE = new Comparator<HotKey>() {
+        public int compare(HotKey o1, HotKey o2) {
+            final long c1 = o1.getEstimatedCount();
+            final long c2 = o2.getEstimatedCount();
+            return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+        }
+    };
+
+    /** Count-Min Sketch(列数×行数) */
+    private volatile AtomicLongArray sketch;
+
+    /** 候補の件数の上限 */
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /** 候補 */
+    private final ConcurrentMap<VersionKey, Candidate> candidates = new ConcurrentHashMap<VersionKey, Candidate>();
+
+    /** 候補の件数({@link ConcurrentHashMap#size()}は全セグメントを参照するため、別に数える) */
+    private final AtomicInteger candidateCount = new AtomicInteger();
+
+    /** 候補に加える推定値の下限 */
+    private volatile long admissionThreshold = 0;
+
+    /** 候補を削除中か否か */
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    /** 集計値を半減させる間隔(ミリ秒) */
+    private volatile long decayIntervalMillis = DEFAULT_DECAY_INTERVAL_MILLIS;
+
+    /** 次に集計値を半減させる時刻(エポックミリ秒) */
+    private final AtomicLong nextDecayMillis = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * コンストラクタ。
+     */
+    public ContentionDetector() {
+        setWidth(DEFAULT_WIDTH);
+    }
+
+    /**
+     * Count-Min Sketchの列数を設定する。
+     * <p/>
+     * 指定された値以上の最小の2の累乗が列数となる。デフォルトは4096。
+     * 列数が多いほど推定値の誤差が小さくなる。設定すると集計した値は破棄される。
+     *
+     * @param width 列数
+     */
+    public void setWidth(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be greater than 0. width = [" + width + ']');
+        }
+        int size = 1;
+        while (size < width) {
+            size <<= 1;
+        }
+        sketch = new AtomicLongArray(size * DEPTH);
+        candidates.clear();
+        candidateCount.set(0);
+        admissionThreshold = 0;
+    }
+
+    /**
+     * 候補とする行データの件数の上限を設定する。デフォルトは64。
+     * @param capacity 件数の上限
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0. capacity = [" + capacity + ']');
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * 集計値を半減させる間隔(ミリ秒)を設定する。デフォルトは60000(1分)。
+     * @param decayIntervalMillis 集計値を半減させる間隔(ミリ秒)
+     */
+    public void setDecayIntervalMillis(long decayIntervalMillis) {
+        if (decayIntervalMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "decayIntervalMillis must be greater than 0. decayIntervalMillis = [" + decayIntervalMillis + ']');
+        }
+        this.decayIntervalMillis = decayIntervalMillis;
+        nextDecayMillis.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * 楽観的ロックエラーを記録する。
+     * @param key 行データのキー
+     */
+    public void recordOptimisticFailure(VersionKey key) {
+        final Candidate candidate = record(key);
+        if (candidate != null) {
+            candidate.optimisticFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 悲観的ロックの待ち合わせを記録する。
+     * @param key 行データのキー
+     * @param waitNanos 待ち時間(ナノ秒)
+     */
+    public void recordPessimisticWait(VersionKey key, long waitNanos) {
+        final Candidate candidate = record(key);
+        if (candidate != null) {
+            candidate.pessimisticWaits.incrementAndGet();
+            candidate.totalWaitNanos.addAndGet(waitNanos);
+        }
+    }
+
+    /**
+     * 競合回数の推定値を取得する。
+     * @param key 行データのキー
+     * @return 競合回数の推定値
+     */
+    public long estimate(VersionKey key) {
+        final AtomicLongArray counts = sketch;
+        final int width = counts.length() / DEPTH;
+        final int hash = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counts.get(i * width + index(hash, i, width - 1)));
+        }
+        return min;
+    }
+
+    /**
+     * 競合回数の推定値の大きい行データを取得する。
+     * @param n 取得する件数
+     * @return 推定値の降順に並べた行データ
+     */
+    public List<HotKey> getTopKeys(int n) {
+        final List<HotKey> hotKeys = snapshot();
+        Collections.sort(hotKeys, BY_ESTIMATE);
+        return hotKeys.size() <= n ? hotKeys : new ArrayList<HotKey>(hotKeys.subList(0, n));
+    }
+
+    /**
+     * 集計した値を破棄する。
+     */
+    public void clear() {
+        setWidth(sketch.length() / DEPTH);
+    }
+
+    /**
+     * 集計値を半減させる。
+     * <p/>
+     * Count-Min Sketch、候補の回数、候補に加える推定値の下限を半減させ、推定値が0となった候補を削除する。
+     * 競合の記録時に、前回から{@link #setDecayIntervalMillis(long)}で設定した間隔が経過していれば呼び出される。
+     * 半減の途中に記録された競合は、半減の前後いずれかの値として集計される。
+     */
+    public void decay() {
+        final AtomicLongArray counts = sketch;
+        for (int i = 0, length = counts.length(); i < length; i++) {
+            long current;
+            do {
+                current = counts.get(i);
+            } while (current != 0 && !counts.compareAndSet(i, current, current >>> 1));
+        }
+        for (Map.Entry<VersionKey, Candidate> entry : candidates.entrySet()) {
+            final Candidate candidate = entry.getValue();
+            halve(candidate.optimisticFailures);
+            halve(candidate.pessimisticWaits);
+            halve(candidate.totalWaitNanos);
+            if (estimate(entry.getKey()) == 0 && candidates.remove(entry.getKey(), candidate)) {
+                candidateCount.decrementAndGet();
+            }
+        }
+        admissionThreshold >>>= 1;
+    }
+
+    /**
+     * 現在時刻(エポックミリ秒)を取得する。
+     * @return 現在時刻
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * 競合を記録する。
+     * @param key 行データのキー
+     * @return 行データの候補。候補でない場合は{@code null}
+     */
+    private Candidate record(VersionKey key) {
+        decayIfNecessary();
+        final AtomicLongArray counts = sketch;
+        final int width = counts.length() / DEPTH;
+        final int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counts.incrementAndGet(i * width + index(hash, i, width - 1)));
+        }
+
+        final Candidate candidate = candidates.get(key);
+        if (candidate != null) {
+            return candidate;
+        }
+        if (candidateCount.get() >= capacity && estimate <= admissionThreshold) {
+            return null;
+        }
+        final Candidate created = new Candidate();
+        final Candidate registered = candidates.putIfAbsent(key, created);
+        if (registered != null) {
+            return registered;
+        }
+        if (candidateCount.incrementAndGet() > capacity * 2) {
+            prune();
+        }
+        return created;
+    }
+
+    /**
+     * 前回から間隔が経過していれば、集計値を半減させる。
+     * <p/>
+     * 次の時刻を比較と置換により更新できたスレッドのみが半減させる。
+     */
+    private void decayIfNecessary() {
+        final long now = currentTimeMillis();
+        final long next = nextDecayMillis.get();
+        if (now < next || !nextDecayMillis.compareAndSet(next, now + decayIntervalMillis)) {
+            return;
+        }
+        if (next != Long.MIN_VALUE) {
+            decay();
+        }
+    }
+
+    /**
+     * 推定値の小さい候補を件数の上限まで削除する。
+     */
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<HotKey> hotKeys = snapshot();
+            if (hotKeys.size() <= capacity) {
+                return;
+            }
+            Collections.sort(hotKeys, BY_ESTIMATE);
+            for (HotKey hotKey : hotKeys.subList(capacity, hotKeys.size())) {
+                if (candidates.remove(hotKey.getKey()) != null) {
+                    candidateCount.decrementAndGet();
+                }
+            }
+            admissionThreshold = hotKeys.get(capacity - 1).getEstimatedCount();
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    /**
+     * 候補の集計結果を取得する。
+     * @return 候補の集計結果
+     */
+    private List<HotKey> snapshot() {
+        final List<HotKey> hotKeys = new ArrayList<HotKey>(candidates.size());
+        for (Map.Entry<VersionKey, Candidate> entry : candidates.entrySet()) {
+            final Candidate candidate = entry.getValue();
+            hotKeys.add(new HotKey(entry.getKey(), estimate(entry.getKey()), candidate.optimisticFailures.get(),
+                    candidate.pessimisticWaits.get(), candidate.totalWaitNanos.get()));
+        }
+        return hotKeys;
+    }
+
+    /**
+     * 値を半減させる。
+     * @param value 値
+     */
+    private static void halve(AtomicLong value) {
+        long current;
+        do {
+            current = value.get();
+        } while (current != 0 && !value.compareAndSet(current, current >>> 1));
+    }
+
+    /**
+     * Count-Min Sketchの指定された行の列を算出する。
+     * @param hash 行データのキーのハッシュ値
+     * @param row 行
+     * @param mask 列数-1
+     * @return 列
+     */
+    private static int index(int hash, int row, int mask) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    /**
+     * 候補の行データの集計値。
+     */
+    private static final class Candidate {
+
+        /** 楽観的ロックエラーの回数 */
+        private final AtomicLong optimisticFailures = new AtomicLong();
+
+        /** 悲観的ロックの待ち合わせ回数 */
+        private final AtomicLong pessimisticWaits = new AtomicLong();
+
+        /** 悲観的ロックの待ち時間の合計(ナノ秒) */
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+    }
+}
@@ -0,0 +1,48 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Iterator;
+
+/**
+ * 走査した排他制御コンテキストを順に{@link #visit(ExclusiveControlContext)}に引き渡す{@link Iterable}。
+ * <p/>
+ * 1度だけ走査できる{@link Iterable}を委譲先に引き渡しつつ、デコレータで排他制御コンテキストを参照するために使用する。
+ */
+abstract class ContextVisitingIterable implements Iterable<ExclusiveControlContext> {
+
+    /** 排他制御コンテキスト */
+    private final Iterable<? extends ExclusiveControlContext> contexts;
+
+    /**
+     * コンストラクタ。
+     * @param contexts 排他制御コンテキスト
+     */
+    ContextVisitingIterable(Iterable<? extends ExclusiveControlContext> contexts) {
+        this.contexts = contexts;
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<ExclusiveControlContext> iterator() {
+        final Iterator<? extends ExclusiveControlContext> iterator = contexts.iterator();
+        return new Iterator<ExclusiveControlContext>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public ExclusiveControlContext next() {
+                final ExclusiveControlContext context = iterator.next();
+                visit(context);
+                return context;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * 走査した排他制御コンテキストを処理する。
+     * @param context 排他制御コンテキスト
+     */
+    abstract void visit(ExclusiveControlContext context);
+}
@@ -0,0 +1,32 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 非同期に実行した排他制御の結果を受け取るインタフェース。
+ * <p/>
+ * 各メソッドは、排他制御を実行したスレッドから呼び出される。
+ * 時間のかかる処理は、別のスレッドに引き渡して行うこと。
+ *
+ * @param <T> 結果の型
+ * @see AsyncExclusiveControlManager
+ */
+@Published
+public interface ExclusiveControlCallback<T> {
+
+    /**
+     * 排他制御が正常に終了した場合に呼び出される。
+     * @param result 結果。結果を持たない操作の場合は{@code null}
+     */
+    void onSuccess(T result);
+
+    /**
+     * 排他制御が例外により終了した場合、又は取り消された場合に呼び出される。
+     * <p/>
+     * 楽観的ロックエラーの場合は{@link OptimisticLockException}、
+     * 取り消された場合は{@link java.util.concurrent.CancellationException}が指定される。
+     *
+     * @param cause 例外
+     */
+    void onFailure(Throwable cause);
+}
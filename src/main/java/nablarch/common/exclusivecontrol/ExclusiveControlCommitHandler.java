@@ -0,0 +1,50 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+
+/**
+ * トランザクションのコミット後に{@link ExclusiveControlCommitListener}に通知するハンドラ。
+ * <p/>
+ * 後続ハンドラの処理が正常終了した場合は{@link ExclusiveControlCommitListener#transactionCommitted()}を、
+ * 例外が送出された場合は{@link ExclusiveControlCommitListener#transactionRolledBack()}を呼び出す。
+ * <p/>
+ * 本ハンドラは、トランザクション制御を行うハンドラの直前に配置すること。
+ * トランザクション制御を行うハンドラが正常終了した時点でコミットが完了しているため、
+ * {@link ExclusiveControlTransactionHandler}と異なり、コミットされた結果を前提とする処理を行える。
+ * 設定された{@link ExclusiveControlManager}が{@link ExclusiveControlCommitListener}を
+ * 実装していない場合は何もしない。
+ */
+public class ExclusiveControlCommitHandler implements Handler<Object, Object> {
+
+    /** 通知対象の{@link ExclusiveControlManager} */
+    private ExclusiveControlManager exclusiveControlManager;
+
+    /**
+     * 通知対象の{@link ExclusiveControlManager}を設定する。
+     * @param exclusiveControlManager 通知対象の{@link ExclusiveControlManager}
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        this.exclusiveControlManager = exclusiveControlManager;
+    }
+
+    /** {@inheritDoc} */
+    public Object handle(Object data, ExecutionContext context) {
+        if (!(exclusiveControlManager instanceof ExclusiveControlCommitListener)) {
+            return context.handleNext(data);
+        }
+        final ExclusiveControlCommitListener listener = (ExclusiveControlCommitListener) exclusiveControlManager;
+        final Object result;
+        try {
+            result = context.handleNext(data);
+        } catch (RuntimeException e) {
+            listener.transactionRolledBack();
+            throw e;
+        } catch (Error e) {
+            listener.transactionRolledBack();
+            throw e;
+        }
+        listener.transactionCommitted();
+        return result;
+    }
+}
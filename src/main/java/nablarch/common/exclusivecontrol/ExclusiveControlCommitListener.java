@@ -0,0 +1,30 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * トランザクションのコミット後の通知を受け取る{@link ExclusiveControlManager}が実装するインタフェース。
+ * <p/>
+ * {@link ExclusiveControlTransactionListener}の通知はコミットの前に行われるため、
+ * キャッシュの破棄や変更の通知など、コミットされた結果を前提とする処理は本インタフェースの通知で行う。
+ * 通知は{@link ExclusiveControlCommitHandler}により行われる。
+ *
+ * @see ExclusiveControlCommitHandler
+ */
+@Published(tag = "architect")
+public interface ExclusiveControlCommitListener {
+
+    /**
+     * トランザクションがコミットされた後に呼び出される。
+     * <p/>
+     * コミット済みの処理を失敗させないため、本メソッドでは例外を送出しないこと。
+     */
+    void transactionCommitted();
+
+    /**
+     * トランザクションがコミットされずに終了した後に呼び出される。
+     * <p/>
+     * {@link ExclusiveControlTransactionListener#transactionNormalEnd()}の通知後にコミットに失敗した場合も呼び出される。
+     */
+    void transactionRolledBack();
+}
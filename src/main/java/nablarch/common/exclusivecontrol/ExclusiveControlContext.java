@@ -1,7 +1,11 @@
 package nablarch.common.exclusivecontrol;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import nablarch.core.util.annotation.Published;
 
@@ -9,6 +13,10 @@ import nablarch.core.util.annotation.Published;
  * 排他制御の実行に必要な情報を保持するクラス。
  * <p/>
  * 排他制御用テーブルのスキーマ情報と排他制御対象のデータを指定する主キー条件を保持する。
+ * <p/>
+ * スキーマ情報は、{@link #setSchema(ExclusiveControlSchema)}によりキャッシュされた{@link ExclusiveControlSchema}を
+ * 設定するか、{@link #setTableName(String)}、{@link #setVersionColumnName(String)}、
+ * {@link #setPrimaryKeyColumnNames(Enum[])}により個別に設定する。
  * 
  * @author Kiyohito Itoh
  */
@@ -24,8 +32,17 @@ public class ExclusiveControlContext {
     /** 主キーのカラム名 */
     private Enum<?>[] primaryKeyColumnNames;
     
+    /** スキーマ情報(スキーマ情報の変更時に破棄する) */
+    private ExclusiveControlSchema schema;
+
     /** 排他制御対象の行データを指定する条件 */
-    private Map<String, Object> condition = new HashMap<String, Object>();
+    private final Map<String, Object> condition = new ConditionMap();
+
+    /** 排他制御対象の行データを特定するキー(テーブル名又は条件の変更時に破棄する) */
+    private VersionKey key;
+
+    /** バージョン番号のグループ名 */
+    private String versionGroup;
 
     /**
      * 排他制御用テーブルのテーブル名を取得する。
@@ -41,6 +58,8 @@ public class ExclusiveControlContext {
      */
     protected void setTableName(String tableName) {
         this.tableName = tableName;
+        schema = null;
+        key = null;
     }
 
     /**
@@ -57,6 +76,7 @@ public class ExclusiveControlContext {
      */
     protected void setVersionColumnName(String versionColumnName) {
         this.versionColumnName = versionColumnName;
+        schema = null;
     }
     
     /**
@@ -73,6 +93,39 @@ public class ExclusiveControlContext {
      */
     protected void setPrimaryKeyColumnNames(Enum<?>... primaryKeyColumnNames) {
         this.primaryKeyColumnNames = primaryKeyColumnNames;
+        schema = null;
+        key = null;
+    }
+
+    /**
+     * スキーマ情報を取得する。
+     * <p/>
+     * スキーマ情報を個別に設定した場合は、設定された値に対応するキャッシュされた{@link ExclusiveControlSchema}を返す。
+     *
+     * @return スキーマ情報。テーブル名、バージョン番号カラム名、主キーのカラム名のいずれかが未設定の場合は{@code null}
+     */
+    public ExclusiveControlSchema getSchema() {
+        ExclusiveControlSchema current = schema;
+        if (current == null && tableName != null && versionColumnName != null && primaryKeyColumnNames != null) {
+            current = ExclusiveControlSchema.get(tableName, versionColumnName, primaryKeyColumnNames);
+            schema = current;
+        }
+        return current;
+    }
+
+    /**
+     * スキーマ情報を設定する。
+     * <p/>
+     * テーブル名、バージョン番号カラム名、主キーのカラム名をまとめて設定する。
+     *
+     * @param schema スキーマ情報
+     */
+    protected void setSchema(ExclusiveControlSchema schema) {
+        tableName = schema.getTableName();
+        versionColumnName = schema.getVersionColumnName();
+        primaryKeyColumnNames = schema.getPrimaryKeyColumnNames();
+        this.schema = schema;
+        key = null;
     }
 
     /**
@@ -83,6 +136,27 @@ public class ExclusiveControlContext {
         return condition;
     }
     
+    /**
+     * バージョン番号のグループ名を取得する。
+     * @return バージョン番号のグループ名。行データ全体のバージョン番号を対象とする場合は{@code null}
+     */
+    public String getVersionGroup() {
+        return versionGroup;
+    }
+
+    /**
+     * バージョン番号のグループ名を設定する。
+     * <p/>
+     * グループ名を設定した場合、行データ全体ではなく、グループのバージョン番号を取得、更新する。
+     * グループ名は行データを特定するキーには影響しない。
+     *
+     * @param versionGroup バージョン番号のグループ名。行データ全体を対象とする場合は{@code null}
+     * @see VersionGroup
+     */
+    public void setVersionGroup(String versionGroup) {
+        this.versionGroup = versionGroup;
+    }
+
     /**
      * 排他制御対象の行データを指定する条件を追加する。
      * @param columnName 主キーのカラム名
@@ -90,7 +164,213 @@ public class ExclusiveControlContext {
      * @return 本オブジェクト
      */
     public ExclusiveControlContext appendCondition(Enum<?> columnName, Object value) {
-        condition.put(ExclusiveControlUtil.convertToVariableName(columnName), value);
+        final ExclusiveControlSchema current = getSchema();
+        condition.put(current == null
+                ? ExclusiveControlUtil.convertToVariableName(columnName)
+                : current.getVariableName(columnName), value);
         return this;
     }
+
+    /**
+     * バージョン番号が示す行データの排他制御コンテキストを生成する。
+     * @param version バージョン番号
+     * @return 排他制御コンテキスト。バージョン番号がスキーマ情報を保持していない場合は{@code null}
+     */
+    static ExclusiveControlContext of(Version version) {
+        final ExclusiveControlSchema schema = version.getSchema();
+        if (schema == null) {
+            return null;
+        }
+        final ExclusiveControlContext context = new ExclusiveControlContext();
+        context.setSchema(schema);
+        final VersionKey versionKey = version.getKey();
+        for (int i = 0; i < versionKey.size(); i++) {
+            context.condition.put(versionKey.getName(i), versionKey.getValue(i));
+        }
+        context.key = versionKey;
+        context.versionGroup = version.getVersionGroup();
+        return context;
+    }
+
+    /**
+     * 排他制御対象の行データを特定するキーを取得する。
+     * <p/>
+     * キーはテーブル名又は条件が変更されるまで再利用する。
+     *
+     * @return 排他制御対象の行データを特定するキー
+     */
+    public VersionKey getKey() {
+        VersionKey current = key;
+        if (current == null) {
+            current = createKey();
+            key = current;
+        }
+        return current;
+    }
+
+    /**
+     * 排他制御対象の行データを特定するキーを生成する。
+     * <p/>
+     * 条件の変数名がスキーマ情報の主キーと一致する場合は、スキーマ情報が保持する変数名の配列をキーと共有する。
+     *
+     * @return 排他制御対象の行データを特定するキー
+     */
+    private VersionKey createKey() {
+        final ExclusiveControlSchema current = getSchema();
+        if (current != null) {
+            final String[] names = current.getSortedVariableNames();
+            if (names.length == condition.size()) {
+                final Object[] values = new Object[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    values[i] = condition.get(names[i]);
+                    if (values[i] == null && !condition.containsKey(names[i])) {
+                        return new VersionKey(tableName, condition);
+                    }
+                }
+                return new VersionKey(tableName, names, values);
+            }
+        }
+        return new VersionKey(tableName, condition);
+    }
+
+    /**
+     * 変更時にキーを破棄する条件のマップ。
+     * <p/>
+     * {@link #entrySet()}、{@link #keySet()}、{@link #values()}のビューとそのイテレータ、
+     * エントリの{@link Map.Entry#setValue(Object)}による変更も、本マップを経由してキーを破棄する。
+     */
+    private final class ConditionMap extends AbstractMap<String, Object> {
+
+        /** 条件 */
+        private final Map<String, Object> entries = new HashMap<String, Object>();
+
+        /** エントリのビュー */
+        private Set<Map.Entry<String, Object>> entrySet;
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return entries.containsKey(name);
+        }
+
+        @Override
+        public Object get(Object name) {
+            return entries.get(name);
+        }
+
+        @Override
+        public Object put(String name, Object value) {
+            key = null;
+            return entries.put(name, value);
+        }
+
+        @Override
+        public Object remove(Object name) {
+            key = null;
+            return entries.remove(name);
+        }
+
+        @Override
+        public void clear() {
+            key = null;
+            entries.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            Set<Map.Entry<String, Object>> current = entrySet;
+            if (current == null) {
+                current = new EntrySet();
+                entrySet = current;
+            }
+            return current;
+        }
+
+        /**
+         * 削除時にキーを破棄するエントリのビュー。
+         * <p/>
+         * {@link AbstractMap}は{@link #keySet()}と{@link #values()}を本ビューから生成するため、それらの変更も本ビューを経由する。
+         */
+        private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+            @Override
+            public void clear() {
+                ConditionMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                final Iterator<Map.Entry<String, Object>> iterator = entries.entrySet().iterator();
+                return new Iterator<Map.Entry<String, Object>>() {
+
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    public Map.Entry<String, Object> next() {
+                        return new ConditionEntry(iterator.next());
+                    }
+
+                    public void remove() {
+                        key = null;
+                        iterator.remove();
+                    }
+                };
+            }
+        }
+
+        /**
+         * 値の変更時にキーを破棄するエントリ。
+         */
+        private final class ConditionEntry implements Map.Entry<String, Object> {
+
+            /** 条件のエントリ */
+            private final Map.Entry<String, Object> entry;
+
+            /**
+             * コンストラクタ。
+             * @param entry 条件のエントリ
+             */
+            ConditionEntry(Map.Entry<String, Object> entry) {
+                this.entry = entry;
+            }
+
+            public String getKey() {
+                return entry.getKey();
+            }
+
+            public Object getValue() {
+                return entry.getValue();
+            }
+
+            public Object setValue(Object value) {
+                key = null;
+                return entry.setValue(value);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return entry.equals(o);
+            }
+
+            @Override
+            public int hashCode() {
+                return entry.hashCode();
+            }
+
+            @Override
+            public String toString() {
+                return entry.toString();
+            }
+        }
+    }
 }
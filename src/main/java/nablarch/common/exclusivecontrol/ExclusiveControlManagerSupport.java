@@ -0,0 +1,389 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link ExtendedExclusiveControlManager}の拡張機能のデフォルト実装を提供するクラス。
+ * <p/>
+ * デフォルト実装は、{@link ExclusiveControlManager}のメソッドを組み合わせて実現する。
+ * サブクラスでは、より効率的に実現できる拡張機能をオーバーライドすること。
+ */
+@Published(tag = "architect")
+public abstract class ExclusiveControlManagerSupport implements ExtendedExclusiveControlManager {
+
+    /**
+     * 排他制御コンテキストを{@link VersionKey}の順序、バージョン番号のグループ名の順序(グループ名を持たないものが先)で
+     * 比較する{@link Comparator}
+     */
+    private static final Comparator<ExclusiveControlContext> KEY_ORDER = new Comparator<ExclusiveControlContext>() {
+        public int compare(ExclusiveControlContext o1, ExclusiveControlContext o2) {
+            final int result = o1.getKey().compareTo(o2.getKey());
+            if (result != 0) {
+                return result;
+            }
+            final String group1 = o1.getVersionGroup();
+            final String group2 = o2.getVersionGroup();
+            if (group1 == null || group2 == null) {
+                return group1 == null ? (group2 == null ? 0 : -1) : 1;
+            }
+            return group1.compareTo(group2);
+        }
+    };
+
+    /** 複数の行データを取得、追加又は削除する場合のチャンクの件数のデフォルト値 */
+    static final int DEFAULT_BULK_CHUNK_SIZE = 100;
+
+    /** 複数の行データを取得、追加又は削除する場合のチャンクの件数 */
+    private int bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+
+    /**
+     * {@link ExclusiveControlManager}を{@link ExtendedExclusiveControlManager}として使用できるようにする。
+     * @param manager {@link ExclusiveControlManager}
+     * @return {@link ExtendedExclusiveControlManager}を実装している場合は引数のオブジェクト。
+     *         実装していない場合は拡張機能のデフォルト実装を付与したオブジェクト
+     */
+    public static ExtendedExclusiveControlManager extend(ExclusiveControlManager manager) {
+        if (manager instanceof ExtendedExclusiveControlManager) {
+            return (ExtendedExclusiveControlManager) manager;
+        }
+        return new Adapter(manager);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * スキーマ情報毎にチャンクの件数までの排他制御コンテキストを{@link #getVersionsChunk(List)}に引き渡し、
+     * 結果を指定された順序に並べ替える。
+     */
+    public List<Version> getVersions(List<? extends ExclusiveControlContext> contexts) {
+        final int chunkSize = bulkChunkSize;
+        final Map<Object, List<Integer>> groups = new LinkedHashMap<Object, List<Integer>>();
+        for (int i = 0, size = contexts.size(); i < size; i++) {
+            final Object group = groupOf(contexts.get(i));
+            List<Integer> indexes = groups.get(group);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                groups.put(group, indexes);
+            }
+            indexes.add(i);
+        }
+        final Version[] result = new Version[contexts.size()];
+        for (List<Integer> indexes : groups.values()) {
+            for (int from = 0; from < indexes.size(); from += chunkSize) {
+                final List<Integer> chunkIndexes = indexes.subList(from, Math.min(from + chunkSize, indexes.size()));
+                final List<ExclusiveControlContext> chunk = new ArrayList<ExclusiveControlContext>(chunkIndexes.size());
+                for (Integer index : chunkIndexes) {
+                    chunk.add(contexts.get(index));
+                }
+                final List<Version> versions = getVersionsChunk(chunk);
+                for (int i = 0; i < chunkIndexes.size(); i++) {
+                    result[chunkIndexes.get(i)] = versions.get(i);
+                }
+            }
+        }
+        return new ArrayList<Version>(Arrays.asList(result));
+    }
+
+    /**
+     * 同じスキーマ情報を持つ排他制御コンテキストのチャンクについて、バージョン番号を取得する。
+     * <p/>
+     * デフォルト実装では、{@link #getVersion(ExclusiveControlContext)}を順に呼び出す。
+     * 主キーの条件をまとめた検索を行えるサブクラスでは、オーバーライドすること。
+     *
+     * @param chunk 排他制御コンテキスト(チャンクの件数以下)
+     * @return 排他制御コンテキストと同じ順序のバージョン番号。バージョン番号が存在しない行データは{@code null}
+     */
+    protected List<Version> getVersionsChunk(List<ExclusiveControlContext> chunk) {
+        final List<Version> versions = new ArrayList<Version>(chunk.size());
+        for (ExclusiveControlContext context : chunk) {
+            versions.add(getVersion(context));
+        }
+        return versions;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link #checkVersions(List)}が送出した{@link OptimisticLockException}からチェック結果を生成する。
+     */
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        try {
+            checkVersions(versions);
+            return VersionCheckResult.success();
+        } catch (OptimisticLockException e) {
+            return toResult(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link #updateVersionsWithCheck(List)}が送出した{@link OptimisticLockException}からチェック結果を生成する。
+     */
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        try {
+            updateVersionsWithCheck(versions);
+            return VersionCheckResult.success();
+        } catch (OptimisticLockException e) {
+            return toResult(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 並べ替えと重複の除去を行った排他制御コンテキストの順に{@link #updateVersion(ExclusiveControlContext)}を呼び出す。
+     */
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        for (ExclusiveControlContext context : sortAndDistinct(contexts)) {
+            updateVersion(context);
+        }
+    }
+
+    /**
+     * 複数の行データを取得、追加又は削除する場合のチャンクの件数を設定する。
+     * <p/>
+     * デフォルトは100。
+     *
+     * @param bulkChunkSize チャンクの件数
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        if (bulkChunkSize <= 0) {
+            throw new IllegalArgumentException("bulkChunkSize must be positive. bulkChunkSize = [" + bulkChunkSize + ']');
+        }
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    /**
+     * 複数の行データを取得、追加又は削除する場合のチャンクの件数を取得する。
+     * @return チャンクの件数
+     */
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * スキーマ情報毎にチャンクの件数に達した排他制御コンテキストを{@link #addVersionsChunk(List)}に引き渡す。
+     */
+    public void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        processInChunks(contexts, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * スキーマ情報毎にチャンクの件数に達した排他制御コンテキストを{@link #removeVersionsChunk(List)}に引き渡す。
+     */
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        processInChunks(contexts, false);
+    }
+
+    /**
+     * 同じスキーマ情報を持つ排他制御コンテキストのチャンクについて、バージョン番号を追加する。
+     * <p/>
+     * デフォルト実装では、{@link #addVersion(ExclusiveControlContext)}を順に呼び出す。
+     * バッチ更新や複数行の挿入を行えるサブクラスでは、オーバーライドすること。
+     *
+     * @param chunk 排他制御コンテキスト(チャンクの件数以下)
+     */
+    protected void addVersionsChunk(List<ExclusiveControlContext> chunk) {
+        for (ExclusiveControlContext context : chunk) {
+            addVersion(context);
+        }
+    }
+
+    /**
+     * 同じスキーマ情報を持つ排他制御コンテキストのチャンクについて、バージョン番号を削除する。
+     * <p/>
+     * デフォルト実装では、{@link #removeVersion(ExclusiveControlContext)}を順に呼び出す。
+     * バッチ更新や複数行の削除を行えるサブクラスでは、オーバーライドすること。
+     *
+     * @param chunk 排他制御コンテキスト(チャンクの件数以下)
+     */
+    protected void removeVersionsChunk(List<ExclusiveControlContext> chunk) {
+        for (ExclusiveControlContext context : chunk) {
+            removeVersion(context);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 待ち時間を0として{@link #tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)}を呼び出す。
+     */
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        return tryUpdateVersion(context, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link ExclusiveControlManager}はロックの待ち時間を制御できないため、デフォルト実装では
+     * {@link #updateVersion(ExclusiveControlContext)}によりロックを取得するまで待機し、{@code true}を返す。
+     * この場合の待ち時間の上限はデータベースのロック待ちのタイムアウトとなり、指定された待ち時間は使用しない。
+     * {@link #extend(ExclusiveControlManager)}で拡張した{@link ExclusiveControlManager}もこの動作となる。
+     * <p/>
+     * 待ち時間を制御できるサブクラスでは、本メソッドをオーバーライドすること。
+     * 例えば、データベースを使用する実装では、待ち時間が0の場合はNOWAITを指定した行ロックを、
+     * それ以外の場合は待ち時間をクエリタイムアウトに指定した行ロックを取得し、
+     * ロックを取得できなかった場合は{@code false}を返す。
+     */
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        updateVersion(context);
+        return true;
+    }
+
+    /**
+     * 排他制御コンテキストを{@link VersionKey}の順序に並べ替え、同じ行データの同じバージョン番号を指す排他制御コンテキストを除去する。
+     * <p/>
+     * 同じ行データでもバージョン番号のグループ名が異なる排他制御コンテキストは除去せず、グループ名の順に並べる。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @return 並べ替えと重複の除去を行った排他制御コンテキスト(新たに生成したリスト)
+     */
+    protected static List<ExclusiveControlContext> sortAndDistinct(List<? extends ExclusiveControlContext> contexts) {
+        final List<ExclusiveControlContext> sorted = new ArrayList<ExclusiveControlContext>(contexts);
+        if (sorted.size() < 2) {
+            return sorted;
+        }
+        Collections.sort(sorted, KEY_ORDER);
+        final List<ExclusiveControlContext> distinct = new ArrayList<ExclusiveControlContext>(sorted.size());
+        ExclusiveControlContext previous = null;
+        for (ExclusiveControlContext context : sorted) {
+            if (previous == null || KEY_ORDER.compare(previous, context) != 0) {
+                distinct.add(context);
+                previous = context;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * 排他制御コンテキストをスキーマ情報毎のチャンクにまとめて処理する。
+     * <p/>
+     * スキーマ情報を持たない排他制御コンテキストはテーブル名毎にまとめる。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @param add 追加する場合は{@code true}、削除する場合は{@code false}
+     */
+    private void processInChunks(Iterable<? extends ExclusiveControlContext> contexts, boolean add) {
+        final int chunkSize = bulkChunkSize;
+        final Map<Object, List<ExclusiveControlContext>> chunks = new LinkedHashMap<Object, List<ExclusiveControlContext>>();
+        for (ExclusiveControlContext context : contexts) {
+            final Object group = groupOf(context);
+            List<ExclusiveControlContext> chunk = chunks.get(group);
+            if (chunk == null) {
+                chunk = new ArrayList<ExclusiveControlContext>(Math.min(chunkSize, 1024));
+                chunks.put(group, chunk);
+            }
+            chunk.add(context);
+            if (chunk.size() >= chunkSize) {
+                chunks.remove(group);
+                processChunk(chunk, add);
+            }
+        }
+        for (List<ExclusiveControlContext> chunk : chunks.values()) {
+            processChunk(chunk, add);
+        }
+    }
+
+    /**
+     * 排他制御コンテキストをチャンクにまとめる単位を取得する。
+     * @param context 排他制御コンテキスト
+     * @return スキーマ情報。スキーマ情報を持たない場合はテーブル名
+     */
+    private static Object groupOf(ExclusiveControlContext context) {
+        final ExclusiveControlSchema schema = context.getSchema();
+        return schema != null ? schema : context.getTableName();
+    }
+
+    /**
+     * チャンクを追加又は削除する。
+     * @param chunk 排他制御コンテキスト
+     * @param add 追加する場合は{@code true}、削除する場合は{@code false}
+     */
+    private void processChunk(List<ExclusiveControlContext> chunk, boolean add) {
+        if (add) {
+            addVersionsChunk(chunk);
+        } else {
+            removeVersionsChunk(chunk);
+        }
+    }
+
+    /**
+     * {@link OptimisticLockException}からチェック結果を生成する。
+     * <p/>
+     * 現在のバージョン番号は{@link #getVersion(ExclusiveControlContext)}により取得する。
+     * スキーマ情報を保持していないバージョン番号の場合、現在のバージョン番号は{@code null}とする。
+     *
+     * @param e 楽観的ロックエラー
+     * @return チェック結果
+     */
+    protected VersionCheckResult toResult(OptimisticLockException e) {
+        final List<Version> errorVersions = e.getErrorVersions();
+        final List<Version> currentVersions = new ArrayList<Version>(errorVersions.size());
+        for (Version errorVersion : errorVersions) {
+            final ExclusiveControlContext context = ExclusiveControlContext.of(errorVersion);
+            currentVersions.add(context == null ? null : getVersion(context));
+        }
+        return VersionCheckResult.failure(errorVersions, currentVersions);
+    }
+
+    /**
+     * 拡張機能のデフォルト実装を{@link ExclusiveControlManager}に付与するクラス。
+     */
+    private static final class Adapter extends ExclusiveControlManagerSupport {
+
+        /** 委譲先の{@link ExclusiveControlManager} */
+        private final ExclusiveControlManager manager;
+
+        /**
+         * コンストラクタ。
+         * @param manager 委譲先の{@link ExclusiveControlManager}
+         */
+        Adapter(ExclusiveControlManager manager) {
+            this.manager = manager;
+        }
+
+        /** {@inheritDoc} */
+        public Version getVersion(ExclusiveControlContext context) {
+            return manager.getVersion(context);
+        }
+
+        /** {@inheritDoc} */
+        public void checkVersions(List<Version> versions) throws OptimisticLockException {
+            manager.checkVersions(versions);
+        }
+
+        /** {@inheritDoc} */
+        public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+            manager.updateVersionsWithCheck(versions);
+        }
+
+        /** {@inheritDoc} */
+        public void updateVersion(ExclusiveControlContext context) {
+            manager.updateVersion(context);
+        }
+
+        /** {@inheritDoc} */
+        public void addVersion(ExclusiveControlContext context) {
+            manager.addVersion(context);
+        }
+
+        /** {@inheritDoc} */
+        public void removeVersion(ExclusiveControlContext context) {
+            manager.removeVersion(context);
+        }
+    }
+}
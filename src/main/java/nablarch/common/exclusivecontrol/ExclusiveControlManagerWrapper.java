@@ -0,0 +1,147 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 他の{@link ExclusiveControlManager}に処理を委譲する{@link ExtendedExclusiveControlManager}の実装クラス。
+ * <p/>
+ * 全ての処理を委譲先にそのまま委譲する。
+ * 処理の前後に機能を付加する{@link ExclusiveControlManager}は、本クラスを継承して必要なメソッドをオーバーライドすること。
+ * <p/>
+ * 委譲先が{@link ExtendedExclusiveControlManager}を実装していない場合、
+ * 拡張機能は{@link ExclusiveControlManagerSupport}のデフォルト実装により委譲先の機能を組み合わせて実現する。
+ * トランザクションの終了通知は、委譲先が{@link ExclusiveControlTransactionListener}を実装している場合に、
+ * コミット後の通知は、委譲先が{@link ExclusiveControlCommitListener}を実装している場合に委譲する。
+ */
+@Published(tag = "architect")
+public class ExclusiveControlManagerWrapper
+        implements ExtendedExclusiveControlManager, ExclusiveControlTransactionListener, ExclusiveControlCommitListener {
+
+    /** 委譲先の{@link ExclusiveControlManager} */
+    private ExclusiveControlManager exclusiveControlManager;
+
+    /** 拡張機能を付与した委譲先の{@link ExclusiveControlManager} */
+    private ExtendedExclusiveControlManager delegate;
+
+    /**
+     * 委譲先の{@link ExclusiveControlManager}を設定する。
+     * @param exclusiveControlManager 委譲先の{@link ExclusiveControlManager}
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        this.exclusiveControlManager = exclusiveControlManager;
+        delegate = ExclusiveControlManagerSupport.extend(exclusiveControlManager);
+    }
+
+    /**
+     * 委譲先の{@link ExclusiveControlManager}を取得する。
+     * @return 委譲先の{@link ExclusiveControlManager}
+     * @throws IllegalStateException 委譲先が設定されていない場合
+     */
+    protected ExtendedExclusiveControlManager getDelegate() {
+        if (delegate == null) {
+            throw new IllegalStateException("exclusiveControlManager is not set. class = [" + getClass().getName() + ']');
+        }
+        return delegate;
+    }
+
+    /** {@inheritDoc} */
+    public Version getVersion(ExclusiveControlContext context) {
+        return getDelegate().getVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        getDelegate().checkVersions(versions);
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        getDelegate().updateVersionsWithCheck(versions);
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersion(ExclusiveControlContext context) {
+        getDelegate().updateVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public void addVersion(ExclusiveControlContext context) {
+        getDelegate().addVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public void removeVersion(ExclusiveControlContext context) {
+        getDelegate().removeVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public List<Version> getVersions(List<? extends ExclusiveControlContext> contexts) {
+        return getDelegate().getVersions(contexts);
+    }
+
+    /** {@inheritDoc} */
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        return getDelegate().tryCheckVersions(versions);
+    }
+
+    /** {@inheritDoc} */
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        return getDelegate().tryUpdateVersionsWithCheck(versions);
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        getDelegate().updateVersions(contexts);
+    }
+
+    /** {@inheritDoc} */
+    public void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        getDelegate().addVersions(contexts);
+    }
+
+    /** {@inheritDoc} */
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        getDelegate().removeVersions(contexts);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        return getDelegate().tryUpdateVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        return getDelegate().tryUpdateVersion(context, timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    public void transactionNormalEnd() {
+        if (exclusiveControlManager instanceof ExclusiveControlTransactionListener) {
+            ((ExclusiveControlTransactionListener) exclusiveControlManager).transactionNormalEnd();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void transactionAbnormalEnd() {
+        if (exclusiveControlManager instanceof ExclusiveControlTransactionListener) {
+            ((ExclusiveControlTransactionListener) exclusiveControlManager).transactionAbnormalEnd();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void transactionCommitted() {
+        if (exclusiveControlManager instanceof ExclusiveControlCommitListener) {
+            ((ExclusiveControlCommitListener) exclusiveControlManager).transactionCommitted();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void transactionRolledBack() {
+        if (exclusiveControlManager instanceof ExclusiveControlCommitListener) {
+            ((ExclusiveControlCommitListener) exclusiveControlManager).transactionRolledBack();
+        }
+    }
+}
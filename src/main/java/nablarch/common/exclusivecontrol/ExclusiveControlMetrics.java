@@ -0,0 +1,44 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link MetricsExclusiveControlManager}が計測した値を記録するインタフェース。
+ * <p/>
+ * 本インタフェースの実装は、全ての{@link ExclusiveControlManager}の呼び出しから同時に呼び出されるため、
+ * スレッドセーフかつ低負荷に実装すること。
+ *
+ * @see MetricsExclusiveControlManager
+ * @see InMemoryExclusiveControlMetrics
+ */
+@Published(tag = "architect")
+public interface ExclusiveControlMetrics {
+
+    /**
+     * 操作の所要時間を記録する。
+     * <p/>
+     * {@link ExclusiveControlOperation#UPDATE_VERSION}の記録件数は、悲観的ロックの取得回数となる。
+     *
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param operation 操作
+     * @param elapsedNanos 所要時間(ナノ秒)
+     */
+    void recordLatency(String tableName, ExclusiveControlOperation operation, long elapsedNanos);
+
+    /**
+     * 1回の操作で指定されたバージョン番号の件数を記録する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param operation 操作
+     * @param size バージョン番号の件数
+     */
+    void recordBatchSize(String tableName, ExclusiveControlOperation operation, int size);
+
+    /**
+     * 楽観的ロックのチェック結果を記録する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param operation 操作
+     * @param checked チェックしたバージョン番号の件数
+     * @param failed 楽観的ロックエラーとなったバージョン番号の件数
+     */
+    void recordVersionCheck(String tableName, ExclusiveControlOperation operation, int checked, int failed);
+}
@@ -0,0 +1,43 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link ExclusiveControlManager}の操作を表す列挙型。
+ */
+@Published(tag = "architect")
+public enum ExclusiveControlOperation {
+
+    /** バージョン番号の取得 */
+    GET_VERSION,
+
+    /** 複数の行データのバージョン番号の取得 */
+    GET_VERSIONS,
+
+    /** バージョン番号の更新チェック */
+    CHECK_VERSIONS,
+
+    /** バージョン番号の更新チェックと更新 */
+    UPDATE_VERSIONS_WITH_CHECK,
+
+    /** バージョン番号の更新(悲観的ロック) */
+    UPDATE_VERSION,
+
+    /** 複数の行データのバージョン番号の更新(悲観的ロック) */
+    UPDATE_VERSIONS,
+
+    /** バージョン番号の更新(悲観的ロック)でロックを取得できなかった場合 */
+    UPDATE_VERSION_TIMEOUT,
+
+    /** バージョン番号の追加 */
+    ADD_VERSION,
+
+    /** バージョン番号の削除 */
+    REMOVE_VERSION,
+
+    /** 複数の行データのバージョン番号の追加 */
+    ADD_VERSIONS,
+
+    /** 複数の行データのバージョン番号の削除 */
+    REMOVE_VERSIONS
+}
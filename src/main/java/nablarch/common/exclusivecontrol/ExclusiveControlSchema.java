@@ -0,0 +1,217 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 排他制御用テーブルのスキーマ情報を保持するクラス。
+ * <p/>
+ * テーブル名、バージョン番号カラム名、主キーのカラム名と、主キーのカラム名に対応する名前付き変数名を保持する。
+ * 本クラスのインスタンスは不変であり、同一のスキーマ情報に対しては同じインスタンスを返すようにキャッシュする。
+ * キャッシュのキーはテーブル名、バージョン番号カラム名、主キーのカラム名の並びとし、
+ * 列挙型を指定した場合も列挙型の全ての定数を並べたものとして扱う。
+ * <p/>
+ * キャッシュは上限を持たず、登録したスキーマ情報を破棄しない。
+ * スキーマ情報はアプリケーションで定義した排他制御用テーブル毎に固定であることを前提とするため、
+ * 実行時の入力からテーブル名やカラム名を組み立てて取得しないこと。
+ * <p/>
+ * {@link ExclusiveControlContext}のサブクラスでは、以下のように定数として保持したスキーマ情報を設定することで、
+ * コンストラクタ毎のスキーマ情報の設定と名前付き変数名への変換を省略できる。
+ * <pre>
+ * public class UserMstPk extends ExclusiveControlContext {
+ *
+ *     private enum PK { USER_ID }
+ *
+ *     private static final ExclusiveControlSchema SCHEMA =
+ *             ExclusiveControlSchema.get("USER_MST", "VERSION", PK.class);
+ *
+ *     public UserMstPk(String userId) {
+ *         setSchema(SCHEMA);
+ *         appendCondition(PK.USER_ID, userId);
+ *     }
+ * }
+ * </pre>
+ */
+@Published
+public final class ExclusiveControlSchema {
+
+    /** スキーマ情報のキャッシュ */
+    private static final ConcurrentMap<CacheKey, ExclusiveControlSchema> CACHE
+            = new ConcurrentHashMap<CacheKey, ExclusiveControlSchema>();
+
+    /** 排他制御用テーブルのテーブル名 */
+    private final String tableName;
+
+    /** バージョン番号カラム名 */
+    private final String versionColumnName;
+
+    /** 主キーのカラム名 */
+    private final Enum<?>[] primaryKeyColumnNames;
+
+    /** 主キーのカラム名に対応する名前付き変数名({@link #primaryKeyColumnNames}と同じ順序) */
+    private final String[] variableNames;
+
+    /** 名前付き変数名(昇順) */
+    private final String[] sortedVariableNames;
+
+    /**
+     * コンストラクタ。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param versionColumnName バージョン番号カラム名
+     * @param primaryKeyColumnNames 主キーのカラム名
+     */
+    private ExclusiveControlSchema(String tableName, String versionColumnName, Enum<?>[] primaryKeyColumnNames) {
+        this.tableName = tableName;
+        this.versionColumnName = versionColumnName;
+        this.primaryKeyColumnNames = primaryKeyColumnNames;
+        variableNames = new String[primaryKeyColumnNames.length];
+        for (int i = 0; i < primaryKeyColumnNames.length; i++) {
+            variableNames[i] = ExclusiveControlUtil.convertToVariableName(primaryKeyColumnNames[i]);
+        }
+        sortedVariableNames = variableNames.clone();
+        Arrays.sort(sortedVariableNames);
+    }
+
+    /**
+     * 列挙型の全ての定数を主キーのカラム名とするスキーマ情報を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param versionColumnName バージョン番号カラム名
+     * @param primaryKeyType 主キーのカラム名を定義した列挙型
+     * @param <E> 主キーのカラム名を定義した列挙型
+     * @return スキーマ情報
+     */
+    public static <E extends Enum<E>> ExclusiveControlSchema get(
+            String tableName, String versionColumnName, Class<E> primaryKeyType) {
+        return get(tableName, versionColumnName, primaryKeyType.getEnumConstants());
+    }
+
+    /**
+     * スキーマ情報を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param versionColumnName バージョン番号カラム名
+     * @param primaryKeyColumnNames 主キーのカラム名
+     * @return スキーマ情報
+     */
+    public static ExclusiveControlSchema get(
+            String tableName, String versionColumnName, Enum<?>... primaryKeyColumnNames) {
+        final CacheKey cacheKey = new CacheKey(tableName, versionColumnName, Arrays.asList(primaryKeyColumnNames));
+        final ExclusiveControlSchema schema = CACHE.get(cacheKey);
+        if (schema != null) {
+            return schema;
+        }
+        final ExclusiveControlSchema created = new ExclusiveControlSchema(
+                tableName, versionColumnName, primaryKeyColumnNames.clone());
+        final ExclusiveControlSchema registered = CACHE.putIfAbsent(
+                new CacheKey(tableName, versionColumnName, Arrays.asList(created.primaryKeyColumnNames)), created);
+        return registered == null ? created : registered;
+    }
+
+    /**
+     * 排他制御用テーブルのテーブル名を取得する。
+     * @return 排他制御用テーブルのテーブル名
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * バージョン番号カラム名を取得する。
+     * @return バージョン番号カラム名
+     */
+    public String getVersionColumnName() {
+        return versionColumnName;
+    }
+
+    /**
+     * 主キーのカラム名を取得する。
+     * <p/>
+     * 返却する配列はインスタンス間で共有しているため、変更しないこと。
+     *
+     * @return 主キーのカラム名
+     */
+    public Enum<?>[] getPrimaryKeyColumnNames() {
+        return primaryKeyColumnNames;
+    }
+
+    /**
+     * 主キーのカラム名に対応する名前付き変数名(先頭コロンを除く)を取得する。
+     * @param columnName 主キーのカラム名
+     * @return 名前付き変数名(先頭コロンを除く)
+     */
+    public String getVariableName(Enum<?> columnName) {
+        final int ordinal = columnName.ordinal();
+        if (ordinal < primaryKeyColumnNames.length && primaryKeyColumnNames[ordinal] == columnName) {
+            return variableNames[ordinal];
+        }
+        for (int i = 0; i < primaryKeyColumnNames.length; i++) {
+            if (primaryKeyColumnNames[i] == columnName) {
+                return variableNames[i];
+            }
+        }
+        return ExclusiveControlUtil.convertToVariableName(columnName);
+    }
+
+    /**
+     * 名前付き変数名を昇順に並べた配列を取得する。
+     * <p/>
+     * {@link VersionKey}で共有するため、変更しないこと。
+     *
+     * @return 名前付き変数名(昇順)
+     */
+    String[] getSortedVariableNames() {
+        return sortedVariableNames;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tableName = [%s], versionColumnName = [%s], primaryKeyColumnNames = %s",
+                tableName, versionColumnName, Arrays.toString(primaryKeyColumnNames));
+    }
+
+    /**
+     * キャッシュのキー。
+     */
+    private static final class CacheKey {
+
+        /** 排他制御用テーブルのテーブル名 */
+        private final String tableName;
+
+        /** バージョン番号カラム名 */
+        private final String versionColumnName;
+
+        /** 主キーのカラム名 */
+        private final List<Enum<?>> primaryKeyColumns;
+
+        /**
+         * コンストラクタ。
+         * @param tableName 排他制御用テーブルのテーブル名
+         * @param versionColumnName バージョン番号カラム名
+         * @param primaryKeyColumns 主キーのカラム名
+         */
+        CacheKey(String tableName, String versionColumnName, List<Enum<?>> primaryKeyColumns) {
+            this.tableName = tableName;
+            this.versionColumnName = versionColumnName;
+            this.primaryKeyColumns = primaryKeyColumns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) o;
+            return tableName.equals(other.tableName)
+                    && versionColumnName.equals(other.versionColumnName)
+                    && primaryKeyColumns.equals(other.primaryKeyColumns);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * tableName.hashCode() + versionColumnName.hashCode()) * 31 + primaryKeyColumns.hashCode();
+        }
+    }
+}
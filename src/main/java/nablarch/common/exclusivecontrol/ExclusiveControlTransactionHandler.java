@@ -0,0 +1,48 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+
+/**
+ * 後続ハンドラの処理結果を{@link ExclusiveControlTransactionListener}に通知するハンドラ。
+ * <p/>
+ * 後続ハンドラの処理が正常終了した場合は{@link ExclusiveControlTransactionListener#transactionNormalEnd()}を、
+ * 例外が送出された場合は{@link ExclusiveControlTransactionListener#transactionAbnormalEnd()}を呼び出す。
+ * <p/>
+ * 本ハンドラは、トランザクション制御を行うハンドラの直後に配置すること。
+ * 設定された{@link ExclusiveControlManager}が{@link ExclusiveControlTransactionListener}を
+ * 実装していない場合は何もしない。
+ */
+public class ExclusiveControlTransactionHandler implements Handler<Object, Object> {
+
+    /** 通知対象の{@link ExclusiveControlManager} */
+    private ExclusiveControlManager exclusiveControlManager;
+
+    /**
+     * 通知対象の{@link ExclusiveControlManager}を設定する。
+     * @param exclusiveControlManager 通知対象の{@link ExclusiveControlManager}
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        this.exclusiveControlManager = exclusiveControlManager;
+    }
+
+    /** {@inheritDoc} */
+    public Object handle(Object data, ExecutionContext context) {
+        if (!(exclusiveControlManager instanceof ExclusiveControlTransactionListener)) {
+            return context.handleNext(data);
+        }
+        final ExclusiveControlTransactionListener listener = (ExclusiveControlTransactionListener) exclusiveControlManager;
+        final Object result;
+        try {
+            result = context.handleNext(data);
+            listener.transactionNormalEnd();
+        } catch (RuntimeException e) {
+            listener.transactionAbnormalEnd();
+            throw e;
+        } catch (Error e) {
+            listener.transactionAbnormalEnd();
+            throw e;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,29 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * トランザクションの終了通知を受け取る{@link ExclusiveControlManager}が実装するインタフェース。
+ * <p/>
+ * 悲観的ロックの解放など、トランザクション単位で管理する状態を持つ{@link ExclusiveControlManager}が実装する。
+ * 通知は{@link ExclusiveControlTransactionHandler}により、トランザクションのコミット又はロールバックの前に行われる。
+ * コミットされた結果を前提とする処理は、{@link ExclusiveControlCommitListener}で行うこと。
+ *
+ * @see ExclusiveControlTransactionHandler
+ */
+@Published(tag = "architect")
+public interface ExclusiveControlTransactionListener {
+
+    /**
+     * トランザクションが正常終了する際に呼び出される。
+     * <p/>
+     * 本メソッドで例外が送出された場合、トランザクションは異常終了として扱われ、
+     * {@link #transactionAbnormalEnd()}が呼び出される。
+     */
+    void transactionNormalEnd();
+
+    /**
+     * トランザクションが異常終了する際に呼び出される。
+     */
+    void transactionAbnormalEnd();
+}
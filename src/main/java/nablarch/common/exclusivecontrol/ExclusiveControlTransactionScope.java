@@ -0,0 +1,33 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.concurrent.Callable;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link ExecutorAsyncExclusiveControlManager}のワーカースレッド上で、操作をトランザクションとして実行するインタフェース。
+ * <p/>
+ * 委譲先の{@link ExclusiveControlManager}がスレッドに紐付くデータベース接続を使用する場合に実装し、
+ * {@link ExecutorAsyncExclusiveControlManager#setTransactionScope(ExclusiveControlTransactionScope)}に設定する。
+ * 実装クラスは、以下の順に処理すること。
+ * <ol>
+ *     <li>データベース接続を取得し、ワーカースレッドに紐付ける。</li>
+ *     <li>トランザクションを開始し、操作を実行する。</li>
+ *     <li>操作が正常終了した場合はコミットし、例外が発生した場合はロールバックして例外を送出する。</li>
+ *     <li>データベース接続をワーカースレッドから解除し、解放する。</li>
+ * </ol>
+ *
+ * @see ExecutorAsyncExclusiveControlManager
+ */
+@Published(tag = "architect")
+public interface ExclusiveControlTransactionScope {
+
+    /**
+     * 操作をトランザクションとして実行する。
+     * @param operation 操作
+     * @param <T> 結果の型
+     * @return 操作の結果
+     * @throws Exception 操作又はトランザクションの制御で例外が発生した場合
+     */
+    <T> T execute(Callable<T> operation) throws Exception;
+}
@@ -1,6 +1,7 @@
 package nablarch.common.exclusivecontrol;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import nablarch.core.repository.SystemRepository;
 import nablarch.core.util.annotation.Published;
@@ -34,6 +35,14 @@ public final class ExclusiveControlUtil {
     private static ExclusiveControlManager getExclusiveControlManager() {
         return SystemRepository.get(EXCLUSIVE_CONTROL_MANAGER_NAME);
     }
+
+    /**
+     * ExclusiveControlManagerを{@link ExtendedExclusiveControlManager}として取得する。
+     * @return ExtendedExclusiveControlManager
+     */
+    private static ExtendedExclusiveControlManager getExtendedExclusiveControlManager() {
+        return ExclusiveControlManagerSupport.extend(getExclusiveControlManager());
+    }
     
     /**
      * バージョン番号を取得する。(楽観的ロック)
@@ -44,6 +53,20 @@ public final class ExclusiveControlUtil {
     public static Version getVersion(ExclusiveControlContext context) {
         return getExclusiveControlManager().getVersion(context);
     }
+
+    /**
+     * 複数の行データのバージョン番号を取得する。(楽観的ロック)
+     * <p/>
+     * 一覧画面のように複数の行データのバージョン番号を取得する場合に、行データ毎の取得をまとめるために使用する。
+     *
+     * @param contexts {@link ExclusiveControlContext}
+     * @return 指定された順序のバージョン番号。バージョン番号が存在しない行データは{@code null}
+     * @see ExtendedExclusiveControlManager#getVersions(List)
+     */
+    @Published(tag = "architect")
+    public static List<Version> getVersions(List<? extends ExclusiveControlContext> contexts) {
+        return getExtendedExclusiveControlManager().getVersions(contexts);
+    }
     
     /**
      * バージョン番号が更新されていないかチェックする。(楽観的ロック)
@@ -65,6 +88,35 @@ public final class ExclusiveControlUtil {
         getExclusiveControlManager().updateVersionsWithCheck(versions);
     }
     
+    /**
+     * バージョン番号が更新されていないかチェックし、結果を返す。(楽観的ロック)
+     * <p/>
+     * 楽観的ロックエラーが発生した場合も例外を送出しない。
+     *
+     * @param versions バージョン番号
+     * @return チェック結果
+     * @see ExtendedExclusiveControlManager#tryCheckVersions(List)
+     */
+    @Published(tag = "architect")
+    public static VersionCheckResult tryCheckVersions(List<Version> versions) {
+        return getExtendedExclusiveControlManager().tryCheckVersions(versions);
+    }
+
+    /**
+     * バージョン番号の更新チェックとバージョン番号の更新を行い、結果を返す。(楽観的ロック)
+     * <p/>
+     * 楽観的ロックエラーが発生した場合も例外を送出しない。
+     * この場合、バージョン番号は更新しない。
+     *
+     * @param versions バージョン番号
+     * @return チェック結果
+     * @see ExtendedExclusiveControlManager#tryUpdateVersionsWithCheck(List)
+     */
+    @Published(tag = "architect")
+    public static VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        return getExtendedExclusiveControlManager().tryUpdateVersionsWithCheck(versions);
+    }
+    
     /**
      * バージョン番号を更新する。(悲観的ロック)
      * @param context {@link ExclusiveControlContext}
@@ -74,6 +126,50 @@ public final class ExclusiveControlUtil {
         getExclusiveControlManager().updateVersion(context);
     }
     
+    /**
+     * ロックを待たずにバージョン番号の更新を試みる。(悲観的ロック)
+     * <p/>
+     * ロックの待ち時間を制御できない{@link ExclusiveControlManager}の場合は、ロックを取得するまで待機する。
+     *
+     * @param context {@link ExclusiveControlContext}
+     * @return ロックを取得してバージョン番号を更新した場合は{@code true}
+     * @see ExtendedExclusiveControlManager#tryUpdateVersion(ExclusiveControlContext)
+     */
+    @Published
+    public static boolean tryUpdateVersion(ExclusiveControlContext context) {
+        return getExtendedExclusiveControlManager().tryUpdateVersion(context);
+    }
+
+    /**
+     * 指定された時間までロックを待ち、バージョン番号の更新を試みる。(悲観的ロック)
+     * <p/>
+     * ロックの待ち時間を制御できない{@link ExclusiveControlManager}の場合は、
+     * データベースのロック待ちのタイムアウトまで待機する。
+     *
+     * @param context {@link ExclusiveControlContext}
+     * @param timeout ロックの最大待ち時間
+     * @param unit {@code timeout}の時間単位
+     * @return ロックを取得してバージョン番号を更新した場合は{@code true}
+     * @see ExtendedExclusiveControlManager#tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)
+     */
+    @Published
+    public static boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        return getExtendedExclusiveControlManager().tryUpdateVersion(context, timeout, unit);
+    }
+
+    /**
+     * 複数の行データのバージョン番号を更新する。(悲観的ロック)
+     * <p/>
+     * 排他制御コンテキストをテーブル名、主キーの順に並べ替え、重複を除いた上で順にロックを取得する。
+     *
+     * @param contexts {@link ExclusiveControlContext}
+     * @see ExtendedExclusiveControlManager#updateVersions(List)
+     */
+    @Published
+    public static void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        getExtendedExclusiveControlManager().updateVersions(contexts);
+    }
+    
     /**
      * バージョン番号を追加する。
      * @param context {@link ExclusiveControlContext}
@@ -91,6 +187,32 @@ public final class ExclusiveControlUtil {
     public static void removeVersion(ExclusiveControlContext context) {
         getExclusiveControlManager().removeVersion(context);
     }
+
+    /**
+     * 複数の行データのバージョン番号を追加する。
+     * <p/>
+     * 排他制御コンテキストはテーブル毎にまとめ、一定件数毎に追加する。
+     *
+     * @param contexts {@link ExclusiveControlContext}
+     * @see ExtendedExclusiveControlManager#addVersions(Iterable)
+     */
+    @Published
+    public static void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        getExtendedExclusiveControlManager().addVersions(contexts);
+    }
+
+    /**
+     * 複数の行データのバージョン番号を削除する。
+     * <p/>
+     * 排他制御コンテキストはテーブル毎にまとめ、一定件数毎に削除する。
+     *
+     * @param contexts {@link ExclusiveControlContext}
+     * @see ExtendedExclusiveControlManager#removeVersions(Iterable)
+     */
+    @Published
+    public static void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        getExtendedExclusiveControlManager().removeVersions(contexts);
+    }
     
     /**
      * カラム名を名前付き変数名(先頭コロンを除く)に変換する。
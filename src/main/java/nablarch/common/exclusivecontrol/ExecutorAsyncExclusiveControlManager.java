@@ -0,0 +1,351 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 同期的な{@link ExclusiveControlManager}をスレッドプールで実行する{@link AsyncExclusiveControlManager}の実装クラス。
+ * <p/>
+ * デフォルトでは、スレッド数とキューの長さに上限を持つスレッドプールを最初の呼び出し時に生成する。
+ * キューが溢れた場合は{@link java.util.concurrent.RejectedExecutionException}を送出し、呼び出し元に過負荷を伝える。
+ * 生成したスレッドプールは、{@link #shutdown()}により停止すること。
+ * <p/>
+ * 各操作は、ワーカースレッド上で1つのトランザクションとして実行する。
+ * 委譲先が{@link ExclusiveControlTransactionListener}を実装している場合は、操作の終了時に
+ * トランザクションの正常終了又は異常終了を通知し、スレッドに保持された状態(悲観的ロック等)を解放する。
+ * 委譲先がスレッドに紐付くデータベース接続を使用する場合は、ワーカースレッドに接続が紐付いていないため、
+ * {@link #setTransactionScope(ExclusiveControlTransactionScope)}にワーカースレッド上で接続とトランザクションを
+ * 準備する{@link ExclusiveControlTransactionScope}を設定すること。
+ * <p/>
+ * 仮想スレッドを使用できる環境では、{@link #setExecutor(ExecutorService)}に仮想スレッドを生成する
+ * {@link ExecutorService}を設定できる。この場合、スレッド数に上限がなくなるため、委譲先が使用する
+ * データベース接続数等の資源の上限は委譲先で制御すること。
+ * また、仮想スレッドを固定するため、委譲先のデータベースアクセス中に{@code synchronized}ブロックで待機しないこと。
+ */
+@Published(tag = "architect")
+public class ExecutorAsyncExclusiveControlManager implements AsyncExclusiveControlManager {
+
+    /** スレッド名の連番 */
+    private static final AtomicInteger THREAD_SEQUENCE = new AtomicInteger();
+
+    /** 委譲先の{@link ExclusiveControlManager} */
+    private ExclusiveControlManager exclusiveControlManager;
+
+    /** スレッド数 */
+    private int poolSize = 4;
+
+    /** キューの長さ */
+    private int queueCapacity = 1024;
+
+    /** 操作を実行する{@link ExecutorService} */
+    private volatile ExecutorService executor;
+
+    /** {@link ExecutorService}をこのクラスが生成したか否か */
+    private boolean ownsExecutor;
+
+    /** 操作をトランザクションとして実行する{@link ExclusiveControlTransactionScope}(未設定の場合は操作をそのまま実行する) */
+    private ExclusiveControlTransactionScope transactionScope;
+
+    /**
+     * 委譲先の{@link ExclusiveControlManager}を設定する。
+     * @param exclusiveControlManager 委譲先の{@link ExclusiveControlManager}
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        this.exclusiveControlManager = exclusiveControlManager;
+    }
+
+    /**
+     * スレッドプールのスレッド数を設定する。
+     * <p/>
+     * デフォルトは4。{@link #setExecutor(ExecutorService)}を設定した場合は使用しない。
+     *
+     * @param poolSize スレッド数
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive. poolSize = [" + poolSize + ']');
+        }
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * スレッドプールのキューの長さを設定する。
+     * <p/>
+     * デフォルトは1024。{@link #setExecutor(ExecutorService)}を設定した場合は使用しない。
+     *
+     * @param queueCapacity キューの長さ
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive. queueCapacity = [" + queueCapacity + ']');
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * ワーカースレッド上で操作をトランザクションとして実行する{@link ExclusiveControlTransactionScope}を設定する。
+     * <p/>
+     * 委譲先がスレッドに紐付くデータベース接続を使用する場合は必ず設定すること。
+     * 設定しない場合は、操作をそのまま実行する。
+     *
+     * @param transactionScope 操作をトランザクションとして実行する{@link ExclusiveControlTransactionScope}
+     */
+    public void setTransactionScope(ExclusiveControlTransactionScope transactionScope) {
+        this.transactionScope = transactionScope;
+    }
+
+    /**
+     * 操作を実行する{@link ExecutorService}を設定する。
+     * <p/>
+     * このクラスが生成したスレッドプールが存在する場合は、停止してから置き換える。
+     * 設定した{@link ExecutorService}は{@link #shutdown()}では停止しないため、設定した側で停止すること。
+     *
+     * @param executor 操作を実行する{@link ExecutorService}
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        shutdown();
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    /**
+     * このクラスが生成したスレッドプールを停止する。
+     * <p/>
+     * 受け付け済みの操作は実行する。
+     */
+    public synchronized void shutdown() {
+        if (ownsExecutor && executor != null) {
+            executor.shutdown();
+            executor = null;
+            ownsExecutor = false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Future<Version> getVersion(final ExclusiveControlContext context,
+                                      ExclusiveControlCallback<? super Version> callback) {
+        return submit(new Callable<Version>() {
+            public Version call() {
+                return exclusiveControlManager.getVersion(context);
+            }
+        }, callback);
+    }
+
+    /** {@inheritDoc} */
+    public Future<Void> checkVersions(final List<Version> versions, ExclusiveControlCallback<? super Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                exclusiveControlManager.checkVersions(versions);
+                return null;
+            }
+        }, callback);
+    }
+
+    /** {@inheritDoc} */
+    public Future<Void> updateVersionsWithCheck(final List<Version> versions,
+                                                ExclusiveControlCallback<? super Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                exclusiveControlManager.updateVersionsWithCheck(versions);
+                return null;
+            }
+        }, callback);
+    }
+
+    /** {@inheritDoc} */
+    public Future<Void> updateVersion(final ExclusiveControlContext context,
+                                      ExclusiveControlCallback<? super Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                exclusiveControlManager.updateVersion(context);
+                return null;
+            }
+        }, callback);
+    }
+
+    /** {@inheritDoc} */
+    public Future<Void> addVersion(final ExclusiveControlContext context,
+                                   ExclusiveControlCallback<? super Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                exclusiveControlManager.addVersion(context);
+                return null;
+            }
+        }, callback);
+    }
+
+    /** {@inheritDoc} */
+    public Future<Void> removeVersion(final ExclusiveControlContext context,
+                                      ExclusiveControlCallback<? super Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                exclusiveControlManager.removeVersion(context);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * ワーカースレッド上で操作を1つのトランザクションとして実行する。
+     * <p/>
+     * {@link ExclusiveControlTransactionScope}が設定されている場合は、そのトランザクションの中で操作を実行する。
+     * 委譲先が{@link ExclusiveControlTransactionListener}を実装している場合は、
+     * トランザクションの終了前に、操作の結果に応じて正常終了又は異常終了を通知する。
+     * 委譲先が{@link ExclusiveControlCommitListener}を実装している場合は、トランザクションの終了後に
+     * コミット又はロールバックの通知を行う。
+     *
+     * @param operation 操作
+     * @param <T> 結果の型
+     * @return 結果
+     * @throws Exception 操作で例外が発生した場合
+     */
+    protected <T> T invoke(final Callable<T> operation) throws Exception {
+        final ExclusiveControlTransactionListener listener = exclusiveControlManager instanceof ExclusiveControlTransactionListener
+                ? (ExclusiveControlTransactionListener) exclusiveControlManager : null;
+        final ExclusiveControlCommitListener commitListener = exclusiveControlManager instanceof ExclusiveControlCommitListener
+                ? (ExclusiveControlCommitListener) exclusiveControlManager : null;
+        final Callable<T> transaction = new Callable<T>() {
+            public T call() throws Exception {
+                final T result;
+                try {
+                    result = operation.call();
+                } catch (Exception e) {
+                    if (listener != null) {
+                        listener.transactionAbnormalEnd();
+                    }
+                    throw e;
+                } catch (Error e) {
+                    if (listener != null) {
+                        listener.transactionAbnormalEnd();
+                    }
+                    throw e;
+                }
+                if (listener != null) {
+                    listener.transactionNormalEnd();
+                }
+                return result;
+            }
+        };
+        final T result;
+        try {
+            result = transactionScope == null ? transaction.call() : transactionScope.execute(transaction);
+        } catch (Exception e) {
+            if (commitListener != null) {
+                commitListener.transactionRolledBack();
+            }
+            throw e;
+        } catch (Error e) {
+            if (commitListener != null) {
+                commitListener.transactionRolledBack();
+            }
+            throw e;
+        }
+        if (commitListener != null) {
+            commitListener.transactionCommitted();
+        }
+        return result;
+    }
+
+    /**
+     * 操作を{@link ExecutorService}に投入する。
+     * @param operation 操作
+     * @param callback 結果を受け取るコールバック
+     * @param <T> 結果の型
+     * @return 結果を表す{@link Future}
+     */
+    private <T> Future<T> submit(final Callable<T> operation, ExclusiveControlCallback<? super T> callback) {
+        if (exclusiveControlManager == null) {
+            throw new IllegalStateException("exclusiveControlManager is not set.");
+        }
+        final Task<T> task = new Task<T>(new Callable<T>() {
+            public T call() throws Exception {
+                return invoke(operation);
+            }
+        }, callback);
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * 操作を実行する{@link ExecutorService}を取得する。
+     * <p/>
+     * 設定されていない場合は、スレッド数とキューの長さに上限を持つスレッドプールを生成する。
+     *
+     * @return 操作を実行する{@link ExecutorService}
+     */
+    private ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (executor == null) {
+                executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "exclusive-control-async-" + THREAD_SEQUENCE.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                ownsExecutor = true;
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * 完了時にコールバックを呼び出す{@link FutureTask}。
+     * @param <T> 結果の型
+     */
+    private static final class Task<T> extends FutureTask<T> {
+
+        /** 結果を受け取るコールバック */
+        private final ExclusiveControlCallback<? super T> callback;
+
+        /**
+         * コンストラクタ。
+         * @param operation 操作
+         * @param callback 結果を受け取るコールバック
+         */
+        Task(Callable<T> operation, ExclusiveControlCallback<? super T> callback) {
+            super(operation);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null) {
+                return;
+            }
+            final T result;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                callback.onFailure(e);
+                return;
+            } catch (ExecutionException e) {
+                callback.onFailure(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                // 完了後のget()は待機しないため発生しない。
+                Thread.currentThread().interrupt();
+                callback.onFailure(e);
+                return;
+            }
+            callback.onSuccess(result);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link ExclusiveControlManager}の機能を拡張するインタフェース。
+ * <p/>
+ * 本インタフェースを実装する場合は、拡張機能のデフォルト実装を提供する
+ * {@link ExclusiveControlManagerSupport}を継承すること。
+ * 本インタフェースを実装していない{@link ExclusiveControlManager}は、
+ * {@link ExclusiveControlManagerSupport#extend(ExclusiveControlManager)}により拡張機能を使用できる。
+ *
+ * @see ExclusiveControlManagerSupport
+ */
+@Published(tag = "architect")
+public interface ExtendedExclusiveControlManager extends ExclusiveControlManager {
+
+    /**
+     * 複数の行データのバージョン番号を取得する。(楽観的ロック)
+     * <p/>
+     * 排他制御コンテキストをテーブル(スキーマ情報)毎にまとめ、一定件数毎のチャンクとして取得する。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @return 排他制御コンテキストと同じ順序のバージョン番号。バージョン番号が存在しない行データは{@code null}
+     */
+    List<Version> getVersions(List<? extends ExclusiveControlContext> contexts);
+
+    /**
+     * バージョン番号が更新されていないかチェックし、結果を返す。(楽観的ロック)
+     * <p/>
+     * 楽観的ロックエラーが発生した場合も例外を送出しない。
+     *
+     * @param versions バージョン番号
+     * @return チェック結果
+     */
+    VersionCheckResult tryCheckVersions(List<Version> versions);
+
+    /**
+     * バージョン番号の更新チェックとバージョン番号の更新を行い、結果を返す。(楽観的ロック)
+     * <p/>
+     * 楽観的ロックエラーが発生した場合も例外を送出しない。
+     * この場合、バージョン番号は更新しない。
+     *
+     * @param versions バージョン番号
+     * @return チェック結果
+     */
+    VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions);
+
+    /**
+     * 複数の行データのバージョン番号を更新する。(悲観的ロック)
+     * <p/>
+     * 排他制御コンテキストを{@link VersionKey}の順序(テーブル名、主キーの順)に並べ替え、
+     * 重複(同じ行データの同じバージョン番号のグループ)を除いた上で順にロックを取得する。
+     * 全ての呼び出し元が同じ順序でロックを取得するため、ロックの取得順序に起因するデッドロックが発生しない。
+     *
+     * @param contexts 排他制御コンテキスト
+     */
+    void updateVersions(List<? extends ExclusiveControlContext> contexts);
+
+    /**
+     * 複数の行データのバージョン番号を追加する。
+     * <p/>
+     * 排他制御コンテキストをテーブル毎にまとめ、一定件数毎のチャンクとして追加する。
+     * 排他制御コンテキストは順に1度だけ走査するため、全件をメモリに保持せずに逐次生成する{@link Iterable}を指定できる。
+     * テーブルが異なる排他制御コンテキストの追加順序は保証しない。
+     *
+     * @param contexts 排他制御コンテキスト
+     * @throws IllegalStateException バージョン番号が既に存在する場合
+     */
+    void addVersions(Iterable<? extends ExclusiveControlContext> contexts);
+
+    /**
+     * 複数の行データのバージョン番号を削除する。
+     * <p/>
+     * 排他制御コンテキストをテーブル毎にまとめ、一定件数毎のチャンクとして削除する。
+     * 排他制御コンテキストは順に1度だけ走査するため、全件をメモリに保持せずに逐次生成する{@link Iterable}を指定できる。
+     * テーブルが異なる排他制御コンテキストの削除順序は保証しない。
+     *
+     * @param contexts 排他制御コンテキスト
+     */
+    void removeVersions(Iterable<? extends ExclusiveControlContext> contexts);
+
+    /**
+     * ロックを待たずにバージョン番号の更新を試みる。(悲観的ロック)
+     * <p/>
+     * 他のトランザクションがロックを保持している場合は、バージョン番号を更新せずに{@code false}を返す。
+     * ロックの待ち時間を制御できない実装では、ロックを取得するまで待機する。
+     *
+     * @param context 排他制御コンテキスト
+     * @return ロックを取得してバージョン番号を更新した場合は{@code true}
+     * @see ExclusiveControlManagerSupport#tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)
+     */
+    boolean tryUpdateVersion(ExclusiveControlContext context);
+
+    /**
+     * 指定された時間までロックを待ち、バージョン番号の更新を試みる。(悲観的ロック)
+     * <p/>
+     * 指定された時間内にロックを取得できなかった場合は、バージョン番号を更新せずに{@code false}を返す。
+     * ロックの待機中にスレッドが割り込まれた場合は、スレッドの割り込み状態を再設定して{@code false}を返す。
+     * ロックの待ち時間を制御できない実装では、ロックを取得するまで(データベースのロック待ちのタイムアウトまで)待機する。
+     *
+     * @param context 排他制御コンテキスト
+     * @param timeout ロックの最大待ち時間
+     * @param unit {@code timeout}の時間単位
+     * @return ロックを取得してバージョン番号を更新した場合は{@code true}
+     * @see ExclusiveControlManagerSupport#tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)
+     */
+    boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit);
+}
@@ -0,0 +1,310 @@
+package nablarch.common.exclusivecontrol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * ファイルにリースを保持する{@link LeaseStore}の実装クラス。
+ * <p/>
+ * 行データ毎に、キーのハッシュ値をファイル名とするファイルを{@link #setDirectory(String)}で指定したディレクトリに作成する。
+ * 各操作はファイルロックを取得して行うため、同じディレクトリを共有する複数のプロセス間でリースを共有できる。
+ * 解放したリースのファイルもフェンシングトークンを保持するために削除しない。
+ * <p/>
+ * ファイルロックはプロセス単位のロックであるため、プロセス内のスレッド間の排他はこのオブジェクトのモニタにより行う。
+ * ネットワークファイルシステムはファイルロックを正しく扱えない場合があるため、ローカルのファイルシステムを使用すること。
+ */
+public class FileLeaseStore implements LeaseStore {
+
+    /** ファイルの文字コード */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** ファイルの拡張子 */
+    private static final String SUFFIX = ".lease";
+
+    /** 保有者のプロパティ名 */
+    private static final String OWNER = "owner";
+
+    /** フェンシングトークンのプロパティ名 */
+    private static final String TOKEN = "fencingToken";
+
+    /** 有効期限のプロパティ名 */
+    private static final String EXPIRES_AT = "expiresAtMillis";
+
+    /** リースを保持するディレクトリ */
+    private File directory;
+
+    /**
+     * リースを保持するディレクトリを設定する。
+     * <p/>
+     * ディレクトリが存在しない場合は作成する。
+     *
+     * @param directory ディレクトリのパス
+     */
+    public void setDirectory(String directory) {
+        final File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalArgumentException("could not create lease directory. directory = [" + directory + ']');
+        }
+        this.directory = dir;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Lease tryAcquire(VersionKey key, String owner, long nowMillis, long durationMillis) {
+        final LeaseFile file = open(key);
+        try {
+            final Entry current = file.read();
+            final Lease held = current.lease;
+            final Lease acquired;
+            if (held != null && !held.isExpired(nowMillis)) {
+                if (!held.getOwner().equals(owner)) {
+                    return null;
+                }
+                acquired = held.withExpiresAt(nowMillis + durationMillis);
+            } else {
+                acquired = new Lease(key, owner, current.fencingToken + 1, nowMillis + durationMillis);
+            }
+            file.write(acquired.getFencingToken(), acquired);
+            return acquired;
+        } finally {
+            file.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Lease renew(Lease lease, long nowMillis, long durationMillis) {
+        final LeaseFile file = open(lease.getKey());
+        try {
+            final Entry current = file.read();
+            if (current.lease == null || current.lease.getFencingToken() != lease.getFencingToken()
+                    || current.lease.isExpired(nowMillis)) {
+                return null;
+            }
+            final Lease renewed = current.lease.withExpiresAt(nowMillis + durationMillis);
+            file.write(current.fencingToken, renewed);
+            return renewed;
+        } finally {
+            file.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean release(Lease lease) {
+        final LeaseFile file = open(lease.getKey());
+        try {
+            final Entry current = file.read();
+            if (current.lease == null || current.lease.getFencingToken() != lease.getFencingToken()) {
+                return false;
+            }
+            file.write(current.fencingToken, null);
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Lease get(VersionKey key) {
+        final LeaseFile file = open(key);
+        try {
+            return file.read().lease;
+        } finally {
+            file.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getFencingToken(VersionKey key) {
+        final LeaseFile file = open(key);
+        try {
+            return file.read().fencingToken;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 行データのファイルを開き、ファイルロックを取得する。
+     * @param key 行データのキー
+     * @return ファイル
+     */
+    private LeaseFile open(VersionKey key) {
+        if (directory == null) {
+            throw new IllegalStateException("directory is not set.");
+        }
+        final File file = new File(directory, toFileName(key));
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            final FileLock lock = raf.getChannel().lock();
+            return new LeaseFile(key, raf, lock);
+        } catch (IOException e) {
+            closeQuietly(raf);
+            throw new IllegalStateException("could not lock lease file. file = [" + file + ']', e);
+        }
+    }
+
+    /**
+     * 行データのキーからファイル名を生成する。
+     * @param key 行データのキー
+     * @return ファイル名
+     */
+    private static String toFileName(VersionKey key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = digest.digest(key.toString().getBytes(UTF_8));
+        final StringBuilder sb = new StringBuilder(hash.length * 2 + SUFFIX.length());
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.append(SUFFIX).toString();
+    }
+
+    /**
+     * ファイルを閉じる。例外は無視する。
+     * @param raf ファイル
+     */
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+            // 読み書きは完了しているため無視する。
+        }
+    }
+
+    /**
+     * 行データの状態。
+     */
+    private static final class Entry {
+
+        /** 最後に取得されたリースのフェンシングトークン */
+        private final long fencingToken;
+
+        /** 現在のリース(解放された場合は{@code null}) */
+        private final Lease lease;
+
+        /**
+         * コンストラクタ。
+         * @param fencingToken フェンシングトークン
+         * @param lease 現在のリース
+         */
+        Entry(long fencingToken, Lease lease) {
+            this.fencingToken = fencingToken;
+            this.lease = lease;
+        }
+    }
+
+    /**
+     * ファイルロックを取得した行データのファイル。
+     */
+    private static final class LeaseFile {
+
+        /** 行データのキー */
+        private final VersionKey key;
+
+        /** ファイル */
+        private final RandomAccessFile raf;
+
+        /** ファイルロック */
+        private final FileLock lock;
+
+        /**
+         * コンストラクタ。
+         * @param key 行データのキー
+         * @param raf ファイル
+         * @param lock ファイルロック
+         */
+        LeaseFile(VersionKey key, RandomAccessFile raf, FileLock lock) {
+            this.key = key;
+            this.raf = raf;
+            this.lock = lock;
+        }
+
+        /**
+         * 行データの状態を読み込む。
+         * @return 行データの状態。ファイルが空の場合はリースが取得されたことがない状態
+         */
+        Entry read() {
+            try {
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                channel.position(0);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // 全て読み込むまで繰り返す。
+                }
+                if (buffer.position() == 0) {
+                    return new Entry(0, null);
+                }
+                final Properties props = new Properties();
+                props.load(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+                final long token = Long.parseLong(props.getProperty(TOKEN));
+                final String owner = props.getProperty(OWNER);
+                if (owner == null) {
+                    return new Entry(token, null);
+                }
+                return new Entry(token, new Lease(key, owner, token, Long.parseLong(props.getProperty(EXPIRES_AT))));
+            } catch (IOException e) {
+                throw new IllegalStateException("could not read lease file. key = [" + key + ']', e);
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("lease file is broken. key = [" + key + ']', e);
+            }
+        }
+
+        /**
+         * 行データの状態を書き込む。
+         * @param fencingToken フェンシングトークン
+         * @param lease 現在のリース。解放された場合は{@code null}
+         */
+        void write(long fencingToken, Lease lease) {
+            final Properties props = new Properties();
+            props.setProperty(TOKEN, String.valueOf(fencingToken));
+            if (lease != null) {
+                props.setProperty(OWNER, lease.getOwner());
+                props.setProperty(EXPIRES_AT, String.valueOf(lease.getExpiresAtMillis()));
+            }
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                props.store(out, null);
+                final FileChannel channel = raf.getChannel();
+                channel.truncate(0);
+                channel.position(0);
+                final ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("could not write lease file. key = [" + key + ']', e);
+            }
+        }
+
+        /**
+         * ファイルロックを解放し、ファイルを閉じる。
+         */
+        void close() {
+            try {
+                lock.release();
+            } catch (IOException ignored) {
+                // ファイルを閉じることでロックも解放されるため無視する。
+            }
+            closeQuietly(raf);
+        }
+    }
+}
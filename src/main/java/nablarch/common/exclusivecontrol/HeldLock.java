@@ -0,0 +1,97 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 保持されている悲観的ロックの情報を保持するクラス。
+ *
+ * @see LockHoldTrackingExclusiveControlManager
+ */
+@Published(tag = "architect")
+public final class HeldLock {
+
+    /** 行データのキー */
+    private final VersionKey key;
+
+    /** ロックを取得したスレッドの名前 */
+    private final String threadName;
+
+    /** ロックを取得したスレッドの識別子 */
+    private final long threadId;
+
+    /** ロックを取得した時刻(エポックミリ秒) */
+    private final long acquiredAtMillis;
+
+    /** 保持時間(ナノ秒) */
+    private final long heldNanos;
+
+    /**
+     * コンストラクタ。
+     * @param key 行データのキー
+     * @param threadName ロックを取得したスレッドの名前
+     * @param threadId ロックを取得したスレッドの識別子
+     * @param acquiredAtMillis ロックを取得した時刻(エポックミリ秒)
+     * @param heldNanos 保持時間(ナノ秒)
+     */
+    HeldLock(VersionKey key, String threadName, long threadId, long acquiredAtMillis, long heldNanos) {
+        this.key = key;
+        this.threadName = threadName;
+        this.threadId = threadId;
+        this.acquiredAtMillis = acquiredAtMillis;
+        this.heldNanos = heldNanos;
+    }
+
+    /**
+     * 行データのキーを取得する。
+     * @return 行データのキー
+     */
+    public VersionKey getKey() {
+        return key;
+    }
+
+    /**
+     * 排他制御用テーブルのテーブル名を取得する。
+     * @return テーブル名
+     */
+    public String getTableName() {
+        return key.getTableName();
+    }
+
+    /**
+     * ロックを取得したスレッドの名前を取得する。
+     * @return スレッドの名前
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * ロックを取得したスレッドの識別子を取得する。
+     * @return スレッドの識別子
+     */
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * ロックを取得した時刻(エポックミリ秒)を取得する。
+     * @return ロックを取得した時刻
+     */
+    public long getAcquiredAtMillis() {
+        return acquiredAtMillis;
+    }
+
+    /**
+     * 情報を取得した時点までの保持時間(ナノ秒)を取得する。
+     * @return 保持時間(ナノ秒)
+     */
+    public long getHeldNanos() {
+        return heldNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, thread = [%s(%d)], acquiredAtMillis = [%d], heldNanos = [%d]",
+                key, threadName, threadId, acquiredAtMillis, heldNanos);
+    }
+}
@@ -0,0 +1,92 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 競合の多い行データの集計結果を保持するクラス。
+ *
+ * @see ContentionDetector
+ */
+@Published(tag = "architect")
+public final class HotKey {
+
+    /** 行データのキー */
+    private final VersionKey key;
+
+    /** 競合回数の推定値 */
+    private final long estimatedCount;
+
+    /** 楽観的ロックエラーの回数 */
+    private final long optimisticFailures;
+
+    /** 悲観的ロックの待ち合わせ回数 */
+    private final long pessimisticWaits;
+
+    /** 悲観的ロックの待ち時間の合計(ナノ秒) */
+    private final long totalWaitNanos;
+
+    /**
+     * コンストラクタ。
+     * @param key 行データのキー
+     * @param estimatedCount 競合回数の推定値
+     * @param optimisticFailures 楽観的ロックエラーの回数
+     * @param pessimisticWaits 悲観的ロックの待ち合わせ回数
+     * @param totalWaitNanos 悲観的ロックの待ち時間の合計(ナノ秒)
+     */
+    HotKey(VersionKey key, long estimatedCount, long optimisticFailures, long pessimisticWaits, long totalWaitNanos) {
+        this.key = key;
+        this.estimatedCount = estimatedCount;
+        this.optimisticFailures = optimisticFailures;
+        this.pessimisticWaits = pessimisticWaits;
+        this.totalWaitNanos = totalWaitNanos;
+    }
+
+    /**
+     * 行データのキーを取得する。
+     * @return 行データのキー
+     */
+    public VersionKey getKey() {
+        return key;
+    }
+
+    /**
+     * 競合回数の推定値を取得する。
+     * <p/>
+     * 集計対象となる前の競合を含む推定値であり、実際の回数より大きくなることがある。
+     *
+     * @return 競合回数の推定値
+     */
+    public long getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    /**
+     * 集計対象となってからの楽観的ロックエラーの回数を取得する。
+     * @return 楽観的ロックエラーの回数
+     */
+    public long getOptimisticFailures() {
+        return optimisticFailures;
+    }
+
+    /**
+     * 集計対象となってからの悲観的ロックの待ち合わせ回数を取得する。
+     * @return 悲観的ロックの待ち合わせ回数
+     */
+    public long getPessimisticWaits() {
+        return pessimisticWaits;
+    }
+
+    /**
+     * 集計対象となってからの悲観的ロックの待ち時間の合計(ナノ秒)を取得する。
+     * @return 待ち時間の合計(ナノ秒)
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, estimatedCount = [%d], optimisticFailures = [%d], pessimisticWaits = [%d], totalWaitNanos = [%d]",
+                key, estimatedCount, optimisticFailures, pessimisticWaits, totalWaitNanos);
+    }
+}
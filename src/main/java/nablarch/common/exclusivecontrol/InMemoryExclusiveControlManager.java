@@ -0,0 +1,927 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * メモリ上でバージョン番号を管理する{@link ExclusiveControlManager}の実装クラス。
+ * <p/>
+ * バージョン番号を{@link ConcurrentMap}で保持し、データベースにアクセスせずに排他制御を行う。
+ * 単一プロセスで完結するバッチ処理やテスト環境での使用を想定している。
+ * <p/>
+ * 悲観的ロックは、排他制御対象の行データをストライプ単位に分割したロックにより実現する。
+ * 異なる行データでも同一のストライプに割り当てられた場合は互いに待ち合わせる。
+ * 取得したロックは、{@link ExclusiveControlTransactionHandler}によりトランザクションの終了が通知されるまで、
+ * ロックを取得したスレッドが保持する。
+ * <p/>
+ * バージョン番号は数値として保持し、更新はロックを保持した状態で比較と置換(CAS)により行うため、
+ * {@link #updateVersionsWithCheck(List)}によるチェックと更新はアトミックに行われる。
+ * {@link #checkVersions(List)}、{@link #updateVersionsWithCheck(List)}は、
+ * {@link #tryCheckVersions(List)}、{@link #tryUpdateVersionsWithCheck(List)}のチェック結果から例外を生成する。
+ * <p/>
+ * なお、トランザクションが異常終了した場合もバージョン番号の更新は取り消さない。
+ * バージョン番号は単調に増加するため、取り消されなかった更新は楽観的ロックエラーを発生させる方向にのみ作用する。
+ * 一方、バージョン番号の追加と削除は、取り消さないと行データの有無がデータベースと食い違うため、
+ * トランザクションが異常終了した場合に、実行した順と逆の順に取り消す。
+ * <p/>
+ * {@link #setEscalationThreshold(int)}を設定した場合は、ロックのエスカレーションを行う。
+ * 1回の呼び出しで同じテーブルの行データを閾値より多く更新する場合は、行データ毎のロックと更新に代えて、
+ * テーブルのロックを排他的に取得し、テーブルのバージョン番号を1回だけ更新する。
+ * 行データのバージョン番号は、行データ毎の値とテーブルのバージョン番号の和として公開するため、
+ * テーブルのバージョン番号の更新により、テーブルの全ての行データのバージョン番号が更新されたものとして扱われる。
+ * このため、対象外の行データに対する楽観的ロックもエラーとなり、並行性と引き換えに行データ毎の処理を削減する。
+ * エスカレーションを有効にした場合、行データ単位の悲観的ロックはテーブルのロックを共有モードで取得する。
+ * 現在のスレッドがテーブルのロックを共有モードで保持している場合は、ロックの昇格によるデッドロックを避けるため、
+ * エスカレーションを行わない。
+ * <p/>
+ * {@link #setVersionGroups(List)}を設定した場合は、行データ全体のバージョン番号に加えて、
+ * グループ毎のバージョン番号を管理する。グループの扱いは{@link VersionGroup}を参照。
+ */
+public class InMemoryExclusiveControlManager extends ExclusiveControlManagerSupport
+        implements ExclusiveControlTransactionListener {
+
+    /** バージョン番号の初期値 */
+    private static final long INITIAL_VERSION = 1L;
+
+    /** ストライプ数のデフォルト値 */
+    private static final int DEFAULT_STRIPE_COUNT = 64;
+
+    /** バージョン番号を保持するマップ */
+    private final ConcurrentMap<VersionKey, AtomicLong> versions = new ConcurrentHashMap<VersionKey, AtomicLong>();
+
+    /** グループ毎のバージョン番号(初回の更新時に生成する) */
+    private final ConcurrentMap<GroupKey, AtomicLong> groupVersions = new ConcurrentHashMap<GroupKey, AtomicLong>();
+
+    /** テーブル毎の、グループ名とそのグループの更新時に更新するグループ名(自身を含む) */
+    private volatile Map<String, Map<String, String[]>> overlappingGroups = Collections.emptyMap();
+
+    /** テーブル毎のバージョン番号とロック */
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+    /** 悲観的ロックに使用するストライプ */
+    private ReentrantLock[] stripes = createStripes(DEFAULT_STRIPE_COUNT);
+
+    /** 現在のスレッドが保持しているロック */
+    private final ThreadLocal<List<Lock>> heldLocks = new ThreadLocal<List<Lock>>() {
+        @Override
+        protected List<Lock> initialValue() {
+            return new ArrayList<Lock>();
+        }
+    };
+
+    /** 現在のスレッドのトランザクションで行ったバージョン番号の追加と削除(異常終了時に取り消す) */
+    private final ThreadLocal<List<Change>> changes = new ThreadLocal<List<Change>>();
+
+    /** ロックのエスカレーションを行う行データ数の閾値(0の場合はエスカレーションを行わない) */
+    private int escalationThreshold = 0;
+
+    /** スタックトレースを持たない楽観的ロックエラーを送出するか否か */
+    private boolean lightweightException = false;
+
+    /**
+     * ストライプ数を設定する。
+     * <p/>
+     * 指定された値以上の最小の2の累乗がストライプ数となる。
+     * デフォルトは64。
+     *
+     * @param stripeCount ストライプ数
+     */
+    public void setStripeCount(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount must be greater than 0. stripeCount = [" + stripeCount + ']');
+        }
+        stripes = createStripes(stripeCount);
+    }
+
+    /**
+     * スタックトレースを持たない楽観的ロックエラーを送出するか否かを設定する。
+     * <p/>
+     * デフォルトは{@code false}。
+     *
+     * @param lightweightException スタックトレースを持たない楽観的ロックエラーを送出する場合は{@code true}
+     * @see OptimisticLockException#withoutStackTrace(List, nablarch.core.message.Message)
+     */
+    public void setLightweightException(boolean lightweightException) {
+        this.lightweightException = lightweightException;
+    }
+
+    /**
+     * ロックのエスカレーションを行う行データ数の閾値を設定する。
+     * <p/>
+     * 1回の呼び出しで同じテーブルの行データを閾値より多く更新する場合に、テーブル単位のロックと更新を行う。
+     * 対象は{@link #updateVersionsWithCheck(List)}、{@link #tryUpdateVersionsWithCheck(List)}、
+     * {@link #updateVersions(List)}とする。
+     * デフォルトは0(エスカレーションを行わない)。
+     *
+     * @param escalationThreshold 閾値
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        if (escalationThreshold < 0) {
+            throw new IllegalArgumentException("escalationThreshold must not be negative. escalationThreshold = [" + escalationThreshold + ']');
+        }
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * バージョン番号のグループを設定する。
+     * <p/>
+     * グループ名はテーブル内で一意とすること。
+     *
+     * @param versionGroups バージョン番号のグループ
+     * @throws IllegalArgumentException テーブル名又はグループ名が未設定の場合、グループ名が重複する場合
+     */
+    public void setVersionGroups(List<VersionGroup> versionGroups) {
+        final Map<String, Map<String, String[]>> overlapping = new HashMap<String, Map<String, String[]>>();
+        for (VersionGroup group : versionGroups) {
+            if (group.getTableName() == null || group.getName() == null) {
+                throw new IllegalArgumentException("tableName and name of version group are required. " + group);
+            }
+            final List<String> targets = new ArrayList<String>();
+            for (VersionGroup other : versionGroups) {
+                if (other == group || group.overlaps(other)) {
+                    targets.add(other.getName());
+                }
+            }
+            Map<String, String[]> groups = overlapping.get(group.getTableName());
+            if (groups == null) {
+                groups = new HashMap<String, String[]>();
+                overlapping.put(group.getTableName(), groups);
+            }
+            if (groups.put(group.getName(), targets.toArray(new String[targets.size()])) != null) {
+                throw new IllegalArgumentException("version group name is duplicated. " + group);
+            }
+        }
+        overlappingGroups = overlapping;
+    }
+
+    /** {@inheritDoc} */
+    public Version getVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        final AtomicLong current = versions.get(key);
+        return current == null ? null
+                : new Version(context, effectiveVersion(key, context.getVersionGroup(), current));
+    }
+
+    /** {@inheritDoc} */
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        throwIfFailed(tryCheckVersions(versions));
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        throwIfFailed(tryUpdateVersionsWithCheck(versions));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        List<Version> errorVersions = null;
+        List<Version> currentVersions = null;
+        for (Version version : versions) {
+            final VersionKey key = version.getKey();
+            final AtomicLong current = this.versions.get(key);
+            final long effective = current == null ? 0 : effectiveVersion(key, version.getVersionGroup(), current);
+            if (current == null || !version.isNumeric() || effective != version.getNumericVersion()) {
+                if (errorVersions == null) {
+                    errorVersions = new ArrayList<Version>();
+                    currentVersions = new ArrayList<Version>();
+                }
+                errorVersions.add(version);
+                currentVersions.add(current == null ? null : version.withVersion(effective));
+            }
+        }
+        return errorVersions == null
+                ? VersionCheckResult.success()
+                : VersionCheckResult.failure(errorVersions, currentVersions);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 対象の行データのロックをストライプの順に取得した上で、チェックと更新を行う。
+     * ロックのエスカレーションを行うテーブルは、テーブルのロックを取得してテーブルのバージョン番号を更新する。
+     * 楽観的ロックエラーが発生した場合は、本メソッドで新たに取得したロックを解放する。
+     * 同じ行データ(バージョングループ)のバージョン番号が複数指定された場合も、バージョン番号は1度だけ更新する。
+     */
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final VersionKey[] keys = new VersionKey[versions.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = versions.get(i).getKey();
+        }
+        final Set<String> escalated = escalatedTables(keys);
+        final List<Lock> acquired = acquireAll(keys, escalated);
+
+        final VersionCheckResult result = tryCheckVersions(versions);
+        if (!result.isSuccess()) {
+            release(acquired);
+            return result;
+        }
+        final Set<GroupKey> updated = new HashSet<GroupKey>(keys.length);
+        for (Version version : versions) {
+            final VersionKey key = version.getKey();
+            final String group = version.getVersionGroup();
+            if (!escalated.contains(tableNameOf(key)) && updated.add(new GroupKey(key, group))) {
+                increment(key, group);
+            }
+        }
+        incrementTables(escalated);
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        acquireRow(key);
+        increment(key, context.getVersionGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 対象の行データのロックをストライプの順に取得した上で、全ての行データのバージョン番号を更新する。
+     * ストライプは行データの順序と異なる単位で共有されるため、ロックはストライプのインデックスの順に取得する。
+     * ロックのエスカレーションを行うテーブルは、テーブルのロックを取得してテーブルのバージョン番号を更新する。
+     * いずれかの行データのバージョン番号が存在しない場合は、バージョン番号を更新せずに例外を送出する。
+     *
+     * @throws IllegalArgumentException バージョン番号が存在しない場合
+     */
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        final VersionKey[] keys = new VersionKey[contexts.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = contexts.get(i).getKey();
+        }
+        final Set<String> escalated = escalatedTables(keys);
+        acquireAll(keys, escalated);
+        for (VersionKey key : keys) {
+            if (!versions.containsKey(key)) {
+                throw new IllegalArgumentException("version was not found. " + key);
+            }
+        }
+        final Set<GroupKey> updated = new HashSet<GroupKey>(keys.length);
+        for (ExclusiveControlContext context : contexts) {
+            final VersionKey key = context.getKey();
+            final String group = context.getVersionGroup();
+            if (!escalated.contains(tableNameOf(key)) && updated.add(new GroupKey(key, group))) {
+                increment(key, group);
+            }
+        }
+        incrementTables(escalated);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalArgumentException バージョン番号が存在しない場合
+     */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        try {
+            if (!tryAcquireRow(key, -1)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            // 待機しないため発生しない。
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        increment(key, context.getVersionGroup());
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalArgumentException バージョン番号が存在しない場合
+     */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final VersionKey key = context.getKey();
+        try {
+            if (!tryAcquireRow(key, Math.max(0, unit.toNanos(timeout)))) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        increment(key, context.getVersionGroup());
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 追加したバージョン番号は、トランザクションが異常終了した場合に削除する。
+     *
+     * @throws IllegalStateException バージョン番号が既に存在する場合
+     */
+    public void addVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        acquireRow(key);
+        final AtomicLong added = new AtomicLong(INITIAL_VERSION);
+        if (versions.putIfAbsent(key, added) != null) {
+            throw new IllegalStateException("version already exists. " + key);
+        }
+        recordChange(new Change(key, true, added, null));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 削除したバージョン番号は、トランザクションが異常終了した場合に元に戻す。
+     */
+    public void removeVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        acquireRow(key);
+        final AtomicLong removed = versions.remove(key);
+        if (removed == null) {
+            return;
+        }
+        Map<GroupKey, AtomicLong> removedGroups = null;
+        final Map<String, String[]> groups = overlappingGroups.get(tableNameOf(key));
+        if (groups != null) {
+            for (String group : groups.keySet()) {
+                final GroupKey groupKey = new GroupKey(key, group);
+                final AtomicLong groupVersion = groupVersions.remove(groupKey);
+                if (groupVersion != null) {
+                    if (removedGroups == null) {
+                        removedGroups = new HashMap<GroupKey, AtomicLong>();
+                    }
+                    removedGroups.put(groupKey, groupVersion);
+                }
+            }
+        }
+        recordChange(new Change(key, false, removed, removedGroups));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 現在のスレッドが保持しているロックを解放する。
+     */
+    public void transactionNormalEnd() {
+        changes.remove();
+        releaseAll();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * バージョン番号の追加と削除を取り消した上で、現在のスレッドが保持しているロックを解放する。
+     */
+    public void transactionAbnormalEnd() {
+        try {
+            rollbackChanges();
+        } finally {
+            releaseAll();
+        }
+    }
+
+    /**
+     * バージョン番号の追加又は削除を、現在のスレッドのトランザクションの変更として記録する。
+     * @param change 変更
+     */
+    private void recordChange(Change change) {
+        List<Change> list = changes.get();
+        if (list == null) {
+            list = new ArrayList<Change>();
+            changes.set(list);
+        }
+        list.add(change);
+    }
+
+    /**
+     * 現在のスレッドのトランザクションで行ったバージョン番号の追加と削除を、実行した順と逆の順に取り消す。
+     * <p/>
+     * 対象の行データのロックはトランザクションの終了まで保持しているため、他のスレッドの変更と競合しない。
+     */
+    private void rollbackChanges() {
+        final List<Change> list = changes.get();
+        if (list == null) {
+            return;
+        }
+        changes.remove();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            final Change change = list.get(i);
+            if (change.added) {
+                // 追加の取り消し(追加後に更新されたグループのバージョン番号も削除する)
+                versions.remove(change.key, change.version);
+                final Map<String, String[]> groups = overlappingGroups.get(tableNameOf(change.key));
+                if (groups != null) {
+                    for (String group : groups.keySet()) {
+                        groupVersions.remove(new GroupKey(change.key, group));
+                    }
+                }
+            } else {
+                // 削除の取り消し
+                versions.put(change.key, change.version);
+                if (change.removedGroups != null) {
+                    groupVersions.putAll(change.removedGroups);
+                }
+            }
+        }
+    }
+
+    /**
+     * チェック結果が楽観的ロックエラーの場合に例外を送出する。
+     * @param result チェック結果
+     * @throws OptimisticLockException 楽観的ロックエラーの場合
+     */
+    private void throwIfFailed(VersionCheckResult result) throws OptimisticLockException {
+        if (result.isSuccess()) {
+            return;
+        }
+        throw lightweightException
+                ? OptimisticLockException.withoutStackTrace(result.getErrorVersions(), null)
+                : new OptimisticLockException(result.getErrorVersions(), null);
+    }
+
+    /**
+     * 公開するバージョン番号(行データ又はグループのバージョン番号とテーブルのバージョン番号の和)を取得する。
+     * @param key 行データのキー
+     * @param group グループ名。行データ全体の場合は{@code null}
+     * @param current 行データのバージョン番号
+     * @return 公開するバージョン番号
+     * @throws IllegalArgumentException グループが定義されていない場合
+     */
+    private long effectiveVersion(VersionKey key, String group, AtomicLong current) {
+        long version;
+        if (group == null) {
+            version = current.get();
+        } else {
+            overlappingGroupsOf(key, group);
+            final AtomicLong groupVersion = groupVersions.get(new GroupKey(key, group));
+            version = groupVersion == null ? INITIAL_VERSION : groupVersion.get();
+        }
+        if (tables.isEmpty()) {
+            return version;
+        }
+        final Table table = tables.get(tableNameOf(key));
+        return table == null ? version : version + table.version.get();
+    }
+
+    /**
+     * 行データ又はグループのバージョン番号をインクリメントする。
+     * <p/>
+     * グループを指定した場合は、行データ全体と、項目が重複するグループのバージョン番号もインクリメントする。
+     * 行データ全体の場合は、全てのグループのバージョン番号もインクリメントする。
+     * 呼び出し元で対象のストライプのロックを取得していること。
+     *
+     * @param key 行データのキー
+     * @param group グループ名。行データ全体の場合は{@code null}
+     * @throws IllegalArgumentException バージョン番号が存在しない場合、グループが定義されていない場合
+     */
+    private void increment(VersionKey key, String group) {
+        final String[] targets;
+        if (group == null) {
+            final Map<String, String[]> groups = overlappingGroups.get(tableNameOf(key));
+            targets = groups == null ? null : groups.keySet().toArray(new String[groups.size()]);
+        } else {
+            targets = overlappingGroupsOf(key, group);
+        }
+        increment(key);
+        if (targets == null) {
+            return;
+        }
+        for (String target : targets) {
+            final GroupKey groupKey = new GroupKey(key, target);
+            AtomicLong groupVersion = groupVersions.get(groupKey);
+            if (groupVersion == null) {
+                final AtomicLong created = new AtomicLong(INITIAL_VERSION);
+                groupVersion = groupVersions.putIfAbsent(groupKey, created);
+                if (groupVersion == null) {
+                    groupVersion = created;
+                }
+            }
+            groupVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * グループの更新時に更新するグループ名を取得する。
+     * @param key 行データのキー
+     * @param group グループ名
+     * @return 更新するグループ名(自身を含む)
+     * @throws IllegalArgumentException グループが定義されていない場合
+     */
+    private String[] overlappingGroupsOf(VersionKey key, String group) {
+        final Map<String, String[]> groups = overlappingGroups.get(tableNameOf(key));
+        final String[] targets = groups == null ? null : groups.get(group);
+        if (targets == null) {
+            throw new IllegalArgumentException("version group was not defined. versionGroup = [" + group + "], " + key);
+        }
+        return targets;
+    }
+
+    /**
+     * テーブルのバージョン番号をインクリメントする。
+     * <p/>
+     * 呼び出し元で対象のテーブルのロックを排他的に取得していること。
+     *
+     * @param tableNames テーブル名
+     */
+    private void incrementTables(Set<String> tableNames) {
+        for (String tableName : tableNames) {
+            tables.get(tableName).version.incrementAndGet();
+        }
+    }
+
+    /**
+     * ロックのエスカレーションを行うテーブルを取得する。
+     * <p/>
+     * 行データ数が閾値を超え、かつ現在のスレッドがロックを共有モードで保持していないテーブルを対象とする。
+     *
+     * @param keys 行データのキー
+     * @return ロックのエスカレーションを行うテーブル名
+     */
+    private Set<String> escalatedTables(VersionKey[] keys) {
+        final int threshold = escalationThreshold;
+        if (threshold <= 0 || keys.length <= threshold) {
+            return Collections.emptySet();
+        }
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (VersionKey key : keys) {
+            final String tableName = tableNameOf(key);
+            int[] count = counts.get(tableName);
+            if (count == null) {
+                count = new int[1];
+                counts.put(tableName, count);
+            }
+            count[0]++;
+        }
+        Set<String> escalated = null;
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] > threshold && tableOf(entry.getKey()).lock.getReadHoldCount() == 0) {
+                if (escalated == null) {
+                    escalated = new HashSet<String>();
+                }
+                escalated.add(entry.getKey());
+            }
+        }
+        return escalated == null ? Collections.<String>emptySet() : escalated;
+    }
+
+    /**
+     * テーブルのバージョン番号とロックを取得する。存在しない場合は生成する。
+     * @param tableName テーブル名
+     * @return テーブルのバージョン番号とロック
+     */
+    private Table tableOf(String tableName) {
+        Table table = tables.get(tableName);
+        if (table == null) {
+            final Table created = new Table();
+            table = tables.putIfAbsent(tableName, created);
+            if (table == null) {
+                table = created;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 行データのキーからテーブルを識別する名前を取得する。
+     * @param key 行データのキー
+     * @return テーブル名。テーブル名を持たない場合は空文字
+     */
+    private static String tableNameOf(VersionKey key) {
+        final String tableName = key.getTableName();
+        return tableName == null ? "" : tableName;
+    }
+
+    /**
+     * バージョン番号をインクリメントする。
+     * <p/>
+     * 呼び出し元で対象のストライプのロックを取得していること。
+     *
+     * @param key 行データのキー
+     * @throws IllegalArgumentException バージョン番号が存在しない場合
+     */
+    private void increment(VersionKey key) {
+        final AtomicLong current = versions.get(key);
+        if (current == null) {
+            throw new IllegalArgumentException("version was not found. " + key);
+        }
+        long value;
+        do {
+            value = current.get();
+        } while (!current.compareAndSet(value, value + 1));
+    }
+
+    /**
+     * 行データのキーが割り当てられるストライプのインデックスを取得する。
+     * @param key 行データのキー
+     * @return ストライプのインデックス
+     */
+    private int stripeIndexOf(VersionKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (stripes.length - 1);
+    }
+
+    /**
+     * 行データのキーに対応するロックを取得する。
+     * <p/>
+     * テーブルのロックをテーブル名の順に取得した後、ストライプのロックをストライプのインデックスの順に取得する。
+     * 全てのスレッドが同じ順序でロックを取得するため、1回の呼び出しの中ではデッドロックは発生しない。
+     * ロックのエスカレーションを行うテーブルは、テーブルのロックを排他的に取得し、ストライプのロックは取得しない。
+     *
+     * @param keys 行データのキー
+     * @param escalated ロックのエスカレーションを行うテーブル名
+     * @return 本メソッドで新たに取得したロック
+     */
+    private List<Lock> acquireAll(VersionKey[] keys, Set<String> escalated) {
+        final List<Lock> acquired = new ArrayList<Lock>();
+        if (escalationThreshold > 0 || !escalated.isEmpty()) {
+            final Set<String> tableNames = new TreeSet<String>();
+            for (VersionKey key : keys) {
+                tableNames.add(tableNameOf(key));
+            }
+            for (String tableName : tableNames) {
+                final Table table = tableOf(tableName);
+                final Lock lock = escalated.contains(tableName) ? acquireExclusive(table) : acquireShared(table);
+                if (lock != null) {
+                    acquired.add(lock);
+                }
+            }
+        }
+
+        final int[] stripeIndexes = new int[keys.length];
+        int count = 0;
+        for (VersionKey key : keys) {
+            if (!escalated.contains(tableNameOf(key))) {
+                stripeIndexes[count++] = stripeIndexOf(key);
+            }
+        }
+        Arrays.sort(stripeIndexes, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && stripeIndexes[i] == stripeIndexes[i - 1]) {
+                continue;
+            }
+            final ReentrantLock lock = stripes[stripeIndexes[i]];
+            if (acquire(lock)) {
+                acquired.add(lock);
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * 行データ単位の悲観的ロックを取得する。
+     * <p/>
+     * ロックのエスカレーションが有効な場合は、テーブルのロックを共有モードで取得した後、ストライプのロックを取得する。
+     *
+     * @param key 行データのキー
+     */
+    private void acquireRow(VersionKey key) {
+        if (escalationThreshold > 0) {
+            acquireShared(tableOf(tableNameOf(key)));
+        }
+        acquire(stripes[stripeIndexOf(key)]);
+    }
+
+    /**
+     * 待ち時間を指定して、行データ単位の悲観的ロックの取得を試みる。
+     * <p/>
+     * ロックを取得できなかった場合は、本メソッドで新たに取得したロックを解放する。
+     *
+     * @param key 行データのキー
+     * @param timeoutNanos 待ち時間(ナノ秒)。負の場合は待機しない
+     * @return ロックを取得した場合は{@code true}
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private boolean tryAcquireRow(VersionKey key, long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        Lock tableLock = null;
+        if (escalationThreshold > 0) {
+            final ReentrantReadWriteLock lock = tableOf(tableNameOf(key)).lock;
+            if (!holdsTable(lock)) {
+                if (!tryLock(lock.readLock(), timeoutNanos)) {
+                    return false;
+                }
+                tableLock = lock.readLock();
+                heldLocks.get().add(tableLock);
+            }
+        }
+        final ReentrantLock stripe = stripes[stripeIndexOf(key)];
+        if (stripe.isHeldByCurrentThread()) {
+            return true;
+        }
+        boolean locked = false;
+        try {
+            locked = tryLock(stripe, timeoutNanos < 0 ? -1 : Math.max(0, deadline - System.nanoTime()));
+        } finally {
+            if (!locked && tableLock != null) {
+                release(Collections.singletonList(tableLock));
+            }
+        }
+        if (locked) {
+            heldLocks.get().add(stripe);
+        }
+        return locked;
+    }
+
+    /**
+     * 待ち時間を指定してロックの取得を試みる。
+     * @param lock ロック
+     * @param timeoutNanos 待ち時間(ナノ秒)。負の場合は待機しない
+     * @return ロックを取得した場合は{@code true}
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private static boolean tryLock(Lock lock, long timeoutNanos) throws InterruptedException {
+        return timeoutNanos < 0 ? lock.tryLock() : lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 現在のスレッドがテーブルのロックを保持しているか否かを判定する。
+     * @param lock テーブルのロック
+     * @return 共有モード又は排他モードで保持している場合は{@code true}
+     */
+    private static boolean holdsTable(ReentrantReadWriteLock lock) {
+        return lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() > 0;
+    }
+
+    /**
+     * テーブルのロックを共有モードで取得し、現在のスレッドが保持するロックとして記録する。
+     * @param table テーブル
+     * @return 新たに取得したロック。既に保持していた場合は{@code null}
+     */
+    private Lock acquireShared(Table table) {
+        if (holdsTable(table.lock)) {
+            return null;
+        }
+        final Lock lock = table.lock.readLock();
+        lock.lock();
+        heldLocks.get().add(lock);
+        return lock;
+    }
+
+    /**
+     * テーブルのロックを排他モードで取得し、現在のスレッドが保持するロックとして記録する。
+     * <p/>
+     * 呼び出し元で、現在のスレッドが共有モードのロックを保持していないことを確認していること。
+     *
+     * @param table テーブル
+     * @return 新たに取得したロック。既に保持していた場合は{@code null}
+     */
+    private Lock acquireExclusive(Table table) {
+        if (table.lock.isWriteLockedByCurrentThread()) {
+            return null;
+        }
+        final Lock lock = table.lock.writeLock();
+        lock.lock();
+        heldLocks.get().add(lock);
+        return lock;
+    }
+
+    /**
+     * ロックを取得し、現在のスレッドが保持するロックとして記録する。
+     * @param lock ロック
+     * @return 新たに取得した場合は{@code true}。既に保持していた場合は{@code false}
+     */
+    private boolean acquire(ReentrantLock lock) {
+        if (lock.isHeldByCurrentThread()) {
+            return false;
+        }
+        lock.lock();
+        heldLocks.get().add(lock);
+        return true;
+    }
+
+    /**
+     * 指定されたロックを解放する。
+     * @param locks 解放するロック
+     */
+    private void release(List<Lock> locks) {
+        heldLocks.get().removeAll(locks);
+        for (Lock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 現在のスレッドが保持している全てのロックを解放する。
+     */
+    private void releaseAll() {
+        final List<Lock> locks = heldLocks.get();
+        for (Lock lock : locks) {
+            lock.unlock();
+        }
+        heldLocks.remove();
+    }
+
+    /**
+     * ストライプを生成する。
+     * @param stripeCount ストライプ数
+     * @return ストライプ
+     */
+    private static ReentrantLock[] createStripes(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        final ReentrantLock[] locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * グループのバージョン番号を特定するキー。
+     */
+    private static final class GroupKey {
+
+        /** 行データのキー */
+        private final VersionKey key;
+
+        /** グループ名(行データ全体の場合は{@code null}) */
+        private final String group;
+
+        /**
+         * コンストラクタ。
+         * @param key 行データのキー
+         * @param group グループ名
+         */
+        GroupKey(VersionKey key, String group) {
+            this.key = key;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GroupKey)) {
+                return false;
+            }
+            final GroupKey other = (GroupKey) o;
+            return key.equals(other.key) && (group == null ? other.group == null : group.equals(other.group));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (group == null ? 0 : group.hashCode());
+        }
+    }
+
+    /**
+     * トランザクション内で行ったバージョン番号の追加又は削除。
+     */
+    private static final class Change {
+
+        /** 行データのキー */
+        private final VersionKey key;
+
+        /** 追加の場合は{@code true}、削除の場合は{@code false} */
+        private final boolean added;
+
+        /** 追加又は削除したバージョン番号 */
+        private final AtomicLong version;
+
+        /** 削除したグループのバージョン番号(追加の場合と、削除したグループがない場合は{@code null}) */
+        private final Map<GroupKey, AtomicLong> removedGroups;
+
+        /**
+         * コンストラクタ。
+         * @param key 行データのキー
+         * @param added 追加の場合は{@code true}
+         * @param version 追加又は削除したバージョン番号
+         * @param removedGroups 削除したグループのバージョン番号
+         */
+        Change(VersionKey key, boolean added, AtomicLong version, Map<GroupKey, AtomicLong> removedGroups) {
+            this.key = key;
+            this.added = added;
+            this.version = version;
+            this.removedGroups = removedGroups;
+        }
+    }
+
+    /**
+     * テーブルのバージョン番号とロック。
+     */
+    private static final class Table {
+
+        /** テーブルのバージョン番号(行データのバージョン番号に加算する) */
+        private final AtomicLong version = new AtomicLong();
+
+        /** テーブルのロック(行データ単位の悲観的ロックは共有モード、エスカレーション時は排他モード) */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+}
@@ -0,0 +1,174 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 計測した値をメモリ上に集計する{@link ExclusiveControlMetrics}の実装クラス。
+ * <p/>
+ * 排他制御用テーブル毎に、操作毎の所要時間とバージョン番号の件数のヒストグラム、
+ * 楽観的ロックのチェック件数とエラー件数を集計する。
+ * 集計した値は、本クラスのメソッドにより参照する。
+ */
+public class InMemoryExclusiveControlMetrics implements ExclusiveControlMetrics {
+
+    /** 記録がない場合に返す空のヒストグラム */
+    private static final Log2Histogram EMPTY = new Log2Histogram();
+
+    /** テーブル毎の集計値 */
+    private final ConcurrentMap<String, TableMetrics> tables = new ConcurrentHashMap<String, TableMetrics>();
+
+    /** {@inheritDoc} */
+    public void recordLatency(String tableName, ExclusiveControlOperation operation, long elapsedNanos) {
+        getOrCreate(tableName).latencies[operation.ordinal()].record(elapsedNanos);
+    }
+
+    /** {@inheritDoc} */
+    public void recordBatchSize(String tableName, ExclusiveControlOperation operation, int size) {
+        getOrCreate(tableName).batchSizes[operation.ordinal()].record(size);
+    }
+
+    /** {@inheritDoc} */
+    public void recordVersionCheck(String tableName, ExclusiveControlOperation operation, int checked, int failed) {
+        final TableMetrics metrics = getOrCreate(tableName);
+        metrics.checked.addAndGet(checked);
+        metrics.failed.addAndGet(failed);
+    }
+
+    /**
+     * 記録のある排他制御用テーブルのテーブル名を取得する。
+     * @return テーブル名
+     */
+    public Set<String> getTableNames() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    /**
+     * 操作の所要時間(ナノ秒)のヒストグラムを取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param operation 操作
+     * @return 所要時間のヒストグラム
+     */
+    public Log2Histogram getLatency(String tableName, ExclusiveControlOperation operation) {
+        final TableMetrics metrics = tables.get(tableName);
+        return metrics == null ? EMPTY : metrics.latencies[operation.ordinal()];
+    }
+
+    /**
+     * 1回の操作で指定されたバージョン番号の件数のヒストグラムを取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param operation 操作
+     * @return バージョン番号の件数のヒストグラム
+     */
+    public Log2Histogram getBatchSize(String tableName, ExclusiveControlOperation operation) {
+        final TableMetrics metrics = tables.get(tableName);
+        return metrics == null ? EMPTY : metrics.batchSizes[operation.ordinal()];
+    }
+
+    /**
+     * 悲観的ロックの取得回数を取得する。
+     * <p/>
+     * 複数の行データの悲観的ロックは、行データ毎に1回として数える。
+     *
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return 悲観的ロックの取得回数
+     */
+    public long getPessimisticLockCount(String tableName) {
+        return getLatency(tableName, ExclusiveControlOperation.UPDATE_VERSION).getCount()
+                + getBatchSize(tableName, ExclusiveControlOperation.UPDATE_VERSIONS).getSum();
+    }
+
+    /**
+     * 悲観的ロックを取得できなかった回数を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return ロックを取得できなかった回数
+     */
+    public long getLockTimeoutCount(String tableName) {
+        return getLatency(tableName, ExclusiveControlOperation.UPDATE_VERSION_TIMEOUT).getCount();
+    }
+
+    /**
+     * 楽観的ロックのチェック件数を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return チェック件数
+     */
+    public long getCheckedCount(String tableName) {
+        final TableMetrics metrics = tables.get(tableName);
+        return metrics == null ? 0 : metrics.checked.get();
+    }
+
+    /**
+     * 楽観的ロックエラーの件数を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return 楽観的ロックエラーの件数
+     */
+    public long getFailedCount(String tableName) {
+        final TableMetrics metrics = tables.get(tableName);
+        return metrics == null ? 0 : metrics.failed.get();
+    }
+
+    /**
+     * 楽観的ロックエラーの発生率を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return 楽観的ロックエラーの件数をチェック件数で除算した値。チェック件数が0の場合は0
+     */
+    public double getFailureRate(String tableName) {
+        final long checked = getCheckedCount(tableName);
+        return checked == 0 ? 0 : (double) getFailedCount(tableName) / checked;
+    }
+
+    /**
+     * 集計した値を破棄する。
+     */
+    public void clear() {
+        tables.clear();
+    }
+
+    /**
+     * テーブルの集計値を取得する。存在しない場合は生成する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return テーブルの集計値
+     */
+    private TableMetrics getOrCreate(String tableName) {
+        final TableMetrics metrics = tables.get(tableName);
+        if (metrics != null) {
+            return metrics;
+        }
+        final TableMetrics created = new TableMetrics();
+        final TableMetrics registered = tables.putIfAbsent(tableName, created);
+        return registered == null ? created : registered;
+    }
+
+    /**
+     * テーブル毎の集計値。
+     */
+    private static final class TableMetrics {
+
+        /** 操作毎の所要時間 */
+        private final Log2Histogram[] latencies = createHistograms();
+
+        /** 操作毎のバージョン番号の件数 */
+        private final Log2Histogram[] batchSizes = createHistograms();
+
+        /** 楽観的ロックのチェック件数 */
+        private final AtomicLong checked = new AtomicLong();
+
+        /** 楽観的ロックエラーの件数 */
+        private final AtomicLong failed = new AtomicLong();
+
+        /**
+         * 操作毎のヒストグラムを生成する。
+         * @return 操作毎のヒストグラム
+         */
+        private static Log2Histogram[] createHistograms() {
+            final Log2Histogram[] histograms = new Log2Histogram[ExclusiveControlOperation.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Log2Histogram();
+            }
+            return histograms;
+        }
+    }
+}
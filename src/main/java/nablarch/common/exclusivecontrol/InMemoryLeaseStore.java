@@ -0,0 +1,120 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * メモリ上でリースを保持する{@link LeaseStore}の実装クラス。
+ * <p/>
+ * 単一のプロセス内でのみリースを共有する。
+ * 行データ毎の状態を不変のオブジェクトで保持し、比較と置換により更新するため、ロックを使用しない。
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+
+    /** 行データ毎の状態 */
+    private final ConcurrentMap<VersionKey, Entry> entries = new ConcurrentHashMap<VersionKey, Entry>();
+
+    /** {@inheritDoc} */
+    public Lease tryAcquire(VersionKey key, String owner, long nowMillis, long durationMillis) {
+        final long expiresAt = nowMillis + durationMillis;
+        while (true) {
+            final Entry current = entries.get(key);
+            final Entry next;
+            if (current == null) {
+                next = new Entry(1, new Lease(key, owner, 1, expiresAt));
+                if (entries.putIfAbsent(key, next) == null) {
+                    return next.lease;
+                }
+                continue;
+            }
+            final Lease held = current.lease;
+            if (held != null && !held.isExpired(nowMillis)) {
+                if (!held.getOwner().equals(owner)) {
+                    return null;
+                }
+                next = new Entry(current.fencingToken, held.withExpiresAt(expiresAt));
+            } else {
+                final long token = current.fencingToken + 1;
+                next = new Entry(token, new Lease(key, owner, token, expiresAt));
+            }
+            if (entries.replace(key, current, next)) {
+                return next.lease;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Lease renew(Lease lease, long nowMillis, long durationMillis) {
+        while (true) {
+            final Entry current = entries.get(lease.getKey());
+            if (!isHeld(current, lease, nowMillis)) {
+                return null;
+            }
+            final Entry next = new Entry(current.fencingToken, lease.withExpiresAt(nowMillis + durationMillis));
+            if (entries.replace(lease.getKey(), current, next)) {
+                return next.lease;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean release(Lease lease) {
+        while (true) {
+            final Entry current = entries.get(lease.getKey());
+            if (current == null || current.lease == null
+                    || current.lease.getFencingToken() != lease.getFencingToken()) {
+                return false;
+            }
+            if (entries.replace(lease.getKey(), current, new Entry(current.fencingToken, null))) {
+                return true;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Lease get(VersionKey key) {
+        final Entry current = entries.get(key);
+        return current == null ? null : current.lease;
+    }
+
+    /** {@inheritDoc} */
+    public long getFencingToken(VersionKey key) {
+        final Entry current = entries.get(key);
+        return current == null ? 0 : current.fencingToken;
+    }
+
+    /**
+     * リースを保有し続けているか否かを判定する。
+     * @param current 行データの状態
+     * @param lease リース
+     * @param nowMillis 現在時刻
+     * @return 保有し続けている場合は{@code true}
+     */
+    private static boolean isHeld(Entry current, Lease lease, long nowMillis) {
+        return current != null && current.lease != null
+                && current.lease.getFencingToken() == lease.getFencingToken()
+                && !current.lease.isExpired(nowMillis);
+    }
+
+    /**
+     * 行データの状態。
+     */
+    private static final class Entry {
+
+        /** 最後に取得されたリースのフェンシングトークン */
+        private final long fencingToken;
+
+        /** 現在のリース(解放された場合は{@code null}) */
+        private final Lease lease;
+
+        /**
+         * コンストラクタ。
+         * @param fencingToken フェンシングトークン
+         * @param lease 現在のリース
+         */
+        Entry(long fencingToken, Lease lease) {
+            this.fencingToken = fencingToken;
+            this.lease = lease;
+        }
+    }
+}
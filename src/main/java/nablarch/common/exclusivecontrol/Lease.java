@@ -0,0 +1,99 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 行データに対する期限付きのロック(リース)を表すクラス。
+ * <p/>
+ * リースは保有者と有効期限を持ち、有効期限が経過したリースは他の保有者が取得できる。
+ * フェンシングトークンは行データ毎にリースを取得する度に増加する値であり、
+ * リースを失った保有者による更新を、更新先でトークンを比較することで拒否するために使用する。
+ *
+ * @see LeaseStore
+ * @see LeaseExclusiveControlManager
+ */
+@Published(tag = "architect")
+public final class Lease {
+
+    /** 行データのキー */
+    private final VersionKey key;
+
+    /** 保有者 */
+    private final String owner;
+
+    /** フェンシングトークン */
+    private final long fencingToken;
+
+    /** 有効期限(エポックミリ秒) */
+    private final long expiresAtMillis;
+
+    /**
+     * コンストラクタ。
+     * @param key 行データのキー
+     * @param owner 保有者
+     * @param fencingToken フェンシングトークン
+     * @param expiresAtMillis 有効期限(エポックミリ秒)
+     */
+    public Lease(VersionKey key, String owner, long fencingToken, long expiresAtMillis) {
+        this.key = key;
+        this.owner = owner;
+        this.fencingToken = fencingToken;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * 行データのキーを取得する。
+     * @return 行データのキー
+     */
+    public VersionKey getKey() {
+        return key;
+    }
+
+    /**
+     * 保有者を取得する。
+     * @return 保有者
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * フェンシングトークンを取得する。
+     * @return フェンシングトークン
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * 有効期限(エポックミリ秒)を取得する。
+     * @return 有効期限
+     */
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * 指定された時刻に有効期限が経過しているか否かを判定する。
+     * @param nowMillis 時刻(エポックミリ秒)
+     * @return 有効期限が経過している場合は{@code true}
+     */
+    public boolean isExpired(long nowMillis) {
+        return expiresAtMillis <= nowMillis;
+    }
+
+    /**
+     * 有効期限を変更したリースを生成する。
+     * @param expiresAtMillis 有効期限(エポックミリ秒)
+     * @return リース
+     */
+    Lease withExpiresAt(long expiresAtMillis) {
+        return new Lease(key, owner, fencingToken, expiresAtMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, owner = [%s], fencingToken = [%d], expiresAtMillis = [%d]",
+                key, owner, fencingToken, expiresAtMillis);
+    }
+}
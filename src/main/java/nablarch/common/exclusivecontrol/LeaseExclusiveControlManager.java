@@ -0,0 +1,421 @@
+package nablarch.common.exclusivecontrol;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 期限付きのロック(リース)により排他制御を行うクラス。
+ * <p/>
+ * 悲観的ロックは、データベースのトランザクションではなく{@link LeaseStore}に保持するリースにより行う。
+ * {@link #acquire(ExclusiveControlContext, long, TimeUnit)}で取得したリースはトランザクションの終了では解放されず、
+ * {@link #release(Lease)}による解放か、有効期限の経過まで保有される。
+ * このため、長時間のバッチ処理でもトランザクションを開いたままにせずに行データを占有できる。
+ * 処理が有効期間を超える場合は、{@link #renew(Lease)}により有効期限を延長すること。
+ * リースの保有者は、更新の直前に{@link #isValid(Lease)}を呼び出すことで、
+ * 有効期限の経過によりリースを失った処理による更新を防止できる(フェンシング)。
+ * <p/>
+ * バージョン番号は、行データに対して最後に取得されたリースのフェンシングトークンと、リースが保有中か否かから決まる。
+ * フェンシングトークンはリースを取得する度に増加するため、バージョン番号は行データのリースが取得される度に変わる。
+ * リースが保有されている間に取得したバージョン番号は、保有者による更新中の行データを表すため、チェックに必ず失敗する。
+ * {@link #updateVersionsWithCheck(List)}は、リースを取得して直ちに解放することでバージョン番号を更新する。
+ * 他の保有者がリースを保有している場合や、チェック後に他の処理がリースを取得していた場合は楽観的ロックエラーとなる。
+ * リースの保有者自身は{@link #checkVersions(List)}及び{@link #updateVersionsWithCheck(List)}を使用せず、
+ * {@link #isValid(Lease)}によりチェックすること。
+ * <p/>
+ * リースの保有者は、{@link #setOwnerId(String)}で設定した識別子と、リースの取得毎に生成する一意な値から決定する。
+ * 識別子のデフォルトは実行中のJVMの名前(プロセスIDとホスト名)である。
+ * 保有者をスレッドから決定しないため、スレッドプールで同じスレッドを使用する別の処理が、
+ * 先の処理が保有するリースを取得することはない。
+ * 保有中のリースに対する操作(延長、解放)は、取得時に返されたリースを指定して行うこと。
+ * <p/>
+ * {@link #updateVersion(ExclusiveControlContext)}で取得したリースは、現在のトランザクションの終了時に解放する。
+ * 同じトランザクションで同じ行データに対して再度呼び出した場合は、保有中のリースの有効期限を延長する。
+ * トランザクションの終了時にリースを解放するため、{@link ExclusiveControlTransactionHandler}を設定すること。
+ * 設定しない場合、リースは有効期限の経過か{@link #removeVersion(ExclusiveControlContext)}まで保有される。
+ */
+@Published(tag = "architect")
+public class LeaseExclusiveControlManager extends ExclusiveControlManagerSupport
+        implements ExclusiveControlTransactionListener {
+
+    /** リースを保持するストア */
+    private LeaseStore leaseStore = new InMemoryLeaseStore();
+
+    /** リースの有効期間(ミリ秒) */
+    private long leaseDurationMillis = 60000;
+
+    /** リースの取得を再試行する間隔(ミリ秒) */
+    private long pollIntervalMillis = 100;
+
+    /** 保有者の識別子 */
+    private String ownerId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /** 現在のスレッドのトランザクションで{@link #updateVersion(ExclusiveControlContext)}により取得したリース */
+    private final ThreadLocal<Map<VersionKey, Lease>> transactionLeases = new ThreadLocal<Map<VersionKey, Lease>>() {
+        @Override
+        protected Map<VersionKey, Lease> initialValue() {
+            return new LinkedHashMap<VersionKey, Lease>();
+        }
+    };
+
+    /**
+     * リースを保持するストアを設定する。
+     * <p/>
+     * デフォルトは{@link InMemoryLeaseStore}。
+     *
+     * @param leaseStore リースを保持するストア
+     */
+    public void setLeaseStore(LeaseStore leaseStore) {
+        this.leaseStore = leaseStore;
+    }
+
+    /**
+     * リースの有効期間(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは60000(1分)。
+     *
+     * @param leaseDurationMillis リースの有効期間(ミリ秒)
+     */
+    public void setLeaseDurationMillis(long leaseDurationMillis) {
+        if (leaseDurationMillis <= 0) {
+            throw new IllegalArgumentException("leaseDurationMillis must be positive. leaseDurationMillis = [" + leaseDurationMillis + ']');
+        }
+        this.leaseDurationMillis = leaseDurationMillis;
+    }
+
+    /**
+     * 他の保有者がリースを保有している場合に、リースの取得を再試行する間隔(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは100。
+     *
+     * @param pollIntervalMillis 再試行する間隔(ミリ秒)
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        if (pollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("pollIntervalMillis must be positive. pollIntervalMillis = [" + pollIntervalMillis + ']');
+        }
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * 保有者の識別子を設定する。
+     * <p/>
+     * ストアを共有するプロセス間で一意となる値を設定すること。
+     *
+     * @param ownerId 保有者の識別子
+     */
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    /**
+     * リースの取得を試みる。
+     * <p/>
+     * 取得毎に新たな保有者としてリースを取得するため、同じスレッドが既にリースを保有している場合も取得できない。
+     * 保有中のリースの有効期限を延長する場合は{@link #renew(Lease)}を使用すること。
+     *
+     * @param context 排他制御コンテキスト
+     * @return 取得したリース。他の保有者がリースを保有している場合は{@code null}
+     */
+    public Lease tryAcquire(ExclusiveControlContext context) {
+        return leaseStore.tryAcquire(context.getKey(), newOwner(), currentTimeMillis(), leaseDurationMillis);
+    }
+
+    /**
+     * リースを取得する。
+     * <p/>
+     * 他の保有者がリースを保有している場合は、指定された時間を上限として取得を再試行する。
+     * 待機中に割り込まれた場合は、割り込み状態を復元して{@code null}を返す。
+     *
+     * @param context 排他制御コンテキスト
+     * @param timeout 待機時間の上限
+     * @param unit {@code timeout}の単位
+     * @return 取得したリース。待機時間の上限までに取得できなかった場合は{@code null}
+     */
+    public Lease acquire(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final Lease lease = tryAcquire(context);
+            if (lease != null) {
+                return lease;
+            }
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            try {
+                Thread.sleep(Math.min(pollIntervalMillis, remainingMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * リースの有効期限を延長する。
+     * @param lease リース
+     * @return 延長したリース。リースを失っていた場合は{@code null}
+     */
+    public Lease renew(Lease lease) {
+        return leaseStore.renew(lease, currentTimeMillis(), leaseDurationMillis);
+    }
+
+    /**
+     * リースを解放する。
+     * @param lease リース
+     * @return 解放した場合は{@code true}。リースを既に失っていた場合は{@code false}
+     */
+    public boolean release(Lease lease) {
+        return leaseStore.release(lease);
+    }
+
+    /**
+     * リースを現在も保有していることをチェックする。
+     * <p/>
+     * リースの保有者が更新の直前に呼び出すことで、有効期限の経過によりリースを失い、
+     * 他の保有者がリースを取得した後に更新することを防止する。
+     *
+     * @param lease リース
+     * @return リースを保有している場合は{@code true}。有効期限の経過や解放によりリースを失っていた場合は{@code false}
+     */
+    public boolean isValid(Lease lease) {
+        final Lease current = leaseStore.get(lease.getKey());
+        return current != null
+                && !current.isExpired(currentTimeMillis())
+                && current.getFencingToken() == lease.getFencingToken()
+                && current.getOwner().equals(lease.getOwner());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 行データに対して最後に取得されたリースのフェンシングトークンの2倍をバージョン番号として返す。
+     * リースが保有されている場合は、1を加えた値(奇数)を返す。
+     * リースが取得されたことがない行データのバージョン番号は0となる。
+     */
+    public Version getVersion(ExclusiveControlContext context) {
+        final VersionKey key = context.getKey();
+        final long token = leaseStore.getFencingToken(key);
+        final Lease lease = leaseStore.get(key);
+        if (lease != null && !lease.isExpired(currentTimeMillis())) {
+            return new Version(context, toVersion(lease.getFencingToken(), true));
+        }
+        return new Version(context, toVersion(token, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * リースが保有されておらず、バージョン番号の取得後にリースが取得されていないことをチェックする。
+     */
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        final long now = currentTimeMillis();
+        final List<Version> errorVersions = new ArrayList<Version>();
+        for (Version version : versions) {
+            final VersionKey key = version.getKey();
+            final Lease lease = leaseStore.get(key);
+            if ((lease != null && !lease.isExpired(now)) || !version.isNumeric()
+                    || version.getNumericVersion() != toVersion(leaseStore.getFencingToken(key), false)) {
+                errorVersions.add(version);
+            }
+        }
+        if (!errorVersions.isEmpty()) {
+            throw new OptimisticLockException(errorVersions, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 行データ毎にリースを取得し、取得したリースのフェンシングトークンがバージョン番号の取得時の次の値であることをチェックする。
+     * 取得したリースは直ちに解放するため、バージョン番号はフェンシングトークンの増加により更新される。
+     * チェックに失敗した場合も、取得したリースのフェンシングトークンは増加したままとなる。
+     */
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        final Map<VersionKey, Version> distinct = new LinkedHashMap<VersionKey, Version>();
+        final List<Version> errorVersions = new ArrayList<Version>();
+        for (Version version : versions) {
+            final Version first = distinct.get(version.getKey());
+            if (first == null) {
+                distinct.put(version.getKey(), version);
+            } else if (!first.getVersion().equals(version.getVersion())) {
+                errorVersions.add(version);
+            }
+        }
+        final long now = currentTimeMillis();
+        final List<Lease> leases = new ArrayList<Lease>(distinct.size());
+        try {
+            for (Version version : distinct.values()) {
+                if (!version.isNumeric() || version.getNumericVersion() % 2 != 0) {
+                    errorVersions.add(version);
+                    continue;
+                }
+                final Lease lease = leaseStore.tryAcquire(version.getKey(), newOwner(), now, leaseDurationMillis);
+                if (lease == null) {
+                    errorVersions.add(version);
+                    continue;
+                }
+                leases.add(lease);
+                if (toVersion(lease.getFencingToken() - 1, false) != version.getNumericVersion()) {
+                    errorVersions.add(version);
+                }
+            }
+        } finally {
+            for (Lease lease : leases) {
+                leaseStore.release(lease);
+            }
+        }
+        if (!errorVersions.isEmpty()) {
+            throw new OptimisticLockException(errorVersions, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * リースを取得するまで待機する。取得したリースは現在のトランザクションの終了時に解放する。
+     * 現在のトランザクションで既にリースを取得している場合は、リースの有効期限を延長する。
+     */
+    public void updateVersion(ExclusiveControlContext context) {
+        if (renewTransactionLease(context)) {
+            return;
+        }
+        Lease lease;
+        while ((lease = acquire(context, Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("interrupted while acquiring lease. " + context.getKey());
+            }
+        }
+        transactionLeases.get().put(context.getKey(), lease);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 取得したリースは現在のトランザクションの終了時に解放する。
+     * 現在のトランザクションで既にリースを取得している場合は、リースの有効期限を延長する。
+     */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        if (renewTransactionLease(context)) {
+            return true;
+        }
+        final Lease lease = acquire(context, timeout, unit);
+        if (lease == null) {
+            return false;
+        }
+        transactionLeases.get().put(context.getKey(), lease);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * リースは取得時に作成されるため、何もしない。
+     */
+    public void addVersion(ExclusiveControlContext context) {
+        // リースは取得時に作成する。
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 行データが削除されるため、保有者に関わらず現在のリースを解放する。
+     * 解放されたリースを保有していた処理は、以降の{@link #isValid(Lease)}で{@code false}となる。
+     * フェンシングトークンを減少させないため、ストアの記録は削除しない。
+     */
+    public void removeVersion(ExclusiveControlContext context) {
+        transactionLeases.get().remove(context.getKey());
+        final Lease lease = leaseStore.get(context.getKey());
+        if (lease != null) {
+            leaseStore.release(lease);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 現在のトランザクションで{@link #updateVersion(ExclusiveControlContext)}により取得したリースを解放する。
+     */
+    public void transactionNormalEnd() {
+        releaseTransactionLeases();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 現在のトランザクションで{@link #updateVersion(ExclusiveControlContext)}により取得したリースを解放する。
+     */
+    public void transactionAbnormalEnd() {
+        releaseTransactionLeases();
+    }
+
+    /**
+     * 現在時刻(エポックミリ秒)を取得する。
+     * @return 現在時刻
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * リースを取得する保有者を生成する。
+     * <p/>
+     * 保有者の識別子と、取得毎に一意な値を連結した値を返す。
+     *
+     * @return 保有者
+     */
+    protected String newOwner() {
+        return ownerId + '#' + UUID.randomUUID();
+    }
+
+    /**
+     * 現在のトランザクションで取得したリースの有効期限を延長する。
+     * @param context 排他制御コンテキスト
+     * @return 延長した場合は{@code true}。リースを取得していないか、既に失っていた場合は{@code false}
+     */
+    private boolean renewTransactionLease(ExclusiveControlContext context) {
+        final Map<VersionKey, Lease> leases = transactionLeases.get();
+        final Lease held = leases.get(context.getKey());
+        if (held == null) {
+            return false;
+        }
+        final Lease renewed = renew(held);
+        if (renewed == null) {
+            leases.remove(context.getKey());
+            return false;
+        }
+        leases.put(context.getKey(), renewed);
+        return true;
+    }
+
+    /**
+     * 現在のトランザクションで取得したリースを解放する。
+     */
+    private void releaseTransactionLeases() {
+        try {
+            for (Lease lease : transactionLeases.get().values()) {
+                leaseStore.release(lease);
+            }
+        } finally {
+            transactionLeases.remove();
+        }
+    }
+
+    /**
+     * フェンシングトークンからバージョン番号を求める。
+     * @param fencingToken フェンシングトークン
+     * @param held リースが保有されている場合は{@code true}
+     * @return バージョン番号
+     */
+    private static long toVersion(long fencingToken, boolean held) {
+        return fencingToken * 2 + (held ? 1 : 0);
+    }
+}
@@ -0,0 +1,68 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * リースを保持するストアのインタフェース。
+ * <p/>
+ * 実装クラスは、以下を満たすこと。
+ * <ul>
+ *     <li>行データ毎に、有効なリースを保有できるのは1つの保有者のみであること。</li>
+ *     <li>フェンシングトークンは、行データ毎にリースを取得する度に増加し、解放後も減少しないこと。</li>
+ *     <li>各操作は、同じストアを共有する全てのスレッド(及びプロセス)に対してアトミックであること。</li>
+ * </ul>
+ * 時刻は呼び出し元から指定するため、ストアを共有するプロセス間で時刻を同期しておくこと。
+ *
+ * @see InMemoryLeaseStore
+ * @see FileLeaseStore
+ */
+@Published(tag = "architect")
+public interface LeaseStore {
+
+    /**
+     * リースの取得を試みる。
+     * <p/>
+     * 他の保有者が有効なリースを保有している場合は{@code null}を返す。
+     * 同じ保有者が有効なリースを保有している場合は、フェンシングトークンを変えずに有効期限を延長したリースを返す。
+     *
+     * @param key 行データのキー
+     * @param owner 保有者
+     * @param nowMillis 現在時刻(エポックミリ秒)
+     * @param durationMillis 有効期間(ミリ秒)
+     * @return 取得したリース。取得できなかった場合は{@code null}
+     */
+    Lease tryAcquire(VersionKey key, String owner, long nowMillis, long durationMillis);
+
+    /**
+     * リースの有効期限を延長する。
+     * @param lease リース
+     * @param nowMillis 現在時刻(エポックミリ秒)
+     * @param durationMillis 延長後の有効期間(ミリ秒)
+     * @return 延長したリース。リースを失っていた場合(有効期限の経過、他の保有者による取得)は{@code null}
+     */
+    Lease renew(Lease lease, long nowMillis, long durationMillis);
+
+    /**
+     * リースを解放する。
+     * @param lease リース
+     * @return 解放した場合は{@code true}。リースを既に失っていた場合は{@code false}
+     */
+    boolean release(Lease lease);
+
+    /**
+     * 行データの現在のリースを取得する。
+     * <p/>
+     * 有効期限が経過したリースも返す。
+     *
+     * @param key 行データのキー
+     * @return 現在のリース。リースが取得されたことがない場合、又は解放された場合は{@code null}
+     */
+    Lease get(VersionKey key);
+
+    /**
+     * 行データの現在のフェンシングトークンを取得する。
+     * @param key 行データのキー
+     * @return 最後に取得されたリースのフェンシングトークン。リースが取得されたことがない場合は0
+     */
+    long getFencingToken(VersionKey key);
+}
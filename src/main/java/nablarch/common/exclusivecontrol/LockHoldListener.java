@@ -0,0 +1,22 @@
+package nablarch.common.exclusivecontrol;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 悲観的ロックの保持時間が閾値を超えたことの通知を受けるインタフェース。
+ *
+ * @see LockHoldTrackingExclusiveControlManager
+ */
+@Published(tag = "architect")
+public interface LockHoldListener {
+
+    /**
+     * 悲観的ロックの保持時間が閾値を超えたことを通知する。
+     * <p/>
+     * 1つのロックについて1回だけ通知する。
+     * 監視スレッドから呼び出される場合があるため、速やかに処理を終えること。
+     *
+     * @param lock 保持時間が閾値を超えたロック
+     */
+    void onLongHold(HeldLock lock);
+}
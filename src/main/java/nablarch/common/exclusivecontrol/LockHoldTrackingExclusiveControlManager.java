@@ -0,0 +1,385 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * 委譲先の{@link ExclusiveControlManager}で取得した悲観的ロックの保持時間を監視する{@link ExclusiveControlManager}。
+ * <p/>
+ * 以下の操作で取得したロックを、行データのキーと取得したスレッド、取得した時刻とともに記録する。
+ * 記録はトランザクションの終了通知を受けた時点で破棄する。
+ * <ul>
+ *     <li>{@link #updateVersion(ExclusiveControlContext)}、{@link #updateVersions(List)}</li>
+ *     <li>{@link #tryUpdateVersion(ExclusiveControlContext)}、{@link #tryUpdateVersion(ExclusiveControlContext, long, TimeUnit)}(取得できた場合)</li>
+ *     <li>{@link #updateVersionsWithCheck(List)}、{@link #tryUpdateVersionsWithCheck(List)}(更新できた場合)</li>
+ * </ul>
+ * 保持時間が閾値を超えたロックは、WARNレベルのログを出力し、{@link LockHoldListener}に通知する。
+ * 閾値の超過はトランザクションの終了時に判定するほか、{@link #setCheckIntervalMillis(long)}を設定した場合は
+ * 監視スレッドが定期的に判定するため、トランザクションが終了しないまま保持され続けているロックも検出できる。
+ * 現在保持されているロックは{@link #getHeldLocks()}で参照できる。
+ * <p/>
+ * 記録はスレッド毎に分割しており、ロックの取得とトランザクションの終了では他のスレッドと競合しない。
+ * 監視スレッドを使用する場合は、不要となった時点で{@link #shutdown()}を呼び出すこと。
+ */
+public class LockHoldTrackingExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(LockHoldTrackingExclusiveControlManager.class);
+
+    /** 保持時間の閾値(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_THRESHOLD_MILLIS = 5000L;
+
+    /** 保持時間の長い順に並べる{@link Comparator} */
+    private static final Comparator<HeldLock> LONGEST_FIRST = new Comparator<HeldLock>() {
+        public int compare(HeldLock o1, HeldLock o2) {
+            return o1.getHeldNanos() < o2.getHeldNanos() ? 1 : o1.getHeldNanos() > o2.getHeldNanos() ? -1 : 0;
+        }
+    };
+
+    /** 保持時間の閾値(ナノ秒) */
+    private volatile long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_THRESHOLD_MILLIS);
+
+    /** 監視する間隔(ミリ秒) */
+    private long checkIntervalMillis;
+
+    /** 保持時間が閾値を超えたことの通知先 */
+    private volatile LockHoldListener listener;
+
+    /** スレッドの識別子毎の保持しているロック */
+    private final ConcurrentMap<Long, Map<VersionKey, Hold>> registry = new ConcurrentHashMap<Long, Map<VersionKey, Hold>>();
+
+    /** 現在のスレッドが保持しているロック */
+    private final ThreadLocal<Map<VersionKey, Hold>> holds = new ThreadLocal<Map<VersionKey, Hold>>();
+
+    /** 監視スレッド */
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * 保持時間の閾値(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは5000(5秒)。
+     *
+     * @param thresholdMillis 保持時間の閾値(ミリ秒)
+     */
+    public void setThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("thresholdMillis must be positive. thresholdMillis = [" + thresholdMillis + ']');
+        }
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * 監視スレッドが保持時間を判定する間隔(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは0であり、監視スレッドを使用せずトランザクションの終了時にのみ判定する。
+     * 監視スレッドは最初にロックを記録した時点で開始する。
+     *
+     * @param checkIntervalMillis 判定する間隔(ミリ秒)
+     */
+    public synchronized void setCheckIntervalMillis(long checkIntervalMillis) {
+        if (checkIntervalMillis < 0) {
+            throw new IllegalArgumentException(
+                    "checkIntervalMillis must not be negative. checkIntervalMillis = [" + checkIntervalMillis + ']');
+        }
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * 保持時間が閾値を超えたことの通知先を設定する。
+     * @param listener 通知先
+     */
+    public void setListener(LockHoldListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        super.updateVersionsWithCheck(versions);
+        recordVersions(versions);
+    }
+
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final VersionCheckResult result = super.tryUpdateVersionsWithCheck(versions);
+        if (result.isSuccess()) {
+            recordVersions(versions);
+        }
+        return result;
+    }
+
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        super.updateVersion(context);
+        record(context.getKey());
+    }
+
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        super.updateVersions(contexts);
+        for (ExclusiveControlContext context : contexts) {
+            record(context.getKey());
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final boolean acquired = super.tryUpdateVersion(context);
+        if (acquired) {
+            record(context.getKey());
+        }
+        return acquired;
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final boolean acquired = super.tryUpdateVersion(context, timeout, unit);
+        if (acquired) {
+            record(context.getKey());
+        }
+        return acquired;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 保持時間が閾値を超えたロックを通知し、現在のスレッドの記録を破棄する。
+     */
+    @Override
+    public void transactionNormalEnd() {
+        try {
+            super.transactionNormalEnd();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 保持時間が閾値を超えたロックを通知し、現在のスレッドの記録を破棄する。
+     */
+    @Override
+    public void transactionAbnormalEnd() {
+        try {
+            super.transactionAbnormalEnd();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 現在保持されているロックを取得する。
+     * <p/>
+     * 全てのスレッドが保持しているロックを、保持時間の長い順に返す。
+     * 取得中に他のスレッドが取得又は解放したロックは、含まれない場合がある。
+     *
+     * @return 現在保持されているロック
+     */
+    public List<HeldLock> getHeldLocks() {
+        final long now = System.nanoTime();
+        final List<HeldLock> locks = new ArrayList<HeldLock>();
+        for (Map<VersionKey, Hold> threadHolds : registry.values()) {
+            for (Hold hold : threadHolds.values()) {
+                locks.add(hold.toHeldLock(now));
+            }
+        }
+        Collections.sort(locks, LONGEST_FIRST);
+        return locks;
+    }
+
+    /**
+     * 保持時間が閾値を超えたロックを判定し、通知する。
+     * <p/>
+     * 既に通知したロックは通知しない。監視スレッドを使用しない場合に、任意の契機で判定するために使用する。
+     *
+     * @return 今回通知したロック
+     */
+    public List<HeldLock> checkHoldTimes() {
+        final long now = System.nanoTime();
+        final List<HeldLock> reported = new ArrayList<HeldLock>();
+        for (Map<VersionKey, Hold> threadHolds : registry.values()) {
+            for (Hold hold : threadHolds.values()) {
+                final HeldLock lock = reportIfExceeded(hold, now);
+                if (lock != null) {
+                    reported.add(lock);
+                }
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * 監視スレッドを停止する。
+     */
+    public synchronized void shutdown() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * 更新したバージョン番号の行データのロックを記録する。
+     * @param versions バージョン番号
+     */
+    private void recordVersions(List<Version> versions) {
+        for (Version version : versions) {
+            record(version.getKey());
+        }
+    }
+
+    /**
+     * 現在のスレッドが取得したロックを記録する。
+     * <p/>
+     * 同じトランザクション内で既に記録した行データの場合は、最初に取得した時刻を保持する。
+     *
+     * @param key 行データのキー
+     */
+    private void record(VersionKey key) {
+        Map<VersionKey, Hold> threadHolds = holds.get();
+        if (threadHolds == null) {
+            threadHolds = new ConcurrentHashMap<VersionKey, Hold>();
+            holds.set(threadHolds);
+            registry.put(Thread.currentThread().getId(), threadHolds);
+            startWatchdogIfNecessary();
+        }
+        if (!threadHolds.containsKey(key)) {
+            threadHolds.put(key, new Hold(key, Thread.currentThread()));
+        }
+    }
+
+    /**
+     * 保持時間が閾値を超えたロックを通知し、現在のスレッドの記録を破棄する。
+     */
+    private void release() {
+        final Map<VersionKey, Hold> threadHolds = holds.get();
+        if (threadHolds == null) {
+            return;
+        }
+        holds.remove();
+        registry.remove(Thread.currentThread().getId());
+        final long now = System.nanoTime();
+        for (Hold hold : threadHolds.values()) {
+            reportIfExceeded(hold, now);
+        }
+    }
+
+    /**
+     * 保持時間が閾値を超えている場合に、ロックを通知する。
+     * @param hold ロック
+     * @param now 現在時刻({@link System#nanoTime()}の値)
+     * @return 通知したロック。通知しなかった場合は{@code null}
+     */
+    private HeldLock reportIfExceeded(Hold hold, long now) {
+        if (now - hold.acquiredAtNanos < thresholdNanos || !hold.markReported()) {
+            return null;
+        }
+        final HeldLock lock = hold.toHeldLock(now);
+        if (LOGGER.isWarnEnabled()) {
+            LOGGER.logWarn("pessimistic lock has been held longer than the threshold. heldMillis = ["
+                    + TimeUnit.NANOSECONDS.toMillis(lock.getHeldNanos()) + "], thread = [" + lock.getThreadName()
+                    + "], " + lock.getKey());
+        }
+        final LockHoldListener current = listener;
+        if (current != null) {
+            current.onLongHold(lock);
+        }
+        return lock;
+    }
+
+    /**
+     * 監視する間隔が設定されている場合に、監視スレッドを開始する。
+     */
+    private synchronized void startWatchdogIfNecessary() {
+        if (watchdog != null || checkIntervalMillis == 0) {
+            return;
+        }
+        watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "exclusive-control-lock-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    checkHoldTimes();
+                } catch (RuntimeException e) {
+                    // 監視を継続するため、例外は記録して握りつぶす。
+                    LOGGER.logWarn("failed to check lock hold times.", e);
+                }
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 記録したロック。
+     */
+    private static final class Hold {
+
+        /** 行データのキー */
+        private final VersionKey key;
+
+        /** ロックを取得したスレッドの名前 */
+        private final String threadName;
+
+        /** ロックを取得したスレッドの識別子 */
+        private final long threadId;
+
+        /** ロックを取得した時刻(エポックミリ秒) */
+        private final long acquiredAtMillis;
+
+        /** ロックを取得した時刻({@link System#nanoTime()}の値) */
+        private final long acquiredAtNanos;
+
+        /** 通知済みの場合は{@code true} */
+        private boolean reported;
+
+        /**
+         * コンストラクタ。
+         * @param key 行データのキー
+         * @param thread ロックを取得したスレッド
+         */
+        Hold(VersionKey key, Thread thread) {
+            this.key = key;
+            this.threadName = thread.getName();
+            this.threadId = thread.getId();
+            this.acquiredAtMillis = System.currentTimeMillis();
+            this.acquiredAtNanos = System.nanoTime();
+        }
+
+        /**
+         * 通知済みとする。
+         * @return 未通知だった場合は{@code true}
+         */
+        synchronized boolean markReported() {
+            if (reported) {
+                return false;
+            }
+            reported = true;
+            return true;
+        }
+
+        /**
+         * 指定された時点の情報を生成する。
+         * @param now 現在時刻({@link System#nanoTime()}の値)
+         * @return ロックの情報
+         */
+        HeldLock toHeldLock(long now) {
+            return new HeldLock(key, threadName, threadId, acquiredAtMillis, now - acquiredAtNanos);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 値を2の累乗の区間に分けて集計するヒストグラム。
+ * <p/>
+ * 値の記録はロックを使用せずに行うため、複数スレッドから同時に記録できる。
+ * パーセンタイルは値が属する区間の上限値で近似するため、最大で実際の値の2倍程度の誤差を含む。
+ * 負の値は0として記録する。
+ */
+@Published(tag = "architect")
+public class Log2Histogram {
+
+    /** 区間の数 */
+    private static final int BUCKET_COUNT = 64;
+
+    /** 区間毎の件数 */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /** 件数 */
+    private final AtomicLong count = new AtomicLong();
+
+    /** 合計値 */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** 最大値 */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 値を記録する。
+     * @param value 値
+     */
+    public void record(long value) {
+        final long v = value < 0 ? 0 : value;
+        buckets.incrementAndGet(bucketOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current;
+        while (v > (current = max.get())) {
+            if (max.compareAndSet(current, v)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 記録した件数を取得する。
+     * @return 件数
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 記録した値の合計値を取得する。
+     * @return 合計値
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * 記録した値の最大値を取得する。
+     * @return 最大値。記録していない場合は0
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 記録した値の平均値を取得する。
+     * @return 平均値。記録していない場合は0
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * パーセンタイルの近似値を取得する。
+     * @param percentile パーセンタイル(0より大きく100以下)
+     * @return パーセンタイルの値が属する区間の上限値(最大値を超えない)。記録していない場合は0
+     */
+    public long getPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]. percentile = [" + percentile + ']');
+        }
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 値が属する区間を取得する。
+     * @param value 値(0以上)
+     * @return 区間
+     */
+    private static int bucketOf(long value) {
+        return Math.min(BUCKET_COUNT - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * 区間の上限値を取得する。
+     * @param bucket 区間
+     * @return 上限値
+     */
+    private static long upperBoundOf(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count = [%d], mean = [%.1f], p50 = [%d], p99 = [%d], max = [%d]",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,313 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 委譲先の{@link ExclusiveControlManager}の呼び出しを計測する{@link ExclusiveControlManager}。
+ * <p/>
+ * 排他制御用テーブル毎に、以下の値を{@link ExclusiveControlMetrics}に記録する。
+ * <ul>
+ *     <li>操作毎の所要時間</li>
+ *     <li>1回の操作で指定されたバージョン番号の件数</li>
+ *     <li>楽観的ロックのチェック件数とエラー件数({@link OptimisticLockException#getErrorVersions()}から算出)</li>
+ * </ul>
+ * 複数のテーブルのバージョン番号を指定した操作の所要時間は、操作全体の所要時間を各テーブルに記録する。
+ * <p/>
+ * 記録先を設定しない場合は{@link InMemoryExclusiveControlMetrics}に記録する。
+ */
+public class MetricsExclusiveControlManager extends ExclusiveControlManagerWrapper {
+
+    /** 計測した値の記録先 */
+    private ExclusiveControlMetrics metrics = new InMemoryExclusiveControlMetrics();
+
+    /**
+     * 計測した値の記録先を設定する。
+     * @param metrics 計測した値の記録先
+     */
+    public void setMetrics(ExclusiveControlMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 計測した値の記録先を取得する。
+     * @return 計測した値の記録先
+     */
+    public ExclusiveControlMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public Version getVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        try {
+            return super.getVersion(context);
+        } finally {
+            metrics.recordLatency(context.getTableName(), ExclusiveControlOperation.GET_VERSION, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<Version> getVersions(List<? extends ExclusiveControlContext> contexts) {
+        final long start = System.nanoTime();
+        try {
+            return super.getVersions(contexts);
+        } finally {
+            recordContexts(ExclusiveControlOperation.GET_VERSIONS, contexts, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        final long start = System.nanoTime();
+        List<Version> errorVersions = Collections.emptyList();
+        try {
+            super.checkVersions(versions);
+        } catch (OptimisticLockException e) {
+            errorVersions = e.getErrorVersions();
+            throw e;
+        } finally {
+            recordVersions(ExclusiveControlOperation.CHECK_VERSIONS, versions, errorVersions, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        final long start = System.nanoTime();
+        List<Version> errorVersions = Collections.emptyList();
+        try {
+            super.updateVersionsWithCheck(versions);
+        } catch (OptimisticLockException e) {
+            errorVersions = e.getErrorVersions();
+            throw e;
+        } finally {
+            recordVersions(ExclusiveControlOperation.UPDATE_VERSIONS_WITH_CHECK, versions, errorVersions,
+                           System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        final long start = System.nanoTime();
+        final VersionCheckResult result = super.tryCheckVersions(versions);
+        recordVersions(ExclusiveControlOperation.CHECK_VERSIONS, versions, result.getErrorVersions(),
+                       System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        final long start = System.nanoTime();
+        final VersionCheckResult result = super.tryUpdateVersionsWithCheck(versions);
+        recordVersions(ExclusiveControlOperation.UPDATE_VERSIONS_WITH_CHECK, versions, result.getErrorVersions(),
+                       System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public void updateVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        try {
+            super.updateVersion(context);
+        } finally {
+            metrics.recordLatency(context.getTableName(), ExclusiveControlOperation.UPDATE_VERSION, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        final long start = System.nanoTime();
+        try {
+            super.updateVersions(contexts);
+        } finally {
+            recordContexts(ExclusiveControlOperation.UPDATE_VERSIONS, contexts, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        final boolean acquired = super.tryUpdateVersion(context);
+        recordTryUpdateVersion(context, acquired, System.nanoTime() - start);
+        return acquired;
+    }
+
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        final long start = System.nanoTime();
+        final boolean acquired = super.tryUpdateVersion(context, timeout, unit);
+        recordTryUpdateVersion(context, acquired, System.nanoTime() - start);
+        return acquired;
+    }
+
+    @Override
+    public void addVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        try {
+            super.addVersion(context);
+        } finally {
+            metrics.recordLatency(context.getTableName(), ExclusiveControlOperation.ADD_VERSION, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void removeVersion(ExclusiveControlContext context) {
+        final long start = System.nanoTime();
+        try {
+            super.removeVersion(context);
+        } finally {
+            metrics.recordLatency(context.getTableName(), ExclusiveControlOperation.REMOVE_VERSION, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void addVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        final long start = System.nanoTime();
+        try {
+            super.addVersions(countTables(contexts, counts));
+        } finally {
+            recordCounts(ExclusiveControlOperation.ADD_VERSIONS, counts, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void removeVersions(Iterable<? extends ExclusiveControlContext> contexts) {
+        final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        final long start = System.nanoTime();
+        try {
+            super.removeVersions(countTables(contexts, counts));
+        } finally {
+            recordCounts(ExclusiveControlOperation.REMOVE_VERSIONS, counts, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * バージョン番号を指定した操作の計測値をテーブル毎に記録する。
+     * @param operation 操作
+     * @param versions 指定されたバージョン番号
+     * @param errorVersions 楽観的ロックエラーとなったバージョン番号
+     * @param elapsedNanos 所要時間(ナノ秒)
+     */
+    private void recordVersions(ExclusiveControlOperation operation, List<Version> versions,
+                                List<Version> errorVersions, long elapsedNanos) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        final String tableName = singleTableName(versions);
+        if (tableName != null) {
+            metrics.recordLatency(tableName, operation, elapsedNanos);
+            metrics.recordBatchSize(tableName, operation, versions.size());
+            metrics.recordVersionCheck(tableName, operation, versions.size(), errorVersions.size());
+            return;
+        }
+
+        final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        for (Version version : versions) {
+            count(counts, version.getTableName())[0]++;
+        }
+        for (Version version : errorVersions) {
+            count(counts, version.getTableName())[1]++;
+        }
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            final int[] count = entry.getValue();
+            metrics.recordLatency(entry.getKey(), operation, elapsedNanos);
+            metrics.recordBatchSize(entry.getKey(), operation, count[0]);
+            metrics.recordVersionCheck(entry.getKey(), operation, count[0], count[1]);
+        }
+    }
+
+    /**
+     * ロックの取得を試みた操作の所要時間を記録する。
+     * <p/>
+     * ロックを取得できた場合は{@link ExclusiveControlOperation#UPDATE_VERSION}、
+     * 取得できなかった場合は{@link ExclusiveControlOperation#UPDATE_VERSION_TIMEOUT}として記録する。
+     *
+     * @param context 排他制御コンテキスト
+     * @param acquired ロックを取得できた場合は{@code true}
+     * @param elapsedNanos 所要時間(ナノ秒)
+     */
+    private void recordTryUpdateVersion(ExclusiveControlContext context, boolean acquired, long elapsedNanos) {
+        metrics.recordLatency(context.getTableName(),
+                acquired ? ExclusiveControlOperation.UPDATE_VERSION : ExclusiveControlOperation.UPDATE_VERSION_TIMEOUT,
+                elapsedNanos);
+    }
+
+    /**
+     * 排他制御コンテキストを指定した操作の計測値をテーブル毎に記録する。
+     * @param operation 操作
+     * @param contexts 指定された排他制御コンテキスト
+     * @param elapsedNanos 所要時間(ナノ秒)
+     */
+    private void recordContexts(ExclusiveControlOperation operation, List<? extends ExclusiveControlContext> contexts,
+                                long elapsedNanos) {
+        final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        for (ExclusiveControlContext context : contexts) {
+            count(counts, context.getTableName())[0]++;
+        }
+        recordCounts(operation, counts, elapsedNanos);
+    }
+
+    /**
+     * 委譲先が走査した排他制御コンテキストの件数をテーブル毎に数える{@link Iterable}を生成する。
+     * @param contexts 排他制御コンテキスト
+     * @param counts テーブル毎の件数の格納先
+     * @return 委譲先に引き渡す{@link Iterable}
+     */
+    private Iterable<ExclusiveControlContext> countTables(Iterable<? extends ExclusiveControlContext> contexts,
+                                                          final Map<String, int[]> counts) {
+        return new ContextVisitingIterable(contexts) {
+            @Override
+            void visit(ExclusiveControlContext context) {
+                count(counts, context.getTableName())[0]++;
+            }
+        };
+    }
+
+    /**
+     * テーブル毎の件数から、排他制御コンテキストを指定した操作の計測値を記録する。
+     * @param operation 操作
+     * @param counts テーブル毎の件数
+     * @param elapsedNanos 経過時間(ナノ秒)
+     */
+    private void recordCounts(ExclusiveControlOperation operation, Map<String, int[]> counts, long elapsedNanos) {
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            metrics.recordLatency(entry.getKey(), operation, elapsedNanos);
+            metrics.recordBatchSize(entry.getKey(), operation, entry.getValue()[0]);
+        }
+    }
+
+    /**
+     * 全てのバージョン番号が同じテーブルの場合に、そのテーブル名を取得する。
+     * @param versions バージョン番号(1件以上)
+     * @return テーブル名。複数のテーブルを含む場合は{@code null}
+     */
+    private static String singleTableName(List<Version> versions) {
+        final String tableName = versions.get(0).getTableName();
+        for (int i = 1, size = versions.size(); i < size; i++) {
+            final String other = versions.get(i).getTableName();
+            if (other != tableName && !other.equals(tableName)) {
+                return null;
+            }
+        }
+        return tableName;
+    }
+
+    /**
+     * テーブル毎の件数(チェック件数、エラー件数)を取得する。存在しない場合は生成する。
+     * @param counts テーブル毎の件数
+     * @param tableName テーブル名
+     * @return 件数
+     */
+    private static int[] count(Map<String, int[]> counts, String tableName) {
+        int[] count = counts.get(tableName);
+        if (count == null) {
+            count = new int[2];
+            counts.put(tableName, count);
+        }
+        return count;
+    }
+}
@@ -30,6 +30,19 @@ public class OptimisticLockException extends ApplicationException {
         }
     }
     
+    /**
+     * スタックトレースを持たないインスタンスを生成する。
+     * <p/>
+     * 楽観的ロックエラーを再試行などで頻繁に処理する場合に、スタックトレースの生成コストを削減するために使用する。
+     *
+     * @param errorVersions 楽観的ロックエラーが発生したバージョン情報のリスト
+     * @param message 結果メッセージ
+     * @return スタックトレースを持たないインスタンス
+     */
+    public static OptimisticLockException withoutStackTrace(List<Version> errorVersions, Message message) {
+        return new Lightweight(errorVersions, message);
+    }
+
     /**
      * 楽観的ロックエラーが発生したバージョン番号を取得する。
      * @return 楽観的ロックエラーが発生したバージョン番号
@@ -37,4 +50,32 @@ public class OptimisticLockException extends ApplicationException {
     public List<Version> getErrorVersions() {
         return errorVersions;
     }
+
+    /**
+     * スタックトレースを持たない{@link OptimisticLockException}。
+     */
+    private static final class Lightweight extends OptimisticLockException {
+
+        /** シリアルバージョンUID */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * インスタンスを生成する。
+         *
+         * @param errorVersions 楽観的ロックエラーが発生したバージョン情報のリスト
+         * @param message 結果メッセージ
+         */
+        Lightweight(List<Version> errorVersions, Message message) {
+            super(errorVersions, message);
+        }
+
+        /**
+         * スタックトレースを生成しない。
+         * @return 本オブジェクト
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
 }
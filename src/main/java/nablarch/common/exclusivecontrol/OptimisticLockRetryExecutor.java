@@ -0,0 +1,423 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.util.annotation.Published;
+import nablarch.core.util.map.LRUMap;
+
+/**
+ * 楽観的ロックエラーが発生した処理を再実行するクラス。
+ * <p/>
+ * 処理が{@link OptimisticLockException}を送出した場合に、待ち時間を空けて最大試行回数まで処理を再実行する。
+ * 待ち時間は試行毎に倍増する上限値と0の間の乱数とし、同じ行データを更新する処理が同時に再実行されることを防ぐ。
+ * <p/>
+ * 排他制御用テーブル毎と行データ毎に、楽観的ロックエラーの発生率を指数移動平均により学習し、以下のように使用する。
+ * 発生率は、楽観的ロックエラーが発生した場合と、処理が成功した場合に処理が扱った全ての行データについて更新する。
+ * 処理が扱った行データとは、{@link Attempt#lockIfContended(ExclusiveControlContext)}に指定した行データと、
+ * 楽観的ロックエラーが発生した行データである。
+ * <ul>
+ *     <li>テーブルの発生率が高いほど、待ち時間の上限値を引き延ばす。</li>
+ *     <li>行データの発生率が閾値以上の場合、{@link Attempt#lockIfContended(ExclusiveControlContext)}により
+ *     悲観的ロック({@link ExclusiveControlManager#updateVersion(ExclusiveControlContext)})を取得する。
+ *     競合の多い行データでは、楽観的ロックによる再実行を繰り返すよりも悲観的ロックで待ち合わせる方が効率が良い。</li>
+ * </ul>
+ * 処理は試行毎に新たなトランザクションで実行する必要がある。
+ * 本クラスはトランザクションを制御しないため、処理の中でトランザクションを開始、終了すること。
+ * トランザクション内から本クラスを呼び出してはならない。
+ */
+@Published(tag = "architect")
+public class OptimisticLockRetryExecutor {
+
+    /** 最大試行回数のデフォルト値 */
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /** 待ち時間の初期値(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 10L;
+
+    /** 待ち時間の最大値(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 1000L;
+
+    /** 指数移動平均の平滑化係数のデフォルト値 */
+    private static final double DEFAULT_SMOOTHING_FACTOR = 0.2;
+
+    /** 悲観的ロックに切り替える発生率の閾値のデフォルト値 */
+    private static final double DEFAULT_PESSIMISTIC_THRESHOLD = 0.5;
+
+    /** 発生率を保持する行データの件数の上限のデフォルト値 */
+    private static final int DEFAULT_MAX_TRACKED_ROWS = 1024;
+
+    /** 待ち時間の上限値を引き延ばす際に使用する発生率の最大値 */
+    private static final double MAX_STRETCH_RATE = 0.9;
+
+    /** 悲観的ロックに使用する{@link ExclusiveControlManager}(未設定の場合は{@link ExclusiveControlUtil}を使用する) */
+    private ExclusiveControlManager exclusiveControlManager;
+
+    /** 最大試行回数 */
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** 待ち時間の初期値(ミリ秒) */
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+
+    /** 待ち時間の最大値(ミリ秒) */
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    /** 指数移動平均の平滑化係数 */
+    private double smoothingFactor = DEFAULT_SMOOTHING_FACTOR;
+
+    /** 悲観的ロックに切り替える発生率の閾値 */
+    private double pessimisticThreshold = DEFAULT_PESSIMISTIC_THRESHOLD;
+
+    /** テーブル毎の発生率({@link Double#doubleToLongBits(double)}で変換した値) */
+    private final ConcurrentMap<String, AtomicLong> tableRates = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** 行データ毎の発生率 */
+    private Map<VersionKey, double[]> rowRates = new LRUMap<VersionKey, double[]>(DEFAULT_MAX_TRACKED_ROWS);
+
+    /** 待ち時間の乱数 */
+    private final Random random = new Random();
+
+    /**
+     * 処理を表すインタフェース。
+     * @param <T> 処理結果の型
+     */
+    @Published(tag = "architect")
+    public interface Work<T> {
+
+        /**
+         * 処理を実行する。
+         * @param attempt 試行の情報
+         * @return 処理結果
+         * @throws OptimisticLockException 楽観的ロックエラーが発生した場合
+         */
+        T execute(Attempt attempt) throws OptimisticLockException;
+    }
+
+    /**
+     * 試行の情報を表すクラス。
+     */
+    @Published(tag = "architect")
+    public final class Attempt {
+
+        /** 試行回数(1始まり) */
+        private final int number;
+
+        /** この試行で悲観的ロックを取得した行データ */
+        private final Set<VersionKey> lockedKeys;
+
+        /** この処理が扱った行データ */
+        private final Set<VersionKey> touchedKeys;
+
+        /**
+         * コンストラクタ。
+         * @param number 試行回数
+         * @param lockedKeys 悲観的ロックを取得した行データ
+         * @param touchedKeys 処理が扱った行データ
+         */
+        private Attempt(int number, Set<VersionKey> lockedKeys, Set<VersionKey> touchedKeys) {
+            this.number = number;
+            this.lockedKeys = lockedKeys;
+            this.touchedKeys = touchedKeys;
+        }
+
+        /**
+         * 試行回数(1始まり)を取得する。
+         * @return 試行回数
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * 行データの楽観的ロックエラーの発生率が閾値以上の場合に、悲観的ロックを取得する。
+         * <p/>
+         * 悲観的ロックを取得した場合、行データのバージョン番号は更新される。
+         * 呼び出し元は、この行データに対する楽観的ロックのチェックと更新を省略すること。
+         * <p/>
+         * 指定した行データは、処理が成功した場合に発生率を減衰させる対象となる。
+         * 発生率を正しく学習するため、処理が更新する全ての行データについて本メソッドを呼び出すこと。
+         *
+         * @param context 排他制御コンテキスト
+         * @return 悲観的ロックを取得した場合は{@code true}
+         */
+        public boolean lockIfContended(ExclusiveControlContext context) {
+            final VersionKey key = context.getKey();
+            touchedKeys.add(key);
+            if (lockedKeys.contains(key)) {
+                return true;
+            }
+            if (getConflictRate(key) < pessimisticThreshold) {
+                return false;
+            }
+            if (exclusiveControlManager == null) {
+                ExclusiveControlUtil.updateVersion(context);
+            } else {
+                exclusiveControlManager.updateVersion(context);
+            }
+            lockedKeys.add(key);
+            return true;
+        }
+    }
+
+    /**
+     * 悲観的ロックに使用する{@link ExclusiveControlManager}を設定する。
+     * <p/>
+     * 設定しない場合は{@link ExclusiveControlUtil}を使用する。
+     *
+     * @param exclusiveControlManager {@link ExclusiveControlManager}
+     */
+    public void setExclusiveControlManager(ExclusiveControlManager exclusiveControlManager) {
+        this.exclusiveControlManager = exclusiveControlManager;
+    }
+
+    /**
+     * 最大試行回数を設定する。デフォルトは5。
+     * @param maxAttempts 最大試行回数
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0. maxAttempts = [" + maxAttempts + ']');
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * 待ち時間の初期値(ミリ秒)を設定する。デフォルトは10。
+     * @param baseDelayMillis 待ち時間の初期値(ミリ秒)
+     */
+    public void setBaseDelayMillis(long baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    /**
+     * 待ち時間の最大値(ミリ秒)を設定する。デフォルトは1000。
+     * @param maxDelayMillis 待ち時間の最大値(ミリ秒)
+     */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * 発生率の指数移動平均の平滑化係数(0より大きく1以下)を設定する。デフォルトは0.2。
+     * <p/>
+     * 値が大きいほど直近の結果を重視する。
+     *
+     * @param smoothingFactor 平滑化係数
+     */
+    public void setSmoothingFactor(double smoothingFactor) {
+        if (!(smoothingFactor > 0 && smoothingFactor <= 1)) {
+            throw new IllegalArgumentException(
+                    "smoothingFactor must be in (0, 1]. smoothingFactor = [" + smoothingFactor + ']');
+        }
+        this.smoothingFactor = smoothingFactor;
+    }
+
+    /**
+     * 悲観的ロックに切り替える行データの発生率の閾値を設定する。デフォルトは0.5。
+     * @param pessimisticThreshold 閾値
+     */
+    public void setPessimisticThreshold(double pessimisticThreshold) {
+        this.pessimisticThreshold = pessimisticThreshold;
+    }
+
+    /**
+     * 発生率を保持する行データの件数の上限を設定する。デフォルトは1024。
+     * <p/>
+     * 上限を超えた場合は、最も長く参照されていない行データの発生率から破棄する。
+     *
+     * @param maxTrackedRows 件数の上限
+     */
+    public void setMaxTrackedRows(int maxTrackedRows) {
+        rowRates = new LRUMap<VersionKey, double[]>(maxTrackedRows);
+    }
+
+    /**
+     * 処理を実行する。
+     * <p/>
+     * 処理が{@link OptimisticLockException}を送出した場合は、最大試行回数まで再実行する。
+     * 待機中にスレッドが割り込まれた場合は、スレッドの割り込み状態を再設定して最後の例外を送出する。
+     *
+     * @param work 処理
+     * @param <T> 処理結果の型
+     * @return 処理結果
+     * @throws OptimisticLockException 最大試行回数まで楽観的ロックエラーが発生した場合
+     */
+    public <T> T execute(Work<T> work) throws OptimisticLockException {
+        final Set<VersionKey> touchedKeys = new HashSet<VersionKey>();
+        for (int number = 1; ; number++) {
+            final Set<VersionKey> lockedKeys = new HashSet<VersionKey>();
+            try {
+                final T result = work.execute(new Attempt(number, lockedKeys, touchedKeys));
+                recordSuccess(touchedKeys);
+                return result;
+            } catch (OptimisticLockException e) {
+                final Set<String> tableNames = recordConflict(e, touchedKeys);
+                if (number >= maxAttempts) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(nextDelayMillis(number, tableNames));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * テーブルの楽観的ロックエラーの発生率を取得する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @return 発生率(0以上1以下)
+     */
+    public double getConflictRate(String tableName) {
+        final AtomicLong rate = tableRates.get(tableName);
+        return rate == null ? 0 : Double.longBitsToDouble(rate.get());
+    }
+
+    /**
+     * 行データの楽観的ロックエラーの発生率を取得する。
+     * @param key 行データのキー
+     * @return 発生率(0以上1以下)
+     */
+    public double getConflictRate(VersionKey key) {
+        synchronized (this) {
+            final double[] rate = rowRates.get(key);
+            return rate == null ? 0 : rate[0];
+        }
+    }
+
+    /**
+     * 次の試行までの待ち時間(ミリ秒)を算出する。
+     * <p/>
+     * 上限値は、待ち時間の初期値を試行毎に倍増させた値(最大値まで)を、
+     * 楽観的ロックエラーが発生したテーブルの最大の発生率{@code r}により{@code 1 / (1 - r)}倍に引き延ばした値とする。
+     *
+     * @param number 試行回数
+     * @param tableNames 楽観的ロックエラーが発生したテーブル
+     * @return 待ち時間(ミリ秒)
+     */
+    protected long nextDelayMillis(int number, Set<String> tableNames) {
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(number - 1, 30));
+        double rate = 0;
+        for (String tableName : tableNames) {
+            rate = Math.max(rate, getConflictRate(tableName));
+        }
+        final double stretched = ceiling / (1 - Math.min(rate, MAX_STRETCH_RATE));
+        final long bound = (long) Math.min(stretched, maxDelayMillis);
+        if (bound <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * (bound + 1));
+        }
+    }
+
+    /**
+     * 楽観的ロックエラーの発生を記録する。
+     * @param e 楽観的ロックエラー
+     * @param touchedKeys この処理が扱った行データ(楽観的ロックエラーが発生した行データを追加する)
+     * @return 楽観的ロックエラーが発生したテーブル
+     */
+    private Set<String> recordConflict(OptimisticLockException e, Set<VersionKey> touchedKeys) {
+        final Set<String> tableNames = new HashSet<String>();
+        for (Version version : e.getErrorVersions()) {
+            tableNames.add(version.getTableName());
+            touchedKeys.add(version.getKey());
+        }
+        for (String tableName : tableNames) {
+            updateTableRate(tableName, 1);
+        }
+        synchronized (this) {
+            for (Version version : e.getErrorVersions()) {
+                updateRowRate(version.getKey(), 1);
+            }
+        }
+        return tableNames;
+    }
+
+    /**
+     * 処理の成功を記録する。
+     * <p/>
+     * この処理が扱った全ての行データとそのテーブルの発生率を減衰させる。
+     * 競合の無い処理の結果も学習することで、まれに競合する行データの発生率が閾値に達することを防ぐ。
+     *
+     * @param keys この処理が扱った行データ
+     */
+    private void recordSuccess(Set<VersionKey> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final Set<String> tableNames = new HashSet<String>();
+        for (VersionKey key : keys) {
+            tableNames.add(key.getTableName());
+        }
+        for (String tableName : tableNames) {
+            updateTableRate(tableName, 0);
+        }
+        synchronized (this) {
+            for (VersionKey key : keys) {
+                updateRowRate(key, 0);
+            }
+        }
+    }
+
+    /**
+     * テーブルの発生率を更新する。
+     * @param tableName テーブル名
+     * @param sample 今回の結果(楽観的ロックエラーの場合は1)
+     */
+    private void updateTableRate(String tableName, double sample) {
+        AtomicLong rate = tableRates.get(tableName);
+        if (rate == null) {
+            if (sample == 0) {
+                // 発生率は0のままのため、保持しない
+                return;
+            }
+            final AtomicLong created = new AtomicLong(Double.doubleToLongBits(0));
+            rate = tableRates.putIfAbsent(tableName, created);
+            if (rate == null) {
+                rate = created;
+            }
+        }
+        long current;
+        double next;
+        do {
+            current = rate.get();
+            next = ewma(Double.longBitsToDouble(current), sample);
+        } while (!rate.compareAndSet(current, Double.doubleToLongBits(next)));
+    }
+
+    /**
+     * 行データの発生率を更新する。呼び出し元で本オブジェクトの排他を取得していること。
+     * @param key 行データのキー
+     * @param sample 今回の結果(楽観的ロックエラーの場合は1)
+     */
+    private void updateRowRate(VersionKey key, double sample) {
+        double[] rate = rowRates.get(key);
+        if (rate == null) {
+            if (sample == 0) {
+                // 発生率は0のままのため、保持しない
+                return;
+            }
+            rate = new double[1];
+            rowRates.put(key, rate);
+        }
+        rate[0] = ewma(rate[0], sample);
+    }
+
+    /**
+     * 指数移動平均を算出する。
+     * @param average これまでの平均
+     * @param sample 今回の結果
+     * @return 更新後の平均
+     */
+    private double ewma(double average, double sample) {
+        return average + smoothingFactor * (sample - average);
+    }
+}
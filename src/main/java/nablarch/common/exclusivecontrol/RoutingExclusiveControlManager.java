@@ -0,0 +1,505 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 排他制御用テーブル又は主キーにより、複数の{@link ExclusiveControlManager}に処理を振り分ける{@link ExclusiveControlManager}。
+ * <p/>
+ * 振り分け先は以下の順に決定する。
+ * <ol>
+ *     <li>テーブル名に対応する振り分け先({@link #setTableManagers(Map)})</li>
+ *     <li>行データのキー({@link VersionKey})のハッシュ値に対応するシャード({@link #setShards(List)})</li>
+ * </ol>
+ * シャードによる振り分けは、プロセス間で同じ行データが同じシャードに振り分けられるように、
+ * ハッシュ値が仕様で定められている型({@link String}、数値の型など)の主キーに対して使用すること。
+ * <p/>
+ * 複数のバージョン番号を指定した操作は、振り分け先毎に分割して委譲し、結果をまとめる。
+ * 複数の振り分け先にまたがる{@link #updateVersionsWithCheck(List)}は、
+ * 全ての振り分け先でバージョン番号をチェックした後に、振り分け先毎にチェックと更新を行う。
+ * チェックから更新までの間に他のトランザクションが更新した場合は、先に更新した振り分け先のバージョン番号は更新されたままとなる。
+ * この場合も、更新されたバージョン番号は他のトランザクションの楽観的ロックエラーを発生させる方向にのみ作用する。
+ * <p/>
+ * 複数の行データの悲観的ロックは、振り分け先をテーブル名の昇順、シャードの設定順に並べた順序で取得するため、
+ * 振り分け先をまたがるデッドロックは発生しない。
+ * トランザクションの終了通知は、{@link ExclusiveControlTransactionListener}を実装した全ての振り分け先に、
+ * コミット後の通知は、{@link ExclusiveControlCommitListener}を実装した全ての振り分け先に通知する。
+ */
+public class RoutingExclusiveControlManager extends ExclusiveControlManagerSupport
+        implements ExclusiveControlTransactionListener, ExclusiveControlCommitListener {
+
+    /** テーブル名に対応する振り分け先 */
+    private Map<String, ExtendedExclusiveControlManager> tableManagers =
+            Collections.<String, ExtendedExclusiveControlManager>emptyMap();
+
+    /** シャード */
+    private List<ExtendedExclusiveControlManager> shards = Collections.emptyList();
+
+    /** 全ての振り分け先(テーブル名の昇順、シャードの設定順) */
+    private List<ExtendedExclusiveControlManager> managers = Collections.emptyList();
+
+    /** 全ての振り分け先の拡張機能を付与する前のオブジェクト({@link #managers}と同じ順序) */
+    private List<ExclusiveControlManager> delegates = Collections.emptyList();
+
+    /** 拡張機能を付与した振り分け先 */
+    private final Map<ExclusiveControlManager, ExtendedExclusiveControlManager> adapters =
+            new IdentityHashMap<ExclusiveControlManager, ExtendedExclusiveControlManager>();
+
+    /**
+     * テーブル名に対応する振り分け先を設定する。
+     * @param tableManagers テーブル名に対応する振り分け先
+     */
+    public void setTableManagers(Map<String, ? extends ExclusiveControlManager> tableManagers) {
+        final Map<String, ExtendedExclusiveControlManager> extended = new TreeMap<String, ExtendedExclusiveControlManager>();
+        for (Map.Entry<String, ? extends ExclusiveControlManager> entry : tableManagers.entrySet()) {
+            extended.put(entry.getKey(), adapt(entry.getValue()));
+        }
+        this.tableManagers = extended;
+        refreshManagers();
+    }
+
+    /**
+     * 行データのキーのハッシュ値により振り分けるシャードを設定する。
+     * <p/>
+     * シャードの数と順序を変更すると振り分け先が変わるため、運用中に変更しないこと。
+     *
+     * @param shards シャード
+     */
+    public void setShards(List<? extends ExclusiveControlManager> shards) {
+        final List<ExtendedExclusiveControlManager> extended = new ArrayList<ExtendedExclusiveControlManager>(shards.size());
+        for (ExclusiveControlManager shard : shards) {
+            extended.add(adapt(shard));
+        }
+        this.shards = extended;
+        refreshManagers();
+    }
+
+    /**
+     * 行データの振り分け先を取得する。
+     * @param key 行データのキー
+     * @return 振り分け先
+     * @throws IllegalStateException 振り分け先が存在しない場合
+     */
+    protected ExtendedExclusiveControlManager route(VersionKey key) {
+        final ExtendedExclusiveControlManager manager = tableManagers.get(key.getTableName());
+        if (manager != null) {
+            return manager;
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalStateException("no exclusive control manager for the table. " + key);
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return shards.get((h & Integer.MAX_VALUE) % shards.size());
+    }
+
+    /** {@inheritDoc} */
+    public Version getVersion(ExclusiveControlContext context) {
+        return route(context.getKey()).getVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public void checkVersions(List<Version> versions) throws OptimisticLockException {
+        final Map<ExtendedExclusiveControlManager, List<Version>> groups = groupVersions(versions);
+        if (groups.size() == 1) {
+            final Map.Entry<ExtendedExclusiveControlManager, List<Version>> group = groups.entrySet().iterator().next();
+            group.getKey().checkVersions(group.getValue());
+            return;
+        }
+        throwIfFailed(tryCheckVersions(groups));
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersionsWithCheck(List<Version> versions) throws OptimisticLockException {
+        final Map<ExtendedExclusiveControlManager, List<Version>> groups = groupVersions(versions);
+        if (groups.size() == 1) {
+            final Map.Entry<ExtendedExclusiveControlManager, List<Version>> group = groups.entrySet().iterator().next();
+            group.getKey().updateVersionsWithCheck(group.getValue());
+            return;
+        }
+        throwIfFailed(tryUpdateVersionsWithCheck(groups));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public VersionCheckResult tryCheckVersions(List<Version> versions) {
+        return tryCheckVersions(groupVersions(versions));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 複数の振り分け先にまたがる場合は、全ての振り分け先でチェックした後に、振り分け先毎にチェックと更新を行う。
+     */
+    @Override
+    public VersionCheckResult tryUpdateVersionsWithCheck(List<Version> versions) {
+        return tryUpdateVersionsWithCheck(groupVersions(versions));
+    }
+
+    /** {@inheritDoc} */
+    public void updateVersion(ExclusiveControlContext context) {
+        route(context.getKey()).updateVersion(context);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 振り分け先をテーブル名の昇順、シャードの設定順に並べた順序で、振り分け先毎の排他制御コンテキストを委譲する。
+     */
+    @Override
+    public void updateVersions(List<? extends ExclusiveControlContext> contexts) {
+        final Map<ExtendedExclusiveControlManager, List<ExclusiveControlContext>> groups = groupContexts(contexts);
+        for (ExtendedExclusiveControlManager manager : managers) {
+            final List<ExclusiveControlContext> group = groups.get(manager);
+            if (group != null) {
+                manager.updateVersions(group);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context) {
+        return route(context.getKey()).tryUpdateVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean tryUpdateVersion(ExclusiveControlContext context, long timeout, TimeUnit unit) {
+        return route(context.getKey()).tryUpdateVersion(context, timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    public void addVersion(ExclusiveControlContext context) {
+        route(context.getKey()).addVersion(context);
+    }
+
+    /** {@inheritDoc} */
+    public void removeVersion(ExclusiveControlContext context) {
+        route(context.getKey()).removeVersion(context);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * チャンクを振り分け先毎に分割して委譲し、結果をチャンクの順序に並べ替える。
+     */
+    @Override
+    protected List<Version> getVersionsChunk(List<ExclusiveControlContext> chunk) {
+        final Map<ExtendedExclusiveControlManager, List<Integer>> groups =
+                new IdentityHashMap<ExtendedExclusiveControlManager, List<Integer>>();
+        for (int i = 0, size = chunk.size(); i < size; i++) {
+            final ExtendedExclusiveControlManager manager = route(chunk.get(i).getKey());
+            List<Integer> indexes = groups.get(manager);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                groups.put(manager, indexes);
+            }
+            indexes.add(i);
+        }
+        final List<Version> result = new ArrayList<Version>(Collections.<Version>nCopies(chunk.size(), null));
+        for (Map.Entry<ExtendedExclusiveControlManager, List<Integer>> entry : groups.entrySet()) {
+            final List<Integer> indexes = entry.getValue();
+            final List<ExclusiveControlContext> group = new ArrayList<ExclusiveControlContext>(indexes.size());
+            for (Integer index : indexes) {
+                group.add(chunk.get(index));
+            }
+            final List<Version> versions = entry.getKey().getVersions(group);
+            for (int i = 0; i < indexes.size(); i++) {
+                result.set(indexes.get(i), versions.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * チャンクを振り分け先毎に分割して委譲する。
+     */
+    @Override
+    protected void addVersionsChunk(List<ExclusiveControlContext> chunk) {
+        for (Map.Entry<ExtendedExclusiveControlManager, List<ExclusiveControlContext>> entry : groupContexts(chunk).entrySet()) {
+            entry.getKey().addVersions(entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * チャンクを振り分け先毎に分割して委譲する。
+     */
+    @Override
+    protected void removeVersionsChunk(List<ExclusiveControlContext> chunk) {
+        for (Map.Entry<ExtendedExclusiveControlManager, List<ExclusiveControlContext>> entry : groupContexts(chunk).entrySet()) {
+            entry.getKey().removeVersions(entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 全ての振り分け先に通知する。
+     */
+    public void transactionNormalEnd() {
+        RuntimeException failure = null;
+        for (ExclusiveControlManager manager : delegates) {
+            if (manager instanceof ExclusiveControlTransactionListener) {
+                try {
+                    ((ExclusiveControlTransactionListener) manager).transactionNormalEnd();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 全ての振り分け先に通知する。
+     */
+    public void transactionAbnormalEnd() {
+        RuntimeException failure = null;
+        for (ExclusiveControlManager manager : delegates) {
+            if (manager instanceof ExclusiveControlTransactionListener) {
+                try {
+                    ((ExclusiveControlTransactionListener) manager).transactionAbnormalEnd();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 全ての振り分け先に通知する。
+     */
+    public void transactionCommitted() {
+        RuntimeException failure = null;
+        for (ExclusiveControlManager manager : delegates) {
+            if (manager instanceof ExclusiveControlCommitListener) {
+                try {
+                    ((ExclusiveControlCommitListener) manager).transactionCommitted();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 全ての振り分け先に通知する。
+     */
+    public void transactionRolledBack() {
+        RuntimeException failure = null;
+        for (ExclusiveControlManager manager : delegates) {
+            if (manager instanceof ExclusiveControlCommitListener) {
+                try {
+                    ((ExclusiveControlCommitListener) manager).transactionRolledBack();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 振り分け先毎にバージョン番号をチェックし、結果をまとめる。
+     * @param groups 振り分け先毎のバージョン番号
+     * @return チェック結果
+     */
+    private VersionCheckResult tryCheckVersions(Map<ExtendedExclusiveControlManager, List<Version>> groups) {
+        final List<VersionCheckResult> results = new ArrayList<VersionCheckResult>(groups.size());
+        for (Map.Entry<ExtendedExclusiveControlManager, List<Version>> group : groups.entrySet()) {
+            results.add(group.getKey().tryCheckVersions(group.getValue()));
+        }
+        return merge(results);
+    }
+
+    /**
+     * 振り分け先毎にバージョン番号のチェックと更新を行い、結果をまとめる。
+     * @param groups 振り分け先毎のバージョン番号
+     * @return チェック結果
+     */
+    private VersionCheckResult tryUpdateVersionsWithCheck(Map<ExtendedExclusiveControlManager, List<Version>> groups) {
+        if (groups.size() > 1) {
+            final VersionCheckResult checked = tryCheckVersions(groups);
+            if (!checked.isSuccess()) {
+                return checked;
+            }
+        }
+        final List<VersionCheckResult> results = new ArrayList<VersionCheckResult>(groups.size());
+        for (Map.Entry<ExtendedExclusiveControlManager, List<Version>> group : groups.entrySet()) {
+            results.add(group.getKey().tryUpdateVersionsWithCheck(group.getValue()));
+        }
+        return merge(results);
+    }
+
+    /**
+     * バージョン番号を振り分け先毎に分割する。
+     * @param versions バージョン番号
+     * @return 振り分け先毎のバージョン番号(テーブル名の昇順、シャードの設定順)
+     */
+    private Map<ExtendedExclusiveControlManager, List<Version>> groupVersions(List<Version> versions) {
+        final Map<ExtendedExclusiveControlManager, List<Version>> groups =
+                new IdentityHashMap<ExtendedExclusiveControlManager, List<Version>>();
+        for (Version version : versions) {
+            final ExtendedExclusiveControlManager manager = route(version.getKey());
+            List<Version> group = groups.get(manager);
+            if (group == null) {
+                group = new ArrayList<Version>();
+                groups.put(manager, group);
+            }
+            group.add(version);
+        }
+        if (groups.size() <= 1) {
+            return groups;
+        }
+        final Map<ExtendedExclusiveControlManager, List<Version>> ordered =
+                new LinkedHashMap<ExtendedExclusiveControlManager, List<Version>>();
+        for (ExtendedExclusiveControlManager manager : managers) {
+            final List<Version> group = groups.get(manager);
+            if (group != null) {
+                ordered.put(manager, group);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 排他制御コンテキストを振り分け先毎に分割する。
+     * @param contexts 排他制御コンテキスト
+     * @return 振り分け先毎の排他制御コンテキスト
+     */
+    private Map<ExtendedExclusiveControlManager, List<ExclusiveControlContext>> groupContexts(
+            List<? extends ExclusiveControlContext> contexts) {
+        final Map<ExtendedExclusiveControlManager, List<ExclusiveControlContext>> groups =
+                new IdentityHashMap<ExtendedExclusiveControlManager, List<ExclusiveControlContext>>();
+        for (ExclusiveControlContext context : contexts) {
+            final ExtendedExclusiveControlManager manager = route(context.getKey());
+            List<ExclusiveControlContext> group = groups.get(manager);
+            if (group == null) {
+                group = new ArrayList<ExclusiveControlContext>();
+                groups.put(manager, group);
+            }
+            group.add(context);
+        }
+        return groups;
+    }
+
+    /**
+     * 振り分け先毎のチェック結果をまとめる。
+     * @param results 振り分け先毎のチェック結果
+     * @return チェック結果
+     */
+    private static VersionCheckResult merge(List<VersionCheckResult> results) {
+        List<Version> errorVersions = null;
+        List<Version> currentVersions = null;
+        for (VersionCheckResult result : results) {
+            if (result.isSuccess()) {
+                continue;
+            }
+            if (errorVersions == null) {
+                errorVersions = new ArrayList<Version>();
+                currentVersions = new ArrayList<Version>();
+            }
+            errorVersions.addAll(result.getErrorVersions());
+            currentVersions.addAll(result.getCurrentVersions());
+        }
+        return errorVersions == null
+                ? VersionCheckResult.success()
+                : VersionCheckResult.failure(errorVersions, currentVersions);
+    }
+
+    /**
+     * チェック結果が楽観的ロックエラーの場合に例外を送出する。
+     * @param result チェック結果
+     * @throws OptimisticLockException 楽観的ロックエラーの場合
+     */
+    private static void throwIfFailed(VersionCheckResult result) throws OptimisticLockException {
+        if (!result.isSuccess()) {
+            throw new OptimisticLockException(result.getErrorVersions(), null);
+        }
+    }
+
+    /**
+     * 振り分け先に拡張機能を付与する。同じ振り分け先には同じオブジェクトを返す。
+     * @param manager 振り分け先
+     * @return 拡張機能を付与した振り分け先
+     */
+    private ExtendedExclusiveControlManager adapt(ExclusiveControlManager manager) {
+        ExtendedExclusiveControlManager extended = adapters.get(manager);
+        if (extended == null) {
+            extended = extend(manager);
+            adapters.put(manager, extended);
+        }
+        return extended;
+    }
+
+    /**
+     * 全ての振り分け先を、テーブル名の昇順、シャードの設定順に並べ直す。
+     * <p/>
+     * この順序はプロセス間で同じになるため、悲観的ロックの取得順序として使用する。
+     * {@link #extend(ExclusiveControlManager)}で生成したアダプタはトランザクションの終了通知を受け取らないため、
+     * 終了通知に使用する拡張機能を付与する前のオブジェクトも同じ順序で保持する。
+     */
+    private void refreshManagers() {
+        final List<ExtendedExclusiveControlManager> all = new ArrayList<ExtendedExclusiveControlManager>();
+        final Set<ExtendedExclusiveControlManager> seen =
+                Collections.newSetFromMap(new IdentityHashMap<ExtendedExclusiveControlManager, Boolean>());
+        for (ExtendedExclusiveControlManager manager : tableManagers.values()) {
+            if (seen.add(manager)) {
+                all.add(manager);
+            }
+        }
+        for (ExtendedExclusiveControlManager manager : shards) {
+            if (seen.add(manager)) {
+                all.add(manager);
+            }
+        }
+        final Map<ExtendedExclusiveControlManager, ExclusiveControlManager> originals =
+                new IdentityHashMap<ExtendedExclusiveControlManager, ExclusiveControlManager>();
+        for (Map.Entry<ExclusiveControlManager, ExtendedExclusiveControlManager> entry : adapters.entrySet()) {
+            originals.put(entry.getValue(), entry.getKey());
+        }
+        final List<ExclusiveControlManager> originalAll = new ArrayList<ExclusiveControlManager>(all.size());
+        for (ExtendedExclusiveControlManager manager : all) {
+            originalAll.add(originals.get(manager));
+        }
+        managers = all;
+        delegates = originalAll;
+    }
+}
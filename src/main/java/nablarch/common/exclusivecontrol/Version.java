@@ -1,29 +1,42 @@
 package nablarch.common.exclusivecontrol;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 import nablarch.core.util.annotation.Published;
 
 /**
  * 排他制御用テーブルのバージョン番号を保持するクラス。
+ * <p/>
+ * バージョン番号は文字列として扱うが、0以上の整数で表現できるバージョン番号は数値としても保持する。
+ * 数値として保持しているバージョン番号は、{@link #getNumericVersion()}により文字列を介さずに比較できる。
  * @author Kiyohito Itoh
  */
 @Published(tag = "architect")
 public class Version {
     
-    /** 排他制御用テーブルのテーブル名 */
-    private final String tableName;
-    
     /** バージョン番号カラム名 */
     private final String versionColumnName;
     
-    /** バージョン番号 */
-    private final String version;
+    /** 数値として保持していないことを示す値 */
+    private static final long NOT_NUMERIC = -1L;
+
+    /** 数値として保持するバージョン番号の最大桁数 */
+    private static final int MAX_NUMERIC_DIGITS = 18;
+
+    /** バージョン番号(数値から生成した場合は初回参照時に生成する) */
+    private String version;
+
+    /** 数値のバージョン番号。数値として表現できない場合は{@link #NOT_NUMERIC} */
+    private final long numericVersion;
     
-    /** 主キーの条件 */
-    private final Map<String, Object> primaryKeyCondition;
+    /** 排他制御対象の行データを特定するキー */
+    private final VersionKey key;
+
+    /** スキーマ情報 */
+    private final ExclusiveControlSchema schema;
+
+    /** バージョン番号のグループ名。行データ全体のバージョン番号の場合は{@code null} */
+    private final String versionGroup;
     
     /**
      * コンストラクタ。
@@ -31,7 +44,18 @@ public class Version {
      * @param version バージョン番号
      */
     public Version(ExclusiveControlContext condition, String version) {
-        this(condition.getTableName(), condition.getVersionColumnName(), version, condition.getCondition());
+        this(condition.getKey(), condition.getVersionColumnName(), version, parse(version), condition.getSchema(),
+             condition.getVersionGroup());
+    }
+
+    /**
+     * コンストラクタ。
+     * @param condition 主キーの条件
+     * @param version バージョン番号(0以上)
+     */
+    public Version(ExclusiveControlContext condition, long version) {
+        this(condition.getKey(), condition.getVersionColumnName(), null, requireNumeric(version),
+             condition.getSchema(), condition.getVersionGroup());
     }
     
     /**
@@ -42,10 +66,46 @@ public class Version {
      * @param primaryKeyCondition 主キーの条件
      */
     public Version(String tableName, String versionColumnName, String version, Map<String, Object> primaryKeyCondition) {
-        this.tableName = tableName;
+        this(new VersionKey(tableName, primaryKeyCondition), versionColumnName, version, parse(version), null, null);
+    }
+
+    /**
+     * コンストラクタ。
+     * @param key 排他制御対象の行データを特定するキー
+     * @param versionColumnName バージョン番号カラム名
+     * @param version バージョン番号
+     */
+    public Version(VersionKey key, String versionColumnName, String version) {
+        this(key, versionColumnName, version, parse(version), null, null);
+    }
+
+    /**
+     * コンストラクタ。
+     * @param key 排他制御対象の行データを特定するキー
+     * @param versionColumnName バージョン番号カラム名
+     * @param version バージョン番号(0以上)
+     */
+    public Version(VersionKey key, String versionColumnName, long version) {
+        this(key, versionColumnName, null, requireNumeric(version), null, null);
+    }
+
+    /**
+     * コンストラクタ。
+     * @param key 排他制御対象の行データを特定するキー
+     * @param versionColumnName バージョン番号カラム名
+     * @param version バージョン番号の文字列。数値から生成する場合は{@code null}
+     * @param numericVersion 数値のバージョン番号
+     * @param schema スキーマ情報
+     * @param versionGroup バージョン番号のグループ名
+     */
+    private Version(VersionKey key, String versionColumnName, String version, long numericVersion,
+                    ExclusiveControlSchema schema, String versionGroup) {
         this.versionColumnName = versionColumnName;
         this.version = version;
-        this.primaryKeyCondition = Collections.unmodifiableMap(primaryKeyCondition);
+        this.numericVersion = numericVersion;
+        this.key = key;
+        this.schema = schema;
+        this.versionGroup = versionGroup;
     }
     
     /**
@@ -53,7 +113,7 @@ public class Version {
      * @return 排他制御用テーブルのテーブル名
      */
     public String getTableName() {
-        return tableName;
+        return key.getTableName();
     }
     
     /**
@@ -69,20 +129,145 @@ public class Version {
      * @return バージョン番号
      */
     public String getVersion() {
-        return version;
+        String current = version;
+        if (current == null) {
+            current = Long.toString(numericVersion);
+            version = current;
+        }
+        return current;
+    }
+
+    /**
+     * バージョン番号を数値として保持しているか否かを判定する。
+     * @return 数値として保持している場合は{@code true}
+     */
+    public boolean isNumeric() {
+        return numericVersion != NOT_NUMERIC;
+    }
+
+    /**
+     * 数値のバージョン番号を取得する。
+     * @return 数値のバージョン番号
+     * @throws IllegalStateException バージョン番号を数値として保持していない場合
+     */
+    public long getNumericVersion() {
+        if (numericVersion == NOT_NUMERIC) {
+            throw new IllegalStateException("version is not numeric. version = [" + version + ']');
+        }
+        return numericVersion;
+    }
+
+    /**
+     * 同じ行データに対して、バージョン番号を1つ進めたバージョン番号を生成する。
+     * @return バージョン番号を1つ進めたバージョン番号
+     * @throws IllegalStateException バージョン番号を数値として保持していない場合
+     */
+    public Version nextVersion() {
+        return withVersion(getNumericVersion() + 1);
+    }
+
+    /**
+     * 同じ行データに対して、指定されたバージョン番号を持つバージョン番号を生成する。
+     * @param version バージョン番号(0以上)
+     * @return 指定されたバージョン番号を持つバージョン番号
+     */
+    public Version withVersion(long version) {
+        return new Version(key, versionColumnName, null, requireNumeric(version), schema, versionGroup);
+    }
+
+    /**
+     * 同じ行データ、同じバージョン番号に対して、グループ名を指定したバージョン番号を生成する。
+     * @param versionGroup バージョン番号のグループ名
+     * @return グループ名を指定したバージョン番号
+     */
+    Version withVersionGroup(String versionGroup) {
+        return new Version(key, versionColumnName, version, numericVersion, schema, versionGroup);
     }
     
     /**
      * 主キーの条件を取得する。
+     * <p/>
+     * 呼び出し毎にマップを生成するため、
+     * 条件を繰り返し参照する場合やマップのキーとして使用する場合は{@link #getKey()}を使用すること。
+     *
      * @return 主キーの条件
      */
     public Map<String, Object> getPrimaryKeyCondition() {
-        return new HashMap<String, Object>(primaryKeyCondition);
+        return key.toMap();
+    }
+
+    /**
+     * 排他制御対象の行データを特定するキーを取得する。
+     * @return 排他制御対象の行データを特定するキー
+     */
+    public VersionKey getKey() {
+        return key;
+    }
+
+    /**
+     * スキーマ情報を取得する。
+     * @return スキーマ情報。{@link ExclusiveControlContext}以外から生成した場合は{@code null}
+     */
+    public ExclusiveControlSchema getSchema() {
+        return schema;
+    }
+    
+    /**
+     * バージョン番号のグループ名を取得する。
+     * @return バージョン番号のグループ名。行データ全体のバージョン番号の場合は{@code null}
+     * @see VersionGroup
+     */
+    public String getVersionGroup() {
+        return versionGroup;
     }
     
     /** {@inheritDoc} */
     public String toString() {
+        if (versionGroup != null) {
+            return String.format("tableName = [%s], versionGroup = [%s], version = [%s], primaryKeyCondition = [%s]",
+                                 key.getTableName(), versionGroup, getVersion(), key.conditionToString());
+        }
         return String.format("tableName = [%s], version = [%s], primaryKeyCondition = [%s]",
-                              tableName, version, primaryKeyCondition);
+                              key.getTableName(), getVersion(), key.conditionToString());
+    }
+
+    /**
+     * バージョン番号の文字列を数値に変換する。
+     * <p/>
+     * 文字列としての比較結果を変えないよう、符号や先頭の0を含む文字列は数値として扱わない。
+     *
+     * @param version バージョン番号
+     * @return 数値のバージョン番号。数値として扱えない場合は{@link #NOT_NUMERIC}
+     */
+    private static long parse(String version) {
+        if (version == null) {
+            return NOT_NUMERIC;
+        }
+        final int length = version.length();
+        if (length == 0 || length > MAX_NUMERIC_DIGITS || (length > 1 && version.charAt(0) == '0')) {
+            return NOT_NUMERIC;
+        }
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = version.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_NUMERIC;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * 数値のバージョン番号が0以上であることを確認する。
+     * @param version バージョン番号
+     * @return バージョン番号
+     * @throws IllegalArgumentException バージョン番号が負の場合
+     */
+    private static long requireNumeric(long version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("version must not be negative. version = [" + version + ']');
+        }
+        return version;
     }
 }
@@ -0,0 +1,98 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Map;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 行データのバージョン番号の変更を表すイベント。
+ *
+ * @see ChangeNotifyingExclusiveControlManager
+ */
+@Published(tag = "architect")
+public final class VersionChangeEvent {
+
+    /**
+     * 変更の種類。
+     */
+    public enum Type {
+
+        /** バージョン番号の追加 */
+        ADDED,
+
+        /** バージョン番号の更新 */
+        UPDATED,
+
+        /** バージョン番号の削除 */
+        REMOVED
+    }
+
+    /** 変更の種類 */
+    private final Type type;
+
+    /** 行データのキー */
+    private final VersionKey key;
+
+    /** 変更後のバージョン番号 */
+    private final Version version;
+
+    /**
+     * コンストラクタ。
+     * @param type 変更の種類
+     * @param key 行データのキー
+     * @param version 変更後のバージョン番号
+     */
+    VersionChangeEvent(Type type, VersionKey key, Version version) {
+        this.type = type;
+        this.key = key;
+        this.version = version;
+    }
+
+    /**
+     * 変更の種類を取得する。
+     * @return 変更の種類
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * 行データのキーを取得する。
+     * @return 行データのキー
+     */
+    public VersionKey getKey() {
+        return key;
+    }
+
+    /**
+     * 排他制御用テーブルのテーブル名を取得する。
+     * @return テーブル名
+     */
+    public String getTableName() {
+        return key.getTableName();
+    }
+
+    /**
+     * 主キーの条件を取得する。
+     * @return 主キーの条件
+     */
+    public Map<String, Object> getPrimaryKeyCondition() {
+        return key.toMap();
+    }
+
+    /**
+     * 変更後のバージョン番号を取得する。
+     * <p/>
+     * 削除の場合と、変更後のバージョン番号を取得できなかった場合は{@code null}を返す。
+     *
+     * @return 変更後のバージョン番号
+     */
+    public Version getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("type = [%s], %s, version = [%s]", type, key, version == null ? null : version.getVersion());
+    }
+}
@@ -0,0 +1,33 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.List;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 行データのバージョン番号の変更の通知を受けるインタフェース。
+ * <p/>
+ * 通知は{@link ChangeNotifyingExclusiveControlManager}の通知スレッドから呼び出される。
+ * 通知スレッドは全ての通知先で共有されるため、速やかに処理を終えること。
+ *
+ * @see ChangeNotifyingExclusiveControlManager
+ */
+@Published(tag = "architect")
+public interface VersionChangeListener {
+
+    /**
+     * バージョン番号の変更を通知する。
+     * <p/>
+     * 同じ行データの変更は、通知までの間にまとめられ、最後の変更のみが通知される。
+     *
+     * @param events 変更イベント(変更された順)
+     */
+    void onChanges(List<VersionChangeEvent> events);
+
+    /**
+     * キューが溢れたため、変更イベントを破棄したことを通知する。
+     * <p/>
+     * 破棄した変更イベントは通知されないため、キャッシュを使用している場合は全て破棄すること。
+     */
+    void onOverflow();
+}
@@ -0,0 +1,99 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Collections;
+import java.util.List;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * バージョン番号のチェック結果を保持するクラス。
+ * <p/>
+ * 楽観的ロックエラーが発生したバージョン番号と、その行データの現在のバージョン番号を保持する。
+ * 現在のバージョン番号は、楽観的ロックエラーが発生したバージョン番号と同じ順序で保持する。
+ *
+ * @see ExtendedExclusiveControlManager#tryCheckVersions(List)
+ * @see ExtendedExclusiveControlManager#tryUpdateVersionsWithCheck(List)
+ */
+@Published(tag = "architect")
+public final class VersionCheckResult {
+
+    /** 楽観的ロックエラーが発生しなかった場合のチェック結果 */
+    private static final VersionCheckResult SUCCESS = new VersionCheckResult(
+            Collections.<Version>emptyList(), Collections.<Version>emptyList());
+
+    /** 楽観的ロックエラーが発生したバージョン番号 */
+    private final List<Version> errorVersions;
+
+    /** 楽観的ロックエラーが発生した行データの現在のバージョン番号 */
+    private final List<Version> currentVersions;
+
+    /**
+     * コンストラクタ。
+     * @param errorVersions 楽観的ロックエラーが発生したバージョン番号
+     * @param currentVersions 楽観的ロックエラーが発生した行データの現在のバージョン番号
+     */
+    private VersionCheckResult(List<Version> errorVersions, List<Version> currentVersions) {
+        this.errorVersions = errorVersions;
+        this.currentVersions = currentVersions;
+    }
+
+    /**
+     * 楽観的ロックエラーが発生しなかった場合のチェック結果を取得する。
+     * @return チェック結果
+     */
+    public static VersionCheckResult success() {
+        return SUCCESS;
+    }
+
+    /**
+     * 楽観的ロックエラーが発生した場合のチェック結果を生成する。
+     * @param errorVersions 楽観的ロックエラーが発生したバージョン番号
+     * @param currentVersions 楽観的ロックエラーが発生した行データの現在のバージョン番号。
+     *                        {@code errorVersions}と同じ順序で、行データが存在しない場合や取得できない場合は{@code null}を格納する
+     * @return チェック結果
+     * @throws IllegalArgumentException {@code errorVersions}が空の場合、又は要素数が一致しない場合
+     */
+    public static VersionCheckResult failure(List<Version> errorVersions, List<Version> currentVersions) {
+        if (errorVersions.isEmpty() || errorVersions.size() != currentVersions.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "errorVersions must not be empty and must have the same size as currentVersions. "
+                  + "errorVersions size = [%d], currentVersions size = [%d]",
+                    errorVersions.size(), currentVersions.size()));
+        }
+        return new VersionCheckResult(
+                Collections.unmodifiableList(errorVersions), Collections.unmodifiableList(currentVersions));
+    }
+
+    /**
+     * 楽観的ロックエラーが発生しなかったか否かを判定する。
+     * @return 楽観的ロックエラーが発生しなかった場合は{@code true}
+     */
+    public boolean isSuccess() {
+        return errorVersions.isEmpty();
+    }
+
+    /**
+     * 楽観的ロックエラーが発生したバージョン番号を取得する。
+     * @return 楽観的ロックエラーが発生したバージョン番号
+     */
+    public List<Version> getErrorVersions() {
+        return errorVersions;
+    }
+
+    /**
+     * 楽観的ロックエラーが発生した行データの現在のバージョン番号を取得する。
+     * <p/>
+     * {@link #getErrorVersions()}と同じ順序で格納する。
+     * 行データが存在しない場合や現在のバージョン番号を取得できない場合、要素は{@code null}となる。
+     *
+     * @return 楽観的ロックエラーが発生した行データの現在のバージョン番号
+     */
+    public List<Version> getCurrentVersions() {
+        return currentVersions;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "success" : "errorVersions = " + errorVersions + ", currentVersions = " + currentVersions;
+    }
+}
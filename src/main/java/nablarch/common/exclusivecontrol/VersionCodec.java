@@ -0,0 +1,602 @@
+package nablarch.common.exclusivecontrol;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * バージョン番号のリストを改ざん検知可能なバイナリ形式に変換するクラス。
+ * <p/>
+ * リクエスト間でバージョン番号をセッションストアや画面の隠し項目に保持する場合に、
+ * {@link java.io.Serializable}による直列化よりも小さいサイズで保持するために使用する。
+ * 変換後のバイナリ形式は以下の特徴を持つ。
+ * <ul>
+ *     <li>テーブル名、カラム名、バージョン番号のグループ名、主キーの変数名、文字列の主キーの値は辞書にまとめ、2回目以降は辞書の番号で参照する。</li>
+ *     <li>数値のバージョン番号と整数の主キーの値は可変長整数で表す。</li>
+ *     <li>圧縮を有効にした場合は、圧縮によりサイズが小さくなる場合に限りDeflateで圧縮する。</li>
+ *     <li>末尾にHMAC-SHA256による署名を付与し、復元時に検証する。</li>
+ * </ul>
+ * 主キーの値として使用できる型は、{@link String}、{@link Integer}、{@link Long}、{@link Short}、
+ * {@link BigDecimal}、{@link BigInteger}、{@link Boolean}とする。
+ * <p/>
+ * 本クラスはスレッドセーフである。署名の鍵は十分な長さ(32バイト以上を推奨)の乱数を使用し、利用者に公開しないこと。
+ */
+@Published(tag = "architect")
+public final class VersionCodec {
+
+    /** 署名のアルゴリズム */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** 署名のバイト数 */
+    private static final int MAC_LENGTH = 32;
+
+    /** 形式を識別する値 */
+    private static final byte MAGIC = 'V';
+
+    /** 形式のバージョン */
+    private static final byte FORMAT_VERSION = 1;
+
+    /** ヘッダのバイト数 */
+    private static final int HEADER_LENGTH = 3;
+
+    /** 圧縮していることを表すフラグ */
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    /** 復元するデータのサイズの上限 */
+    private static final int MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+
+    /** 文字コード */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** バージョン番号が数値であることを表すタグ */
+    private static final int VERSION_NUMERIC = 0;
+
+    /** バージョン番号が文字列であることを表すタグ */
+    private static final int VERSION_STRING = 1;
+
+    /** バージョン番号のグループ名が続くことを表すフラグ(バージョン番号のタグに付与する) */
+    private static final int VERSION_GROUPED = 0x02;
+
+    /** 主キーの値の型を表すタグ({@code null}) */
+    private static final int TYPE_NULL = 0;
+
+    /** 主キーの値の型を表すタグ({@link String}) */
+    private static final int TYPE_STRING = 1;
+
+    /** 主キーの値の型を表すタグ({@link Integer}) */
+    private static final int TYPE_INTEGER = 2;
+
+    /** 主キーの値の型を表すタグ({@link Long}) */
+    private static final int TYPE_LONG = 3;
+
+    /** 主キーの値の型を表すタグ({@link Short}) */
+    private static final int TYPE_SHORT = 4;
+
+    /** 主キーの値の型を表すタグ({@link BigDecimal}) */
+    private static final int TYPE_BIG_DECIMAL = 5;
+
+    /** 主キーの値の型を表すタグ({@link BigInteger}) */
+    private static final int TYPE_BIG_INTEGER = 6;
+
+    /** 主キーの値の型を表すタグ({@link Boolean#TRUE}) */
+    private static final int TYPE_TRUE = 7;
+
+    /** 主キーの値の型を表すタグ({@link Boolean#FALSE}) */
+    private static final int TYPE_FALSE = 8;
+
+    /** 署名の鍵 */
+    private final SecretKeySpec secretKey;
+
+    /** スレッド毎の{@link Mac} */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    /** 圧縮するか否か */
+    private boolean compress = false;
+
+    /**
+     * コンストラクタ。
+     * @param secretKey 署名の鍵
+     */
+    public VersionCodec(byte[] secretKey) {
+        if (secretKey == null || secretKey.length == 0) {
+            throw new IllegalArgumentException("secretKey must not be empty.");
+        }
+        this.secretKey = new SecretKeySpec(secretKey.clone(), MAC_ALGORITHM);
+        getMac();
+    }
+
+    /**
+     * 圧縮するか否かを設定する。
+     * <p/>
+     * 圧縮した場合にサイズが小さくなる場合に限り圧縮する。デフォルトは{@code false}。
+     *
+     * @param compress 圧縮する場合は{@code true}
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * バージョン番号のリストをバイナリ形式に変換する。
+     * @param versions バージョン番号のリスト
+     * @return 変換したバイナリ
+     * @throws IllegalArgumentException 主キーの値に変換できない型が含まれる場合
+     */
+    public byte[] encode(List<Version> versions) {
+        final Output body = new Output(32 + versions.size() * 16);
+        final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        body.writeVarLong(versions.size());
+        for (Version version : versions) {
+            final VersionKey key = version.getKey();
+            writeString(body, dictionary, key.getTableName());
+            writeString(body, dictionary, version.getVersionColumnName());
+            final int grouped = version.getVersionGroup() == null ? 0 : VERSION_GROUPED;
+            if (version.isNumeric()) {
+                body.writeVarLong(VERSION_NUMERIC | grouped);
+                body.writeVarLong(version.getNumericVersion());
+            } else {
+                body.writeVarLong(VERSION_STRING | grouped);
+                writeString(body, dictionary, version.getVersion());
+            }
+            if (grouped != 0) {
+                writeString(body, dictionary, version.getVersionGroup());
+            }
+            final int size = key.size();
+            body.writeVarLong(size);
+            for (int i = 0; i < size; i++) {
+                writeString(body, dictionary, key.getName(i));
+                writeValue(body, dictionary, key.getValue(i));
+            }
+        }
+
+        byte[] payload = body.toByteArray();
+        int flags = 0;
+        if (compress) {
+            final byte[] deflated = deflate(payload);
+            if (deflated.length < payload.length) {
+                payload = deflated;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        final byte[] encoded = new byte[HEADER_LENGTH + payload.length + MAC_LENGTH];
+        encoded[0] = MAGIC;
+        encoded[1] = FORMAT_VERSION;
+        encoded[2] = (byte) flags;
+        System.arraycopy(payload, 0, encoded, HEADER_LENGTH, payload.length);
+        final Mac mac = getMac();
+        mac.update(encoded, 0, HEADER_LENGTH + payload.length);
+        System.arraycopy(mac.doFinal(), 0, encoded, HEADER_LENGTH + payload.length, MAC_LENGTH);
+        return encoded;
+    }
+
+    /**
+     * バイナリ形式からバージョン番号のリストを復元する。
+     * @param encoded {@link #encode(List)}で変換したバイナリ
+     * @return バージョン番号のリスト
+     * @throws IllegalArgumentException 形式が不正な場合、署名の検証に失敗した場合
+     */
+    public List<Version> decode(byte[] encoded) {
+        if (encoded == null || encoded.length < HEADER_LENGTH + MAC_LENGTH
+                || encoded[0] != MAGIC || encoded[1] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("invalid encoded versions.");
+        }
+        final int payloadEnd = encoded.length - MAC_LENGTH;
+        final Mac mac = getMac();
+        mac.update(encoded, 0, payloadEnd);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(encoded, payloadEnd, encoded.length))) {
+            throw new IllegalArgumentException("signature of encoded versions is invalid.");
+        }
+
+        final byte[] payload = (encoded[2] & FLAG_COMPRESSED) != 0
+                ? inflate(encoded, HEADER_LENGTH, payloadEnd - HEADER_LENGTH)
+                : Arrays.copyOfRange(encoded, HEADER_LENGTH, payloadEnd);
+        final Input body = new Input(payload);
+        final List<String> dictionary = new ArrayList<String>();
+        final int count = body.readLength();
+        final List<Version> versions = new ArrayList<Version>(count);
+        for (int n = 0; n < count; n++) {
+            final String tableName = readString(body, dictionary);
+            final String versionColumnName = readString(body, dictionary);
+            final long tag = body.readVarLong();
+            final int versionType = (int) (tag & ~VERSION_GROUPED);
+            long numericVersion = 0;
+            String version = null;
+            if (versionType == VERSION_NUMERIC) {
+                numericVersion = body.readVarLong();
+            } else if (versionType == VERSION_STRING) {
+                version = readString(body, dictionary);
+            } else {
+                throw new IllegalArgumentException("invalid version type. type = [" + tag + ']');
+            }
+            final String versionGroup = (tag & VERSION_GROUPED) != 0 ? readString(body, dictionary) : null;
+            final int size = body.readLength();
+            final String[] names = new String[size];
+            final Object[] values = new Object[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = readString(body, dictionary);
+                values[i] = readValue(body, dictionary);
+            }
+            final VersionKey key = new VersionKey(tableName, names, values);
+            final Version decoded = versionType == VERSION_NUMERIC
+                    ? new Version(key, versionColumnName, numericVersion)
+                    : new Version(key, versionColumnName, version);
+            versions.add(versionGroup == null ? decoded : decoded.withVersionGroup(versionGroup));
+        }
+        if (body.remaining() != 0) {
+            throw new IllegalArgumentException("invalid encoded versions. trailing bytes = [" + body.remaining() + ']');
+        }
+        return versions;
+    }
+
+    /**
+     * 現在のスレッドで使用する{@link Mac}を取得する。
+     * @return {@link Mac}
+     */
+    private Mac getMac() {
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(secretKey);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("failed to initialize " + MAC_ALGORITHM + '.', e);
+            }
+            macs.set(mac);
+        }
+        return mac;
+    }
+
+    /**
+     * 文字列を書き込む。
+     * <p/>
+     * 辞書に登録済みの文字列は辞書の番号を、未登録の文字列は0と文字列自体を書き込み、辞書に登録する。
+     * {@code null}は1を書き込む。
+     *
+     * @param out 出力先
+     * @param dictionary 辞書
+     * @param value 文字列
+     */
+    private static void writeString(Output out, Map<String, Integer> dictionary, String value) {
+        if (value == null) {
+            out.writeVarLong(1);
+            return;
+        }
+        final Integer index = dictionary.get(value);
+        if (index != null) {
+            out.writeVarLong(index + 2);
+            return;
+        }
+        dictionary.put(value, dictionary.size());
+        out.writeVarLong(0);
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 文字列を読み込む。
+     * @param in 入力元
+     * @param dictionary 辞書
+     * @return 文字列
+     */
+    private static String readString(Input in, List<String> dictionary) {
+        final long ref = in.readVarLong();
+        if (ref == 0) {
+            final String value = new String(in.read(in.readLength()), UTF_8);
+            dictionary.add(value);
+            return value;
+        }
+        if (ref == 1) {
+            return null;
+        }
+        if (ref - 2 >= dictionary.size()) {
+            throw new IllegalArgumentException("invalid dictionary reference. reference = [" + ref + ']');
+        }
+        return dictionary.get((int) (ref - 2));
+    }
+
+    /**
+     * 主キーの値を書き込む。
+     * @param out 出力先
+     * @param dictionary 辞書
+     * @param value 主キーの値
+     */
+    private static void writeValue(Output out, Map<String, Integer> dictionary, Object value) {
+        if (value == null) {
+            out.writeVarLong(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeVarLong(TYPE_STRING);
+            writeString(out, dictionary, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeVarLong(TYPE_INTEGER);
+            out.writeZigZag((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeVarLong(TYPE_LONG);
+            out.writeZigZag((Long) value);
+        } else if (value instanceof Short) {
+            out.writeVarLong(TYPE_SHORT);
+            out.writeZigZag((Short) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeVarLong(TYPE_BIG_DECIMAL);
+            writeString(out, dictionary, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeVarLong(TYPE_BIG_INTEGER);
+            writeString(out, dictionary, value.toString());
+        } else if (value instanceof Boolean) {
+            out.writeVarLong((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else {
+            throw new IllegalArgumentException(
+                    "unsupported primary key value type. type = [" + value.getClass().getName() + ']');
+        }
+    }
+
+    /**
+     * 主キーの値を読み込む。
+     * @param in 入力元
+     * @param dictionary 辞書
+     * @return 主キーの値
+     */
+    private static Object readValue(Input in, List<String> dictionary) {
+        final int type = (int) in.readVarLong();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(in, dictionary);
+            case TYPE_INTEGER:
+                return (int) in.readZigZag();
+            case TYPE_LONG:
+                return in.readZigZag();
+            case TYPE_SHORT:
+                return (short) in.readZigZag();
+            case TYPE_BIG_DECIMAL:
+                return new BigDecimal(readString(in, dictionary));
+            case TYPE_BIG_INTEGER:
+                return new BigInteger(readString(in, dictionary));
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            default:
+                throw new IllegalArgumentException("invalid primary key value type. type = [" + type + ']');
+        }
+    }
+
+    /**
+     * データを圧縮する。
+     * <p/>
+     * 先頭に圧縮前のバイト数を可変長整数で付与する。
+     *
+     * @param data データ
+     * @return 圧縮したデータ
+     */
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final Output out = new Output(data.length / 2 + 16);
+            out.writeVarLong(data.length);
+            final byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 圧縮したデータを復元する。
+     * @param data データ
+     * @param offset 圧縮したデータの開始位置
+     * @param length 圧縮したデータのバイト数
+     * @return 復元したデータ
+     */
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        final Input in = new Input(Arrays.copyOfRange(data, offset, offset + length));
+        final int inflatedLength = in.readLength();
+        if (inflatedLength > MAX_DECODED_LENGTH) {
+            throw new IllegalArgumentException("encoded versions are too large. length = [" + inflatedLength + ']');
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in.buffer, in.position, in.remaining());
+            final byte[] inflated = new byte[inflatedLength];
+            int size = 0;
+            while (size < inflatedLength && !inflater.finished()) {
+                final int n = inflater.inflate(inflated, size, inflatedLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != inflatedLength) {
+                throw new IllegalArgumentException("invalid compressed versions.");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("invalid compressed versions.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 拡張可能なバイト配列への出力。
+     */
+    private static final class Output {
+
+        /** バッファ */
+        private byte[] buffer;
+
+        /** 書き込んだバイト数 */
+        private int size;
+
+        /**
+         * コンストラクタ。
+         * @param capacity 初期容量
+         */
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        /**
+         * バイト配列を書き込む。
+         * @param bytes バイト配列
+         */
+        void write(byte[] bytes) {
+            write(bytes, bytes.length);
+        }
+
+        /**
+         * バイト配列の先頭から指定されたバイト数を書き込む。
+         * @param bytes バイト配列
+         * @param length バイト数
+         */
+        void write(byte[] bytes, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, buffer, size, length);
+            size += length;
+        }
+
+        /**
+         * 0以上の整数を可変長整数(7ビット毎)で書き込む。
+         * @param value 値
+         */
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            long v = value;
+            while ((v & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buffer[size++] = (byte) v;
+        }
+
+        /**
+         * 符号付き整数をZigZag符号化した可変長整数で書き込む。
+         * @param value 値
+         */
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * 指定されたバイト数を書き込めるようにバッファを拡張する。
+         * @param length バイト数
+         */
+        private void ensureCapacity(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+
+        /**
+         * 書き込んだバイト配列を取得する。
+         * @return バイト配列
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /**
+     * バイト配列からの入力。
+     */
+    private static final class Input {
+
+        /** バッファ */
+        private final byte[] buffer;
+
+        /** 読み込み位置 */
+        private int position;
+
+        /**
+         * コンストラクタ。
+         * @param buffer バッファ
+         */
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * 残りのバイト数を取得する。
+         * @return 残りのバイト数
+         */
+        int remaining() {
+            return buffer.length - position;
+        }
+
+        /**
+         * 指定されたバイト数を読み込む。
+         * @param length バイト数
+         * @return 読み込んだバイト配列
+         */
+        byte[] read(int length) {
+            if (length > remaining()) {
+                throw new IllegalArgumentException("unexpected end of encoded versions.");
+            }
+            final byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        /**
+         * 可変長整数を読み込む。
+         * @return 値
+         */
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= buffer.length) {
+                    throw new IllegalArgumentException("unexpected end of encoded versions.");
+                }
+                final byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed variable-length integer.");
+        }
+
+        /**
+         * ZigZag符号化した可変長整数を読み込む。
+         * @return 値
+         */
+        long readZigZag() {
+            final long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /**
+         * 件数又はバイト数を読み込む。
+         * @return 件数又はバイト数
+         */
+        int readLength() {
+            final long length = readVarLong();
+            if (length < 0 || length > MAX_DECODED_LENGTH) {
+                throw new IllegalArgumentException("invalid length. length = [" + length + ']');
+            }
+            return (int) length;
+        }
+    }
+}
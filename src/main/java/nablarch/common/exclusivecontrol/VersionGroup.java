@@ -0,0 +1,103 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 排他制御用テーブルの行データに対して、項目の集合毎にバージョン番号を管理するためのグループ定義。
+ * <p/>
+ * グループ毎のバージョン番号は、グループを指定した{@link ExclusiveControlContext}により取得、更新する。
+ * グループのバージョン番号を更新すると、項目が重複するグループと行データ全体のバージョン番号も更新されるため、
+ * 楽観的ロックエラーは、項目が重複する更新が行われた場合にのみ発生する。
+ * 行データ全体のバージョン番号を更新すると、全てのグループのバージョン番号が更新される。
+ * <p/>
+ * グループ名はテーブル内で一意とすること。
+ *
+ * @see ExclusiveControlContext#setVersionGroup(String)
+ * @see InMemoryExclusiveControlManager#setVersionGroups(List)
+ */
+@Published(tag = "architect")
+public class VersionGroup {
+
+    /** 排他制御用テーブルのテーブル名 */
+    private String tableName;
+
+    /** グループ名 */
+    private String name;
+
+    /** グループに含める項目名 */
+    private List<String> fieldNames = Collections.emptyList();
+
+    /**
+     * 排他制御用テーブルのテーブル名を取得する。
+     * @return 排他制御用テーブルのテーブル名
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 排他制御用テーブルのテーブル名を設定する。
+     * @param tableName 排他制御用テーブルのテーブル名
+     */
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * グループ名を取得する。
+     * @return グループ名
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * グループ名を設定する。
+     * @param name グループ名
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * グループに含める項目名を取得する。
+     * @return グループに含める項目名
+     */
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * グループに含める項目名を設定する。
+     * @param fieldNames グループに含める項目名
+     */
+    public void setFieldNames(List<String> fieldNames) {
+        this.fieldNames = Collections.unmodifiableList(new ArrayList<String>(fieldNames));
+    }
+
+    /**
+     * 他のグループと項目が重複するか否かを判定する。
+     * @param other 他のグループ
+     * @return 同じテーブルのグループで、項目が1つ以上重複する場合は{@code true}
+     */
+    public boolean overlaps(VersionGroup other) {
+        if (tableName == null ? other.tableName != null : !tableName.equals(other.tableName)) {
+            return false;
+        }
+        for (String fieldName : fieldNames) {
+            if (other.fieldNames.contains(fieldName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tableName = [%s], name = [%s], fieldNames = %s", tableName, name, fieldNames);
+    }
+}
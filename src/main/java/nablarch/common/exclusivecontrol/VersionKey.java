@@ -0,0 +1,243 @@
+package nablarch.common.exclusivecontrol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 排他制御対象の行データを特定する不変のキー。
+ * <p/>
+ * 排他制御用テーブルのテーブル名と主キーの条件を配列で保持する。
+ * 主キーの条件は変数名の昇順に並べて保持するため、条件の追加順序に関わらず同じ行データは等価なキーとなる。
+ * ハッシュ値は生成時に算出するため、マップのキーとしてコピーせずに使用できる。
+ * <p/>
+ * キーの順序は、テーブル名、主キーの変数名、主キーの値の順に比較して決定する。
+ * 複数の行データのロックをこの順序で取得することで、ロックの取得順序に起因するデッドロックを防止できる。
+ */
+@Published(tag = "architect")
+public final class VersionKey implements Comparable<VersionKey> {
+
+    /** 排他制御用テーブルのテーブル名 */
+    private final String tableName;
+
+    /** 主キーの変数名(昇順) */
+    private final String[] names;
+
+    /** 主キーの値({@link #names}と同じ順序) */
+    private final Object[] values;
+
+    /** ハッシュ値 */
+    private final int hash;
+
+    /**
+     * コンストラクタ。
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param condition 主キーの条件
+     */
+    public VersionKey(String tableName, Map<String, ?> condition) {
+        final int size = condition.size();
+        final String[] sortedNames = condition.keySet().toArray(new String[size]);
+        Arrays.sort(sortedNames);
+        final Object[] sortedValues = new Object[size];
+        for (int i = 0; i < size; i++) {
+            sortedValues[i] = condition.get(sortedNames[i]);
+        }
+        this.tableName = tableName;
+        this.names = sortedNames;
+        this.values = sortedValues;
+        this.hash = computeHash();
+    }
+
+    /**
+     * 変数名の昇順に並べた配列からキーを生成する。
+     * <p/>
+     * 配列はコピーせずに保持するため、呼び出し元で変更しないこと。
+     *
+     * @param tableName 排他制御用テーブルのテーブル名
+     * @param sortedNames 主キーの変数名(昇順)
+     * @param values 主キーの値({@code sortedNames}と同じ順序)
+     */
+    VersionKey(String tableName, String[] sortedNames, Object[] values) {
+        this.tableName = tableName;
+        this.names = sortedNames;
+        this.values = values;
+        this.hash = computeHash();
+    }
+
+    /**
+     * 排他制御用テーブルのテーブル名を取得する。
+     * @return 排他制御用テーブルのテーブル名
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 主キーの項目数を取得する。
+     * @return 主キーの項目数
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * 指定された位置の主キーの変数名を取得する。
+     * @param index 位置(変数名の昇順)
+     * @return 主キーの変数名
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * 指定された位置の主キーの値を取得する。
+     * @param index 位置(変数名の昇順)
+     * @return 主キーの値
+     */
+    public Object getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * 指定された変数名の主キーの値を取得する。
+     * @param name 主キーの変数名
+     * @return 主キーの値。変数名が存在しない場合は{@code null}
+     */
+    public Object getValue(String name) {
+        final int index = Arrays.binarySearch(names, name);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * 主キーの条件をマップに変換する。
+     * @return 主キーの条件(呼び出し毎に生成した変更可能なマップ)
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * ハッシュ値を算出する。
+     * @return ハッシュ値
+     */
+    private int computeHash() {
+        int h = tableName == null ? 0 : tableName.hashCode();
+        for (int i = 0; i < names.length; i++) {
+            h = 31 * h + names[i].hashCode();
+            h = 31 * h + (values[i] == null ? 0 : values[i].hashCode());
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VersionKey)) {
+            return false;
+        }
+        final VersionKey other = (VersionKey) o;
+        if (hash != other.hash) {
+            return false;
+        }
+        if (tableName == null ? other.tableName != null : !tableName.equals(other.tableName)) {
+            return false;
+        }
+        return Arrays.equals(names, other.names) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 主キーの値は、同じクラスの{@link Comparable}であれば自然順序で比較し、
+     * それ以外はクラス名、文字列表現の順に比較する。{@code null}は他の値より小さいものとする。
+     */
+    @SuppressWarnings("unchecked")
+    public int compareTo(VersionKey other) {
+        if (this == other) {
+            return 0;
+        }
+        int result = compareNullable(tableName, other.tableName);
+        if (result != 0) {
+            return result;
+        }
+        final int length = Math.min(names.length, other.names.length);
+        for (int i = 0; i < length; i++) {
+            result = names[i].compareTo(other.names[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        if (names.length != other.names.length) {
+            return names.length < other.names.length ? -1 : 1;
+        }
+        for (int i = 0; i < length; i++) {
+            final Object value = values[i];
+            final Object otherValue = other.values[i];
+            if (value == otherValue) {
+                continue;
+            }
+            if (value == null || otherValue == null) {
+                return value == null ? -1 : 1;
+            }
+            if (value.getClass() == otherValue.getClass() && value instanceof Comparable) {
+                result = ((Comparable<Object>) value).compareTo(otherValue);
+            } else {
+                result = value.getClass().getName().compareTo(otherValue.getClass().getName());
+                if (result == 0) {
+                    result = value.toString().compareTo(otherValue.toString());
+                }
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * {@code null}を他の値より小さいものとして文字列を比較する。
+     * @param s1 文字列
+     * @param s2 文字列
+     * @return 比較結果
+     */
+    private static int compareNullable(String s1, String s2) {
+        if (s1 == null || s2 == null) {
+            return s1 == null ? (s2 == null ? 0 : -1) : 1;
+        }
+        return s1.compareTo(s2);
+    }
+
+    /**
+     * 主キーの条件を文字列に変換する。
+     * @return 主キーの条件の文字列表現
+     */
+    String conditionToString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(names[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tableName = [%s], primaryKeyCondition = [%s]", tableName, conditionToString());
+    }
+}
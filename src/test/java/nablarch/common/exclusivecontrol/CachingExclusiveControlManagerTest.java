@@ -0,0 +1,189 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CachingExclusiveControlManager}のテスト。
+ */
+public class CachingExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private InMemoryExclusiveControlManager delegate;
+
+    private CachingExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        delegate = new InMemoryExclusiveControlManager();
+        delegate.addVersion(new UserPk("1"));
+        delegate.addVersion(new UserPk("2"));
+        delegate.transactionNormalEnd();
+
+        sut = new CachingExclusiveControlManager();
+        sut.setExclusiveControlManager(delegate);
+    }
+
+    @Test
+    public void testGetVersionIsCached() {
+        final Version version = sut.getVersion(new UserPk("1"));
+        assertThat(sut.getVersion(new UserPk("1")), is(sameInstance(version)));
+        assertThat(sut.getHitCount(), is(1L));
+        assertThat(sut.getMissCount(), is(1L));
+
+        sut.getVersion(new UserPk("999"));
+        sut.getVersion(new UserPk("999"));
+        assertThat(sut.getMissCount(), is(3L));
+        assertThat(sut.size(), is(1));
+    }
+
+    @Test
+    public void testGetVersionsUsesCacheForHits() {
+        final Version cached = sut.getVersion(new UserPk("2"));
+        final List<Version> versions = sut.getVersions(Arrays.asList(
+                new UserPk("1"), new UserPk("999"), new UserPk("2")));
+        assertThat(versions.get(0).getVersion(), is("1"));
+        assertThat(versions.get(1), is(nullValue()));
+        assertThat(versions.get(2), is(sameInstance(cached)));
+        assertThat(sut.getHitCount(), is(1L));
+        assertThat(sut.getMissCount(), is(3L));
+
+        assertThat(sut.getVersion(new UserPk("1")), is(sameInstance(versions.get(0))));
+        assertThat(sut.size(), is(2));
+    }
+
+    @Test
+    public void testUpdateInvalidatesCache() {
+        sut.getVersion(new UserPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+
+        final Version version = sut.getVersion(new UserPk("1"));
+        sut.updateVersionsWithCheck(Collections.singletonList(version));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("3"));
+
+        sut.removeVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("1")), is((Version) null));
+    }
+
+    @Test
+    public void testStaleCacheIsDetectedAndInvalidated() {
+        final Version cached = sut.getVersion(new UserPk("2"));
+        delegate.updateVersion(new UserPk("2"));
+        delegate.transactionNormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("2")), is(sameInstance(cached)));
+        try {
+            sut.checkVersions(Collections.singletonList(cached));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("2"));
+        }
+    }
+
+    @Test
+    public void testCommitInvalidatesUpdatedRows() {
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        // コミット前に他のスレッドが読み込んだ値がキャッシュされた状態を再現する。
+        sut.getVersion(new UserPk("1"));
+        assertThat(sut.size(), is(1));
+
+        sut.transactionCommitted();
+        assertThat(sut.size(), is(0));
+
+        // コミット後の通知は、次のトランザクションに更新した行データを持ち越さない。
+        sut.getVersion(new UserPk("1"));
+        sut.transactionCommitted();
+        assertThat(sut.size(), is(1));
+    }
+
+    @Test
+    public void testUpdatedRowsAreNotKeptWithoutCommitHandler() {
+        sut.updateVersion(new UserPk("1"));
+        // コミット前に同じスレッドが読み込んだ値がキャッシュされた状態を再現する。
+        sut.getVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.size(), is(0));
+
+        // コミット後の通知がなくても、更新した行データを次のトランザクションに持ち越さない。
+        sut.getVersion(new UserPk("1"));
+        sut.getVersion(new UserPk("2"));
+        sut.transactionNormalEnd();
+        assertThat(sut.size(), is(2));
+        sut.transactionNormalEnd();
+        assertThat(sut.size(), is(2));
+    }
+
+    @Test
+    public void testCommitIsNotifiedThroughHandlers() {
+        final ExclusiveControlCommitHandler commitHandler = new ExclusiveControlCommitHandler();
+        commitHandler.setExclusiveControlManager(sut);
+        final ExclusiveControlTransactionHandler transactionHandler = new ExclusiveControlTransactionHandler();
+        transactionHandler.setExclusiveControlManager(sut);
+        final ExecutionContext context = new ExecutionContext();
+        context.addHandler(commitHandler);
+        // トランザクション制御を行うハンドラの代わりに、コミット前に他のスレッドがキャッシュする状態を再現する。
+        context.addHandler(new Handler<Object, Object>() {
+            public Object handle(Object data, ExecutionContext ctx) {
+                final Object result = ctx.handleNext(data);
+                sut.getVersion(new UserPk("1"));
+                return result;
+            }
+        });
+        context.addHandler(transactionHandler);
+        context.addHandler(new Handler<Object, Object>() {
+            public Object handle(Object data, ExecutionContext ctx) {
+                sut.updateVersion(new UserPk("1"));
+                return data;
+            }
+        });
+        context.handleNext("data");
+        assertThat(sut.size(), is(0));
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+    }
+
+    @Test
+    public void testExpiredAndEvictedEntries() throws Exception {
+        sut.setMaxSize(1);
+        sut.getVersion(new UserPk("1"));
+        sut.getVersion(new UserPk("2"));
+        assertThat(sut.size(), is(1));
+
+        sut.setTimeToLiveMillis(1);
+        sut.clear();
+        sut.getVersion(new UserPk("2"));
+        Thread.sleep(10);
+        sut.getVersion(new UserPk("2"));
+        assertThat(sut.getHitCount(), is(0L));
+    }
+}
@@ -0,0 +1,257 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link ChangeNotifyingExclusiveControlManager}のテスト。
+ */
+public class ChangeNotifyingExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    /** 通知を記録する{@link VersionChangeListener}。 */
+    private static class RecordingListener implements VersionChangeListener {
+
+        final List<List<VersionChangeEvent>> batches =
+                Collections.synchronizedList(new ArrayList<List<VersionChangeEvent>>());
+
+        final CountDownLatch overflow = new CountDownLatch(1);
+
+        CountDownLatch notified = new CountDownLatch(1);
+
+        public void onChanges(List<VersionChangeEvent> events) {
+            batches.add(events);
+            notified.countDown();
+        }
+
+        public void onOverflow() {
+            overflow.countDown();
+        }
+    }
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private ChangeNotifyingExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        sut = new ChangeNotifyingExclusiveControlManager();
+        sut.setExclusiveControlManager(new InMemoryExclusiveControlManager());
+        sut.setListeners(Collections.singletonList(listener));
+    }
+
+    @After
+    public void tearDown() {
+        sut.shutdown();
+    }
+
+    /**
+     * トランザクションの正常終了とコミットを通知する。
+     */
+    private void commit() {
+        sut.transactionNormalEnd();
+        sut.transactionCommitted();
+    }
+
+    @Test
+    public void testNotifyCommittedChanges() throws Exception {
+        sut.addVersion(new UserPk("1"));
+        sut.addVersion(new UserPk("2"));
+        commit();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        List<VersionChangeEvent> events = listener.batches.get(0);
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getType(), is(VersionChangeEvent.Type.ADDED));
+        assertThat(events.get(0).getTableName(), is("USER_MST"));
+        assertThat(events.get(0).getKey(), is(new UserPk("1").getKey()));
+        assertThat(events.get(0).getVersion().getVersion(), is("1"));
+
+        // 異常終了したトランザクションの変更は通知しない。
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionAbnormalEnd();
+
+        listener.notified = new CountDownLatch(1);
+        final Version version = sut.getVersion(new UserPk("1"));
+        sut.updateVersionsWithCheck(Collections.singletonList(version));
+        sut.updateVersion(new UserPk("1"));
+        sut.removeVersion(new UserPk("2"));
+        commit();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        events = listener.batches.get(1);
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getType(), is(VersionChangeEvent.Type.UPDATED));
+        assertThat(events.get(0).getVersion().getVersion(), is(sut.getVersion(new UserPk("1")).getVersion()));
+        assertThat(events.get(1).getType(), is(VersionChangeEvent.Type.REMOVED));
+        assertThat(events.get(1).getVersion(), is(nullValue()));
+    }
+
+    @Test
+    public void testNotifyOnlyAfterCommit() throws Exception {
+        sut.setLingerMillis(10000);
+        sut.addVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        // コミットに失敗した場合は通知しない。
+        sut.transactionRolledBack();
+
+        sut.addVersion(new UserPk("2"));
+        sut.transactionNormalEnd();
+        sut.shutdown();
+        assertThat(listener.notified.await(200, TimeUnit.MILLISECONDS), is(false));
+    }
+
+    @Test
+    public void testBulkChangesAreRecordedPerChunk() throws Exception {
+        sut.setBatchSize(1000);
+        sut.setLingerMillis(10000);
+        final Iterable<ExclusiveControlContext> contexts = new Iterable<ExclusiveControlContext>() {
+            public Iterator<ExclusiveControlContext> iterator() {
+                return new Iterator<ExclusiveControlContext>() {
+                    int count;
+
+                    public boolean hasNext() {
+                        return count < 250;
+                    }
+
+                    public ExclusiveControlContext next() {
+                        return new UserPk(String.valueOf(count++));
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        sut.addVersions(contexts);
+        commit();
+        sut.shutdown();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        final List<VersionChangeEvent> events = listener.batches.get(0);
+        assertThat(events.size(), is(250));
+        assertThat(events.get(249).getKey(), is(new UserPk("249").getKey()));
+        assertThat(events.get(249).getType(), is(VersionChangeEvent.Type.ADDED));
+    }
+
+    @Test
+    public void testCoalesceQueuedEventsPerKey() throws Exception {
+        sut.setLingerMillis(10000);
+        sut.addVersions(Arrays.asList(new UserPk("1"), new UserPk("2")));
+        commit();
+        sut.updateVersion(new UserPk("1"));
+        commit();
+        sut.updateVersion(new UserPk("2"));
+        commit();
+        sut.updateVersion(new UserPk("2"));
+        commit();
+        assertThat(listener.batches.isEmpty(), is(true));
+
+        // 停止時は待機時間に関わらず通知する。
+        sut.shutdown();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        final List<VersionChangeEvent> events = listener.batches.get(0);
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getKey(), is(new UserPk("1").getKey()));
+        assertThat(events.get(0).getType(), is(VersionChangeEvent.Type.ADDED));
+        assertThat(events.get(0).getVersion().getVersion(), is("2"));
+        assertThat(events.get(1).getVersion().getVersion(), is("3"));
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        sut.setLingerMillis(10000);
+        sut.setQueueCapacity(2);
+        sut.addVersions(Arrays.asList(new UserPk("1"), new UserPk("2"), new UserPk("3")));
+        commit();
+
+        assertThat(listener.overflow.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(sut.getDroppedCount(), is(1L));
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(listener.batches.get(0).size(), is(2));
+    }
+
+    @Test
+    public void testBulkChangesUseDelegateChunkSize() throws Exception {
+        final List<Integer> chunks = new ArrayList<Integer>();
+        final InMemoryExclusiveControlManager delegate = new InMemoryExclusiveControlManager() {
+            @Override
+            protected void addVersionsChunk(List<ExclusiveControlContext> chunk) {
+                chunks.add(chunk.size());
+                super.addVersionsChunk(chunk);
+            }
+        };
+        delegate.setBulkChunkSize(2);
+        sut.setExclusiveControlManager(delegate);
+        sut.addVersions(Arrays.asList(new UserPk("1"), new UserPk("2"), new UserPk("3")));
+        assertThat(chunks, is(Arrays.asList(2, 1)));
+    }
+
+    @Test
+    public void testDispatcherRestartsAfterInterrupt() throws Exception {
+        sut.addVersion(new UserPk("1"));
+        commit();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+
+        final List<Thread> dispatchers = findDispatchers();
+        assertThat(dispatchers.isEmpty(), is(false));
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.interrupt();
+            dispatcher.join(5000);
+            assertThat(dispatcher.isAlive(), is(false));
+        }
+
+        listener.notified = new CountDownLatch(1);
+        sut.updateVersion(new UserPk("1"));
+        commit();
+        assertThat(listener.notified.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(listener.batches.get(1).get(0).getType(), is(VersionChangeEvent.Type.UPDATED));
+    }
+
+    @Test
+    public void testDiscardChangesCommittedAfterShutdown() throws Exception {
+        OnMemoryLoggerFactory.clear();
+        sut.shutdown();
+        sut.addVersion(new UserPk("1"));
+        commit();
+
+        assertThat(sut.getDroppedCount(), is(1L));
+        assertThat(OnMemoryLoggerFactory.getWarnMessages().get(0).contains("shut down"), is(true));
+        assertThat(listener.notified.await(200, TimeUnit.MILLISECONDS), is(false));
+        assertThat(listener.overflow.getCount(), is(1L));
+    }
+
+    private static List<Thread> findDispatchers() {
+        final List<Thread> dispatchers = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("exclusive-control-change-dispatcher") && thread.isAlive()) {
+                dispatchers.add(thread);
+            }
+        }
+        return dispatchers;
+    }
+}
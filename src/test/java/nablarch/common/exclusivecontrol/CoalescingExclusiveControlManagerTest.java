@@ -0,0 +1,126 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CoalescingExclusiveControlManager}のテスト。
+ */
+public class CoalescingExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private InMemoryExclusiveControlManager store;
+
+    private InMemoryExclusiveControlMetrics metrics;
+
+    private CoalescingExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        store = new InMemoryExclusiveControlManager();
+        store.addVersion(new UserPk("1"));
+        store.addVersion(new UserPk("2"));
+        store.transactionNormalEnd();
+
+        final MetricsExclusiveControlManager measured = new MetricsExclusiveControlManager();
+        measured.setExclusiveControlManager(store);
+        metrics = (InMemoryExclusiveControlMetrics) measured.getMetrics();
+
+        sut = new CoalescingExclusiveControlManager();
+        sut.setExclusiveControlManager(measured);
+    }
+
+    @Test
+    public void testFirstUpdateIsAppliedAndRepeatsAreSkipped() {
+        final Version user1 = store.getVersion(new UserPk("1"));
+        final Version user2 = store.getVersion(new UserPk("2"));
+        sut.updateVersionsWithCheck(Arrays.asList(user1, user2));
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("2"));
+        assertThat(store.getVersion(new UserPk("2")).getVersion(), is("2"));
+
+        sut.updateVersionsWithCheck(Collections.singletonList(user1));
+        assertThat(sut.tryUpdateVersionsWithCheck(Collections.singletonList(user2)).isSuccess(), is(true));
+        sut.transactionNormalEnd();
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("2"));
+        assertThat(store.getVersion(new UserPk("2")).getVersion(), is("2"));
+        assertThat(metrics.getLatency("USER_MST", ExclusiveControlOperation.UPDATE_VERSIONS_WITH_CHECK).getCount(), is(1L));
+    }
+
+    @Test
+    public void testRepeatedPessimisticUpdateIsSkipped() {
+        sut.updateVersion(new UserPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.updateVersions(Arrays.asList(new UserPk("1"), new UserPk("2")));
+        sut.transactionNormalEnd();
+
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("2"));
+        assertThat(store.getVersion(new UserPk("2")).getVersion(), is("2"));
+        assertThat(metrics.getPessimisticLockCount("USER_MST"), is(2L));
+    }
+
+    @Test
+    public void testConflictIsDetectedAtFirstCall() {
+        final Version stale = store.getVersion(new UserPk("1"));
+        store.updateVersion(new UserPk("1"));
+        store.transactionNormalEnd();
+        try {
+            sut.updateVersionsWithCheck(Collections.singletonList(stale));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(stale)));
+        }
+
+        final VersionCheckResult result = sut.tryUpdateVersionsWithCheck(Collections.singletonList(stale));
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.getCurrentVersions().get(0).getVersion(), is("2"));
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("2"));
+    }
+
+    @Test
+    public void testDifferentVersionIsCheckedByDelegate() {
+        final Version user1 = store.getVersion(new UserPk("1"));
+        sut.updateVersionsWithCheck(Collections.singletonList(user1));
+        final Version current = sut.getVersion(new UserPk("1"));
+        assertThat(current.getVersion(), is("2"));
+
+        sut.updateVersionsWithCheck(Collections.singletonList(current));
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("3"));
+        // 最初に指定したバージョン番号の繰り返しは、引き続き何もしない。
+        sut.updateVersionsWithCheck(Collections.singletonList(user1));
+        sut.transactionNormalEnd();
+        assertThat(store.getVersion(new UserPk("1")).getVersion(), is("3"));
+    }
+
+    @Test
+    public void testUpdatedRowsAreForgottenAtTransactionEnd() {
+        final Version user1 = store.getVersion(new UserPk("1"));
+        sut.updateVersionsWithCheck(Collections.singletonList(user1));
+        sut.transactionAbnormalEnd();
+        try {
+            sut.updateVersionsWithCheck(Collections.singletonList(user1));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(user1)));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * {@link ContentionDetector}と{@link ContentionDetectingExclusiveControlManager}のテスト。
+ */
+public class ContentionDetectorTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    @Test
+    public void testTopKeysWithBoundedCandidates() {
+        final ContentionDetector sut = new ContentionDetector();
+        sut.setCapacity(4);
+        for (int i = 0; i < 1000; i++) {
+            sut.recordOptimisticFailure(new UserPk(String.valueOf(i)).getKey());
+            if (i % 5 == 0) {
+                sut.recordOptimisticFailure(new UserPk("hot").getKey());
+            }
+            if (i % 10 == 0) {
+                sut.recordPessimisticWait(new UserPk("warm").getKey(), 100);
+            }
+        }
+
+        final List<HotKey> top = sut.getTopKeys(2);
+        assertThat(top.size(), is(2));
+        assertThat(top.get(0).getKey(), is(new UserPk("hot").getKey()));
+        assertTrue(top.get(0).getEstimatedCount() >= 200);
+        assertThat(top.get(1).getKey(), is(new UserPk("warm").getKey()));
+        assertTrue(top.get(1).getTotalWaitNanos() > 0);
+        assertTrue(sut.getTopKeys(100).size() <= 8);
+
+        sut.clear();
+        assertThat(sut.getTopKeys(10).isEmpty(), is(true));
+        assertThat(sut.estimate(new UserPk("hot").getKey()), is(0L));
+    }
+
+    @Test
+    public void testDecayLetsNewlyHotRowIn() {
+        final long[] now = {0};
+        final ContentionDetector sut = new ContentionDetector() {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        sut.setCapacity(2);
+        sut.setDecayIntervalMillis(1000);
+        // 過去に競合の多かった行データ
+        for (int i = 0; i < 1000; i++) {
+            sut.recordOptimisticFailure(new UserPk("old1").getKey());
+            sut.recordOptimisticFailure(new UserPk("old2").getKey());
+            sut.recordOptimisticFailure(new UserPk("cold" + i).getKey());
+        }
+        assertThat(sut.getTopKeys(1).get(0).getEstimatedCount() >= 1000, is(true));
+
+        // 時間の経過とともに集計値が半減し、新たに競合が多くなった行データが上位となる
+        for (int minute = 1; minute <= 10; minute++) {
+            now[0] = minute * 1000L;
+            for (int i = 0; i < 50; i++) {
+                sut.recordPessimisticWait(new UserPk("new").getKey(), 10);
+            }
+        }
+        final HotKey top = sut.getTopKeys(1).get(0);
+        assertThat(top.getKey(), is(new UserPk("new").getKey()));
+        assertTrue(top.getEstimatedCount() < 100);
+        assertTrue(sut.estimate(new UserPk("old1").getKey()) < 2);
+
+        sut.decay();
+        assertTrue(sut.estimate(new UserPk("new").getKey()) < 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecayIntervalMustBePositive() {
+        new ContentionDetector().setDecayIntervalMillis(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWaitThresholdMustNotBeNegative() {
+        new ContentionDetectingExclusiveControlManager().setWaitThresholdMillis(-1);
+    }
+
+    @Test
+    public void testDecoratorRecordsConflicts() throws Exception {
+        final InMemoryExclusiveControlManager store = new InMemoryExclusiveControlManager();
+        store.addVersion(new UserPk("1"));
+        store.transactionNormalEnd();
+        final ContentionDetectingExclusiveControlManager sut = new ContentionDetectingExclusiveControlManager();
+        sut.setExclusiveControlManager(store);
+
+        final Version stale = sut.getVersion(new UserPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.tryCheckVersions(Collections.singletonList(stale)).isSuccess(), is(false));
+
+        sut.updateVersion(new UserPk("1"));
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                sut.tryUpdateVersion(new UserPk("1"), 10, TimeUnit.MILLISECONDS);
+                sut.transactionNormalEnd();
+                done.countDown();
+            }
+        }).start();
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        sut.transactionNormalEnd();
+
+        final HotKey hotKey = sut.getDetector().getTopKeys(1).get(0);
+        assertThat(hotKey.getKey(), is(new UserPk("1").getKey()));
+        assertThat(hotKey.getOptimisticFailures(), is(1L));
+        assertThat(hotKey.getPessimisticWaits(), is(1L));
+    }
+}
@@ -0,0 +1,97 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * {@link ExclusiveControlSchema}のテスト。
+ */
+public class ExclusiveControlSchemaTest {
+
+    private enum PK {
+        ORDER_ID,
+        LINE_NO
+    }
+
+    private enum ItemPk {
+        ITEM_ID
+    }
+
+    private static class OrderPk extends ExclusiveControlContext {
+
+        private static final ExclusiveControlSchema SCHEMA = ExclusiveControlSchema.get("ORDER_HDR", "VERSION", PK.class);
+
+        public OrderPk(String orderId, int lineNo) {
+            setSchema(SCHEMA);
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+        }
+    }
+
+    private static class LegacyOrderPk extends ExclusiveControlContext {
+
+        public LegacyOrderPk(String orderId, int lineNo) {
+            setTableName("ORDER_HDR");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+        }
+    }
+
+    @Test
+    public void testCached() {
+        final ExclusiveControlSchema schema = ExclusiveControlSchema.get("ORDER_HDR", "VERSION", PK.class);
+        assertThat(ExclusiveControlSchema.get("ORDER_HDR", "VERSION", PK.class), is(sameInstance(schema)));
+        assertThat(ExclusiveControlSchema.get("ORDER_HDR", "VERSION", PK.values()), is(sameInstance(schema)));
+        assertThat(new LegacyOrderPk("A", 1).getSchema(), is(sameInstance(schema)));
+
+        assertThat(schema.getTableName(), is("ORDER_HDR"));
+        assertThat(schema.getVersionColumnName(), is("VERSION"));
+        assertThat((PK[]) schema.getPrimaryKeyColumnNames(), is(PK.values()));
+        assertThat(schema.getVariableName(PK.LINE_NO), is("line_no"));
+    }
+
+    @Test
+    public void testCachedRegardlessOfOverloadOrder() {
+        final ExclusiveControlSchema schema = ExclusiveControlSchema.get("ITEM_MST", "VERSION", ItemPk.values());
+        assertThat(ExclusiveControlSchema.get("ITEM_MST", "VERSION", ItemPk.class), is(sameInstance(schema)));
+        assertThat(ExclusiveControlSchema.get("ITEM_MST", "VERSION", ItemPk.ITEM_ID), is(sameInstance(schema)));
+    }
+
+    @Test
+    public void testSubsetOfPrimaryKeyColumns() {
+        final ExclusiveControlSchema schema = ExclusiveControlSchema.get("ORDER_HDR", "VERSION", PK.LINE_NO);
+        assertThat(schema.getPrimaryKeyColumnNames().length, is(1));
+        assertThat(schema.getVariableName(PK.LINE_NO), is("line_no"));
+        assertThat(schema.getVariableName(PK.ORDER_ID), is("order_id"));
+    }
+
+    @Test
+    public void testContextWithSchema() {
+        final OrderPk context = new OrderPk("A", 1);
+        assertThat(context.getTableName(), is("ORDER_HDR"));
+        assertThat(context.getVersionColumnName(), is("VERSION"));
+        assertThat(context.getCondition().get("order_id"), is((Object) "A"));
+        assertThat(context.getKey(), is(new LegacyOrderPk("A", 1).getKey()));
+
+        final Version version = new Version(context, "3");
+        assertThat(version.getSchema(), is(sameInstance(context.getSchema())));
+        assertThat(version.getTableName(), is("ORDER_HDR"));
+        assertThat(version.getPrimaryKeyCondition().get("line_no"), is((Object) 1));
+    }
+
+    @Test
+    public void testContextWithoutSchema() {
+        final ExclusiveControlContext context = new ExclusiveControlContext() {{
+            setTableName("ORDER_HDR");
+            appendCondition(PK.ORDER_ID, "A");
+        }};
+        assertThat(context.getSchema(), is(nullValue()));
+        assertThat(context.getCondition().get("order_id"), is((Object) "A"));
+    }
+}
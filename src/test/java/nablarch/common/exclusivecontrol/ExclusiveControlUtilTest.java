@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.hamcrest.collection.IsMapContaining;
 
@@ -168,4 +169,53 @@ public class ExclusiveControlUtilTest {
             assertThat(version.getVersion(), is("987"));
         }};
     }
+
+    @Test
+    public void testTryCheckVersions() throws Exception {
+        final ExUserMstPk pk = new ExUserMstPk("a", "b", "c");
+        final Version version = new Version(pk, "987");
+        new Expectations() {{
+            mockExclusiveControlManager.checkVersions((List<Version>) any);
+            result = new OptimisticLockException(Collections.singletonList(version), null);
+            mockExclusiveControlManager.getVersion((ExclusiveControlContext) any);
+            result = new Version(pk, "988");
+        }};
+
+        final VersionCheckResult result = ExclusiveControlUtil.tryCheckVersions(Collections.singletonList(version));
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.getErrorVersions(), is(Collections.singletonList(version)));
+        assertThat(result.getCurrentVersions().get(0).getVersion(), is("988"));
+
+        new Verifications() {{
+            ExclusiveControlContext context;
+            mockExclusiveControlManager.getVersion(context = withCapture());
+            assertThat(context.getTableName(), is("EXCLUSIVE_USER_MST"));
+            assertThat(context.getKey(), is(pk.getKey()));
+            assertThat((ExUserMstPk.PK[]) context.getPrimaryKeyColumnNames(), is(ExUserMstPk.PK.values()));
+        }};
+    }
+
+    @Test
+    public void testTryUpdateVersionsWithCheck() throws Exception {
+        final VersionCheckResult result = ExclusiveControlUtil.tryUpdateVersionsWithCheck(
+                Collections.singletonList(new Version(new ExUserMstPk("a", "b", "c"), "987")));
+        assertThat(result.isSuccess(), is(true));
+
+        new Verifications() {{
+            mockExclusiveControlManager.updateVersionsWithCheck((List<Version>) any);
+            times = 1;
+        }};
+    }
+
+    @Test
+    public void testTryUpdateVersionWaitsWithPlainManager() throws Exception {
+        assertThat(ExclusiveControlUtil.tryUpdateVersion(new ExUserMstPk("a", "b", "c")), is(true));
+        assertThat(ExclusiveControlUtil.tryUpdateVersion(new ExUserMstPk("a", "b", "d"), 10, TimeUnit.MILLISECONDS),
+                is(true));
+
+        new Verifications() {{
+            mockExclusiveControlManager.updateVersion((ExclusiveControlContext) any);
+            times = 2;
+        }};
+    }
 }
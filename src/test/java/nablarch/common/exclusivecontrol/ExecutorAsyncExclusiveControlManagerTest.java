@@ -0,0 +1,213 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * {@link ExecutorAsyncExclusiveControlManager}のテスト。
+ */
+public class ExecutorAsyncExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private final ExecutorAsyncExclusiveControlManager sut = new ExecutorAsyncExclusiveControlManager();
+
+    @After
+    public void tearDown() {
+        sut.shutdown();
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        final InMemoryExclusiveControlManager store = new InMemoryExclusiveControlManager();
+        sut.setExclusiveControlManager(store);
+
+        assertThat(sut.addVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS), is(nullValue()));
+        final Version version = sut.getVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+        assertThat(version.getVersion(), is("1"));
+
+        sut.checkVersions(Collections.singletonList(version), null).get(5, TimeUnit.SECONDS);
+        sut.updateVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+        // ワーカースレッドのトランザクションは終了しているため、別スレッドから更新できる。
+        assertThat(store.tryUpdateVersion(new UserPk("1")), is(true));
+        store.transactionNormalEnd();
+
+        try {
+            sut.updateVersionsWithCheck(Collections.singletonList(version), null).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(OptimisticLockException.class));
+        }
+
+        sut.removeVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+        assertThat(store.getVersion(new UserPk("1")), is(nullValue()));
+    }
+
+    @Test
+    public void testCallback() throws Exception {
+        final InMemoryExclusiveControlManager store = new InMemoryExclusiveControlManager();
+        store.addVersion(new UserPk("1"));
+        store.transactionNormalEnd();
+        sut.setExclusiveControlManager(store);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<Object> success = new AtomicReference<Object>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        sut.getVersion(new UserPk("1"), new ExclusiveControlCallback<Object>() {
+            public void onSuccess(Object result) {
+                success.set(result);
+                done.countDown();
+            }
+
+            public void onFailure(Throwable cause) {
+                done.countDown();
+            }
+        });
+        sut.checkVersions(Collections.singletonList(new Version(new UserPk("1"), 0L)),
+                new ExclusiveControlCallback<Void>() {
+                    public void onSuccess(Void result) {
+                        done.countDown();
+                    }
+
+                    public void onFailure(Throwable cause) {
+                        failure.set(cause);
+                        done.countDown();
+                    }
+                });
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(((Version) success.get()).getVersion(), is("1"));
+        assertThat(failure.get(), instanceOf(OptimisticLockException.class));
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        sut.setExclusiveControlManager(new InMemoryExclusiveControlManager() {
+            @Override
+            public Version getVersion(ExclusiveControlContext context) {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        sut.setPoolSize(1);
+        sut.setQueueCapacity(1);
+
+        sut.getVersion(new UserPk("1"), null);
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        sut.getVersion(new UserPk("2"), null);
+        try {
+            sut.getVersion(new UserPk("3"), null);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // キューが溢れた。
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testTransactionScopeBindsConnectionOnWorker() throws Exception {
+        final ThreadLocal<String> connection = new ThreadLocal<String>();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        sut.setExclusiveControlManager(new InMemoryExclusiveControlManager() {
+            @Override
+            public Version getVersion(ExclusiveControlContext context) {
+                if (connection.get() == null) {
+                    throw new IllegalStateException("connection is not bound.");
+                }
+                events.add("getVersion:" + connection.get());
+                return super.getVersion(context);
+            }
+
+            @Override
+            public void transactionNormalEnd() {
+                events.add("normalEnd");
+                super.transactionNormalEnd();
+            }
+        });
+
+        try {
+            sut.getVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+
+        sut.setTransactionScope(new ExclusiveControlTransactionScope() {
+            public <T> T execute(Callable<T> operation) throws Exception {
+                connection.set("db");
+                try {
+                    final T result = operation.call();
+                    events.add("commit");
+                    return result;
+                } finally {
+                    connection.remove();
+                }
+            }
+        });
+        events.clear();
+        assertThat(sut.getVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS), is(nullValue()));
+        assertThat(events, is(Arrays.asList("getVersion:db", "normalEnd", "commit")));
+    }
+
+    @Test
+    public void testSetExecutorShutsDownOwnedPool() throws Exception {
+        final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+        sut.setExclusiveControlManager(new InMemoryExclusiveControlManager() {
+            @Override
+            public Version getVersion(ExclusiveControlContext context) {
+                worker.set(Thread.currentThread());
+                return null;
+            }
+        });
+        sut.getVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            sut.setExecutor(executor);
+            worker.get().join(5000);
+            assertThat(worker.get().isAlive(), is(false));
+            sut.getVersion(new UserPk("1"), null).get(5, TimeUnit.SECONDS);
+            assertThat(worker.get().getName().startsWith("exclusive-control-async-"), is(false));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link InMemoryExclusiveControlManager}のテスト。
+ */
+public class InMemoryExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private static class ItemPk extends ExclusiveControlContext {
+
+        enum PK {
+            ITEM_ID
+        }
+
+        public ItemPk(String itemId) {
+            setTableName("ITEM_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ITEM_ID, itemId);
+        }
+    }
+
+    /** 悲観的ロックの対象を記録する{@link ExclusiveControlManager}。 */
+    private static class RecordingManager implements ExclusiveControlManager {
+
+        final List<ExclusiveControlContext> locked = new ArrayList<ExclusiveControlContext>();
+
+        public Version getVersion(ExclusiveControlContext context) {
+            return null;
+        }
+
+        public void checkVersions(List<Version> versions) {
+        }
+
+        public void updateVersionsWithCheck(List<Version> versions) {
+        }
+
+        public void updateVersion(ExclusiveControlContext context) {
+            locked.add(context);
+        }
+
+        public void addVersion(ExclusiveControlContext context) {
+        }
+
+        public void removeVersion(ExclusiveControlContext context) {
+        }
+    }
+
+    private InMemoryExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        sut = new InMemoryExclusiveControlManager();
+        sut.addVersion(new UserPk("1"));
+        sut.addVersion(new UserPk("2"));
+        sut.transactionNormalEnd();
+    }
+
+    @Test
+    public void testGetVersion() {
+        final Version version = sut.getVersion(new UserPk("1"));
+        assertThat(version.getTableName(), is("USER_MST"));
+        assertThat(version.getVersionColumnName(), is("VERSION"));
+        assertThat(version.getVersion(), is("1"));
+        assertThat(version.getPrimaryKeyCondition().get("user_id"), is((Object) "1"));
+
+        assertThat(sut.getVersion(new UserPk("999")), is(nullValue()));
+    }
+
+    @Test
+    public void testUpdateVersionsWithCheck() {
+        final Version version = sut.getVersion(new UserPk("1"));
+        sut.checkVersions(Collections.singletonList(version));
+        sut.updateVersionsWithCheck(Collections.singletonList(version));
+        sut.transactionNormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+        try {
+            sut.checkVersions(Collections.singletonList(version));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(version)));
+        }
+    }
+
+    @Test
+    public void testUpdateVersionsWithCheckIncrementsDuplicatedRowOnce() {
+        final Version version = sut.getVersion(new UserPk("1"));
+        sut.updateVersionsWithCheck(Arrays.asList(version, sut.getVersion(new UserPk("1"))));
+        sut.transactionNormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+    }
+
+    @Test
+    public void testUpdateVersionsWithCheckIsAtomic() {
+        final Version stale = sut.getVersion(new UserPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        final Version current = sut.getVersion(new UserPk("2"));
+
+        try {
+            sut.updateVersionsWithCheck(Arrays.asList(current, stale));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(stale)));
+        }
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("1"));
+    }
+
+    @Test
+    public void testRemovedVersionIsError() {
+        final Version version = sut.getVersion(new UserPk("2"));
+        sut.removeVersion(new UserPk("2"));
+        sut.transactionNormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("2")), is(nullValue()));
+        try {
+            sut.checkVersions(Collections.singletonList(version));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions().size(), is(1));
+        }
+    }
+
+    @Test
+    public void testAddAndRemoveAreRolledBackOnAbnormalEnd() {
+        sut.updateVersion(new UserPk("2"));
+        sut.transactionNormalEnd();
+
+        sut.addVersion(new UserPk("3"));
+        sut.removeVersion(new UserPk("2"));
+        sut.removeVersion(new UserPk("1"));
+        sut.addVersion(new UserPk("1"));
+        sut.transactionAbnormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("3")), is(nullValue()));
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("1"));
+
+        // 正常終了したトランザクションの追加と削除は、後続のトランザクションの異常終了で取り消さない。
+        sut.addVersion(new UserPk("3"));
+        sut.transactionNormalEnd();
+        sut.transactionAbnormalEnd();
+        assertThat(sut.getVersion(new UserPk("3")).getVersion(), is("1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddDuplicateVersion() {
+        sut.addVersion(new UserPk("1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateMissingVersion() {
+        sut.updateVersion(new UserPk("999"));
+    }
+
+    @Test
+    public void testPessimisticLockIsHeldUntilTransactionEnd() throws Exception {
+        sut.updateVersion(new UserPk("1"));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread other = new Thread(new Runnable() {
+            public void run() {
+                sut.updateVersion(new UserPk("1"));
+                sut.transactionNormalEnd();
+                done.countDown();
+            }
+        });
+        other.start();
+
+        assertThat(done.await(200, TimeUnit.MILLISECONDS), is(false));
+        sut.transactionNormalEnd();
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("3"));
+    }
+
+    @Test
+    public void testTryUpdateVersionsWithCheck() {
+        final Version stale = sut.getVersion(new UserPk("1"));
+        final Version other = sut.getVersion(new UserPk("2"));
+        assertThat(sut.tryUpdateVersionsWithCheck(Collections.singletonList(stale)).isSuccess(), is(true));
+        sut.transactionNormalEnd();
+
+        final VersionCheckResult result = sut.tryUpdateVersionsWithCheck(Arrays.asList(other, stale));
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.getErrorVersions(), is(Collections.singletonList(stale)));
+        assertThat(result.getCurrentVersions().get(0).getNumericVersion(), is(2L));
+        assertThat(result.getCurrentVersions().get(0).getKey(), is(stale.getKey()));
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("1"));
+
+        sut.removeVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.tryCheckVersions(Collections.singletonList(stale)).getCurrentVersions().get(0), is(nullValue()));
+    }
+
+    @Test
+    public void testLightweightException() {
+        sut.setLightweightException(true);
+        final Version version = sut.getVersion(new UserPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        try {
+            sut.checkVersions(Collections.singletonList(version));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getStackTrace().length, is(0));
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(version)));
+        }
+    }
+
+    @Test
+    public void testUpdateVersions() {
+        sut.updateVersions(Arrays.asList(new UserPk("2"), new UserPk("1"), new UserPk("2")));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("2"));
+
+        try {
+            sut.updateVersions(Arrays.asList(new UserPk("1"), new UserPk("999")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+        }
+        sut.transactionNormalEnd();
+    }
+
+    @Test
+    public void testUpdateVersionsInReverseOrderDoesNotDeadlock() throws Exception {
+        sut.setStripeCount(1024);
+        for (int i = 3; i <= 20; i++) {
+            sut.addVersion(new UserPk(String.valueOf(i)));
+        }
+        sut.transactionNormalEnd();
+
+        final List<UserPk> ascending = new ArrayList<UserPk>();
+        for (int i = 1; i <= 20; i++) {
+            ascending.add(new UserPk(String.valueOf(i)));
+        }
+        final List<UserPk> descending = new ArrayList<UserPk>(ascending);
+        Collections.reverse(descending);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        for (final List<UserPk> contexts : Arrays.asList(ascending, descending)) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        sut.updateVersions(contexts);
+                        sut.transactionNormalEnd();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(sut.getVersion(new UserPk("20")).getVersion(), is("201"));
+    }
+
+    @Test
+    public void testSupportUpdateVersionsSortsAndDistincts() {
+        final RecordingManager manager = new RecordingManager();
+        final UserPk user1 = new UserPk("1");
+        final UserPk user2 = new UserPk("2");
+        ExclusiveControlManagerSupport.extend(manager).updateVersions(Arrays.asList(user2, user1, new UserPk("2")));
+        assertThat(manager.locked, is(Arrays.<ExclusiveControlContext>asList(user1, user2)));
+    }
+
+    @Test
+    public void testSupportUpdateVersionsKeepsVersionGroups() {
+        final RecordingManager manager = new RecordingManager();
+        final UserPk profile = grouped("PROFILE");
+        final UserPk contact = grouped("CONTACT");
+        final UserPk whole = new UserPk("1");
+        ExclusiveControlManagerSupport.extend(manager).updateVersions(
+                Arrays.asList(profile, contact, whole, grouped("PROFILE"), new UserPk("1")));
+        assertThat(manager.locked, is(Arrays.<ExclusiveControlContext>asList(whole, contact, profile)));
+    }
+
+    @Test
+    public void testBulkAddAndRemoveInChunks() {
+        final List<String> chunks = new ArrayList<String>();
+        final InMemoryExclusiveControlManager manager = new InMemoryExclusiveControlManager() {
+            @Override
+            protected void addVersionsChunk(List<ExclusiveControlContext> chunk) {
+                chunks.add("add " + chunk.get(0).getTableName() + ' ' + chunk.size());
+                super.addVersionsChunk(chunk);
+            }
+
+            @Override
+            protected void removeVersionsChunk(List<ExclusiveControlContext> chunk) {
+                chunks.add("remove " + chunk.get(0).getTableName() + ' ' + chunk.size());
+                super.removeVersionsChunk(chunk);
+            }
+        };
+        manager.setBulkChunkSize(2);
+
+        manager.addVersions(Arrays.asList(new UserPk("1"), new ItemPk("1"), new UserPk("2"),
+                new UserPk("3"), new ItemPk("2"), new ItemPk("3")));
+        manager.transactionNormalEnd();
+        assertThat(chunks, is(Arrays.asList("add USER_MST 2", "add ITEM_MST 2", "add USER_MST 1", "add ITEM_MST 1")));
+        assertThat(manager.getVersion(new ItemPk("3")).getVersion(), is("1"));
+
+        chunks.clear();
+        manager.removeVersions(Arrays.asList(new ItemPk("1"), new UserPk("1"), new ItemPk("2")));
+        manager.transactionNormalEnd();
+        assertThat(chunks, is(Arrays.asList("remove ITEM_MST 2", "remove USER_MST 1")));
+        assertThat(manager.getVersion(new ItemPk("1")), is(nullValue()));
+        assertThat(manager.getVersion(new UserPk("2")).getVersion(), is("1"));
+    }
+
+    @Test
+    public void testLockEscalation() throws Exception {
+        sut.setEscalationThreshold(2);
+        sut.addVersion(new UserPk("3"));
+        sut.addVersion(new UserPk("4"));
+        sut.addVersion(new ItemPk("1"));
+        sut.transactionNormalEnd();
+        final Version user4 = sut.getVersion(new UserPk("4"));
+
+        sut.updateVersionsWithCheck(Arrays.asList(
+                sut.getVersion(new UserPk("1")), sut.getVersion(new UserPk("2")), sut.getVersion(new UserPk("3"))));
+
+        // テーブルのロックを排他的に保持しているため、他のスレッドは同じテーブルの行データをロックできない。
+        final boolean[] acquired = new boolean[2];
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                acquired[0] = sut.tryUpdateVersion(new UserPk("4"), 10, TimeUnit.MILLISECONDS);
+                acquired[1] = sut.tryUpdateVersion(new ItemPk("1"));
+                sut.transactionNormalEnd();
+            }
+        });
+        other.start();
+        other.join();
+        assertThat(acquired[0], is(false));
+        assertThat(acquired[1], is(true));
+        sut.transactionNormalEnd();
+
+        // テーブルのバージョン番号の更新により、対象外の行データも更新されたものとして扱われる。
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new UserPk("4")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new ItemPk("1")).getVersion(), is("2"));
+        assertThat(sut.tryCheckVersions(Collections.singletonList(user4)).isSuccess(), is(false));
+        assertThat(sut.tryCheckVersions(Collections.singletonList(user4)).getCurrentVersions().get(0).getVersion(), is("2"));
+
+        // 共有モードでロックを保持している場合はエスカレーションしない。
+        sut.updateVersion(new UserPk("1"));
+        sut.updateVersions(Arrays.asList(new UserPk("2"), new UserPk("3"), new UserPk("1")));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("4"));
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("3"));
+        assertThat(sut.getVersion(new UserPk("4")).getVersion(), is("2"));
+
+        // 閾値以下の場合は行データ単位で更新する。
+        sut.updateVersions(Arrays.asList(new UserPk("2"), new UserPk("3")));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("4")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new UserPk("3")).getVersion(), is("4"));
+    }
+
+    @Test
+    public void testVersionGroups() {
+        sut.setVersionGroups(Arrays.asList(
+                group("USER_MST", "PROFILE", "NAME", "MAIL"),
+                group("USER_MST", "CONTACT", "MAIL", "TEL"),
+                group("USER_MST", "ADDRESS", "ZIP", "ADDR")));
+        final Version profile = sut.getVersion(grouped("PROFILE"));
+        final Version contact = sut.getVersion(grouped("CONTACT"));
+        final Version address = sut.getVersion(grouped("ADDRESS"));
+        final Version row = sut.getVersion(new UserPk("1"));
+        assertThat(profile.getVersionGroup(), is("PROFILE"));
+        assertThat(profile.getVersion(), is("1"));
+
+        // 項目が重複しないグループの更新はエラーとならない。
+        sut.updateVersionsWithCheck(Collections.singletonList(address));
+        sut.transactionNormalEnd();
+        sut.checkVersions(Arrays.asList(profile, contact));
+        assertThat(sut.tryCheckVersions(Collections.singletonList(row)).isSuccess(), is(false));
+        assertThat(sut.tryCheckVersions(Collections.singletonList(address)).isSuccess(), is(false));
+
+        // 項目が重複するグループの更新はエラーとなる。
+        sut.updateVersion(grouped("PROFILE"));
+        sut.transactionNormalEnd();
+        final VersionCheckResult result = sut.tryCheckVersions(Arrays.asList(profile, contact));
+        assertThat(result.getErrorVersions().size(), is(2));
+        assertThat(result.getCurrentVersions().get(1).getVersionGroup(), is("CONTACT"));
+        assertThat(result.getCurrentVersions().get(1).getVersion(), is("2"));
+
+        // 行データ全体の更新は全てのグループを更新する。
+        final Version latestAddress = sut.getVersion(grouped("ADDRESS"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.tryCheckVersions(Collections.singletonList(latestAddress)).isSuccess(), is(false));
+
+        // 行データを削除するとグループのバージョン番号も削除する。
+        sut.removeVersion(new UserPk("1"));
+        sut.addVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(grouped("ADDRESS")).getVersion(), is("1"));
+
+        try {
+            sut.getVersion(grouped("UNKNOWN"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage().startsWith("version group was not defined. versionGroup = [UNKNOWN]"), is(true));
+        }
+    }
+
+    private static VersionGroup group(String tableName, String name, String... fieldNames) {
+        final VersionGroup group = new VersionGroup();
+        group.setTableName(tableName);
+        group.setName(name);
+        group.setFieldNames(Arrays.asList(fieldNames));
+        return group;
+    }
+
+    private static UserPk grouped(String versionGroup) {
+        final UserPk context = new UserPk("1");
+        context.setVersionGroup(versionGroup);
+        return context;
+    }
+
+    @Test
+    public void testTryUpdateVersion() throws Exception {
+        assertThat(sut.tryUpdateVersion(new UserPk("1")), is(true));
+        assertThat(sut.tryUpdateVersion(new UserPk("1"), 0, TimeUnit.MILLISECONDS), is(true));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] acquired = new boolean[2];
+        new Thread(new Runnable() {
+            public void run() {
+                acquired[0] = sut.tryUpdateVersion(new UserPk("1"));
+                acquired[1] = sut.tryUpdateVersion(new UserPk("1"), 50, TimeUnit.MILLISECONDS);
+                sut.transactionNormalEnd();
+                done.countDown();
+            }
+        }).start();
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(acquired[0], is(false));
+        assertThat(acquired[1], is(false));
+        sut.transactionNormalEnd();
+
+        assertThat(sut.getVersion(new UserPk("1")).getVersion(), is("3"));
+    }
+
+    @Test
+    public void testSupportTryUpdateVersionFallsBackToUpdateVersion() {
+        final RecordingManager manager = new RecordingManager();
+        final ExtendedExclusiveControlManager extended = ExclusiveControlManagerSupport.extend(manager);
+        assertThat(extended.tryUpdateVersion(new UserPk("1")), is(true));
+        assertThat(extended.tryUpdateVersion(new UserPk("2"), 10, TimeUnit.MILLISECONDS), is(true));
+        assertThat(manager.locked.size(), is(2));
+        assertThat(manager.locked.get(1).getKey(), is(new UserPk("2").getKey()));
+    }
+}
@@ -0,0 +1,236 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link LeaseExclusiveControlManager}のテスト。
+ */
+public class LeaseExclusiveControlManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    /** 時刻を指定できる{@link LeaseExclusiveControlManager}。 */
+    private static class TestManager extends LeaseExclusiveControlManager {
+
+        long now = 1000;
+
+        TestManager(LeaseStore store, String ownerId) {
+            setLeaseStore(store);
+            setLeaseDurationMillis(100);
+            setPollIntervalMillis(1);
+            setOwnerId(ownerId);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private LeaseStore fileStore() throws Exception {
+        final FileLeaseStore store = new FileLeaseStore();
+        store.setDirectory(folder.newFolder("leases").getPath());
+        return store;
+    }
+
+    @Test
+    public void testFencingWithInMemoryStore() throws Exception {
+        assertFencing(new InMemoryLeaseStore());
+    }
+
+    @Test
+    public void testFencingWithFileStore() throws Exception {
+        assertFencing(fileStore());
+    }
+
+    private void assertFencing(LeaseStore store) throws Exception {
+        final TestManager batch1 = new TestManager(store, "batch1");
+        final TestManager batch2 = new TestManager(store, "batch2");
+
+        assertThat(batch1.getVersion(new UserPk("1")).getNumericVersion(), is(0L));
+        final Lease lease = batch1.tryAcquire(new UserPk("1"));
+        assertThat(lease.getFencingToken(), is(1L));
+        assertThat(batch2.tryUpdateVersion(new UserPk("1")), is(false));
+        assertThat(batch1.getVersion(new UserPk("1")).getNumericVersion(), is(3L));
+
+        // 有効期限内の延長
+        batch1.now = 1090;
+        assertThat(batch1.renew(lease).getExpiresAtMillis(), is(1190L));
+        assertThat(batch1.isValid(lease), is(true));
+
+        // 有効期限経過後は他の保有者が取得でき、トークンが増加する
+        batch1.now = 1200;
+        batch2.now = 1200;
+        assertThat(batch1.renew(lease), is(nullValue()));
+        assertThat(batch1.isValid(lease), is(false));
+        assertThat(batch2.tryUpdateVersion(new UserPk("1")), is(true));
+        assertThat(batch2.getVersion(new UserPk("1")).getNumericVersion(), is(5L));
+        assertThat(batch1.release(lease), is(false));
+        batch2.transactionNormalEnd();
+        assertThat(store.get(new UserPk("1").getKey()), is(nullValue()));
+        assertThat(batch2.getVersion(new UserPk("1")).getNumericVersion(), is(4L));
+
+        // 解放後もトークンは減少しない
+        assertThat(batch1.tryAcquire(new UserPk("1")).getFencingToken(), is(3L));
+        batch2.removeVersion(new UserPk("1"));
+        assertThat(store.get(new UserPk("1").getKey()), is(nullValue()));
+        assertThat(batch1.getVersion(new UserPk("1")).getNumericVersion(), is(6L));
+    }
+
+    @Test
+    public void testNonHolderFailsCheckWhileLeaseHeld() throws Exception {
+        final InMemoryLeaseStore store = new InMemoryLeaseStore();
+        final TestManager holder = new TestManager(store, "holder");
+        final TestManager other = new TestManager(store, "other");
+
+        final Version before = other.getVersion(new UserPk("1"));
+        final Lease lease = holder.tryAcquire(new UserPk("1"));
+        final Version during = other.getVersion(new UserPk("1"));
+        assertOptimisticLockError(other, before);
+        assertOptimisticLockError(other, during);
+
+        // 保有者のリースは延長されず、保有者のみが有効なリースとしてチェックできる
+        assertThat(store.get(new UserPk("1").getKey()).getExpiresAtMillis(), is(1100L));
+        assertThat(holder.isValid(lease), is(true));
+        assertThat(other.isValid(new Lease(lease.getKey(), "other", lease.getFencingToken(), lease.getExpiresAtMillis())),
+                   is(false));
+
+        // 保有中に取得したバージョン番号は、解放後もチェックに失敗する
+        assertThat(holder.release(lease), is(true));
+        assertOptimisticLockError(other, before);
+        assertOptimisticLockError(other, during);
+        other.updateVersionsWithCheck(Collections.singletonList(other.getVersion(new UserPk("1"))));
+    }
+
+    @Test
+    public void testConcurrentEditorsCannotBothUpdate() throws Exception {
+        final InMemoryLeaseStore store = new InMemoryLeaseStore();
+        final TestManager editor1 = new TestManager(store, "editor1");
+        final TestManager editor2 = new TestManager(store, "editor2");
+
+        final Version version1 = editor1.getVersion(new UserPk("1"));
+        final Version version2 = editor2.getVersion(new UserPk("1"));
+        editor1.checkVersions(Collections.singletonList(version1));
+        editor1.updateVersionsWithCheck(Arrays.asList(version1, version1));
+        assertThat(editor1.getVersion(new UserPk("1")).getNumericVersion(), is(2L));
+        assertThat(store.get(new UserPk("1").getKey()), is(nullValue()));
+
+        assertOptimisticLockError(editor2, version2);
+        final Version reloaded = editor2.getVersion(new UserPk("1"));
+        editor2.checkVersions(Collections.singletonList(reloaded));
+        editor2.updateVersionsWithCheck(Collections.singletonList(reloaded));
+        assertThat(editor2.getVersion(new UserPk("1")).getNumericVersion(), is(reloaded.getNumericVersion() + 2));
+    }
+
+    @Test(timeout = 5000)
+    public void testUpdateVersionReusesLeaseWithinTransaction() throws Exception {
+        final InMemoryLeaseStore store = new InMemoryLeaseStore();
+        final TestManager sut = new TestManager(store, "batch");
+        final TestManager other = new TestManager(store, "other");
+
+        sut.updateVersion(new UserPk("1"));
+        sut.now = 1050;
+        sut.updateVersion(new UserPk("1"));
+        assertThat(sut.tryUpdateVersion(new UserPk("1")), is(true));
+        assertThat(store.get(new UserPk("1").getKey()).getFencingToken(), is(1L));
+        assertThat(store.get(new UserPk("1").getKey()).getExpiresAtMillis(), is(1150L));
+        assertThat(other.tryUpdateVersion(new UserPk("1")), is(false));
+
+        // トランザクションの終了で解放され、次のトランザクションでも待機せずに取得できる
+        sut.transactionNormalEnd();
+        sut.updateVersion(new UserPk("1"));
+        assertThat(store.get(new UserPk("1").getKey()).getFencingToken(), is(2L));
+        sut.transactionAbnormalEnd();
+        assertThat(store.get(new UserPk("1").getKey()), is(nullValue()));
+        assertThat(other.tryUpdateVersion(new UserPk("1")), is(true));
+    }
+
+    private static void assertOptimisticLockError(LeaseExclusiveControlManager sut, Version version) {
+        try {
+            sut.checkVersions(Collections.singletonList(version));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions().get(0), is(version));
+        }
+        try {
+            sut.updateVersionsWithCheck(Collections.singletonList(version));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions().get(0), is(version));
+        }
+    }
+
+    @Test
+    public void testSameThreadCannotReenterHeldLease() throws Exception {
+        final TestManager sut = new TestManager(fileStore(), "batch");
+        final Lease first = sut.tryAcquire(new UserPk("1"));
+        sut.now = 1050;
+        // スレッドプールで同じスレッドを使用する別の処理を想定
+        assertThat(sut.tryAcquire(new UserPk("1")), is(nullValue()));
+        assertThat(sut.tryUpdateVersion(new UserPk("1")), is(false));
+
+        // 保有者はリースにより延長する
+        final Lease renewed = sut.renew(first);
+        assertThat(renewed.getFencingToken(), is(first.getFencingToken()));
+        assertThat(renewed.getExpiresAtMillis(), is(1150L));
+        assertThat(sut.release(renewed), is(true));
+        assertThat(sut.getVersion(new UserPk("1")).getNumericVersion(), is(2L));
+        assertThat(sut.tryAcquire(new UserPk("1")).getFencingToken(), is(2L));
+    }
+
+    @Test
+    public void testAcquireTimeout() throws Exception {
+        final LeaseExclusiveControlManager holder = new LeaseExclusiveControlManager();
+        final InMemoryLeaseStore store = new InMemoryLeaseStore();
+        holder.setLeaseStore(store);
+        holder.updateVersion(new UserPk("1"));
+
+        final Lease[] acquired = new Lease[1];
+        final Thread other = new Thread(new Runnable() {
+            public void run() {
+                acquired[0] = holder.acquire(new UserPk("1"), 20, TimeUnit.MILLISECONDS);
+            }
+        });
+        other.start();
+        other.join();
+        assertThat(acquired[0], is(nullValue()));
+
+        holder.removeVersion(new UserPk("1"));
+        final Thread retry = new Thread(new Runnable() {
+            public void run() {
+                acquired[0] = holder.acquire(new UserPk("1"), 1, TimeUnit.SECONDS);
+            }
+        });
+        retry.start();
+        retry.join();
+        assertThat(acquired[0], is(notNullValue()));
+        assertThat(acquired[0].getFencingToken(), is(2L));
+    }
+}
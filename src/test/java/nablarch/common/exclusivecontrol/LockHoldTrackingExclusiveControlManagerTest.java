@@ -0,0 +1,134 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link LockHoldTrackingExclusiveControlManager}のテスト。
+ */
+public class LockHoldTrackingExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private final List<HeldLock> notified = Collections.synchronizedList(new ArrayList<HeldLock>());
+
+    private LockHoldTrackingExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        OnMemoryLoggerFactory.clear();
+        final InMemoryExclusiveControlManager delegate = new InMemoryExclusiveControlManager();
+        delegate.addVersions(Arrays.asList(new UserPk("1"), new UserPk("2"), new UserPk("3")));
+        delegate.transactionNormalEnd();
+
+        sut = new LockHoldTrackingExclusiveControlManager();
+        sut.setExclusiveControlManager(delegate);
+        sut.setListener(new LockHoldListener() {
+            public void onLongHold(HeldLock lock) {
+                notified.add(lock);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        sut.shutdown();
+    }
+
+    @Test
+    public void testSnapshotAndReleaseAtTransactionEnd() throws Exception {
+        sut.updateVersion(new UserPk("1"));
+        Thread.sleep(5);
+        assertThat(sut.tryUpdateVersion(new UserPk("2")), is(true));
+        sut.updateVersion(new UserPk("1"));
+
+        final List<HeldLock> locks = sut.getHeldLocks();
+        assertThat(locks.size(), is(2));
+        assertThat(locks.get(0).getKey(), is(new UserPk("1").getKey()));
+        assertThat(locks.get(0).getTableName(), is("USER_MST"));
+        assertThat(locks.get(0).getThreadId(), is(Thread.currentThread().getId()));
+        assertThat(locks.get(1).getKey(), is(new UserPk("2").getKey()));
+        assertThat(sut.checkHoldTimes().isEmpty(), is(true));
+
+        sut.transactionNormalEnd();
+        assertThat(sut.getHeldLocks().isEmpty(), is(true));
+        assertThat(notified.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testLongHoldIsReportedOnce() throws Exception {
+        sut.setThresholdMillis(1);
+        sut.updateVersions(Arrays.asList(new UserPk("1"), new UserPk("2")));
+        Thread.sleep(5);
+
+        assertThat(sut.checkHoldTimes().size(), is(2));
+        assertThat(sut.checkHoldTimes().isEmpty(), is(true));
+        assertThat(notified.size(), is(2));
+
+        assertThat(sut.tryUpdateVersion(new UserPk("3"), 1, TimeUnit.SECONDS), is(true));
+        Thread.sleep(5);
+        sut.transactionAbnormalEnd();
+        assertThat(notified.size(), is(3));
+        assertThat(notified.get(2).getKey(), is(new UserPk("3").getKey()));
+        final List<String> warnings = OnMemoryLoggerFactory.getWarnMessages();
+        assertThat(warnings.size(), is(3));
+        assertThat(warnings.get(2).contains("USER_MST"), is(true));
+        assertThat(sut.getHeldLocks().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testWatchdogReportsLockHeldByOtherThread() throws Exception {
+        sut.setThresholdMillis(1);
+        sut.setCheckIntervalMillis(1);
+        final CountDownLatch reported = new CountDownLatch(1);
+        sut.setListener(new LockHoldListener() {
+            public void onLongHold(HeldLock lock) {
+                notified.add(lock);
+                reported.countDown();
+            }
+        });
+
+        final Thread holder = new Thread(new Runnable() {
+            public void run() {
+                sut.updateVersion(new UserPk("1"));
+                try {
+                    reported.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sut.transactionNormalEnd();
+                }
+            }
+        }, "long-holder");
+        holder.start();
+        assertThat(reported.await(5, TimeUnit.SECONDS), is(true));
+        holder.join();
+
+        assertThat(notified.size(), is(1));
+        assertThat(notified.get(0).getThreadName(), is("long-holder"));
+        assertThat(sut.getHeldLocks().isEmpty(), is(true));
+    }
+}
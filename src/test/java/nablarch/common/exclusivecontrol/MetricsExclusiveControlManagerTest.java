@@ -0,0 +1,125 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link MetricsExclusiveControlManager}のテスト。
+ */
+public class MetricsExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private static class OrderPk extends ExclusiveControlContext {
+
+        enum PK {
+            ORDER_ID
+        }
+
+        public OrderPk(String orderId) {
+            setTableName("ORDER_HDR");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ORDER_ID, orderId);
+        }
+    }
+
+    private final InMemoryExclusiveControlManager delegate = new InMemoryExclusiveControlManager();
+
+    private final MetricsExclusiveControlManager sut = new MetricsExclusiveControlManager();
+
+    private InMemoryExclusiveControlMetrics metrics;
+
+    @Before
+    public void setUp() {
+        sut.setExclusiveControlManager(delegate);
+        metrics = (InMemoryExclusiveControlMetrics) sut.getMetrics();
+        sut.addVersion(new UserPk("1"));
+        sut.addVersion(new UserPk("2"));
+        sut.addVersion(new OrderPk("1"));
+        sut.transactionNormalEnd();
+    }
+
+    @Test
+    public void testRecordPerTable() {
+        final Version user1 = sut.getVersion(new UserPk("1"));
+        final Version user2 = sut.getVersion(new UserPk("2"));
+        final Version order = sut.getVersion(new OrderPk("1"));
+        sut.updateVersion(new UserPk("1"));
+        sut.transactionNormalEnd();
+
+        try {
+            sut.checkVersions(Arrays.asList(user1, user2, order));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions().size(), is(1));
+        }
+
+        assertThat(metrics.getLatency("USER_MST", ExclusiveControlOperation.ADD_VERSION).getCount(), is(2L));
+        assertThat(metrics.getLatency("USER_MST", ExclusiveControlOperation.GET_VERSION).getCount(), is(2L));
+        assertThat(metrics.getLatency("ORDER_HDR", ExclusiveControlOperation.CHECK_VERSIONS).getCount(), is(1L));
+        assertThat(metrics.getPessimisticLockCount("USER_MST"), is(1L));
+        assertThat(metrics.getBatchSize("USER_MST", ExclusiveControlOperation.CHECK_VERSIONS).getMax(), is(2L));
+        assertThat(metrics.getBatchSize("ORDER_HDR", ExclusiveControlOperation.CHECK_VERSIONS).getMax(), is(1L));
+        assertThat(metrics.getFailureRate("USER_MST"), is(0.5));
+        assertThat(metrics.getFailureRate("ORDER_HDR"), is(0.0));
+    }
+
+    @Test
+    public void testRecordTryMethods() {
+        final Version version = sut.getVersion(new UserPk("1"));
+        assertThat(sut.tryUpdateVersionsWithCheck(Collections.singletonList(version)).isSuccess(), is(true));
+        sut.transactionNormalEnd();
+        assertThat(sut.tryUpdateVersionsWithCheck(Collections.singletonList(version)).isSuccess(), is(false));
+
+        assertThat(metrics.getLatency("USER_MST", ExclusiveControlOperation.UPDATE_VERSIONS_WITH_CHECK).getCount(), is(2L));
+        assertThat(metrics.getCheckedCount("USER_MST"), is(2L));
+        assertThat(metrics.getFailedCount("USER_MST"), is(1L));
+    }
+
+    @Test
+    public void testRecordBulkOperations() {
+        sut.addVersions(Arrays.asList(new UserPk("3"), new OrderPk("2"), new UserPk("4")));
+        sut.removeVersions(Collections.singletonList(new UserPk("3")));
+        sut.transactionNormalEnd();
+
+        assertThat(metrics.getBatchSize("USER_MST", ExclusiveControlOperation.ADD_VERSIONS).getMax(), is(2L));
+        assertThat(metrics.getBatchSize("ORDER_HDR", ExclusiveControlOperation.ADD_VERSIONS).getMax(), is(1L));
+        assertThat(metrics.getLatency("USER_MST", ExclusiveControlOperation.REMOVE_VERSIONS).getCount(), is(1L));
+        assertThat(delegate.getVersion(new UserPk("3")) == null, is(true));
+        assertThat(delegate.getVersion(new UserPk("4")).getVersion(), is("1"));
+    }
+
+    @Test
+    public void testHistogram() {
+        final Log2Histogram histogram = new Log2Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getSum(), is(5050L));
+        assertThat(histogram.getMax(), is(100L));
+        assertThat(histogram.getPercentile(50), is(63L));
+        assertThat(histogram.getPercentile(100), is(100L));
+        assertThat(new Log2Histogram().getPercentile(99), is(0L));
+    }
+}
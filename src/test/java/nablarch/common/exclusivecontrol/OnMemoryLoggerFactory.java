@@ -0,0 +1,60 @@
+package nablarch.common.exclusivecontrol;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nablarch.core.log.LogSettings;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerFactory;
+
+/**
+ * WARNレベル以上のログのメッセージをメモリに保持するテスト用の{@link LoggerFactory}。
+ */
+public class OnMemoryLoggerFactory implements LoggerFactory {
+
+    /** 出力されたWARNレベルのメッセージ */
+    private static final List<String> WARN_MESSAGES = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * 出力されたWARNレベルのメッセージを取得する。
+     * @return メッセージ
+     */
+    public static List<String> getWarnMessages() {
+        synchronized (WARN_MESSAGES) {
+            return new ArrayList<String>(WARN_MESSAGES);
+        }
+    }
+
+    /**
+     * 保持しているメッセージを破棄する。
+     */
+    public static void clear() {
+        WARN_MESSAGES.clear();
+    }
+
+    public void initialize(LogSettings settings) {
+    }
+
+    public void terminate() {
+    }
+
+    public Logger get(String name) {
+        return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] {Logger.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.startsWith("is")) {
+                            return !name.equals("isDebugEnabled") && !name.equals("isTraceEnabled");
+                        }
+                        if (name.equals("logWarn")) {
+                            WARN_MESSAGES.add((String) args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -1,5 +1,6 @@
 package nablarch.common.exclusivecontrol;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.*;
 
@@ -41,4 +42,13 @@ public class OptimisticLockExceptionTest {
         assertThat(exception.getErrorVersions(), sameInstance(versions));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWithoutStackTrace() throws Exception {
+        final List<Version> versions = Arrays.asList(new Version(new UserPk("1"), "999"));
+        final OptimisticLockException exception = OptimisticLockException.withoutStackTrace(versions, message);
+
+        assertThat(exception.getErrorVersions(), sameInstance(versions));
+        assertThat(exception.getStackTrace().length, is(0));
+    }
+}
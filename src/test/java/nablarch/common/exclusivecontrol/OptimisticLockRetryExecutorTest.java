@@ -0,0 +1,115 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link OptimisticLockRetryExecutor}のテスト。
+ */
+public class OptimisticLockRetryExecutorTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private InMemoryExclusiveControlManager manager;
+
+    private OptimisticLockRetryExecutor sut;
+
+    @Before
+    public void setUp() {
+        manager = new InMemoryExclusiveControlManager();
+        manager.addVersion(new UserPk("1"));
+        manager.transactionNormalEnd();
+
+        sut = new OptimisticLockRetryExecutor();
+        sut.setExclusiveControlManager(manager);
+        sut.setBaseDelayMillis(1);
+        sut.setMaxDelayMillis(5);
+    }
+
+    /**
+     * 指定回数だけ他のトランザクションによる更新が割り込む処理。
+     */
+    private class ConflictingWork implements OptimisticLockRetryExecutor.Work<String> {
+
+        private int conflicts;
+
+        ConflictingWork(int conflicts) {
+            this.conflicts = conflicts;
+        }
+
+        public String execute(OptimisticLockRetryExecutor.Attempt attempt) {
+            try {
+                if (attempt.lockIfContended(new UserPk("1"))) {
+                    return "locked:" + attempt.getNumber();
+                }
+                final Version version = manager.getVersion(new UserPk("1"));
+                if (conflicts-- > 0) {
+                    manager.updateVersion(new UserPk("1"));
+                    manager.transactionNormalEnd();
+                }
+                manager.updateVersionsWithCheck(Collections.singletonList(version));
+                return "updated:" + attempt.getNumber();
+            } finally {
+                manager.transactionNormalEnd();
+            }
+        }
+    }
+
+    @Test
+    public void testRetryUntilSuccess() {
+        assertThat(sut.execute(new ConflictingWork(2)), is("updated:3"));
+        assertTrue(sut.getConflictRate("USER_MST") > 0);
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() {
+        sut.setMaxAttempts(3);
+        sut.setPessimisticThreshold(1.1);
+        try {
+            sut.execute(new ConflictingWork(10));
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions().get(0).getKey(), is(new UserPk("1").getKey()));
+        }
+    }
+
+    @Test
+    public void testSwitchToPessimisticLockOnHotRow() {
+        sut.setSmoothingFactor(0.5);
+        assertThat(sut.execute(new ConflictingWork(1)), is("locked:2"));
+        assertThat(sut.getConflictRate(new UserPk("1").getKey()), is(0.25));
+
+        assertThat(sut.execute(new ConflictingWork(0)), is("updated:1"));
+    }
+
+    @Test
+    public void testRareConflictStaysOptimistic() {
+        for (int i = 0; i < 20; i++) {
+            assertThat(sut.execute(new ConflictingWork(1)), is("updated:2"));
+            for (int j = 0; j < 4; j++) {
+                assertThat(sut.execute(new ConflictingWork(0)), is("updated:1"));
+            }
+        }
+        assertThat(sut.getConflictRate(new UserPk("1").getKey()) < 0.1, is(true));
+        assertThat(sut.getConflictRate("USER_MST") < 0.1, is(true));
+    }
+}
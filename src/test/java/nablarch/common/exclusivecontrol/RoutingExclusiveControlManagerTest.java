@@ -0,0 +1,205 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link RoutingExclusiveControlManager}のテスト。
+ */
+public class RoutingExclusiveControlManagerTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    private static class ItemPk extends ExclusiveControlContext {
+
+        enum PK {
+            ITEM_ID
+        }
+
+        public ItemPk(String itemId) {
+            setTableName("ITEM_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ITEM_ID, itemId);
+        }
+    }
+
+    /** トランザクションの終了通知を記録する、拡張機能を持たない{@link ExclusiveControlManager}。 */
+    private static class PlainListeningManager implements ExclusiveControlManager, ExclusiveControlTransactionListener {
+
+        final List<String> events = new ArrayList<String>();
+
+        public Version getVersion(ExclusiveControlContext context) {
+            return null;
+        }
+
+        public void checkVersions(List<Version> versions) {
+        }
+
+        public void updateVersionsWithCheck(List<Version> versions) {
+        }
+
+        public void updateVersion(ExclusiveControlContext context) {
+        }
+
+        public void addVersion(ExclusiveControlContext context) {
+        }
+
+        public void removeVersion(ExclusiveControlContext context) {
+        }
+
+        public void transactionNormalEnd() {
+            events.add("normal");
+        }
+
+        public void transactionAbnormalEnd() {
+            events.add("abnormal");
+        }
+    }
+
+    private InMemoryExclusiveControlManager itemStore;
+
+    private InMemoryExclusiveControlManager shard1;
+
+    private InMemoryExclusiveControlManager shard2;
+
+    private RoutingExclusiveControlManager sut;
+
+    @Before
+    public void setUp() {
+        itemStore = new InMemoryExclusiveControlManager();
+        shard1 = new InMemoryExclusiveControlManager();
+        shard2 = new InMemoryExclusiveControlManager();
+        sut = new RoutingExclusiveControlManager();
+        sut.setTableManagers(Collections.singletonMap("ITEM_MST", itemStore));
+        sut.setShards(Arrays.asList(shard1, shard2));
+
+        sut.addVersion(new ItemPk("I1"));
+        for (int i = 0; i < 20; i++) {
+            sut.addVersion(new UserPk(String.valueOf(i)));
+        }
+        sut.transactionNormalEnd();
+    }
+
+    @Test
+    public void testRouting() {
+        assertThat(itemStore.getVersion(new ItemPk("I1")).getVersion(), is("1"));
+        assertThat(itemStore.getVersion(new UserPk("0")), is(nullValue()));
+
+        int onShard1 = 0;
+        for (int i = 0; i < 20; i++) {
+            final UserPk pk = new UserPk(String.valueOf(i));
+            final boolean first = shard1.getVersion(pk) != null;
+            assertThat(shard2.getVersion(pk) != null, is(!first));
+            onShard1 += first ? 1 : 0;
+        }
+        assertThat(onShard1 > 0 && onShard1 < 20, is(true));
+    }
+
+    @Test
+    public void testSplitAndMerge() {
+        final List<Version> versions = new ArrayList<Version>();
+        versions.add(sut.getVersion(new ItemPk("I1")));
+        for (int i = 0; i < 20; i++) {
+            versions.add(sut.getVersion(new UserPk(String.valueOf(i))));
+        }
+        sut.updateVersionsWithCheck(versions);
+        sut.transactionNormalEnd();
+        assertThat(sut.getVersion(new UserPk("7")).getVersion(), is("2"));
+
+        // 1件でもエラーがあれば、どの振り分け先も更新しない。
+        final List<Version> current = new ArrayList<Version>();
+        for (int i = 0; i < 20; i++) {
+            current.add(sut.getVersion(new UserPk(String.valueOf(i))));
+        }
+        current.add(versions.get(0));
+        try {
+            sut.updateVersionsWithCheck(current);
+            fail();
+        } catch (OptimisticLockException e) {
+            assertThat(e.getErrorVersions(), is(Collections.singletonList(versions.get(0))));
+        }
+        assertThat(sut.getVersion(new UserPk("7")).getVersion(), is("2"));
+
+        final VersionCheckResult result = sut.tryCheckVersions(versions);
+        assertThat(result.getErrorVersions().size(), is(21));
+        assertThat(result.getCurrentVersions().get(0).getNumericVersion(), is(2L));
+    }
+
+    @Test
+    public void testUpdateVersionsAndTransactionEnd() {
+        final List<ExclusiveControlContext> contexts = new ArrayList<ExclusiveControlContext>();
+        contexts.add(new ItemPk("I1"));
+        contexts.add(new UserPk("1"));
+        contexts.add(new UserPk("2"));
+        sut.updateVersions(contexts);
+        sut.transactionAbnormalEnd();
+        assertThat(sut.getVersion(new ItemPk("I1")).getVersion(), is("2"));
+        assertThat(sut.getVersion(new UserPk("2")).getVersion(), is("2"));
+    }
+
+    @Test
+    public void testTransactionEndIsNotifiedToPlainManager() {
+        final PlainListeningManager plain = new PlainListeningManager();
+        sut.setTableManagers(Collections.singletonMap("ITEM_MST", plain));
+        sut.transactionNormalEnd();
+        sut.transactionAbnormalEnd();
+        assertThat(plain.events, is(Arrays.asList("normal", "abnormal")));
+    }
+
+    @Test
+    public void testGetVersionsInInputOrder() {
+        sut.setBulkChunkSize(3);
+        final List<ExclusiveControlContext> contexts = new ArrayList<ExclusiveControlContext>();
+        for (int i = 0; i < 10; i++) {
+            contexts.add(new UserPk(String.valueOf(i)));
+            if (i == 4) {
+                contexts.add(new ItemPk("I1"));
+                contexts.add(new UserPk("999"));
+            }
+        }
+        sut.updateVersion(new UserPk("3"));
+        sut.transactionNormalEnd();
+
+        final List<Version> versions = sut.getVersions(contexts);
+        assertThat(versions.size(), is(12));
+        for (int i = 0; i < contexts.size(); i++) {
+            final Version version = versions.get(i);
+            if (i == 6) {
+                assertThat(version, is(nullValue()));
+                continue;
+            }
+            assertThat(version.getKey(), is(contexts.get(i).getKey()));
+            assertThat(version.getVersion(), is(i == 3 ? "2" : "1"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoRoute() {
+        final RoutingExclusiveControlManager routing = new RoutingExclusiveControlManager();
+        routing.setTableManagers(Collections.singletonMap("ITEM_MST", itemStore));
+        routing.getVersion(new UserPk("1"));
+    }
+}
@@ -0,0 +1,117 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * {@link VersionCodec}のテスト。
+ */
+public class VersionCodecTest {
+
+    private static class OrderPk extends ExclusiveControlContext {
+
+        enum PK {
+            ORDER_ID,
+            LINE_NO
+        }
+
+        public OrderPk(String orderId, int lineNo) {
+            setTableName("ORDER_DTL");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+        }
+    }
+
+    private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    @Test
+    public void testRoundTrip() {
+        final Map<String, Object> condition = new HashMap<String, Object>();
+        condition.put("id", new BigDecimal("12.50"));
+        condition.put("code", null);
+        condition.put("flag", Boolean.TRUE);
+        condition.put("seq", Long.MIN_VALUE);
+        condition.put("sub", (short) -3);
+
+        final List<Version> versions = new ArrayList<Version>();
+        versions.add(new Version(new OrderPk("A001", 1), 12345L));
+        versions.add(new Version(new OrderPk("A001", -2), "00012"));
+        versions.add(new Version("OTHER", "VER", "7", condition));
+        final OrderPk grouped = new OrderPk("A001", 3);
+        grouped.setVersionGroup("ADDRESS");
+        versions.add(new Version(grouped, 3L));
+
+        final VersionCodec sut = new VersionCodec(SECRET_KEY);
+        final List<Version> decoded = sut.decode(sut.encode(versions));
+        assertThat(decoded.size(), is(4));
+        for (int i = 0; i < versions.size(); i++) {
+            assertThat(decoded.get(i).getKey(), is(versions.get(i).getKey()));
+            assertThat(decoded.get(i).getVersion(), is(versions.get(i).getVersion()));
+            assertThat(decoded.get(i).getVersionColumnName(), is(versions.get(i).getVersionColumnName()));
+            assertThat(decoded.get(i).getVersionGroup(), is(versions.get(i).getVersionGroup()));
+        }
+        assertThat(decoded.get(0).getNumericVersion(), is(12345L));
+        assertThat(decoded.get(1).isNumeric(), is(false));
+
+        assertThat(sut.decode(sut.encode(Collections.<Version>emptyList())).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCompactAndCompressed() {
+        final List<Version> versions = new ArrayList<Version>();
+        for (int i = 0; i < 100; i++) {
+            versions.add(new Version(new OrderPk("A001", i), i + 1L));
+        }
+        final VersionCodec sut = new VersionCodec(SECRET_KEY);
+        final int plainLength = sut.encode(versions).length;
+        sut.setCompress(true);
+        final byte[] compressed = sut.encode(versions);
+        assertTrue(compressed.length < plainLength);
+        assertThat(sut.decode(compressed).get(99).getNumericVersion(), is(100L));
+
+        // 辞書と可変長整数により、2件目以降は1件あたり16バイト未満となる。
+        assertTrue(plainLength < 100 * 16);
+    }
+
+    @Test
+    public void testTamperedIsRejected() {
+        final VersionCodec sut = new VersionCodec(SECRET_KEY);
+        final byte[] encoded = sut.encode(Collections.singletonList(new Version(new OrderPk("A001", 1), 1L)));
+        encoded[encoded.length - 40] ^= 1;
+        try {
+            sut.decode(encoded);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("signature of encoded versions is invalid."));
+        }
+
+        final byte[] other = new VersionCodec("another key".getBytes())
+                .encode(Collections.singletonList(new Version(new OrderPk("A001", 1), 1L)));
+        try {
+            sut.decode(other);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("signature of encoded versions is invalid."));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedValueType() {
+        final Map<String, Object> condition = new HashMap<String, Object>();
+        condition.put("id", new Object());
+        new VersionCodec(SECRET_KEY).encode(Collections.singletonList(new Version("T", "VER", "1", condition)));
+    }
+}
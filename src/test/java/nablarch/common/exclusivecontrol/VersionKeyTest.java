@@ -0,0 +1,145 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * {@link VersionKey}のテスト。
+ */
+public class VersionKeyTest {
+
+    private static class OrderPk extends ExclusiveControlContext {
+
+        enum PK {
+            ORDER_ID,
+            LINE_NO
+        }
+
+        public OrderPk(String orderId, int lineNo) {
+            setTableName("ORDER_HDR");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.ORDER_ID, orderId);
+            appendCondition(PK.LINE_NO, lineNo);
+        }
+    }
+
+    @Test
+    public void testEqualsIgnoresConditionOrder() {
+        final Map<String, Object> condition1 = new LinkedHashMap<String, Object>();
+        condition1.put("order_id", "A");
+        condition1.put("line_no", 1);
+        final Map<String, Object> condition2 = new LinkedHashMap<String, Object>();
+        condition2.put("line_no", 1);
+        condition2.put("order_id", "A");
+
+        final VersionKey key1 = new VersionKey("ORDER_HDR", condition1);
+        final VersionKey key2 = new VersionKey("ORDER_HDR", condition2);
+        assertThat(key1, is(key2));
+        assertThat(key1.hashCode(), is(key2.hashCode()));
+        assertThat(key1, is(new OrderPk("A", 1).getKey()));
+
+        assertThat(key1, is(not(new OrderPk("A", 2).getKey())));
+        assertThat(key1, is(not(new VersionKey("OTHER", condition1))));
+    }
+
+    @Test
+    public void testAccessors() {
+        final VersionKey key = new OrderPk("A", 1).getKey();
+        assertThat(key.getTableName(), is("ORDER_HDR"));
+        assertThat(key.size(), is(2));
+        assertThat(key.getName(0), is("line_no"));
+        assertThat(key.getValue(0), is((Object) 1));
+        assertThat(key.getValue("order_id"), is((Object) "A"));
+        assertThat(key.getValue("unknown"), is(nullValue()));
+
+        final Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("order_id", "A");
+        expected.put("line_no", 1);
+        assertThat(key.toMap(), is(expected));
+    }
+
+    @Test
+    public void testContextReusesKeyUntilConditionChanges() {
+        final OrderPk context = new OrderPk("A", 1);
+        final VersionKey key = context.getKey();
+        assertThat(context.getKey(), is(sameInstance(key)));
+
+        final Version version = new Version(context, "1");
+        assertThat(version.getKey(), is(sameInstance(key)));
+
+        context.appendCondition(OrderPk.PK.LINE_NO, 2);
+        assertThat(context.getKey(), is(not(key)));
+        assertThat(version.getPrimaryKeyCondition().get("line_no"), is((Object) 1));
+
+        context.getCondition().put("line_no", 1);
+        assertThat(context.getKey(), is(key));
+    }
+
+    @Test
+    public void testContextDiscardsKeyWhenConditionChangesThroughViews() {
+        final OrderPk context = new OrderPk("A", 1);
+        VersionKey key = context.getKey();
+        for (Map.Entry<String, Object> entry : context.getCondition().entrySet()) {
+            if (entry.getKey().equals("line_no")) {
+                entry.setValue(2);
+            }
+        }
+        assertThat(context.getKey(), is(new OrderPk("A", 2).getKey()));
+
+        key = context.getKey();
+        context.getCondition().values().remove(2);
+        assertThat(context.getKey(), is(not(key)));
+        assertThat(context.getKey().size(), is(1));
+
+        key = context.getKey();
+        final Iterator<String> names = context.getCondition().keySet().iterator();
+        names.next();
+        names.remove();
+        assertThat(context.getKey(), is(not(key)));
+        assertThat(context.getKey().size(), is(0));
+
+        context.getCondition().put("order_id", "A");
+        context.getCondition().put("line_no", 1);
+        key = context.getKey();
+        context.getCondition().entrySet().clear();
+        assertThat(context.getKey(), is(not(key)));
+        assertThat(context.getCondition().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCompareTo() {
+        final VersionKey a1 = new OrderPk("A", 1).getKey();
+        final VersionKey a2 = new OrderPk("A", 2).getKey();
+        final VersionKey a10 = new OrderPk("A", 10).getKey();
+        final VersionKey b1 = new OrderPk("B", 1).getKey();
+
+        final List<VersionKey> keys = new ArrayList<VersionKey>(Arrays.asList(b1, a10, a2, a1));
+        Collections.sort(keys);
+        assertThat(keys, is(Arrays.asList(a1, b1, a2, a10)));
+        assertThat(a1.compareTo(new OrderPk("A", 1).getKey()), is(0));
+
+        final Map<String, Object> condition = new HashMap<String, Object>();
+        condition.put("order_id", "A");
+        condition.put("line_no", 1);
+        assertThat(new VersionKey("ORDER_DTL", condition).compareTo(a1) < 0, is(true));
+        condition.put("line_no", null);
+        assertThat(new VersionKey("ORDER_HDR", condition).compareTo(a1) < 0, is(true));
+        condition.put("line_no", "1");
+        assertThat(new VersionKey("ORDER_HDR", condition).compareTo(a1) > 0, is(true));
+    }
+}
@@ -0,0 +1,73 @@
+package nablarch.common.exclusivecontrol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * {@link Version}のテスト。
+ */
+public class VersionTest {
+
+    private static class UserPk extends ExclusiveControlContext {
+
+        enum PK {
+            USER_ID
+        }
+
+        public UserPk(String userId) {
+            setTableName("USER_MST");
+            setVersionColumnName("VERSION");
+            setPrimaryKeyColumnNames(PK.values());
+            appendCondition(PK.USER_ID, userId);
+        }
+    }
+
+    @Test
+    public void testNumericVersion() {
+        final Version version = new Version(new UserPk("1"), 123L);
+        assertThat(version.isNumeric(), is(true));
+        assertThat(version.getNumericVersion(), is(123L));
+        assertThat(version.getVersion(), is("123"));
+        assertThat(version.getVersion(), is(sameInstance(version.getVersion())));
+    }
+
+    @Test
+    public void testNumericStringVersion() {
+        assertThat(new Version(new UserPk("1"), "0").getNumericVersion(), is(0L));
+        assertThat(new Version(new UserPk("1"), "999999999999999999").getNumericVersion(), is(999999999999999999L));
+    }
+
+    @Test
+    public void testNonNumericStringVersion() {
+        assertThat(new Version(new UserPk("1"), "abc").isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), "").isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), "01").isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), "-1").isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), "1000000000000000000").isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), (String) null).isNumeric(), is(false));
+        assertThat(new Version(new UserPk("1"), "01").getVersion(), is("01"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetNumericVersionOfNonNumeric() {
+        new Version(new UserPk("1"), "abc").getNumericVersion();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeVersion() {
+        new Version(new UserPk("1"), -1L);
+    }
+
+    @Test
+    public void testNextVersion() {
+        final Version version = new Version(new UserPk("1"), "41");
+        final Version next = version.nextVersion();
+        assertThat(next.getNumericVersion(), is(42L));
+        assertThat(next.getKey(), is(sameInstance(version.getKey())));
+        assertThat(next.getSchema(), is(sameInstance(version.getSchema())));
+        assertThat(next.getVersionColumnName(), is("VERSION"));
+    }
+}